@@ -0,0 +1,466 @@
+package minijava.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import minijava.analysis.util.graph.Graph;
+import minijava.analysis.util.graph.Node;
+import minijava.util.DefaultIndentable;
+import minijava.util.IndentingWriter;
+import minijava.util.List;
+
+/**
+ * A basic block view of a directed graph (typically a {@link FlowGraph}).
+ * <p>
+ * The nodes of the graph are partitioned into maximal straight line
+ * sequences: a node starts a new block (i.e. it is a "leader") unless it
+ * has exactly one predecessor, and that predecessor has exactly one
+ * successor.
+ * <p>
+ * Blocks and the nodes in the underlying graph are identified by dense
+ * integer indices so that analyses can store their information in arrays
+ * (or bit vectors) rather than in hash maps. Block 0 is the block containing
+ * the first node of the graph (the entry).
+ */
+public class BlockGraph<N> extends DefaultIndentable {
+
+	private static final int[] NO_BLOCKS = new int[0];
+
+	/**
+	 * All the nodes in the graph, indexed by their node index.
+	 */
+	private Node<N>[] nodes;
+
+	private Map<Node<N>, Integer> nodeIndex = new HashMap<Node<N>, Integer>();
+
+	/**
+	 * For each block, the indices of the nodes in that block (in execution order).
+	 */
+	private int[][] blockNodes;
+
+	/**
+	 * For each node index, the block it belongs to.
+	 */
+	private int[] blockOf;
+
+	private int[][] succs;
+	private int[][] preds;
+
+	/**
+	 * Block indices in postorder of a depth first traversal from the entry block.
+	 * Blocks not reachable from the entry are appended at the end.
+	 */
+	private int[] postorder;
+
+	/**
+	 * Immediate dominator of each block (-1 for unreachable blocks), the
+	 * natural loops, and loop nesting depth of each block. All computed on
+	 * demand.
+	 */
+	private int[] idom;
+	private List<Loop> loops;
+	private int[] loopDepth;
+
+	/**
+	 * A natural loop: its header block, and the blocks that reach the source
+	 * of a back edge into the header without going through the header. Loops
+	 * with the same header are merged.
+	 */
+	public static class Loop {
+
+		private final int header;
+		private final int[] blocks;
+		private final int[] latches;
+
+		private Loop(int header, int[] blocks, int[] latches) {
+			this.header = header;
+			this.blocks = blocks;
+			this.latches = latches;
+		}
+
+		public int header() {
+			return header;
+		}
+
+		/**
+		 * The blocks of the loop (the header included), in increasing order.
+		 * The returned array is shared, it should not be modified.
+		 */
+		public int[] blocks() {
+			return blocks;
+		}
+
+		/**
+		 * The sources of the back edges into the header (the returned array
+		 * should not be modified).
+		 */
+		public int[] latches() {
+			return latches;
+		}
+
+		public boolean contains(int block) {
+			return Arrays.binarySearch(blocks, block) >= 0;
+		}
+
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BlockGraph(Graph<N> graph) {
+		List<Node<N>> all = graph.nodes();
+		nodes = new Node[all.size()];
+		int i = 0;
+		for (Node<N> node : all) {
+			nodeIndex.put(node, i);
+			nodes[i++] = node;
+		}
+		findBlocks();
+		linkBlocks();
+		computePostorder();
+	}
+
+	private boolean isLeader(Node<N> node) {
+		if (node.inDegree()!=1)
+			return true;
+		Node<N> pred = node.pred().head();
+		return pred.outDegree()!=1 || pred==node;
+	}
+
+	private void findBlocks() {
+		blockOf = new int[nodes.length];
+		int[] buffer = new int[nodes.length];
+		java.util.List<int[]> blocks = new ArrayList<int[]>();
+		boolean[] placed = new boolean[nodes.length];
+		// Visit the nodes in graph order, so the entry node leads block 0.
+		// Every non-leader is reached by following the straight line chain from
+		// a leader. Nodes on a cycle without any leader get a leader assigned
+		// arbitrarily.
+		for (int pass = 0; pass < 2; pass++) {
+			for (int start = 0; start < nodes.length; start++) {
+				if (placed[start] || (pass==0 && start!=0 && !isLeader(nodes[start])))
+					continue;
+				int len = 0;
+				int current = start;
+				while (true) {
+					placed[current] = true;
+					blockOf[current] = blocks.size();
+					buffer[len++] = current;
+					Node<N> node = nodes[current];
+					if (node.outDegree()!=1) break;
+					Node<N> next = node.succ().head();
+					int nextIndex = nodeIndex.get(next);
+					if (placed[nextIndex] || isLeader(next)) break;
+					current = nextIndex;
+				}
+				int[] block = new int[len];
+				System.arraycopy(buffer, 0, block, 0, len);
+				blocks.add(block);
+			}
+		}
+		blockNodes = blocks.toArray(new int[blocks.size()][]);
+	}
+
+	private void linkBlocks() {
+		int numBlocks = blockNodes.length;
+		succs = new int[numBlocks][];
+		preds = new int[numBlocks][];
+		int[] predCount = new int[numBlocks];
+		for (int b = 0; b < numBlocks; b++) {
+			Node<N> last = nodes[blockNodes[b][blockNodes[b].length-1]];
+			int[] s = new int[last.outDegree()];
+			int i = 0;
+			for (Node<N> succ : last.succ()) {
+				s[i] = blockOf[nodeIndex.get(succ)];
+				predCount[s[i]]++;
+				i++;
+			}
+			succs[b] = s;
+		}
+		for (int b = 0; b < numBlocks; b++)
+			preds[b] = predCount[b]==0 ? NO_BLOCKS : new int[predCount[b]];
+		int[] fill = new int[numBlocks];
+		for (int b = 0; b < numBlocks; b++)
+			for (int s : succs[b])
+				preds[s][fill[s]++] = b;
+	}
+
+	private void computePostorder() {
+		int numBlocks = blockNodes.length;
+		postorder = new int[numBlocks];
+		int count = 0;
+		boolean[] visited = new boolean[numBlocks];
+		int[] stack = new int[numBlocks];
+		int[] nextSucc = new int[numBlocks];
+		// Iterative DFS (recursion would overflow the Java stack on large methods).
+		for (int root = 0; root < numBlocks; root++) {
+			if (visited[root]) continue;
+			int sp = 0;
+			stack[sp++] = root;
+			visited[root] = true;
+			nextSucc[root] = 0;
+			while (sp>0) {
+				int b = stack[sp-1];
+				if (nextSucc[b]<succs[b].length) {
+					int s = succs[b][nextSucc[b]++];
+					if (!visited[s]) {
+						visited[s] = true;
+						nextSucc[s] = 0;
+						stack[sp++] = s;
+					}
+				}
+				else {
+					postorder[count++] = b;
+					sp--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of blocks.
+	 */
+	public int size() {
+		return blockNodes.length;
+	}
+
+	/**
+	 * The number of nodes in the underlying graph.
+	 */
+	public int nodeCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * The dense index of a node of the underlying graph.
+	 */
+	public int indexOf(Node<N> node) {
+		return nodeIndex.get(node);
+	}
+
+	public Node<N> node(int nodeIndex) {
+		return nodes[nodeIndex];
+	}
+
+	/**
+	 * The block a given node belongs to.
+	 */
+	public int blockOf(Node<N> node) {
+		return blockOf[indexOf(node)];
+	}
+
+	/**
+	 * The node indices of the nodes in a block, in execution order.
+	 * The first one is the block's leader.
+	 * <p>
+	 * The returned array is shared, it should not be modified.
+	 */
+	public int[] nodes(int block) {
+		return blockNodes[block];
+	}
+
+	public Node<N> leader(int block) {
+		return nodes[blockNodes[block][0]];
+	}
+
+	public Node<N> last(int block) {
+		int[] members = blockNodes[block];
+		return nodes[members[members.length-1]];
+	}
+
+	/**
+	 * Successor blocks of a block (the returned array should not be modified).
+	 */
+	public int[] succ(int block) {
+		return succs[block];
+	}
+
+	/**
+	 * Predecessor blocks of a block (the returned array should not be modified).
+	 */
+	public int[] pred(int block) {
+		return preds[block];
+	}
+
+	/**
+	 * Block indices in postorder (every block appears exactly once). This is
+	 * the natural order in which to visit the blocks for a backward
+	 * data flow problem such as liveness. Reverse it for forward problems.
+	 */
+	public int[] postorder() {
+		return postorder;
+	}
+
+	private void computeDominators() {
+		// Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm".
+		// The blocks reachable from the entry are the ones that come before
+		// (and including) the entry block in the postorder.
+		int numBlocks = size();
+		int[] poNumber = new int[numBlocks];
+		idom = new int[numBlocks];
+		if (numBlocks==0)
+			return;
+		int reachable = 0;
+		while (postorder[reachable]!=0)
+			reachable++;
+		reachable++;
+		for (int i = 0; i < reachable; i++)
+			poNumber[postorder[i]] = i;
+
+		Arrays.fill(idom, -1);
+		idom[0] = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = reachable-2; i >= 0; i--) {
+				int b = postorder[i];
+				int newIdom = -1;
+				for (int p : preds[b]) {
+					if (idom[p]==-1) continue;
+					if (newIdom==-1)
+						newIdom = p;
+					else {
+						int x = p;
+						while (x!=newIdom) {
+							while (poNumber[x]<poNumber[newIdom]) x = idom[x];
+							while (poNumber[newIdom]<poNumber[x]) newIdom = idom[newIdom];
+						}
+					}
+				}
+				if (idom[b]!=newIdom) {
+					idom[b] = newIdom;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The immediate dominator of a block, or -1 for the entry block and for
+	 * blocks that can't be reached from the entry.
+	 */
+	public int idom(int block) {
+		if (idom==null)
+			computeDominators();
+		return block==0 ? -1 : idom[block];
+	}
+
+	/**
+	 * Does block a dominate block b? (Every block dominates itself, unreachable
+	 * blocks are dominated by nothing.)
+	 */
+	public boolean dominates(int a, int b) {
+		if (idom==null)
+			computeDominators();
+		if (idom[b]==-1)
+			return false;
+		while (b!=a) {
+			if (b==0) return false;
+			b = idom[b];
+		}
+		return true;
+	}
+
+	private void computeLoops() {
+		if (idom==null)
+			computeDominators();
+		int numBlocks = size();
+		java.util.List<Loop> found = new ArrayList<Loop>();
+		int[] mark = new int[numBlocks];
+		int[] body = new int[numBlocks];
+		for (int h = 0; h < numBlocks; h++) {
+			// The natural loop of header h: all blocks that reach the source of
+			// a back edge into h without going through h. Loops with the same
+			// header are merged.
+			int size = 0;
+			mark[h] = h+1;
+			body[size++] = h;
+			int latches = 0;
+			for (int p : preds[h]) {
+				if (dominates(h, p)) {
+					latches++;
+					if (mark[p]!=h+1) {
+						mark[p] = h+1;
+						body[size++] = p;
+					}
+				}
+			}
+			if (latches==0)
+				continue;
+			int[] latch = new int[latches];
+			latches = 0;
+			for (int p : preds[h]) {
+				if (dominates(h, p))
+					latch[latches++] = p;
+			}
+			for (int i = 1; i < size; i++) {
+				for (int p : preds[body[i]]) {
+					if (mark[p]!=h+1 && idom[p]!=-1) {
+						mark[p] = h+1;
+						body[size++] = p;
+					}
+				}
+			}
+			int[] blocks = new int[size];
+			System.arraycopy(body, 0, blocks, 0, size);
+			Arrays.sort(blocks);
+			found.add(new Loop(h, blocks, latch));
+		}
+		// A loop has more blocks than the loops inside it
+		Collections.sort(found, new Comparator<Loop>() {
+			public int compare(Loop a, Loop b) {
+				return a.blocks.length - b.blocks.length;
+			}
+		});
+		loops = List.empty();
+		for (Loop loop : found)
+			loops.add(loop);
+	}
+
+	/**
+	 * The natural loops (found from the back edges of the dominator tree),
+	 * inner loops before the loops around them.
+	 */
+	public List<Loop> loops() {
+		if (loops==null)
+			computeLoops();
+		return loops;
+	}
+
+	private void computeLoopDepth() {
+		loopDepth = new int[size()];
+		for (Loop loop : loops()) {
+			for (int b : loop.blocks)
+				loopDepth[b]++;
+		}
+	}
+
+	/**
+	 * The number of natural loops (found from the back edges of the dominator
+	 * tree) that contain a block. Zero for blocks outside of any loop.
+	 */
+	public int loopDepth(int block) {
+		if (loopDepth==null)
+			computeLoopDepth();
+		return loopDepth[block];
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		for (int b = 0; b < size(); b++) {
+			out.print("B"+b+" [");
+			int[] members = nodes(b);
+			for (int i = 0; i < members.length; i++) {
+				if (i>0) out.print(" ");
+				out.print(nodes[members[i]]);
+			}
+			out.print("] goto");
+			for (int s : succ(b))
+				out.print(" B"+s);
+			out.println();
+		}
+	}
+
+}
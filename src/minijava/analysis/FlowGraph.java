@@ -41,6 +41,43 @@ public abstract class FlowGraph<N> extends Graph<N> {
 	 */
 	public abstract boolean isMove(Node<N> node);
 
+	/**
+	 * Cached basic block view of this graph. Discarded whenever the
+	 * graph's edges are modified.
+	 */
+	private BlockGraph<N> blocks;
+
+	/**
+	 * Get the basic block view of this flow graph. The nodes of the flow
+	 * graph ("instruction view") are grouped into maximal straight line
+	 * sequences, and the blocks are connected by succ/pred arrays.
+	 */
+	public BlockGraph<N> blocks() {
+		if (blocks==null)
+			blocks = new BlockGraph<N>(this);
+		return blocks;
+	}
+
+	/**
+	 * The loop nesting depth of a node (see {@link BlockGraph#loopDepth(int)}).
+	 */
+	public int loopDepth(Node<N> node) {
+		BlockGraph<N> blocks = blocks();
+		return blocks.loopDepth(blocks.blockOf(node));
+	}
+
+	@Override
+	public void addEdge(Node<N> from, Node<N> to) {
+		blocks = null;
+		super.addEdge(from, to);
+	}
+
+	@Override
+	public void rmEdge(Node<N> from, Node<N> to) {
+		blocks = null;
+		super.rmEdge(from, to);
+	}
+
 	/**
 	 * Print a human-readable dump for debugging.
 	 */
@@ -26,15 +26,47 @@ abstract public class InterferenceGraph extends Graph<Temp> {
 	
 	abstract public List<Move> moves();
 	
+	private SpillCostModel spillCostModel = SpillCostModel.DEFAULT;
+
+	public void setSpillCostModel(SpillCostModel model) {
+		this.spillCostModel = model;
+	}
+
+	public SpillCostModel getSpillCostModel() {
+		return spillCostModel;
+	}
+
+	/**
+	 * The estimated cost of spilling the Temp of a node, as computed by
+	 * this graph's {@link SpillCostModel}. A good model assigns a higher
+	 * spill cost to a Temp that is used frequently (and may reduce the
+	 * cost if a temp interferes with lots of other temps, because spilling
+	 * it will help avoid more spills).
+	 */
+	public double spillCost(Node<Temp> node) {
+		return spillCostModel.spillCost(this, node);
+	}
+
+	/**
+	 * How many times the Temp of a node is used or defined in the code.
+	 * This default implementation doesn't know, implementations should
+	 * override it.
+	 */
+	public int references(Node<Temp> node) {return 1;}
+
+	/**
+	 * Like references, but every use or def is weighted by 10^d, where d is
+	 * the loop nesting depth of the instruction.
+	 */
+	public double weightedReferences(Node<Temp> node) {return references(node);}
+
 	/**
-	 * This default implementation will work, but you should 
-	 * override it to provide a better implementation. 
-	 * A good implementation should assign a higher spill cost
-	 * to a Temp that is used frequently (and also may reduce
-	 * spill cost if a temp interferes with lots of other temps,
-	 * because spilling it will help avoid more spills.
+	 * Is the Temp of a node defined once, and used only once by the
+	 * instruction immediately following its definition? (e.g. the Temp
+	 * that holds the result of a CALL). Spilling such a Temp doesn't
+	 * make anything easier to color.
 	 */
-	public double spillCost(Node<Temp> node) {return 1;}
+	public boolean isConsumedAtOnce(Node<Temp> node) {return false;}
 	
 	@Override
 	protected Node<Temp> makeNode(Temp content) {
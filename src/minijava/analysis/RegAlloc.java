@@ -0,0 +1,155 @@
+package minijava.analysis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import minijava.analysis.implementation.IteratedCoalescingRegAlloc;
+import minijava.analysis.implementation.LinearScanRegAlloc;
+import minijava.analysis.implementation.SpillSlotColoring;
+import minijava.codegen.AssemFragment;
+import minijava.codegen.AssemProc;
+import minijava.codegen.Assembly;
+import minijava.ir.temp.Label;
+
+/**
+ * This is the "interface" for the register allocation phase of our compiler.
+ * <p>
+ * A register allocator paints every Temp in the body of an AssemProc with a
+ * Color. This is either the color of one of the frame's registers, or (for
+ * a spilled Temp) a location in the frame. 
+ * <p>
+ * Spilling works by painting the spilled Temps and regenerating the code
+ * for the procedure with {@link AssemProc#rewrite()}. The muncher has special
+ * rules for spilled Temps (see IRPat.SPILLED) that load / store them from /
+ * to their location in the frame. Allocation is then attempted again on
+ * the new code, until no more Temps need to be spilled.
+ */
+public abstract class RegAlloc {
+
+	private SpillCostModel spillCostModel = SpillCostModel.DEFAULT;
+
+	/**
+	 * Choose the heuristic used to pick the Temps to spill. (Not every
+	 * allocator has to use it, linear scan for example spills the interval
+	 * that ends last.)
+	 */
+	public RegAlloc setSpillCostModel(SpillCostModel model) {
+		this.spillCostModel = model;
+		return this;
+	}
+
+	public SpillCostModel getSpillCostModel() {
+		return spillCostModel;
+	}
+
+	/**
+	 * For each procedure allocated by apply, by how many bytes sharing spill
+	 * locations made its frame smaller.
+	 */
+	private Map<Label, Integer> frameSizeReductions = new LinkedHashMap<Label, Integer>();
+
+	/**
+	 * Allocate registers for all the procedures in a program. The procedures
+	 * are modified in place. Afterwards, spilled Temps share frame locations
+	 * where possible (see {@link #shareSpillSlots(AssemProc)}) and moves that
+	 * became redundant because their source and destination got the same
+	 * register are deleted.
+	 */
+	public Assembly apply(Assembly assembly) {
+		for (AssemFragment fragment : assembly) {
+			if (fragment instanceof AssemProc) {
+				AssemProc proc = (AssemProc) fragment;
+				allocate(proc);
+				frameSizeReductions.put(proc.getLabel(), shareSpillSlots(proc));
+				proc.removeRedundantMoves();
+			}
+			else
+				throw new Error("Register allocator doesn't know about fragments of this type");
+		}
+		return assembly;
+	}
+
+	/**
+	 * Color the spilled Temps of an allocated procedure onto as few frame
+	 * locations as possible, and shrink its frame accordingly. Returns the
+	 * number of bytes saved.
+	 */
+	public int shareSpillSlots(AssemProc proc) {
+		return SpillSlotColoring.apply(proc);
+	}
+
+	/**
+	 * The frame size reduction (in bytes) that spill slot sharing achieved
+	 * for each procedure allocated with apply.
+	 */
+	public Map<Label, Integer> getFrameSizeReductions() {
+		return frameSizeReductions;
+	}
+
+	/**
+	 * Allocate registers for a single procedure. When this method returns
+	 * all Temps in the procedure's body are painted.
+	 */
+	public abstract void allocate(AssemProc proc);
+
+	/**
+	 * The available register allocation algorithms.
+	 */
+	public enum Mode {
+		/**
+		 * Graph coloring with iterated register coalescing. Produces the best
+		 * code, but its running time grows faster than linearly with the size
+		 * of the interference graph.
+		 */
+		GRAPH_COLORING,
+		/**
+		 * Linear scan. Compile time grows roughly linearly with the number of
+		 * instructions, at the price of somewhat worse code.
+		 */
+		LINEAR_SCAN
+	}
+
+	/**
+	 * In GRAPH_COLORING mode, procedures with more instructions than this are
+	 * allocated with linear scan instead, unless another threshold is given.
+	 */
+	public static final int DEFAULT_LINEAR_SCAN_THRESHOLD = 5000;
+
+	/**
+	 * Create a register allocator with a concrete implementation of this class.
+	 */
+	public static RegAlloc create() {
+		return create(Mode.GRAPH_COLORING);
+	}
+
+	public static RegAlloc create(Mode mode) {
+		return create(mode, DEFAULT_LINEAR_SCAN_THRESHOLD);
+	}
+
+	/**
+	 * Create a register allocator for the given mode. In GRAPH_COLORING mode
+	 * the allocator falls back to linear scan for every procedure whose body
+	 * has more than linearScanThreshold instructions.
+	 */
+	public static RegAlloc create(Mode mode, final int linearScanThreshold) {
+		final RegAlloc linearScan = new LinearScanRegAlloc();
+		switch (mode) {
+		case LINEAR_SCAN:
+			return linearScan;
+		case GRAPH_COLORING:
+			final RegAlloc coloring = new IteratedCoalescingRegAlloc();
+			return new RegAlloc() {
+				@Override
+				public void allocate(AssemProc proc) {
+					if (proc.getBody().size() > linearScanThreshold)
+						linearScan.setSpillCostModel(getSpillCostModel()).allocate(proc);
+					else
+						coloring.setSpillCostModel(getSpillCostModel()).allocate(proc);
+				}
+			};
+		default:
+			throw new Error("Unknown register allocation mode: "+mode);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package minijava.analysis;
+
+import minijava.analysis.util.graph.Node;
+import minijava.ir.temp.Temp;
+
+/**
+ * A heuristic that estimates how expensive it would be to spill a Temp.
+ * <p>
+ * The register allocator spills the nodes with the lowest cost first. A
+ * model is installed in an interference graph with
+ * {@link InterferenceGraph#setSpillCostModel(SpillCostModel)}, after which
+ * {@link InterferenceGraph#spillCost(Node)} delegates to it.
+ * <p>
+ * The models only use the information the interference graph provides about
+ * its nodes, so different heuristics can be swapped in (e.g. with
+ * {@link RegAlloc#setSpillCostModel(SpillCostModel)}) and compared on the
+ * same programs. The IR interpreter counts the spill loads and stores that
+ * are executed, which is a good way to do such a comparison.
+ */
+public abstract class SpillCostModel {
+
+	private final String name;
+
+	protected SpillCostModel(String name) {
+		this.name = name;
+	}
+
+	public abstract double spillCost(InterferenceGraph graph, Node<Temp> node);
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Every Temp costs the same. (This is what the default implementation of
+	 * spillCost in InterferenceGraph used to do.)
+	 */
+	public static final SpillCostModel CONSTANT = new SpillCostModel("constant") {
+		@Override
+		public double spillCost(InterferenceGraph graph, Node<Temp> node) {
+			return 1;
+		}
+	};
+
+	/**
+	 * The number of uses and defs of a Temp divided by its degree, ignoring
+	 * loops.
+	 */
+	public static final SpillCostModel USE_COUNT = new SpillCostModel("use count") {
+		@Override
+		public double spillCost(InterferenceGraph graph, Node<Temp> node) {
+			if (graph.isConsumedAtOnce(node))
+				return Double.POSITIVE_INFINITY;
+			return (double) graph.references(node) / Math.max(1, node.degree());
+		}
+	};
+
+	/**
+	 * Uses and defs of a Temp, each weighted by 10^(loop depth), divided by
+	 * its degree (see section 11.3 of the book).
+	 */
+	public static final SpillCostModel LOOP_WEIGHTED = new SpillCostModel("loop weighted") {
+		@Override
+		public double spillCost(InterferenceGraph graph, Node<Temp> node) {
+			if (graph.isConsumedAtOnce(node))
+				return Double.POSITIVE_INFINITY;
+			return graph.weightedReferences(node) / Math.max(1, node.degree());
+		}
+	};
+
+	/**
+	 * On the sample programs the loop weighting doesn't pay off: it spills
+	 * one more load than USE_COUNT in total (it gives up a callee-save
+	 * register that optimistic coloring finds a color for with USE_COUNT).
+	 */
+	public static final SpillCostModel DEFAULT = USE_COUNT;
+
+}
@@ -1,13 +1,15 @@
 package minijava.analysis.implementation;
 
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.HashMap;
 
 import minijava.analysis.FlowGraph;
 import minijava.analysis.InterferenceGraph;
-import minijava.analysis.InterferenceGraph.Move;
 import minijava.analysis.util.graph.Node;
+import minijava.codegen.assem.A_LABEL;
 import minijava.codegen.assem.A_MOVE;
 import minijava.codegen.assem.Instr;
+import minijava.ir.temp.Label;
 import minijava.ir.temp.Temp;
 import minijava.util.List;
 
@@ -15,20 +17,43 @@ public class AssemFlowGraph extends FlowGraph<Instr>
 {  
   public AssemFlowGraph(List<Instr> body)
   {
-    Node<Instr> n,
-                prevNode = null;
+    // First pass: one node per instruction, and a table to find the
+    // node that defines a label.
+    HashMap<Label, Node<Instr>> labelTable = new HashMap<Label, Node<Instr>>();
+    for(Instr i : body)
+    {
+      Node<Instr> n = this.newNode(i);
+      if(i instanceof A_LABEL)
+      {
+        labelTable.put(((A_LABEL) i).getLabel(), n);
+      }
+    }
     
-    Iterator<Instr> itr = body.iterator();
-    while(itr.hasNext())
+    // Second pass: add edges. Instructions without jumps() fall through to
+    // the next instruction, jumps only go to their targets (a conditional
+    // jump lists its fall through target as one of its jumps). Targets
+    // outside of this procedure are exits from the graph.
+    Node<Instr> prevNode = null;
+    for(Node<Instr> n : this.nodes())
     {
-      Instr i = itr.next();
-      n = this.nodeFor(i);
-      
-      if(prevNode != null)
+      if(prevNode != null && prevNode.wrappee().jumps() == null)
       {
         this.addEdge(prevNode, n);
       }
       
+      List<Label> targets = n.wrappee().jumps();
+      if(targets != null)
+      {
+        for(Label target : targets)
+        {
+          Node<Instr> targetNode = labelTable.get(target);
+          if(targetNode != null)
+          {
+            this.addEdge(n, targetNode);
+          }
+        }
+      }
+      
       prevNode = n;
     }
   }
@@ -57,61 +82,72 @@ public class AssemFlowGraph extends FlowGraph<Instr>
     InterferenceGraphImplementation ig = new InterferenceGraphImplementation();
     LivenessImplementation<Instr> live = new LivenessImplementation<Instr>(this);
     
+    // Create the nodes in temp index order, so that node ids in the
+    // interference graph are the same as the liveness temp indices.
+    for(int t = 0; t < live.tempCount(); t++)
+    {
+      ig.nodeFor(live.temp(t));
+    }
+    
+    // For the spill cost model: for every temp the number of defs and uses,
+    // and the node of the last def and use.
+    int numTemps = live.tempCount();
+    int[] defCount = new int[numTemps];
+    int[] useCount = new int[numTemps];
+    Node<?>[] defNode = new Node<?>[numTemps];
+    Node<?>[] useNode = new Node<?>[numTemps];
+    
     for(Node<Instr> node : this.nodes())
     {
-      // Special treatment for MOVE instructions
-      if(isMove(node) && node.wrappee() instanceof A_MOVE)
+      BitSet out = live.liveOutBits(node);
+      int depth = loopDepth(node);
+      for(Temp use : this.use(node))
+      {
+        int u = live.tempIndex(use);
+        ig.addReference(u, depth);
+        useCount[u]++;
+        useNode[u] = node;
+      }
+      for(Temp def : this.def(node))
+      {
+        int d = live.tempIndex(def);
+        ig.addReference(d, depth);
+        defCount[d]++;
+        defNode[d] = node;
+      }
+      
+      // For a move d <- s, d doesn't interfere with s (they may be coalesced)
+      int moveSrc = -1;
+      if(isMove(node))
       {
-        // Record a move
-        ig.addMove((A_MOVE) node.wrappee());
+        A_MOVE move = (A_MOVE) node.wrappee();
+        ig.addMove(move);
+        moveSrc = live.tempIndex(move.src);
       }
       
+      // Every def interferes with all the temps that are live out
       for(Temp def : this.def(node))
       {
-        for(Temp out : live.liveOut(node))
+        int d = live.tempIndex(def);
+        for(int o = out.nextSetBit(0); o >= 0; o = out.nextSetBit(o + 1))
         {
-          if(!isMove(node) || !(node.wrappee() instanceof A_MOVE))
+          if(o != moveSrc)
           {
-            // Not a MOVE instruction
-            
-            // Check if redefining a previous MOVE dst
-            for(Move move : ig.moves())
-            {
-              // Add edge back if clobbering dst, and src is still live
-              if(move.dst.equals(def) && move.src.equals(out))
-              {
-                ig.addEdge(move.dst, move.src);
-                ig.addEdge(move.src, move.dst);
-              }
-            }
-            
-            // Add regular interference edges
-            if(!def.equals(out))
-            {
-              ig.addEdge(ig.nodeFor(def), ig.nodeFor(out));
-              ig.addEdge(ig.nodeFor(out), ig.nodeFor(def));
-            }
-          }
-          else
-          {
-            // MOVE instruction
-            
-            // def = destination
-            // source is in the out list
-            Temp mvSrc = ((A_MOVE) node.wrappee()).src;
-            Temp mvDst = ((A_MOVE) node.wrappee()).dst;
-            
-            // For move nodes, add interference edges that are not (s, t) for s -> t moves
-            if(!(mvDst.equals(def) && mvSrc.equals(out)) && !def.equals(out))
-            {
-              ig.addEdge(ig.nodeFor(def), ig.nodeFor(out));
-              ig.addEdge(ig.nodeFor(out), ig.nodeFor(def));
-            }
+            ig.addEdge(d, o);
           }
         }
       }
     }
     
+    for(int t = 0; t < numTemps; t++)
+    {
+      if(defCount[t] == 1 && useCount[t] == 1 && defNode[t].outDegree() == 1
+          && defNode[t].succ().head() == useNode[t] && useNode[t].inDegree() == 1)
+      {
+        ig.setConsumedAtOnce(t);
+      }
+    }
+    
     return ig;
   }
 }
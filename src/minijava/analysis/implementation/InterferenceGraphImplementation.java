@@ -1,16 +1,311 @@
 package minijava.analysis.implementation;
 
 import java.io.StringWriter;
+import java.util.Arrays;
 
 import minijava.analysis.InterferenceGraph;
+import minijava.analysis.util.graph.Node;
 import minijava.codegen.assem.A_MOVE;
+import minijava.ir.temp.Temp;
 import minijava.util.IndentingWriter;
 import minijava.util.List;
 
+/**
+ * Interference graph with array based adjacency.
+ * <p>
+ * Interference is a symmetric relation, so this graph is undirected: adding an
+ * edge from a to b also adds the edge from b to a, and the succ and pred lists
+ * of a node are the same (its neighbours).
+ * <p>
+ * Every node has a dense integer id (the order in which the nodes were
+ * created). Edges are stored twice: in a triangular bit matrix indexed by
+ * the ids, which makes interference tests O(1), and in growable int
+ * arrays of neighbour ids for fast iteration.
+ */
 public class InterferenceGraphImplementation extends InterferenceGraph
 {
   List<Move> moves = List.empty();
-  
+
+  private IGNode[] nodesById = new IGNode[16];
+  private int nodeCount = 0;
+
+  /**
+   * Lower triangle of the adjacency matrix, the bit for i > j is at index
+   * i*(i-1)/2 + j. Because row i only depends on i, the matrix can grow by
+   * simply extending the array.
+   */
+  private long[] matrix = new long[0];
+
+  private class IGNode extends Node<Temp>
+  {
+    final int id;
+    int[] adj = new int[4];
+    int degree = 0;
+
+    // Statistics for the spill cost model
+    int references = 0;
+    double weightedReferences = 0;
+    boolean consumedAtOnce = false;
+
+    /**
+     * List view of the neighbours, created on demand.
+     */
+    List<Node<Temp>> view;
+
+    IGNode(Temp t)
+    {
+      super(InterferenceGraphImplementation.this, t);
+      id = nodeCount;
+    }
+
+    @Override
+    public List<Node<Temp>> succ()
+    {
+      if (view == null)
+      {
+        view = List.empty();
+        for (int i = 0; i < degree; i++)
+        {
+          view.add(nodesById[adj[i]]);
+        }
+      }
+      return view;
+    }
+
+    @Override
+    public List<Node<Temp>> pred()
+    {
+      return succ();
+    }
+
+    @Override
+    public List<Node<Temp>> adj()
+    {
+      return succ();
+    }
+
+    @Override
+    public int inDegree()
+    {
+      return degree;
+    }
+
+    @Override
+    public int outDegree()
+    {
+      return degree;
+    }
+
+    /**
+     * The number of neighbours. (Since every edge is undirected, it is not
+     * counted twice.)
+     */
+    @Override
+    public int degree()
+    {
+      return degree;
+    }
+
+    @Override
+    public boolean goesTo(Node<Temp> n)
+    {
+      return interferes(id, idOf(n));
+    }
+
+    @Override
+    public boolean comesFrom(Node<Temp> n)
+    {
+      return goesTo(n);
+    }
+
+    @Override
+    public boolean adj(Node<Temp> n)
+    {
+      return goesTo(n);
+    }
+
+    @Override
+    public String toString()
+    {
+      return wrappee().toString();
+    }
+
+    void addNeighbour(int other)
+    {
+      if (degree == adj.length)
+      {
+        adj = Arrays.copyOf(adj, degree * 2);
+      }
+      adj[degree++] = other;
+      view = null;
+    }
+
+    void rmNeighbour(int other)
+    {
+      for (int i = 0; i < degree; i++)
+      {
+        if (adj[i] == other)
+        {
+          adj[i] = adj[--degree];
+          view = null;
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  protected Node<Temp> makeNode(Temp content)
+  {
+    IGNode node = new IGNode(content);
+    if (nodeCount == nodesById.length)
+    {
+      nodesById = Arrays.copyOf(nodesById, nodeCount * 2);
+    }
+    nodesById[nodeCount++] = node;
+    long bits = (long) nodeCount * (nodeCount - 1) / 2;
+    int words = (int) ((bits + 63) >> 6);
+    if (words > matrix.length)
+    {
+      matrix = Arrays.copyOf(matrix, Math.max(words, matrix.length * 2));
+    }
+    return node;
+  }
+
+  private int idOf(Node<Temp> n)
+  {
+    if (!(n instanceof IGNode) || nodesById[((IGNode) n).id] != n)
+    {
+      throw new Error("Node " + n + " is not part of this interference graph");
+    }
+    return ((IGNode) n).id;
+  }
+
+  private static long bitIndex(int a, int b)
+  {
+    return a > b ? (long) a * (a - 1) / 2 + b : (long) b * (b - 1) / 2 + a;
+  }
+
+  /**
+   * The number of nodes, node ids range from 0 to nodeCount()-1.
+   */
+  public int nodeCount()
+  {
+    return nodeCount;
+  }
+
+  public Node<Temp> node(int id)
+  {
+    return nodesById[id];
+  }
+
+  public int id(Node<Temp> node)
+  {
+    return idOf(node);
+  }
+
+  public boolean interferes(int a, int b)
+  {
+    if (a == b)
+    {
+      return false;
+    }
+    long bit = bitIndex(a, b);
+    return (matrix[(int) (bit >> 6)] & (1L << bit)) != 0;
+  }
+
+  /**
+   * Ids of the neighbours of a node. Only the first degree(id) entries of the
+   * returned (shared) array are valid.
+   */
+  public int[] adjacent(int id)
+  {
+    return nodesById[id].adj;
+  }
+
+  public int degree(int id)
+  {
+    return nodesById[id].degree;
+  }
+
+  /**
+   * Add an (undirected) interference edge between the nodes with the given ids.
+   * Self edges are ignored, since a temp never interferes with itself.
+   */
+  public void addEdge(int a, int b)
+  {
+    if (a == b)
+    {
+      return;
+    }
+    long bit = bitIndex(a, b);
+    int word = (int) (bit >> 6);
+    long mask = 1L << bit;
+    if ((matrix[word] & mask) == 0)
+    {
+      matrix[word] |= mask;
+      nodesById[a].addNeighbour(b);
+      nodesById[b].addNeighbour(a);
+    }
+  }
+
+  public void rmEdge(int a, int b)
+  {
+    if (!interferes(a, b))
+    {
+      return;
+    }
+    long bit = bitIndex(a, b);
+    matrix[(int) (bit >> 6)] &= ~(1L << bit);
+    nodesById[a].rmNeighbour(b);
+    nodesById[b].rmNeighbour(a);
+  }
+
+  @Override
+  public void addEdge(Node<Temp> from, Node<Temp> to)
+  {
+    addEdge(idOf(from), idOf(to));
+  }
+
+  @Override
+  public void rmEdge(Node<Temp> from, Node<Temp> to)
+  {
+    rmEdge(idOf(from), idOf(to));
+  }
+
+  /**
+   * Record a use or def of the temp of node id, by an instruction at the
+   * given loop nesting depth.
+   */
+  public void addReference(int id, int loopDepth)
+  {
+    nodesById[id].references++;
+    nodesById[id].weightedReferences += Math.pow(10, loopDepth);
+  }
+
+  public void setConsumedAtOnce(int id)
+  {
+    nodesById[id].consumedAtOnce = true;
+  }
+
+  @Override
+  public int references(Node<Temp> node)
+  {
+    return nodesById[idOf(node)].references;
+  }
+
+  @Override
+  public double weightedReferences(Node<Temp> node)
+  {
+    return nodesById[idOf(node)].weightedReferences;
+  }
+
+  @Override
+  public boolean isConsumedAtOnce(Node<Temp> node)
+  {
+    return nodesById[idOf(node)].consumedAtOnce;
+  }
+
   public void addMove(A_MOVE move)
   {
     moves.add(new Move(this.nodeFor(move.dst), this.nodeFor(move.src)));
@@ -21,7 +316,7 @@ public class InterferenceGraphImplementation extends InterferenceGraph
   {
     return moves;
   }
-  
+
   public String toString() {
     StringWriter out = new StringWriter();
     this.dump(new IndentingWriter(out));
@@ -0,0 +1,834 @@
+package minijava.analysis.implementation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import minijava.analysis.FlowGraph;
+import minijava.analysis.InterferenceGraph.Move;
+import minijava.analysis.RegAlloc;
+import minijava.analysis.SpillCostModel;
+import minijava.codegen.AssemProc;
+import minijava.codegen.assem.Instr;
+import minijava.ir.frame.Frame;
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.util.List;
+
+/**
+ * Iterated register coalescing (George and Appel), as described in
+ * chapter 11 of the book: simplify, coalesce (Briggs and George tests),
+ * freeze, potential spill and select.
+ * <p>
+ * Only Temps that occur in the IR code of the procedure can be spilled
+ * (spilling is done by painting them and rewriting the procedure from the IR).
+ * Temps introduced by the muncher are short lived and get an infinite spill
+ * cost. If one of them can't be colored anyway, one of its spillable
+ * neighbours is spilled instead.
+ * <p>
+ * A Temp whose only definition is a CONST or NAME isn't given a frame
+ * location when it is spilled: it is rematerialized (recomputed at each use),
+ * which is cheaper, so such Temps also get a lower spill cost.
+ */
+public class IteratedCoalescingRegAlloc extends RegAlloc
+{
+  @Override
+  public void allocate(AssemProc proc)
+  {
+    Frame frame = proc.getFrame();
+    List<IRStm> ir = proc.getProcFragment().getTraceScheduledBody();
+    HashSet<Temp> spillable = irTemps(ir);
+    HashMap<Temp, IRExp> remat = rematerializable(ir);
+
+    while(true)
+    {
+      Round round = new Round(proc.getBody(), frame.allocatableRegisters(), spillable, remat, getSpillCostModel());
+      List<Temp> spills = round.run();
+      if(spills.isEmpty())
+      {
+        round.paint();
+        return;
+      }
+
+      for(Temp t : spills)
+      {
+        paintSpilled(frame, t, remat);
+      }
+      proc.rewrite();
+    }
+  }
+
+  /**
+   * Paint a Temp that has to be spilled: with a constant Color if it can be
+   * rematerialized, otherwise with a new location in the frame.
+   */
+  static void paintSpilled(Frame frame, Temp t, HashMap<Temp, IRExp> remat)
+  {
+    IRExp value = remat.get(t);
+    t.paint(value != null ? frame.constantColor(value) : frame.allocSpill());
+  }
+
+  /**
+   * Find the Temps that can be rematerialized rather than spilled: those
+   * that are defined exactly once, by a MOVE of a CONST or a NAME. (Formals
+   * are passed in the frame, so there are no other, implicit definitions.)
+   */
+  static HashMap<Temp, IRExp> rematerializable(List<IRStm> body)
+  {
+    HashMap<Temp, Integer> defCount = new HashMap<Temp, Integer>();
+    HashMap<Temp, IRExp> result = new HashMap<Temp, IRExp>();
+    for(IRStm stm : body)
+    {
+      if(stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+      {
+        Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+        Integer count = defCount.get(t);
+        defCount.put(t, count == null ? 1 : count + 1);
+        IRExp src = ((MOVE) stm).src;
+        if(src instanceof CONST || src instanceof NAME)
+        {
+          result.put(t, src);
+        }
+      }
+    }
+    java.util.Iterator<Temp> it = result.keySet().iterator();
+    while(it.hasNext())
+    {
+      Temp t = it.next();
+      if(defCount.get(t) != 1 || t.getColor() != null)
+      {
+        it.remove();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Collect the Temps that appear in some IR code.
+   */
+  static HashSet<Temp> irTemps(List<IRStm> body)
+  {
+    HashSet<Temp> temps = new HashSet<Temp>();
+    for(IRStm stm : body)
+    {
+      if(stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+      {
+        temps.add(((TEMP) ((MOVE) stm).dst).temp);
+      }
+      for(IRExp e : stm.kids())
+      {
+        collectTemps(e, temps);
+      }
+    }
+    return temps;
+  }
+
+  private static void collectTemps(IRExp e, HashSet<Temp> temps)
+  {
+    if(e instanceof TEMP)
+    {
+      temps.add(((TEMP) e).temp);
+    }
+    for(IRExp kid : e.kids())
+    {
+      collectTemps(kid, temps);
+    }
+  }
+
+  /**
+   * One attempt at coloring the interference graph of the current code.
+   */
+  private static class Round
+  {
+    // Node states (the node "worklists" and "sets" of the book)
+    private static final int PRECOLORED = 0;
+    private static final int IGNORED = 1;     // special registers, spilled temps
+    private static final int INITIAL = 2;
+    private static final int SIMPLIFY = 3;
+    private static final int FREEZE = 4;
+    private static final int SPILL = 5;
+    private static final int SPILLED = 6;
+    private static final int COALESCED = 7;
+    private static final int COLORED = 8;
+    private static final int SELECT = 9;
+
+    // Move states
+    private static final int M_WORKLIST = 0;
+    private static final int M_ACTIVE = 1;
+    private static final int M_COALESCED = 2;
+    private static final int M_CONSTRAINED = 3;
+    private static final int M_FROZEN = 4;
+
+    private static final int INFINITE_DEGREE = Integer.MAX_VALUE / 2;
+
+    private InterferenceGraphImplementation ig;
+    private Temp[] registers;
+    private int K;
+    private int n;
+
+    private int[] state;
+    private int[] color;
+    private int[] alias;
+    private int[] degree;
+    private double[] cost;
+    private boolean[] spillable;
+
+    private int[] moveDst;
+    private int[] moveSrc;
+    private int[] moveState;
+    private int[][] moveList;
+    private int[] moveListSize;
+
+    // Worklists are stacks that may contain stale entries, an entry is only
+    // valid if the node (move) is still in the corresponding state.
+    private IntStack simplifyWorklist = new IntStack();
+    private IntStack freezeWorklist = new IntStack();
+    private IntStack worklistMoves = new IntStack();
+    private int spillWorklistSize = 0;
+
+    private IntStack selectStack = new IntStack();
+
+    Round(List<Instr> body, List<Temp> regs, HashSet<Temp> spillableTemps, HashMap<Temp, IRExp> remat,
+        SpillCostModel costModel)
+    {
+      FlowGraph<Instr> flowGraph = FlowGraph.build(body);
+      ig = (InterferenceGraphImplementation) flowGraph.getInterferenceGraph();
+      ig.setSpillCostModel(costModel);
+
+      K = regs.size();
+      registers = new Temp[K];
+      int r = 0;
+      for(Temp reg : regs)
+      {
+        registers[r++] = reg;
+      }
+      HashMap<Color, Integer> registerColors = new HashMap<Color, Integer>();
+      for(r = 0; r < K; r++)
+      {
+        registerColors.put(registers[r].getColor(), r);
+      }
+
+      n = ig.nodeCount();
+      state = new int[n];
+      color = new int[n];
+      alias = new int[n];
+      degree = new int[n];
+      cost = new double[n];
+      spillable = new boolean[n];
+      Arrays.fill(color, -1);
+      for(int i = 0; i < n; i++)
+      {
+        alias[i] = i;
+        Temp t = ig.node(i).wrappee();
+        Color c = t.getColor();
+        if(c == null)
+        {
+          state[i] = INITIAL;
+          spillable[i] = spillableTemps.contains(t);
+        }
+        else if(c.isRegister() && registerColors.containsKey(c))
+        {
+          state[i] = PRECOLORED;
+          color[i] = registerColors.get(c);
+          degree[i] = INFINITE_DEGREE;
+        }
+        else
+        {
+          state[i] = IGNORED;
+        }
+      }
+
+      for(int i = 0; i < n; i++)
+      {
+        if(state[i] == INITIAL)
+        {
+          int[] adj = ig.adjacent(i);
+          for(int j = 0, deg = ig.degree(i); j < deg; j++)
+          {
+            if(state[adj[j]] != IGNORED)
+            {
+              degree[i]++;
+            }
+          }
+          cost[i] = spillable[i] ? ig.spillCost(ig.node(i)) : Double.POSITIVE_INFINITY;
+          if(remat.containsKey(ig.node(i).wrappee()))
+          {
+            // No store, and an immediate move instead of a load at each use
+            cost[i] /= 2;
+          }
+        }
+      }
+
+      // Moves (those involving ignored nodes can't be coalesced)
+      List<Move> moves = ig.moves();
+      moveDst = new int[moves.size()];
+      moveSrc = new int[moves.size()];
+      moveState = new int[moves.size()];
+      moveList = new int[n][];
+      moveListSize = new int[n];
+      int m = 0;
+      for(Move move : moves)
+      {
+        int d = ig.id(move.dst),
+            s = ig.id(move.src);
+        if(state[d] == IGNORED || state[s] == IGNORED)
+        {
+          continue;
+        }
+        moveDst[m] = d;
+        moveSrc[m] = s;
+        moveState[m] = M_WORKLIST;
+        addMoveList(d, m);
+        if(s != d)
+        {
+          addMoveList(s, m);
+        }
+        worklistMoves.push(m);
+        m++;
+      }
+    }
+
+    private void addMoveList(int node, int move)
+    {
+      if(moveList[node] == null)
+      {
+        moveList[node] = new int[2];
+      }
+      else if(moveListSize[node] == moveList[node].length)
+      {
+        moveList[node] = Arrays.copyOf(moveList[node], moveListSize[node] * 2);
+      }
+      moveList[node][moveListSize[node]++] = move;
+    }
+
+    /**
+     * Returns the list of Temps that must be spilled. If it is empty, then
+     * all the nodes have been assigned colors.
+     */
+    List<Temp> run()
+    {
+      makeWorklist();
+      while(true)
+      {
+        if(validTop(simplifyWorklist, SIMPLIFY))
+        {
+          simplify();
+        }
+        else if(validMoveTop())
+        {
+          coalesce();
+        }
+        else if(validTop(freezeWorklist, FREEZE))
+        {
+          freeze();
+        }
+        else if(spillWorklistSize > 0)
+        {
+          selectSpill();
+        }
+        else
+        {
+          break;
+        }
+      }
+      return assignColors();
+    }
+
+    private void setState(int node, int newState)
+    {
+      if(state[node] == SPILL)
+      {
+        spillWorklistSize--;
+      }
+      state[node] = newState;
+      switch(newState)
+      {
+        case SPILL:
+          spillWorklistSize++;
+          break;
+        case SIMPLIFY:
+          simplifyWorklist.push(node);
+          break;
+        case FREEZE:
+          freezeWorklist.push(node);
+          break;
+      }
+    }
+
+    private boolean validTop(IntStack stack, int wanted)
+    {
+      while(!stack.isEmpty() && state[stack.top()] != wanted)
+      {
+        stack.pop();
+      }
+      return !stack.isEmpty();
+    }
+
+    private boolean validMoveTop()
+    {
+      while(!worklistMoves.isEmpty() && moveState[worklistMoves.top()] != M_WORKLIST)
+      {
+        worklistMoves.pop();
+      }
+      return !worklistMoves.isEmpty();
+    }
+
+    private void makeWorklist()
+    {
+      for(int i = 0; i < n; i++)
+      {
+        if(state[i] == INITIAL)
+        {
+          if(degree[i] >= K)
+          {
+            setState(i, SPILL);
+          }
+          else if(moveRelated(i))
+          {
+            setState(i, FREEZE);
+          }
+          else
+          {
+            setState(i, SIMPLIFY);
+          }
+        }
+      }
+    }
+
+    /**
+     * Is this neighbour still part of the graph? (The book's Adjacent(n) set.)
+     */
+    private boolean isAdjacent(int node)
+    {
+      int s = state[node];
+      return s != SELECT && s != COALESCED && s != IGNORED;
+    }
+
+    private boolean isActiveMove(int move)
+    {
+      return moveState[move] == M_ACTIVE || moveState[move] == M_WORKLIST;
+    }
+
+    private boolean moveRelated(int node)
+    {
+      for(int i = 0; i < moveListSize[node]; i++)
+      {
+        if(isActiveMove(moveList[node][i]))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void simplify()
+    {
+      int node = simplifyWorklist.pop();
+      setState(node, SELECT);
+      selectStack.push(node);
+      int[] adj = ig.adjacent(node);
+      for(int j = 0, deg = ig.degree(node); j < deg; j++)
+      {
+        if(isAdjacent(adj[j]))
+        {
+          decrementDegree(adj[j]);
+        }
+      }
+    }
+
+    private void decrementDegree(int m)
+    {
+      if(state[m] == PRECOLORED)
+      {
+        return;
+      }
+      int d = degree[m]--;
+      if(d == K)
+      {
+        enableMoves(m);
+        int[] adj = ig.adjacent(m);
+        for(int j = 0, deg = ig.degree(m); j < deg; j++)
+        {
+          if(isAdjacent(adj[j]))
+          {
+            enableMoves(adj[j]);
+          }
+        }
+        if(state[m] == SPILL)
+        {
+          setState(m, moveRelated(m) ? FREEZE : SIMPLIFY);
+        }
+      }
+    }
+
+    private void enableMoves(int node)
+    {
+      for(int i = 0; i < moveListSize[node]; i++)
+      {
+        int m = moveList[node][i];
+        if(moveState[m] == M_ACTIVE)
+        {
+          moveState[m] = M_WORKLIST;
+          worklistMoves.push(m);
+        }
+      }
+    }
+
+    private int getAlias(int node)
+    {
+      while(state[node] == COALESCED)
+      {
+        node = alias[node];
+      }
+      return node;
+    }
+
+    private void addWorkList(int u)
+    {
+      if(state[u] != PRECOLORED && !moveRelated(u) && degree[u] < K)
+      {
+        setState(u, SIMPLIFY);
+      }
+    }
+
+    /**
+     * George's test for coalescing v into the precolored node u.
+     */
+    private boolean ok(int t, int r)
+    {
+      return degree[t] < K || state[t] == PRECOLORED || ig.interferes(t, r);
+    }
+
+    private boolean allAdjacentOk(int v, int u)
+    {
+      int[] adj = ig.adjacent(v);
+      for(int j = 0, deg = ig.degree(v); j < deg; j++)
+      {
+        int t = adj[j];
+        if(isAdjacent(t) && !ok(t, u))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Briggs' test: the combined node has fewer than K neighbours of
+     * significant degree.
+     */
+    private boolean conservative(int u, int v)
+    {
+      HashSet<Integer> seen = new HashSet<Integer>();
+      int k = 0;
+      for(int node : new int[] {u, v})
+      {
+        int[] adj = ig.adjacent(node);
+        for(int j = 0, deg = ig.degree(node); j < deg; j++)
+        {
+          int t = adj[j];
+          if(isAdjacent(t) && degree[t] >= K && seen.add(t))
+          {
+            k++;
+          }
+        }
+      }
+      return k < K;
+    }
+
+    private void coalesce()
+    {
+      int m = worklistMoves.pop();
+      int x = getAlias(moveDst[m]),
+          y = getAlias(moveSrc[m]);
+      int u, v;
+      if(state[y] == PRECOLORED)
+      {
+        u = y;
+        v = x;
+      }
+      else
+      {
+        u = x;
+        v = y;
+      }
+
+      if(u == v)
+      {
+        moveState[m] = M_COALESCED;
+        addWorkList(u);
+      }
+      else if(state[v] == PRECOLORED || ig.interferes(u, v))
+      {
+        moveState[m] = M_CONSTRAINED;
+        addWorkList(u);
+        addWorkList(v);
+      }
+      else if((state[u] == PRECOLORED && allAdjacentOk(v, u)) ||
+              (state[u] != PRECOLORED && conservative(u, v)))
+      {
+        moveState[m] = M_COALESCED;
+        combine(u, v);
+        addWorkList(u);
+      }
+      else
+      {
+        moveState[m] = M_ACTIVE;
+      }
+    }
+
+    private void combine(int u, int v)
+    {
+      setState(v, COALESCED);
+      alias[v] = u;
+      for(int i = 0; i < moveListSize[v]; i++)
+      {
+        addMoveList(u, moveList[v][i]);
+      }
+      enableMoves(v);
+
+      // The spill cost of the combined node is the sum of both
+      cost[u] += cost[v];
+
+      int[] adj = ig.adjacent(v);
+      int deg = ig.degree(v);
+      // Copy: adding edges to u may reallocate adjacency arrays
+      int[] neighbours = Arrays.copyOf(adj, deg);
+      for(int t : neighbours)
+      {
+        if(isAdjacent(t))
+        {
+          addEdge(t, u);
+          decrementDegree(t);
+        }
+      }
+      if(degree[u] >= K && state[u] == FREEZE)
+      {
+        setState(u, SPILL);
+      }
+    }
+
+    private void addEdge(int a, int b)
+    {
+      if(a != b && !ig.interferes(a, b))
+      {
+        ig.addEdge(a, b);
+        if(state[a] != PRECOLORED)
+        {
+          degree[a]++;
+        }
+        if(state[b] != PRECOLORED)
+        {
+          degree[b]++;
+        }
+      }
+    }
+
+    private void freeze()
+    {
+      int u = freezeWorklist.pop();
+      setState(u, SIMPLIFY);
+      freezeMoves(u);
+    }
+
+    private void freezeMoves(int u)
+    {
+      for(int i = 0; i < moveListSize[u]; i++)
+      {
+        int m = moveList[u][i];
+        if(!isActiveMove(m))
+        {
+          continue;
+        }
+        int x = moveDst[m],
+            y = moveSrc[m];
+        int v = (getAlias(y) == getAlias(u)) ? getAlias(x) : getAlias(y);
+        moveState[m] = M_FROZEN;
+        if(state[v] == FREEZE && !moveRelated(v) && degree[v] < K)
+        {
+          setState(v, SIMPLIFY);
+        }
+      }
+    }
+
+    /**
+     * Pick the potential spill with the lowest cost. (The cost model already
+     * takes the degree into account, the current degree only breaks ties.)
+     */
+    private void selectSpill()
+    {
+      int best = -1;
+      for(int i = 0; i < n; i++)
+      {
+        if(state[i] == SPILL)
+        {
+          if(best < 0 || cost[i] < cost[best] || (cost[i] == cost[best] && degree[i] > degree[best]))
+          {
+            best = i;
+          }
+        }
+      }
+      setState(best, SIMPLIFY);
+      freezeMoves(best);
+    }
+
+    private List<Temp> assignColors()
+    {
+      HashSet<Integer> spilledNodes = new HashSet<Integer>();
+      while(!selectStack.isEmpty())
+      {
+        int node = selectStack.pop();
+        int okColors = (1 << K) - 1;
+        int[] adj = ig.adjacent(node);
+        for(int j = 0, deg = ig.degree(node); j < deg; j++)
+        {
+          if(state[adj[j]] == IGNORED)
+          {
+            continue;
+          }
+          int a = getAlias(adj[j]);
+          if(state[a] == COLORED || state[a] == PRECOLORED)
+          {
+            okColors &= ~(1 << color[a]);
+          }
+        }
+
+        if(okColors == 0)
+        {
+          setState(node, SPILLED);
+          spilledNodes.add(node);
+        }
+        else
+        {
+          setState(node, COLORED);
+          color[node] = preferredColor(node, okColors);
+        }
+      }
+
+      for(int i = 0; i < n; i++)
+      {
+        if(state[i] == COALESCED)
+        {
+          color[i] = color[getAlias(i)];
+        }
+      }
+
+      return spillTemps(spilledNodes);
+    }
+
+    /**
+     * Pick a color for a node. If possible pick the color of a node it
+     * is related to by a (non coalesced) move, so the move becomes redundant.
+     */
+    private int preferredColor(int node, int okColors)
+    {
+      for(int i = 0; i < moveListSize[node]; i++)
+      {
+        int m = moveList[node][i];
+        int other = getAlias(moveDst[m]) == node ? getAlias(moveSrc[m]) : getAlias(moveDst[m]);
+        if((state[other] == COLORED || state[other] == PRECOLORED) &&
+           (okColors & (1 << color[other])) != 0)
+        {
+          return color[other];
+        }
+      }
+      return Integer.numberOfTrailingZeros(okColors);
+    }
+
+    /**
+     * Decide which Temps to spill for the actual spills. Unspillable nodes
+     * are replaced by their cheapest spillable neighbour.
+     */
+    private List<Temp> spillTemps(HashSet<Integer> spilledNodes)
+    {
+      HashSet<Integer> chosen = new HashSet<Integer>();
+      for(int node : spilledNodes)
+      {
+        if(spillable[node])
+        {
+          chosen.add(node);
+          continue;
+        }
+        int best = -1;
+        int[] adj = ig.adjacent(node);
+        for(int j = 0, deg = ig.degree(node); j < deg; j++)
+        {
+          if(state[adj[j]] == IGNORED)
+          {
+            continue;
+          }
+          int a = getAlias(adj[j]);
+          if(spillable[a] && state[a] != PRECOLORED && (best < 0 || cost[a] < cost[best]))
+          {
+            best = a;
+          }
+        }
+        if(best < 0)
+        {
+          throw new Error("Register allocation failed: can not color or spill " + ig.node(node));
+        }
+        chosen.add(best);
+      }
+
+      List<Temp> result = List.empty();
+      for(int node : chosen)
+      {
+        result.add(ig.node(node).wrappee());
+      }
+      return result;
+    }
+
+    /**
+     * Paint all the Temps with their assigned register colors.
+     */
+    void paint()
+    {
+      for(int i = 0; i < n; i++)
+      {
+        if(state[i] == COLORED || state[i] == COALESCED)
+        {
+          ig.node(i).wrappee().paint(registers[color[i]].getColor());
+        }
+      }
+    }
+  }
+
+  /**
+   * A growable stack of ints.
+   */
+  private static class IntStack
+  {
+    private int[] elements = new int[16];
+    private int size = 0;
+
+    void push(int x)
+    {
+      if(size == elements.length)
+      {
+        elements = Arrays.copyOf(elements, size * 2);
+      }
+      elements[size++] = x;
+    }
+
+    int pop()
+    {
+      return elements[--size];
+    }
+
+    int top()
+    {
+      return elements[size - 1];
+    }
+
+    boolean isEmpty()
+    {
+      return size == 0;
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package minijava.analysis.implementation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import minijava.analysis.BlockGraph;
+import minijava.analysis.FlowGraph;
+import minijava.analysis.RegAlloc;
+import minijava.codegen.AssemProc;
+import minijava.codegen.assem.A_MOVE;
+import minijava.codegen.assem.Instr;
+import minijava.ir.frame.Frame;
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.util.List;
+
+/**
+ * Linear scan register allocation (Poletto and Sarkar).
+ * <p>
+ * Every instruction i has two positions: 2i (where its uses are read) and
+ * 2i+1 (where its defs are written). The live interval of a Temp is the
+ * smallest range of positions that covers every position where it is live,
+ * computed from the block level liveness results and the def/use sets of
+ * the instructions, so no interference graph is built. The intervals are
+ * then visited in order of their start, assigning each one a register that
+ * isn't held by an active interval. Machine registers themselves (e.g. %eax
+ * around a call) are treated as fixed intervals with holes: the exact
+ * positions where they hold a value are recorded in a sorted array per
+ * register.
+ * <p>
+ * When no register is free, either the current interval or the active one
+ * that ends last is spilled. Spilling paints the Temp with a frame location
+ * and rewrites the procedure, which splits its interval into one short
+ * interval around each use and def (the temps the SPILLED munch rules
+ * introduce). Those get registers in the next pass. As with the coloring
+ * allocator, only Temps that occur in the IR code can be spilled, and
+ * Temps defined only by a constant are rematerialized instead.
+ */
+public class LinearScanRegAlloc extends RegAlloc
+{
+  @Override
+  public void allocate(AssemProc proc)
+  {
+    Frame frame = proc.getFrame();
+    List<IRStm> ir = proc.getProcFragment().getTraceScheduledBody();
+    HashSet<Temp> spillable = IteratedCoalescingRegAlloc.irTemps(ir);
+    HashMap<Temp, IRExp> remat = IteratedCoalescingRegAlloc.rematerializable(ir);
+
+    while(true)
+    {
+      Scan scan = new Scan(proc.getBody(), frame.allocatableRegisters(), spillable);
+      List<Temp> spills = scan.run();
+      if(spills.isEmpty())
+      {
+        scan.paint();
+        return;
+      }
+
+      for(Temp t : spills)
+      {
+        IteratedCoalescingRegAlloc.paintSpilled(frame, t, remat);
+      }
+      proc.rewrite();
+    }
+  }
+
+  /**
+   * One linear scan over the current code.
+   */
+  private static class Scan
+  {
+    private LivenessImplementation<Instr> liveness;
+    private Temp[] registers;
+    private int K;
+    private int n;
+
+    // Per temp index
+    private boolean[] virtual;   // not yet colored, so needs a register
+    private boolean[] spillable;
+    private int[] fixed;         // register index of precolored temps, or -1
+    private int[] start;
+    private int[] end;
+    private int[] hint;          // a move partner, or -1
+    private int[] reg;           // the assigned register, or -1
+
+    // Per register, the positions where it holds a live value (in
+    // increasing order)
+    private int[][] occupied;
+
+    Scan(List<Instr> body, List<Temp> regs, HashSet<Temp> spillableTemps)
+    {
+      FlowGraph<Instr> flowGraph = FlowGraph.build(body);
+      liveness = new LivenessImplementation<Instr>(flowGraph);
+      BlockGraph<Instr> blocks = liveness.getBlocks();
+
+      K = regs.size();
+      registers = new Temp[K];
+      BitSet[] occupiedBits = new BitSet[K];
+      int r = 0;
+      for(Temp t : regs)
+      {
+        occupiedBits[r] = new BitSet();
+        registers[r++] = t;
+      }
+      HashMap<Color, Integer> registerColors = new HashMap<Color, Integer>();
+      for(r = 0; r < K; r++)
+      {
+        registerColors.put(registers[r].getColor(), r);
+      }
+
+      n = liveness.tempCount();
+      virtual = new boolean[n];
+      spillable = new boolean[n];
+      fixed = new int[n];
+      start = new int[n];
+      end = new int[n];
+      hint = new int[n];
+      reg = new int[n];
+      Arrays.fill(fixed, -1);
+      Arrays.fill(start, Integer.MAX_VALUE);
+      Arrays.fill(end, -1);
+      Arrays.fill(hint, -1);
+      Arrays.fill(reg, -1);
+      for(int i = 0; i < n; i++)
+      {
+        Temp t = liveness.temp(i);
+        Color c = t.getColor();
+        if(c == null)
+        {
+          virtual[i] = true;
+          spillable[i] = spillableTemps.contains(t);
+        }
+        else if(c.isRegister() && registerColors.containsKey(c))
+        {
+          fixed[i] = registerColors.get(c);
+        }
+      }
+
+      for(int b = 0; b < blocks.size(); b++)
+      {
+        int[] members = blocks.nodes(b);
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for(int node : members)
+        {
+          first = Math.min(first, node);
+          last = Math.max(last, node);
+        }
+
+        BitSet in = liveness.blockLiveIn(b);
+        for(int t = in.nextSetBit(0); t >= 0; t = in.nextSetBit(t + 1))
+        {
+          extend(t, 2 * first);
+        }
+
+        // Walk the block backwards, keeping track of the live registers
+        // in a bit mask.
+        int live = 0;
+        BitSet out = liveness.blockLiveOut(b);
+        for(int t = out.nextSetBit(0); t >= 0; t = out.nextSetBit(t + 1))
+        {
+          extend(t, 2 * last + 1);
+          if(fixed[t] >= 0)
+          {
+            live |= 1 << fixed[t];
+          }
+        }
+        for(int i = members.length - 1; i >= 0; i--)
+        {
+          int node = members[i];
+          int defMask = 0;
+          for(int d : liveness.defs(node))
+          {
+            extend(d, 2 * node + 1);
+            if(fixed[d] >= 0)
+            {
+              defMask |= 1 << fixed[d];
+            }
+          }
+          occupy(occupiedBits, live | defMask, 2 * node + 1);
+          live &= ~defMask;
+          for(int u : liveness.uses(node))
+          {
+            extend(u, 2 * node);
+            if(fixed[u] >= 0)
+            {
+              live |= 1 << fixed[u];
+            }
+          }
+          occupy(occupiedBits, live, 2 * node);
+
+          Instr instr = blocks.node(node).wrappee();
+          if(instr instanceof A_MOVE)
+          {
+            int dst = liveness.tempIndex(((A_MOVE) instr).dst);
+            int src = liveness.tempIndex(((A_MOVE) instr).src);
+            if(hint[dst] < 0)
+            {
+              hint[dst] = src;
+            }
+            if(hint[src] < 0)
+            {
+              hint[src] = dst;
+            }
+          }
+        }
+      }
+
+      occupied = new int[K][];
+      for(r = 0; r < K; r++)
+      {
+        BitSet bits = occupiedBits[r];
+        occupied[r] = new int[bits.cardinality()];
+        int i = 0;
+        for(int p = bits.nextSetBit(0); p >= 0; p = bits.nextSetBit(p + 1))
+        {
+          occupied[r][i++] = p;
+        }
+      }
+    }
+
+    private void extend(int t, int position)
+    {
+      if(virtual[t])
+      {
+        start[t] = Math.min(start[t], position);
+        end[t] = Math.max(end[t], position);
+      }
+    }
+
+    private static void occupy(BitSet[] occupiedBits, int mask, int position)
+    {
+      for(int r = 0; mask != 0; r++, mask >>>= 1)
+      {
+        if((mask & 1) != 0)
+        {
+          occupiedBits[r].set(position);
+        }
+      }
+    }
+
+    /**
+     * The first position >= p where machine register r holds a live value,
+     * or Integer.MAX_VALUE if there is none. (Binary search, scanning a bit
+     * vector would make the allocator quadratic on long methods.)
+     */
+    private int nextOccupied(int r, int p)
+    {
+      int[] positions = occupied[r];
+      int i = Arrays.binarySearch(positions, p);
+      if(i < 0)
+      {
+        i = -i - 1;
+      }
+      return i < positions.length ? positions[i] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Is machine register r free (of fixed uses) between s and e?
+     */
+    private boolean fixedFree(int r, int s, int e)
+    {
+      return nextOccupied(r, s) > e;
+    }
+
+    List<Temp> run()
+    {
+      // Sort the intervals by start position.
+      int count = 0;
+      long[] order = new long[n];
+      for(int i = 0; i < n; i++)
+      {
+        if(virtual[i])
+        {
+          order[count++] = ((long) start[i] << 32) | i;
+        }
+      }
+      Arrays.sort(order, 0, count);
+
+      List<Temp> spills = List.empty();
+      int[] owner = new int[K];
+      Arrays.fill(owner, -1);
+      for(int k = 0; k < count; k++)
+      {
+        int cur = (int) order[k];
+        int s = start[cur];
+        int e = end[cur];
+
+        for(int r = 0; r < K; r++)
+        {
+          if(owner[r] >= 0 && end[owner[r]] < s)
+          {
+            owner[r] = -1;
+          }
+        }
+
+        int r = choose(cur, owner);
+        if(r >= 0)
+        {
+          reg[cur] = r;
+          owner[r] = cur;
+          continue;
+        }
+
+        // Spill the interval that ends last (of those whose register
+        // cur could use).
+        int victim = -1;
+        for(r = 0; r < K; r++)
+        {
+          if(owner[r] >= 0 && spillable[owner[r]] && fixedFree(r, s, e)
+              && (victim < 0 || end[owner[r]] > end[owner[victim]]))
+          {
+            victim = r;
+          }
+        }
+        if(victim >= 0 && (!spillable[cur] || end[owner[victim]] > e))
+        {
+          spills.add(liveness.temp(owner[victim]));
+          reg[owner[victim]] = -1;
+          reg[cur] = victim;
+          owner[victim] = cur;
+        }
+        else if(spillable[cur])
+        {
+          spills.add(liveness.temp(cur));
+        }
+        else
+        {
+          throw new Error("Linear scan: no register available for " + liveness.temp(cur));
+        }
+      }
+      return spills;
+    }
+
+    /**
+     * Pick a free register for an interval: its move partner's register if
+     * possible, otherwise the free register whose next fixed use comes
+     * soonest after the interval (leaving registers that are free for longer
+     * to longer intervals). Returns -1 if there is no free register.
+     */
+    private int choose(int cur, int[] owner)
+    {
+      int s = start[cur];
+      int e = end[cur];
+      int h = hint[cur];
+      if(h >= 0)
+      {
+        int r = fixed[h] >= 0 ? fixed[h] : reg[h];
+        if(r >= 0 && owner[r] < 0 && fixedFree(r, s, e))
+        {
+          return r;
+        }
+      }
+
+      int best = -1;
+      int bestNext = Integer.MAX_VALUE;
+      for(int r = 0; r < K; r++)
+      {
+        if(owner[r] < 0 && fixedFree(r, s, e))
+        {
+          int next = nextOccupied(r, e + 1);
+          if(best < 0 || next < bestNext)
+          {
+            best = r;
+            bestNext = next;
+          }
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Paint all the Temps with their assigned register colors.
+     */
+    void paint()
+    {
+      for(int i = 0; i < n; i++)
+      {
+        if(virtual[i])
+        {
+          liveness.temp(i).paint(registers[reg[i]].getColor());
+        }
+      }
+    }
+  }
+}
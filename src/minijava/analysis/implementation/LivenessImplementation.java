@@ -1,100 +1,307 @@
 package minijava.analysis.implementation;
 
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 
+import minijava.analysis.BlockGraph;
 import minijava.analysis.FlowGraph;
 import minijava.analysis.Liveness;
 import minijava.analysis.util.graph.Node;
 import minijava.ir.temp.Temp;
 import minijava.util.List;
 
+/**
+ * Bit vector liveness analysis.
+ * <p>
+ * Every temp that occurs in the flow graph gets a dense index, and live sets
+ * are represented as BitSets over those indices. The data flow equations are
+ * first solved for whole basic blocks with a worklist (visiting the blocks in
+ * postorder, which is reverse postorder on the reversed graph, so that most
+ * blocks see their successors' final values on the first visit). Only after
+ * that the block results are expanded to the individual nodes.
+ */
 public class LivenessImplementation<N> extends Liveness<N>
 {
-  private HashMap<Node<N>, HashSet<Temp>> liveIn;
-  private HashMap<Node<N>, HashSet<Temp>> liveOut;
-  
+  private HashMap<Temp, Integer> tempIndex = new HashMap<Temp, Integer>();
+  private java.util.List<Temp> temps = new java.util.ArrayList<Temp>();
+
+  private BlockGraph<N> blocks;
+
+  // Per node index. The def/use sets are kept around because clients
+  // (e.g. interference graph construction) need them too.
+  private int[][] defs;
+  private int[][] uses;
+  private BitSet[] blockLiveIn;
+  private BitSet[] blockLiveOut;
+
+  // Per node results, only computed when somebody asks for them (clients
+  // such as linear scan allocation are happy with the block results).
+  private BitSet[] nodeLiveIn;
+  private BitSet[] nodeLiveOut;
+
   public LivenessImplementation(FlowGraph<N> graph)
   {
     super(graph);
-    
-    liveIn = new HashMap<Node<N>, HashSet<Temp>>();
-    liveOut = new HashMap<Node<N>, HashSet<Temp>>();
-    
-    // Iteration algorithm
-    
-    // Setting up the hash map with empty sets.
-    // Not using List here because List doesn't have a working equals() => sucks
-    for(Node<N> node : graph.nodes())
+    blocks = graph.blocks();
+
+    int numNodes = blocks.nodeCount();
+    defs = new int[numNodes][];
+    uses = new int[numNodes][];
+    for (int n = 0; n < numNodes; n++)
+    {
+      Node<N> node = blocks.node(n);
+      defs[n] = indices(graph.def(node));
+      uses[n] = indices(graph.use(node));
+    }
+
+    int numBlocks = blocks.size();
+
+    // gen = temps used in the block before being defined
+    // kill = temps defined in the block
+    BitSet[] gen = new BitSet[numBlocks];
+    BitSet[] kill = new BitSet[numBlocks];
+    for (int b = 0; b < numBlocks; b++)
+    {
+      gen[b] = new BitSet();
+      kill[b] = new BitSet();
+      int[] members = blocks.nodes(b);
+      for (int i = members.length - 1; i >= 0; i--)
+      {
+        int n = members[i];
+        for (int d : defs[n])
+        {
+          gen[b].clear(d);
+          kill[b].set(d);
+        }
+        for (int u : uses[n])
+        {
+          gen[b].set(u);
+        }
+      }
+    }
+
+    // Worklist iteration over the blocks.
+    BitSet[] in = new BitSet[numBlocks];
+    BitSet[] out = new BitSet[numBlocks];
+    for (int b = 0; b < numBlocks; b++)
+    {
+      in[b] = (BitSet) gen[b].clone();
+      out[b] = new BitSet();
+    }
+
+    // Circular queue, each block is in the queue at most once.
+    int[] queue = new int[numBlocks];
+    BitSet queued = new BitSet(numBlocks);
+    int head = 0;
+    int count = 0;
+    for (int b : blocks.postorder())
     {
-      liveIn.put(node, new HashSet<Temp>());
-      liveOut.put(node, new HashSet<Temp>());
+      queue[count++] = b;
+      queued.set(b);
     }
-    
-    boolean changes;
-    do
+
+    BitSet newIn = new BitSet();
+    while (count > 0)
     {
-      changes = false;
-      
-      for(Node<N> node : graph.nodes())
+      int b = queue[head];
+      head = (head + 1) % numBlocks;
+      count--;
+      queued.clear(b);
+
+      // out[b] = U_{s in succ[b]} in[s]
+      BitSet blockOut = out[b];
+      for (int s : blocks.succ(b))
+      {
+        blockOut.or(in[s]);
+      }
+
+      // in[b] = gen[b] U (out[b] - kill[b])
+      newIn.clear();
+      newIn.or(blockOut);
+      newIn.andNot(kill[b]);
+      newIn.or(gen[b]);
+
+      if (!newIn.equals(in[b]))
       {
-        // Calculate the new sets
-        HashSet<Temp> in = internalLiveIn(node);
-        HashSet<Temp> out = internalLiveOut(node);
-        
-        // Make sure we re-iterate if changes are found
-        if(!in.equals(liveIn.get(node)) || !out.equals(liveOut.get(node)))
+        in[b].or(newIn);
+        for (int p : blocks.pred(b))
         {
-          changes = true;
+          if (!queued.get(p))
+          {
+            queue[(head + count) % numBlocks] = p;
+            count++;
+            queued.set(p);
+          }
         }
-        
-        // Update
-        liveIn.put(node, in);
-        liveOut.put(node, out);
       }
-    } while(changes);
-    
+    }
+
+    blockLiveIn = in;
+    blockLiveOut = out;
   }
 
-  @Override
-  public List<Temp> liveOut(Node<N> node)
+  /**
+   * Expand the block results to the nodes inside each block.
+   */
+  private void expand()
   {
-    List<Temp> temps = List.empty();
-    for(Temp temp : liveOut.get(node))
+    int numNodes = blocks.nodeCount();
+    nodeLiveIn = new BitSet[numNodes];
+    nodeLiveOut = new BitSet[numNodes];
+    for (int b = 0; b < blocks.size(); b++)
     {
-      temps.add(temp);
+      BitSet live = (BitSet) blockLiveOut[b].clone();
+      int[] members = blocks.nodes(b);
+      for (int i = members.length - 1; i >= 0; i--)
+      {
+        int n = members[i];
+        nodeLiveOut[n] = (BitSet) live.clone();
+        for (int d : defs[n])
+        {
+          live.clear(d);
+        }
+        for (int u : uses[n])
+        {
+          live.set(u);
+        }
+        nodeLiveIn[n] = (BitSet) live.clone();
+      }
     }
-    return temps;
   }
-  
-  private HashSet<Temp> internalLiveOut(Node<N> node)
+
+  private int[] indices(List<Temp> list)
   {
-    // out[n] = U_{s in succ[n]} in[s]
-    HashSet<Temp> liveOut = new HashSet<Temp>();
-    for(Node<N> succNode : node.succ())
+    int[] result = new int[list.size()];
+    int i = 0;
+    for (Temp t : list)
     {
-      liveOut.addAll(internalLiveIn(succNode));
+      result[i++] = indexOf(t);
     }
-    return liveOut;
+    return result;
   }
-  
-  private HashSet<Temp> internalLiveIn(Node<N> node)
+
+  private int indexOf(Temp t)
   {
-    // in[n] = use[n] U (out[n] - def[n])
+    Integer index = tempIndex.get(t);
+    if (index == null)
+    {
+      index = temps.size();
+      tempIndex.put(t, index);
+      temps.add(t);
+    }
+    return index;
+  }
 
-    // (out[n] - def[n])
-    HashSet<Temp> liveOut = internalLiveOut(node);
-    for(Temp temp : g.def(node))
+  /**
+   * The number of distinct temps that occur in the flow graph.
+   */
+  public int tempCount()
+  {
+    return temps.size();
+  }
+
+  /**
+   * The temp with the given dense index.
+   */
+  public Temp temp(int index)
+  {
+    return temps.get(index);
+  }
+
+  /**
+   * The dense index of a temp, or -1 if it doesn't occur in the flow graph.
+   */
+  public int tempIndex(Temp t)
+  {
+    Integer index = tempIndex.get(t);
+    return index == null ? -1 : index;
+  }
+
+  public BlockGraph<N> getBlocks()
+  {
+    return blocks;
+  }
+
+  /**
+   * The temps live at the start of a block. The returned BitSet is shared
+   * and should not be modified.
+   */
+  public BitSet blockLiveIn(int block)
+  {
+    return blockLiveIn[block];
+  }
+
+  /**
+   * The temps live at the end of a block. The returned BitSet is shared and
+   * should not be modified.
+   */
+  public BitSet blockLiveOut(int block)
+  {
+    return blockLiveOut[block];
+  }
+
+  /**
+   * Indices of the temps defined by the node with the given (BlockGraph)
+   * node index. The returned array should not be modified.
+   */
+  public int[] defs(int node)
+  {
+    return defs[node];
+  }
+
+  /**
+   * Indices of the temps used by the node with the given (BlockGraph) node
+   * index. The returned array should not be modified.
+   */
+  public int[] uses(int node)
+  {
+    return uses[node];
+  }
+
+  /**
+   * The temps live after a node, as a bit vector of temp indices. The
+   * returned BitSet is shared and should not be modified.
+   */
+  public BitSet liveOutBits(Node<N> node)
+  {
+    if (nodeLiveOut == null)
+    {
+      expand();
+    }
+    return nodeLiveOut[blocks.indexOf(node)];
+  }
+
+  /**
+   * The temps live before a node, as a bit vector of temp indices. The
+   * returned BitSet is shared and should not be modified.
+   */
+  public BitSet liveInBits(Node<N> node)
+  {
+    if (nodeLiveIn == null)
     {
-      liveOut.remove(temp);
+      expand();
     }
-    
-    // use[n] U (out[n] - def[n])
-    for(Temp temp : g.use(node))
+    return nodeLiveIn[blocks.indexOf(node)];
+  }
+
+  @Override
+  public List<Temp> liveOut(Node<N> node)
+  {
+    return toList(liveOutBits(node));
+  }
+
+  public List<Temp> liveIn(Node<N> node)
+  {
+    return toList(liveInBits(node));
+  }
+
+  private List<Temp> toList(BitSet bits)
+  {
+    List<Temp> result = List.empty();
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
     {
-      liveOut.add(temp);
+      result.add(temps.get(i));
     }
-    
-    return liveOut;
+    return result;
   }
 }
@@ -0,0 +1,137 @@
+package minijava.analysis.implementation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import minijava.analysis.BlockGraph;
+import minijava.analysis.FlowGraph;
+import minijava.codegen.AssemProc;
+import minijava.codegen.assem.Instr;
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+import minijava.util.List;
+
+/**
+ * Stack slot coloring: lets spilled Temps share frame locations.
+ * <p>
+ * Register allocation gives every spilled Temp a location of its own. Once
+ * the allocation is finished, the spilled Temps still occur in the code (in
+ * the spill loads and stores), so we can build an interference graph over
+ * just the spilled Temps and color it with as few locations as possible.
+ * Temps that end up sharing a location are painted with the same spill
+ * Color, and the frame is told which Colors are still in use so that it can
+ * compact the remaining locations.
+ * <p>
+ * The graph is built with a backward walk over each block that only keeps
+ * track of the live spilled Temps, so this is cheap even for very large
+ * procedures.
+ */
+public class SpillSlotColoring
+{
+  /**
+   * Share the spill locations of a procedure whose Temps are all painted.
+   * Returns the number of bytes by which the procedure's frame shrank.
+   */
+  public static int apply(AssemProc proc)
+  {
+    FlowGraph<Instr> flowGraph = FlowGraph.build(proc.getBody());
+    LivenessImplementation<Instr> liveness = new LivenessImplementation<Instr>(flowGraph);
+    BlockGraph<Instr> blocks = liveness.getBlocks();
+
+    // Interference graph nodes for the spilled temps only
+    InterferenceGraphImplementation ig = new InterferenceGraphImplementation();
+    int[] nodeOf = new int[liveness.tempCount()];
+    Arrays.fill(nodeOf, -1);
+    BitSet spilled = new BitSet();
+    for(int t = 0; t < liveness.tempCount(); t++)
+    {
+      Color c = liveness.temp(t).getColor();
+      if(c != null && !c.isRegister() && !c.isConstant())
+      {
+        nodeOf[t] = ig.nodeCount();
+        ig.nodeFor(liveness.temp(t));
+        spilled.set(t);
+      }
+    }
+    if(ig.nodeCount() == 0)
+    {
+      return proc.getFrame().releaseSpills(List.<Color>empty());
+    }
+
+    for(int b = 0; b < blocks.size(); b++)
+    {
+      BitSet live = (BitSet) liveness.blockLiveOut(b).clone();
+      live.and(spilled);
+      int[] members = blocks.nodes(b);
+      for(int i = members.length - 1; i >= 0; i--)
+      {
+        int node = members[i];
+        for(int d : liveness.defs(node))
+        {
+          if(nodeOf[d] >= 0)
+          {
+            for(int o = live.nextSetBit(0); o >= 0; o = live.nextSetBit(o + 1))
+            {
+              ig.addEdge(nodeOf[d], nodeOf[o]);
+            }
+          }
+        }
+        for(int d : liveness.defs(node))
+        {
+          live.clear(d);
+        }
+        for(int u : liveness.uses(node))
+        {
+          if(nodeOf[u] >= 0)
+          {
+            live.set(u);
+          }
+        }
+      }
+    }
+
+    // Greedy coloring, in the order the temps were spilled. A new location
+    // is only needed when all the existing ones are taken by neighbours,
+    // the Temp then keeps its own.
+    ArrayList<Color> slots = new ArrayList<Color>();
+    int[] slotOf = new int[ig.nodeCount()];
+    Arrays.fill(slotOf, -1);
+    boolean[] taken = new boolean[ig.nodeCount()];
+    for(int n = 0; n < ig.nodeCount(); n++)
+    {
+      Arrays.fill(taken, 0, slots.size(), false);
+      int[] adj = ig.adjacent(n);
+      for(int j = 0; j < ig.degree(n); j++)
+      {
+        if(slotOf[adj[j]] >= 0)
+        {
+          taken[slotOf[adj[j]]] = true;
+        }
+      }
+      int s = 0;
+      while(s < slots.size() && taken[s])
+      {
+        s++;
+      }
+      Temp t = ig.node(n).wrappee();
+      if(s == slots.size())
+      {
+        slots.add(t.getColor());
+      }
+      else
+      {
+        t.uncolor();
+        t.paint(slots.get(s));
+      }
+      slotOf[n] = s;
+    }
+
+    List<Color> inUse = List.empty();
+    for(Color c : slots)
+    {
+      inUse.add(c);
+    }
+    return proc.getFrame().releaseSpills(inUse);
+  }
+}
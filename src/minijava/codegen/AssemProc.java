@@ -1,8 +1,10 @@
 package minijava.codegen;
 
+import minijava.codegen.assem.A_MOVE;
 import minijava.codegen.assem.Instr;
 import minijava.codegen.muncher.Muncher;
 import minijava.ir.frame.Frame;
+import minijava.ir.temp.Color;
 import minijava.ir.temp.Label;
 import minijava.ir.tree.IRStm;
 import minijava.translate.ProcFragment;
@@ -25,10 +27,20 @@ public class AssemProc extends AssemFragment {
 	private Frame frame;
 	private ProcFragment procIR;
 	private List<Instr> asmBody;
+	private boolean optimalTiling;
 
 	public AssemProc(ProcFragment procIR) {
+		this(procIR, false);
+	}
+
+	/**
+	 * @param optimalTiling whether the Muncher should pick rules by cost rather
+	 *     than by size (this is also used when the body is rewritten).
+	 */
+	public AssemProc(ProcFragment procIR, boolean optimalTiling) {
 		this.frame = procIR.getFrame();
 		this.procIR = procIR;
+		this.optimalTiling = optimalTiling;
 		rewrite(); // Actually not "re" writing, but writing for the first time :-)
 	}
 
@@ -62,6 +74,28 @@ public class AssemProc extends AssemFragment {
 	public Frame getFrame() {
 		return frame;
 	}
+
+	public ProcFragment getProcFragment() {
+		return procIR;
+	}
+
+	/**
+	 * After register allocation, delete the move instructions whose source
+	 * and destination got painted with the same color.
+	 */
+	public void removeRedundantMoves() {
+		List<Instr> body = List.empty();
+		for (Instr instr : asmBody) {
+			if (instr instanceof A_MOVE) {
+				A_MOVE move = (A_MOVE) instr;
+				Color color = move.dst.getColor();
+				if (color!=null && color.equals(move.src.getColor()))
+					continue;
+			}
+			body.add(instr);
+		}
+		asmBody = body;
+	}
 	
 	/**
 	 * After doing register allocation with spilled registers. You can use
@@ -78,6 +112,7 @@ public class AssemProc extends AssemFragment {
 	public void rewrite() {
 		List<IRStm> body = procIR.getTraceScheduledBody();
 		Muncher m = frame.newMuncher();
+		m.setOptimalTiling(optimalTiling);
 		for (IRStm stm : body) {
 			m.munch(stm);
 		}
@@ -18,6 +18,17 @@ import minijava.translate.ProcFragment;
  */
 public class CodeGenerator {
 
+	private boolean optimalTiling = false;
+	
+	/**
+	 * Pick munch rules by cost (optimal tiling) rather than by size (maximal munch).
+	 * See {@link minijava.codegen.muncher.Muncher#setOptimalTiling(boolean)}.
+	 */
+	public CodeGenerator setOptimalTiling(boolean optimalTiling) {
+		this.optimalTiling = optimalTiling;
+		return this;
+	}
+
 	/**
 	 * Convert a program from IR into assembly code using this code generator.
 	 */
@@ -34,7 +45,7 @@ public class CodeGenerator {
 	}
 
 	private AssemFragment apply(ProcFragment fragment) {
-		return new AssemProc(fragment);
+		return new AssemProc(fragment, optimalTiling);
 	}
 
 }
@@ -0,0 +1,361 @@
+package minijava.codegen.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Just enough of a JVM class file writer for the {@link JVMBackend}: a
+ * public class with some public static methods, whose code only uses ints.
+ * <p>
+ * The class files have version 49 (Java 5), so the JVM checks them with the
+ * type inferencing verifier, and we don't need to compute stack map frames.
+ */
+class ClassFile {
+
+	private final String name;
+	private final ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+	/**
+	 * The constant pool. Entries are keyed by a string that encodes their tag
+	 * and contents.
+	 */
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	/**
+	 * @param name the internal name of the class (with slashes)
+	 */
+	ClassFile(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int utf8(String s) {
+		Integer index = poolIndex.get("U"+s);
+		if (index==null) {
+			try {
+				poolOut.writeByte(1);
+				poolOut.writeUTF(s);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			index = newEntry("U"+s, 1);
+		}
+		return index;
+	}
+
+	int integer(int value) {
+		Integer index = poolIndex.get("I"+value);
+		if (index==null) {
+			try {
+				poolOut.writeByte(3);
+				poolOut.writeInt(value);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			index = newEntry("I"+value, 1);
+		}
+		return index;
+	}
+
+	int classRef(String className) {
+		return ref("C", 7, utf8(className), -1);
+	}
+
+	int fieldRef(String owner, String field, String desc) {
+		return ref("F", 9, classRef(owner), nameAndType(field, desc));
+	}
+
+	int methodRef(String owner, String method, String desc) {
+		return ref("M", 10, classRef(owner), nameAndType(method, desc));
+	}
+
+	private int nameAndType(String n, String desc) {
+		return ref("N", 12, utf8(n), utf8(desc));
+	}
+
+	/**
+	 * An entry that refers to one or two other entries.
+	 */
+	private int ref(String kind, int tag, int a, int b) {
+		String key = kind+a+","+b;
+		Integer index = poolIndex.get(key);
+		if (index==null) {
+			try {
+				poolOut.writeByte(tag);
+				poolOut.writeShort(a);
+				if (b>=0)
+					poolOut.writeShort(b);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			index = newEntry(key, 1);
+		}
+		return index;
+	}
+
+	private int newEntry(String key, int size) {
+		int index = poolCount;
+		poolCount += size;
+		if (poolCount > 0xFFFF)
+			throw new Error("Too many constants in class "+name);
+		poolIndex.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Add a public static method.
+	 */
+	void addMethod(String methodName, String desc, Code code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(0x0009); // public static
+			out.writeShort(utf8(methodName));
+			out.writeShort(utf8(desc));
+			out.writeShort(1); // attributes: Code
+			byte[] body = code.getBytes();
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + body.length);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	byte[] toBytes() {
+		int thisClass = classRef(name);
+		int superClass = classRef("java/lang/Object");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);  // minor version
+			out.writeShort(49); // major version
+			out.writeShort(poolCount);
+			out.write(pool.toByteArray());
+			out.writeShort(0x0021); // public super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] method : methods)
+				out.write(method);
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The bytecode of a method. Keeps track of the depth of the operand stack
+	 * (every instruction is emitted along with its effect on the depth) and
+	 * of the number of locals used. Branches can go to labels that aren't
+	 * placed yet, they are patched when the code is finished.
+	 */
+	static class Code {
+
+		static final int ICONST_0 = 0x03;
+		static final int BIPUSH = 0x10;
+		static final int SIPUSH = 0x11;
+		static final int LDC_W = 0x13;
+		static final int ILOAD = 0x15;
+		static final int IALOAD = 0x2e;
+		static final int ISTORE = 0x36;
+		static final int IASTORE = 0x4f;
+		static final int POP = 0x57;
+		static final int IADD = 0x60;
+		static final int ISUB = 0x64;
+		static final int IMUL = 0x68;
+		static final int IDIV = 0x6c;
+		static final int ISHL = 0x78;
+		static final int ISHR = 0x7a;
+		static final int IUSHR = 0x7c;
+		static final int IAND = 0x7e;
+		static final int IOR = 0x80;
+		static final int IXOR = 0x82;
+		static final int IFEQ = 0x99;
+		static final int IFNE = 0x9a;
+		static final int IFLT = 0x9b;
+		static final int IFGE = 0x9c;
+		static final int IFGT = 0x9d;
+		static final int IFLE = 0x9e;
+		static final int IF_ICMPEQ = 0x9f;
+		static final int IF_ICMPNE = 0xa0;
+		static final int IF_ICMPLT = 0xa1;
+		static final int IF_ICMPGE = 0xa2;
+		static final int IF_ICMPGT = 0xa3;
+		static final int IF_ICMPLE = 0xa4;
+		static final int GOTO = 0xa7;
+		static final int IRETURN = 0xac;
+		static final int RETURN = 0xb1;
+		static final int GETSTATIC = 0xb2;
+		static final int INVOKEVIRTUAL = 0xb6;
+		static final int INVOKESTATIC = 0xb8;
+
+		/**
+		 * A position in the code.
+		 */
+		static class Target {
+			private int position = -1;
+		}
+
+		private final ClassFile owner;
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private int depth = 0;
+		private int maxStack = 0;
+		private int maxLocals;
+
+		// Branches to patch: the position of the instruction, and its target
+		private final ArrayList<Integer> branches = new ArrayList<Integer>();
+		private final ArrayList<Target> branchTargets = new ArrayList<Target>();
+
+		Code(ClassFile owner, int params) {
+			this.owner = owner;
+			this.maxLocals = params;
+		}
+
+		private void stack(int delta) {
+			depth += delta;
+			maxStack = Math.max(maxStack, depth);
+		}
+
+		/**
+		 * An instruction without operands.
+		 */
+		void op(int opcode, int stackDelta) {
+			code.write(opcode);
+			stack(stackDelta);
+		}
+
+		void constant(int value) {
+			if (value>=-1 && value<=5)
+				code.write(ICONST_0+value);
+			else if (value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE) {
+				code.write(BIPUSH);
+				code.write(value);
+			}
+			else if (value>=Short.MIN_VALUE && value<=Short.MAX_VALUE) {
+				code.write(SIPUSH);
+				u2(value);
+			}
+			else {
+				code.write(LDC_W);
+				u2(owner.integer(value));
+			}
+			stack(1);
+		}
+
+		void load(int local) {
+			localOp(ILOAD, local);
+			stack(1);
+		}
+
+		void store(int local) {
+			localOp(ISTORE, local);
+			stack(-1);
+		}
+
+		private void localOp(int opcode, int local) {
+			maxLocals = Math.max(maxLocals, local+1);
+			if (local<=255) {
+				code.write(opcode);
+				code.write(local);
+			}
+			else {
+				code.write(0xc4); // wide
+				code.write(opcode);
+				u2(local);
+			}
+		}
+
+		void getStatic(String className, String field, String desc) {
+			code.write(GETSTATIC);
+			u2(owner.fieldRef(className, field, desc));
+			stack(1);
+		}
+
+		/**
+		 * Call a static method that takes a number of ints, and returns a one
+		 * word value (or nothing, if returnsValue is false).
+		 */
+		void invokeStatic(String className, String method, String desc, int args, boolean returnsValue) {
+			code.write(INVOKESTATIC);
+			u2(owner.methodRef(className, method, desc));
+			stack(-args + (returnsValue ? 1 : 0));
+		}
+
+		void invokeVirtual(String className, String method, String desc, int stackDelta) {
+			code.write(INVOKEVIRTUAL);
+			u2(owner.methodRef(className, method, desc));
+			stack(stackDelta);
+		}
+
+		/**
+		 * A branch instruction (a conditional one pops one or two ints).
+		 */
+		void branch(int opcode, Target target) {
+			branches.add(code.size());
+			branchTargets.add(target);
+			code.write(opcode);
+			u2(0);
+			if (opcode>=IF_ICMPEQ && opcode<=IF_ICMPLE)
+				stack(-2);
+			else if (opcode>=IFEQ && opcode<=IFLE)
+				stack(-1);
+		}
+
+		void place(Target target) {
+			target.position = code.size();
+		}
+
+		private void u2(int value) {
+			code.write(value >> 8);
+			code.write(value);
+		}
+
+		byte[] getBytes() {
+			byte[] bytes = code.toByteArray();
+			if (bytes.length > 0xFFFF)
+				throw new Error("Method too large for the JVM in class "+owner.getName());
+			for (int i = 0; i < branches.size(); i++) {
+				int at = branches.get(i);
+				Target target = branchTargets.get(i);
+				if (target.position<0)
+					throw new Error("Branch to a label that was never placed");
+				int offset = target.position - at;
+				if (offset<Short.MIN_VALUE || offset>Short.MAX_VALUE)
+					throw new Error("Branch too far in class "+owner.getName());
+				bytes[at+1] = (byte) (offset >> 8);
+				bytes[at+2] = (byte) offset;
+			}
+			return bytes;
+		}
+
+		int getMaxStack() {
+			return maxStack;
+		}
+
+		int getMaxLocals() {
+			return maxLocals;
+		}
+
+	}
+
+}
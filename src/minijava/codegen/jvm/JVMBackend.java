@@ -0,0 +1,567 @@
+package minijava.codegen.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import minijava.codegen.jvm.ClassFile.Code;
+import minijava.codegen.jvm.ClassFile.Code.Target;
+import minijava.ir.frame.Frame;
+import minijava.ir.frame.x86.X86Frame;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.CALL;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.EXP;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.translate.Translator;
+import minijava.util.List;
+
+/**
+ * A backend that translates the trace scheduled IR of a program into JVM
+ * classes, so that the program can be run at the speed of the JIT compiler
+ * (to run large inputs, and to compare the result with
+ * {@link minijava.ir.interp.Interp#run()}).
+ * <p>
+ * Every procedure becomes a class with a static method "call", that takes
+ * the procedure's arguments and returns its result, as ints. Temps become
+ * local variables, CJUMP and JUMP become branches and memory is the int[]
+ * of the {@link JVMRuntime}, which also implements mj_println, mj_new_object
+ * and mj_new_array.
+ * <p>
+ * The frame itself is not simulated: every MEM(FP + CONST) (the formals, and
+ * any locals in the frame) becomes a local variable too. The IR produced by
+ * our translator only uses the frame pointer in such MEMs, or puts such an
+ * address in a Temp first (MiniJava has no way of taking the address of a
+ * variable). The backend refuses IR that does anything else with it.
+ * <p>
+ * The classes can be run in this JVM (with {@link #run()}, which loads them
+ * with a ClassLoader of their own) or be written to a runnable jar.
+ */
+public class JVMBackend {
+
+	/**
+	 * The package of the generated classes.
+	 */
+	private static final String PACKAGE = "mj/";
+
+	/**
+	 * The class with the main method, which runs the program and prints its
+	 * output.
+	 */
+	public static final String MAIN_CLASS = PACKAGE+"Main";
+
+	private static final String RUNTIME = "minijava/codegen/jvm/JVMRuntime";
+
+	/**
+	 * The generated classes, by internal name.
+	 */
+	private final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+	/**
+	 * The class of the "main" procedure.
+	 */
+	private String mainProc = null;
+
+	public JVMBackend(Fragments program) {
+		for (Fragment fragment : program) {
+			if (fragment instanceof ProcFragment) {
+				ProcFragment proc = (ProcFragment) fragment;
+				String name = className(proc.getLabel());
+				if (mainProc==null)
+					mainProc = name;
+				classes.put(name, new ProcTranslator(proc).translate());
+			}
+			else
+				throw new Error("The JVM backend doesn't know about fragments of this type: "+fragment.getClass());
+		}
+		if (mainProc==null)
+			throw new Error("The program has no main procedure");
+		classes.put(MAIN_CLASS, mainClass());
+	}
+
+	/**
+	 * The generated class files, by internal class name (e.g. "mj/Main").
+	 */
+	public Map<String, byte[]> getClasses() {
+		return classes;
+	}
+
+	/**
+	 * Run the program, and return its output.
+	 */
+	public String run() {
+		try {
+			Class<?> main = new Loader().loadClass(mainProc.replace('/', '.'));
+			synchronized (JVMRuntime.class) {
+				JVMRuntime.reset();
+				main.getMethod("call").invoke(null);
+				return JVMRuntime.output();
+			}
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new Error(e.getCause());
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Write a jar with the program's classes and the runtime, which can be run
+	 * with "java -jar".
+	 */
+	public void writeJar(File file) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS.replace('/', '.'));
+		JarOutputStream jar = new JarOutputStream(new FileOutputStream(file), manifest);
+		try {
+			for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+				jar.putNextEntry(new JarEntry(entry.getKey()+".class"));
+				jar.write(entry.getValue());
+				jar.closeEntry();
+			}
+			jar.putNextEntry(new JarEntry(RUNTIME+".class"));
+			jar.write(runtimeClass());
+			jar.closeEntry();
+		} finally {
+			jar.close();
+		}
+	}
+
+	private static byte[] runtimeClass() throws IOException {
+		InputStream in = JVMBackend.class.getResourceAsStream("/"+RUNTIME+".class");
+		if (in==null)
+			throw new Error("Can't find the class file of the runtime");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+				bytes.write(buffer, 0, n);
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the generated classes (and finds everything else, including the
+	 * runtime, in the loader of the backend).
+	 */
+	private class Loader extends ClassLoader {
+
+		Loader() {
+			super(JVMBackend.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name.replace('.', '/'));
+			if (bytes==null)
+				throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+
+	}
+
+	private static String className(Label label) {
+		StringBuilder name = new StringBuilder(PACKAGE);
+		for (char c : label.toString().toCharArray())
+			name.append(Character.isJavaIdentifierPart(c) ? c : '$');
+		return name.toString();
+	}
+
+	private static String descriptor(int args) {
+		StringBuilder desc = new StringBuilder("(");
+		for (int i = 0; i < args; i++)
+			desc.append('I');
+		return desc.append(")I").toString();
+	}
+
+	private byte[] mainClass() {
+		ClassFile cf = new ClassFile(MAIN_CLASS);
+		Code code = new Code(cf, 1);
+		code.invokeStatic(RUNTIME, "reset", "()V", 0, false);
+		code.invokeStatic(mainProc, "call", descriptor(0), 0, true);
+		code.op(Code.POP, -1);
+		code.getStatic("java/lang/System", "out", "Ljava/io/PrintStream;");
+		code.invokeStatic(RUNTIME, "output", "()Ljava/lang/String;", 0, true);
+		code.invokeVirtual("java/io/PrintStream", "print", "(Ljava/lang/String;)V", -2);
+		code.op(Code.RETURN, 0);
+		cf.addMethod("main", "([Ljava/lang/String;)V", code);
+		return cf.toBytes();
+	}
+
+	/**
+	 * Translates the body of one procedure into the "call" method of its class.
+	 */
+	private static class ProcTranslator {
+
+		private final ProcFragment proc;
+		private final Frame frame;
+		private final Temp fp;
+		private final int numFormals;
+
+		private final ClassFile cf;
+		private Code code;
+
+		private final HashMap<Temp, Integer> tempLocals = new HashMap<Temp, Integer>();
+		private final HashMap<Integer, Integer> frameLocals = new HashMap<Integer, Integer>();
+		private final HashMap<Temp, Integer> frameAddresses = new HashMap<Temp, Integer>();
+		private final HashMap<Label, Target> targets = new HashMap<Label, Target>();
+		private int locals;
+		private int scratch = -1;
+
+		ProcTranslator(ProcFragment proc) {
+			this.proc = proc;
+			this.frame = proc.getFrame();
+			this.fp = ((TEMP) frame.FP()).temp;
+			this.numFormals = frame.getFormals().size();
+			this.cf = new ClassFile(className(proc.getLabel()));
+			this.locals = numFormals;
+		}
+
+		byte[] translate() {
+			List<IRStm> body = proc.getTraceScheduledBody();
+			code = new Code(cf, numFormals);
+
+			// Give every Temp and frame location a local, and initialize the
+			// ones that aren't formals (the verifier insists on this).
+			findFrameAddresses(body);
+			for (IRStm stm : body)
+				assignLocals(stm);
+			local(((TEMP) frame.RV()).temp);
+			for (int i = numFormals; i < locals; i++) {
+				code.constant(0);
+				code.store(i);
+			}
+
+			int i = 0;
+			for (IRStm stm : body) {
+				i++;
+				IRStm next = i < body.size() ? body.get(i) : null;
+				translate(stm, next);
+			}
+			code.load(local(((TEMP) frame.RV()).temp));
+			code.op(Code.IRETURN, -1);
+			cf.addMethod("call", descriptor(numFormals), code);
+			return cf.toBytes();
+		}
+
+		private int local(Temp t) {
+			Integer local = tempLocals.get(t);
+			if (local==null) {
+				local = locals++;
+				tempLocals.put(t, local);
+			}
+			return local;
+		}
+
+		/**
+		 * The local for the frame location at a given offset from the FP.
+		 */
+		private int frameLocal(int offset) {
+			Integer local = frameLocals.get(offset);
+			if (local==null) {
+				int formal = (offset - X86Frame.FIRST_FORMAL_OFFSET) / frame.wordSize();
+				if (offset >= X86Frame.FIRST_FORMAL_OFFSET && formal < numFormals
+						&& (offset - X86Frame.FIRST_FORMAL_OFFSET) % frame.wordSize() == 0)
+					local = formal;
+				else if (offset < 0 && offset % frame.wordSize() == 0)
+					local = locals++;
+				else
+					throw new Error("The JVM backend can't access the frame at offset "+offset+" in "+proc.getLabel());
+				frameLocals.put(offset, local);
+			}
+			return local;
+		}
+
+		/**
+		 * If the exp is MEM(FP + CONST) or MEM(FP - CONST), or MEM(TEMP t) of a
+		 * Temp that holds such an address, the offset. Otherwise null.
+		 */
+		private Integer frameOffset(IRExp exp) {
+			if (!(exp instanceof MEM))
+				return null;
+			IRExp address = ((MEM) exp).exp;
+			if (address instanceof TEMP)
+				return frameAddresses.get(((TEMP) address).temp);
+			return fpOffset(address);
+		}
+
+		/**
+		 * If the exp is FP + CONST or FP - CONST, the offset. Otherwise null.
+		 */
+		private Integer fpOffset(IRExp exp) {
+			if (!(exp instanceof BINOP))
+				return null;
+			BINOP address = (BINOP) exp;
+			if (!(address.getLeft() instanceof TEMP) || ((TEMP) address.getLeft()).temp!=fp
+					|| !(address.getRight() instanceof CONST))
+				return null;
+			int offset = ((CONST) address.getRight()).getValue();
+			switch (address.getOp()) {
+			case PLUS:
+				return offset;
+			case MINUS:
+				return -offset;
+			default:
+				return null;
+			}
+		}
+
+		private Target target(Label label) {
+			Target target = targets.get(label);
+			if (target==null) {
+				target = new Target();
+				targets.put(label, target);
+			}
+			return target;
+		}
+
+		/**
+		 * Find the Temps that hold the address of a frame location. Canon
+		 * introduces these, e.g. for an assignment to a formal of the result
+		 * of a call: MOVE(t, FP + 12) ... MOVE(MEM(t), CALL(...)). If such a
+		 * Temp is assigned only once, all its MEMs are the same location, and
+		 * the MOVE to it is dropped.
+		 */
+		private void findFrameAddresses(List<IRStm> body) {
+			HashMap<Temp, Integer> defs = new HashMap<Temp, Integer>();
+			for (IRStm stm : body) {
+				if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+					Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+					Integer count = defs.get(t);
+					defs.put(t, count==null ? 1 : count+1);
+					Integer offset = fpOffset(((MOVE) stm).src);
+					if (offset!=null)
+						frameAddresses.put(t, offset);
+				}
+			}
+			for (Temp t : defs.keySet()) {
+				if (defs.get(t)>1)
+					frameAddresses.remove(t);
+			}
+		}
+
+		private void assignLocals(IRStm stm) {
+			if (stm instanceof MOVE) {
+				assignLocals(((MOVE) stm).dst);
+				assignLocals(((MOVE) stm).src);
+			}
+			else if (stm instanceof EXP)
+				assignLocals(((EXP) stm).exp);
+			else if (stm instanceof CJUMP) {
+				assignLocals(((CJUMP) stm).getLeft());
+				assignLocals(((CJUMP) stm).getRight());
+			}
+		}
+
+		private void assignLocals(IRExp exp) {
+			Integer offset = frameOffset(exp);
+			if (offset!=null)
+				frameLocal(offset);
+			else if (exp instanceof TEMP) {
+				if (((TEMP) exp).temp!=fp)
+					local(((TEMP) exp).temp);
+			}
+			else {
+				for (IRExp kid : exp.kids())
+					assignLocals(kid);
+			}
+		}
+
+		private void translate(IRStm stm, IRStm next) {
+			if (stm instanceof LABEL)
+				code.place(target(((LABEL) stm).getLabel()));
+			else if (stm instanceof MOVE) {
+				MOVE move = (MOVE) stm;
+				Integer offset = frameOffset(move.dst);
+				if (move.dst instanceof TEMP) {
+					// (A Temp that names a frame location needs no code, see
+					// findFrameAddresses.)
+					Temp t = ((TEMP) move.dst).temp;
+					if (!frameAddresses.containsKey(t)) {
+						translate(move.src);
+						code.store(tempLocal(t));
+					}
+				}
+				else if (offset!=null) {
+					translate(move.src);
+					code.store(frameLocal(offset));
+				}
+				else if (move.dst instanceof MEM) {
+					// Same order as MOVE.interp: the value first, then the address.
+					if (scratch<0)
+						scratch = locals++;
+					translate(move.src);
+					code.store(scratch);
+					code.getStatic(RUNTIME, "heap", "[I");
+					wordIndex(((MEM) move.dst).exp);
+					code.load(scratch);
+					code.op(Code.IASTORE, -3);
+				}
+				else
+					throw new Error("This IR "+move.dst+" is not legal as the LHS of a MOVE.");
+			}
+			else if (stm instanceof EXP) {
+				translate(((EXP) stm).exp);
+				code.op(Code.POP, -1);
+			}
+			else if (stm instanceof JUMP) {
+				IRExp exp = ((JUMP) stm).getExp();
+				if (!(exp instanceof NAME))
+					throw new Error("The JVM backend only supports jumps to labels, not "+exp);
+				code.branch(Code.GOTO, target(((NAME) exp).getLabel()));
+			}
+			else if (stm instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) stm;
+				translate(cjump.getLeft());
+				translate(cjump.getRight());
+				code.branch(branchOp(cjump.getOp()), target(cjump.getTrueLabel()));
+				if (!(next instanceof LABEL) || ((LABEL) next).getLabel()!=cjump.getFalseLabel())
+					code.branch(Code.GOTO, target(cjump.getFalseLabel()));
+			}
+			else
+				throw new Error("Can only translate atomic statements (the trace scheduled IR should not have "+stm+")");
+		}
+
+		/**
+		 * Emit the comparison of the two ints on the stack (unsigned ones are
+		 * compared with Integer.compareUnsigned first), returns the branch to
+		 * use.
+		 */
+		private int branchOp(CJUMP.RelOp op) {
+			switch (op) {
+			case EQ: return Code.IF_ICMPEQ;
+			case NE: return Code.IF_ICMPNE;
+			case LT: return Code.IF_ICMPLT;
+			case GT: return Code.IF_ICMPGT;
+			case LE: return Code.IF_ICMPLE;
+			case GE: return Code.IF_ICMPGE;
+			default:
+				break;
+			}
+			code.invokeStatic("java/lang/Integer", "compareUnsigned", "(II)I", 2, true);
+			switch (op) {
+			case ULT: return Code.IFLT;
+			case ULE: return Code.IFLE;
+			case UGT: return Code.IFGT;
+			case UGE: return Code.IFGE;
+			default:
+				throw new Error("Missing case? "+op);
+			}
+		}
+
+		private int tempLocal(Temp t) {
+			if (t==fp || frameAddresses.containsKey(t))
+				throw new Error("The JVM backend can't use the address of the frame as a value in "+proc.getLabel());
+			return local(t);
+		}
+
+		/**
+		 * Push the index in the heap of the word at an address.
+		 */
+		private void wordIndex(IRExp address) {
+			translate(address);
+			code.constant(2);
+			code.op(Code.ISHR, -1);
+		}
+
+		private void translate(IRExp exp) {
+			Integer offset = frameOffset(exp);
+			if (offset!=null)
+				code.load(frameLocal(offset));
+			else if (exp instanceof CONST)
+				code.constant(((CONST) exp).getValue());
+			else if (exp instanceof TEMP)
+				code.load(tempLocal(((TEMP) exp).temp));
+			else if (exp instanceof BINOP) {
+				BINOP binop = (BINOP) exp;
+				translate(binop.getLeft());
+				translate(binop.getRight());
+				code.op(binopOp(binop.getOp()), -1);
+			}
+			else if (exp instanceof MEM) {
+				code.getStatic(RUNTIME, "heap", "[I");
+				wordIndex(((MEM) exp).exp);
+				code.op(Code.IALOAD, -1);
+			}
+			else if (exp instanceof CALL) {
+				CALL call = (CALL) exp;
+				if (!(call.getFunc() instanceof NAME))
+					throw new Error("The JVM backend only supports calls to labels, not "+call.getFunc());
+				Label label = ((NAME) call.getFunc()).getLabel();
+				int args = call.getArgs().size();
+				for (IRExp arg : call.getArgs())
+					translate(arg);
+				if (label==Translator.L_PRINT)
+					code.invokeStatic(RUNTIME, "println", descriptor(1), args, true);
+				else if (label==Translator.L_NEW_OBJECT)
+					code.invokeStatic(RUNTIME, "newObject", descriptor(1), args, true);
+				else if (label==Translator.L_NEW_ARRAY)
+					code.invokeStatic(RUNTIME, "newArray", descriptor(1), args, true);
+				else
+					code.invokeStatic(className(label), "call", descriptor(args), args, true);
+			}
+			else
+				throw new Error("The JVM backend can't translate "+exp);
+		}
+
+		private static int binopOp(BINOP.Op op) {
+			switch (op) {
+			case PLUS: return Code.IADD;
+			case MINUS: return Code.ISUB;
+			case MUL: return Code.IMUL;
+			case DIV: return Code.IDIV;
+			case AND: return Code.IAND;
+			case OR: return Code.IOR;
+			case LSHIFT: return Code.ISHL;
+			case RSHIFT: return Code.IUSHR;
+			case ARSHIFT: return Code.ISHR;
+			case XOR: return Code.IXOR;
+			default:
+				throw new Error("Binop case missing? "+op);
+			}
+		}
+
+	}
+
+	/**
+	 * Compile a MiniJava program into a runnable jar.
+	 * <p>
+	 * Usage: JVMBackend Program.java Program.jar
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length!=2) {
+			System.err.println("Usage: JVMBackend <program.java> <output.jar>");
+			System.exit(1);
+		}
+		Fragments program = Translator.translate(X86Frame.factory, new File(args[0]));
+		new JVMBackend(program).writeJar(new File(args[1]));
+	}
+
+}
@@ -0,0 +1,78 @@
+package minijava.codegen.jvm;
+
+import java.util.Arrays;
+
+/**
+ * The runtime system of programs compiled by the {@link JVMBackend}: the
+ * memory, and the mj_println, mj_new_object and mj_new_array functions (with
+ * the same semantics as in {@link minijava.ir.interp.Interp}).
+ * <p>
+ * Memory is one int[] and pointers are byte addresses in it. Objects and
+ * arrays are allocated with a bump allocator (they are never freed), and
+ * address 0 is never allocated, so that it can serve as null.
+ * <p>
+ * The members are public because the generated classes use them. This class
+ * must not use any other classes of the compiler, since it is copied into
+ * the jars that the backend writes.
+ */
+public class JVMRuntime {
+
+	public static final int WORD_SIZE = 4;
+
+	public static int[] heap;
+
+	/**
+	 * The word index of the first free word.
+	 */
+	private static int top;
+
+	private static StringBuilder out;
+
+	/**
+	 * Start with an empty memory and output.
+	 */
+	public static void reset() {
+		heap = new int[1024];
+		top = 1;
+		out = new StringBuilder();
+	}
+
+	public static String output() {
+		return out.toString();
+	}
+
+	public static int println(int value) {
+		out.append(value);
+		out.append('\n');
+		return 0;
+	}
+
+	public static int newObject(int numBytes) {
+		if (numBytes%WORD_SIZE!=0)
+			throw new Error("Object size is not a multiple of the word size: "+numBytes);
+		return allocate(numBytes/WORD_SIZE);
+	}
+
+	/**
+	 * Array layout: the returned pointer points to the 0 element of the array.
+	 * The element just before it is the length of the array.
+	 */
+	public static int newArray(int numElements) {
+		int block = allocate(numElements+1);
+		heap[block/WORD_SIZE] = numElements;
+		return block + WORD_SIZE;
+	}
+
+	private static int allocate(int numWords) {
+		if (numWords<0)
+			throw new Error("Negative allocation size: "+numWords);
+		int start = top;
+		if ((long) start + numWords > Integer.MAX_VALUE/WORD_SIZE)
+			throw new OutOfMemoryError("The MiniJava heap is full");
+		top = start + numWords;
+		if (top > heap.length)
+			heap = Arrays.copyOf(heap, (int) Math.min(Math.max(2L*heap.length, top), Integer.MAX_VALUE/WORD_SIZE));
+		return start*WORD_SIZE;
+	}
+
+}
@@ -2,6 +2,7 @@ package minijava.codegen.muncher;
 
 import minijava.codegen.patterns.Matched;
 import minijava.codegen.patterns.Pat;
+import minijava.ir.tree.IRExp;
 import minijava.ir.tree.IRNode;
 import minijava.util.DefaultIndentable;
 import minijava.util.IndentingWriter;
@@ -28,12 +29,29 @@ public abstract class MunchRule<N extends IRNode, R> extends DefaultIndentable {
 		protected R trigger(Muncher m, Matched match) {
 			return trigger.trigger(m, match);
 		}
+		
+		@Override
+		protected int cost(Muncher m, Matched match) {
+			return trigger.cost(m, match);
+		}
 	}
 
 	public MunchRule(Pat<N> pat) {
+		this(pat, 1);
+	}
+	
+	/**
+	 * Create a rule with a given cost. The cost is used when the muncher picks
+	 * rules by cost rather than by size (see {@link Muncher#setOptimalTiling(boolean)})
+	 * and should reflect the instructions emitted by the rule itself (e.g. the
+	 * number of instructions). Rules created without a cost have cost 1. 
+	 */
+	public MunchRule(Pat<N> pat, int cost) {
 		this.pat = pat;
+		this.cost = cost;
 	}
 	private Pat<N> pat;
+	private int cost;
 	private int matched = 0;
 	
 	/**
@@ -46,10 +64,60 @@ public abstract class MunchRule<N extends IRNode, R> extends DefaultIndentable {
 	 */
 	protected abstract R trigger(Muncher m, Matched match);
 	
-	public Matched match(N to) {
-		Matched result = pat.tryMatch(to);
-		if (result!=null) matched++;
-		return result;
+	/**
+	 * Try to match this rule's pattern, recording the bindings in result
+	 * (which is cleared first).
+	 */
+	public boolean match(N to, Matched result) {
+		if (pat.tryMatch(to, result)) {
+			matched++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The kind of IR node this rule's pattern matches at its root (see
+	 * {@link Pat#rootKey()}).
+	 */
+	public Object rootKey() {
+		return pat.rootKey();
+	}
+
+	/**
+	 * Like match, but doesn't count as a use of the rule.
+	 */
+	boolean matches(N to, Matched result) {
+		return pat.tryMatch(to, result);
+	}
+
+	public int getCost() {
+		return cost;
+	}
+	
+	/**
+	 * The total cost of munching a matched node with this rule: the cost of
+	 * the rule plus the cost of munching the IRExps (and lists of IRExp) the
+	 * wildcards in the pattern matched.
+	 * <p>
+	 * Rules whose trigger doesn't munch exactly those subtrees (e.g. because
+	 * it treats constants specially) should override this so the cost 
+	 * reflects what the trigger actually does. Use {@link Muncher#cost(IRExp)}
+	 * to get the cost of munching a subtree.
+	 */
+	protected int cost(Muncher m, Matched match) {
+		int total = cost;
+		for (int i = 0; i < match.size(); i++) {
+			Object value = match.value(i);
+			if (value instanceof IRExp)
+				total += m.cost((IRExp) value);
+			else if (value instanceof List<?>) {
+				for (Object e : (List<?>) value)
+					if (e instanceof IRExp)
+						total += m.cost((IRExp) e);
+			}
+		}
+		return total;
 	}
 
 	public int getPriority() {
@@ -59,7 +127,7 @@ public abstract class MunchRule<N extends IRNode, R> extends DefaultIndentable {
 	@Override
 	public void dump(IndentingWriter out) {
 		out.print(pat);
-		out.print(" ==> "+matched+" times");
+		out.print(" (cost "+cost+") ==> "+matched+" times");
 	}
 
 	@SuppressWarnings("unchecked")
@@ -1,9 +1,15 @@
 package minijava.codegen.muncher;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import minijava.codegen.assem.Instr;
+import minijava.codegen.patterns.Matched;
 import minijava.ir.frame.Frame;
 import minijava.ir.temp.Temp;
 import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRNode;
 import minijava.ir.tree.IRStm;
 import minijava.util.DefaultIndentable;
 import minijava.util.IndentingWriter;
@@ -21,6 +27,34 @@ public abstract class Muncher extends DefaultIndentable {
 
 	private Frame frame;
 	
+	/**
+	 * Reusable Matched instances, one for each level of nested munch calls
+	 * (a rule's trigger munches the children of the matched pattern while
+	 * it still needs its own bindings).
+	 */
+	private ArrayList<Matched> matchedStack = new ArrayList<Matched>();
+	private int depth = 0;
+	
+	/**
+	 * When this is set, rules are picked by cost rather than by size.
+	 */
+	private boolean optimalTiling = false;
+	
+	/**
+	 * The cheapest rule for each node labeled so far (only used for optimal
+	 * tiling). Cleared after each statement.
+	 */
+	private Map<IRNode, Choice> choices = new IdentityHashMap<IRNode, Choice>();
+	
+	static class Choice {
+		final MunchRule<?, ?> rule;
+		final int cost;
+		Choice(MunchRule<?, ?> rule, int cost) {
+			this.rule = rule;
+			this.cost = cost;
+		}
+	}
+	
 	protected Muncher(Frame frame, MuncherRules<IRStm, Void> stmMunchers, MuncherRules<IRExp, Temp> expMunchers) {
 		this.frame = frame;
 		this.stmMunchers = stmMunchers;
@@ -43,6 +77,8 @@ public abstract class Muncher extends DefaultIndentable {
 	 */
 	public void munch(IRStm stm) {
 		stmMunchers.munch(this, stm);
+		if (depth==0)
+			choices.clear();
 	}
 	
 	/**
@@ -52,6 +88,40 @@ public abstract class Muncher extends DefaultIndentable {
 		return expMunchers.munch(this, exp);
 	}
 
+	/**
+	 * Choose between maximal munch (the default), which picks the largest
+	 * rule that matches, and optimal tiling, which picks rules so that the 
+	 * total cost of the rules used to munch each statement is minimal 
+	 * (see {@link MunchRule#getCost()}).
+	 */
+	public void setOptimalTiling(boolean optimalTiling) {
+		this.optimalTiling = optimalTiling;
+	}
+	
+	public boolean isOptimalTiling() {
+		return optimalTiling;
+	}
+	
+	/**
+	 * The lowest cost at which exp can be munched. This is meant to be used 
+	 * by {@link MunchRule#cost(Muncher, Matched)}.
+	 */
+	public int cost(IRExp exp) {
+		if (expMunchers.choose(this, exp)==null)
+			throw new Error("No matching munch rule for this node:\n"+exp);
+		return choices.get(exp).cost;
+	}
+	
+	Choice getChoice(IRNode node) {
+		return choices.get(node);
+	}
+	
+	Choice putChoice(IRNode node, MunchRule<?, ?> rule, int cost) {
+		Choice choice = new Choice(rule, cost);
+		choices.put(node, choice);
+		return choice;
+	}
+	
 	/**
 	 * After the munching is complete, retrieve the accumulated instructions with this
 	 * method.
@@ -74,6 +144,20 @@ public abstract class Muncher extends DefaultIndentable {
 		out.print("}");
 	}
 	
+	/**
+	 * Get a Matched to use at the next level of munching. Must be 
+	 * paired with a call to exitMatched.
+	 */
+	Matched enterMatched() {
+		if (depth==matchedStack.size())
+			matchedStack.add(new Matched());
+		return matchedStack.get(depth++);
+	}
+	
+	void exitMatched() {
+		depth--;
+	}
+	
 	public Frame getFrame() {
 		return frame;
 	}
@@ -3,10 +3,13 @@ package minijava.codegen.muncher;
 import static minijava.util.List.cons;
 import static minijava.util.List.list;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import minijava.codegen.patterns.Matched;
+import minijava.ir.tree.BINOP;
 import minijava.ir.tree.IRNode;
 import minijava.util.DefaultIndentable;
 import minijava.util.IndentingWriter;
@@ -16,6 +19,8 @@ import minijava.util.List;
  * An instance of this class maintains a table of {@link MunchRule} instances. 
  * <p>
  * It can be used to find and trigger a matching MunchRule for a given IRNode.
+ * The rules are indexed by the kind of IR node they match at their root, so only
+ * the rules that can possibly match are tried.
  * <p>
  * After filling the table with MunchRules an instance of this class does not hold
  * any state during the munching process. So you do not need to create a new Table of
@@ -38,23 +43,107 @@ public class MuncherRules<N extends IRNode, R> extends DefaultIndentable {
 	 */
 	private Set<String> ruleSignatures = new HashSet<String>();
 
+	/**
+	 * The rules indexed by the kind of node they match at their root (see 
+	 * {@link MunchRule#rootKey()}). Each entry holds, in priority order, the rules
+	 * for that key together with the rules that can match any kind of node. 
+	 * The table is rebuilt whenever a rule is added.
+	 */
+	private Map<Object, MunchRule<N, R>[]> index = new HashMap<Object, MunchRule<N, R>[]>();
+	
+	/**
+	 * The rules that can match any kind of node, for nodes that have no entry
+	 * in the index.
+	 */
+	private MunchRule<N, R>[] anyRules = toArray(List.<MunchRule<N, R>>empty());
+
 	R munch(Muncher muncher, N node) {
-		//This selection / trigger mechanism is a naive linear scan of all the rules. In "real" 
-		//compilers a more sophisticated algorithm would be used to speed up the matching process.
-		for (MunchRule<N, R> rule : rules) {
-			Matched match = rule.match(node);
-			if (match!=null) {
-				return rule.trigger(muncher, match);
+		//Only the rules that can match the node's root are tried, in order of 
+		//priority. The bindings go into a Matched that is reused for every 
+		//rule tried at this level.
+		Matched match = muncher.enterMatched();
+		try {
+			if (muncher.isOptimalTiling()) {
+				MunchRule<N, R> rule = choose(muncher, node);
+				if (rule!=null && rule.match(node, match))
+					return rule.trigger(muncher, match);
 			}
+			else {
+				for (MunchRule<N, R> rule : candidates(node)) {
+					if (rule.match(node, match)) {
+						return rule.trigger(muncher, match);
+					}
+				}
+			}
+		}
+		finally {
+			muncher.exitMatched();
 		}
 		throw new Error("No matching munch rule for this node:\n"+node);
 	}
 
+	/**
+	 * The labeling step of bottom up rewriting (BURS): find the rule that munches
+	 * node at the lowest total cost, i.e. the cost of the rule itself plus the
+	 * (minimal) cost of munching the subtrees it leaves to other rules. The
+	 * costs of the subtrees are computed recursively and remembered by the
+	 * muncher, so every node is labeled only once.
+	 * <p>
+	 * Of the rules with equal cost, the one with the highest priority is
+	 * chosen, so on ties this picks the same rule as maximal munch does.
+	 * <p>
+	 * Returns null if no rule matches.
+	 */
+	@SuppressWarnings("unchecked")
+	MunchRule<N, R> choose(Muncher muncher, N node) {
+		Muncher.Choice choice = muncher.getChoice(node);
+		if (choice==null) {
+			MunchRule<N, R> best = null;
+			int bestCost = Integer.MAX_VALUE;
+			Matched match = muncher.enterMatched();
+			try {
+				for (MunchRule<N, R> rule : candidates(node)) {
+					if (rule.matches(node, match)) {
+						int cost = rule.cost(muncher, match);
+						if (best==null || cost<bestCost) {
+							best = rule;
+							bestCost = cost;
+						}
+					}
+				}
+			}
+			finally {
+				muncher.exitMatched();
+			}
+			if (best==null)
+				return null;
+			choice = muncher.putChoice(node, best, bestCost);
+		}
+		return (MunchRule<N, R>) choice.rule;
+	}
+	
+	private MunchRule<N, R>[] candidates(N node) {
+		MunchRule<N, R>[] candidates = index.get(rootKey(node));
+		if (candidates==null)
+			candidates = anyRules;
+		return candidates;
+	}
+	
+	/**
+	 * The index key for an IR node (this must agree with {@link minijava.codegen.patterns.Pat#rootKey()}).
+	 */
+	private static Object rootKey(IRNode node) {
+		if (node instanceof BINOP)
+			return ((BINOP) node).getOp();
+		return node.getClass();
+	}
+
 	public void add(MunchRule<N, R> _munchRule) {
 		if (_munchRule.isAtomic()) {
 			if (!ruleSignatures.contains(_munchRule.signature())) {
 				rules = insert(_munchRule, rules);
 				ruleSignatures.add(_munchRule.signature());
+				buildIndex();
 			}
 		}
 		else 
@@ -76,6 +165,39 @@ public class MuncherRules<N extends IRNode, R> extends DefaultIndentable {
 		}
 	}
 
+	private void buildIndex() {
+		Map<Object, List<MunchRule<N, R>>> lists = new HashMap<Object, List<MunchRule<N, R>>>();
+		List<MunchRule<N, R>> any = List.empty();
+		for (MunchRule<N, R> rule : rules) {
+			Object key = rule.rootKey();
+			if (key!=null && !lists.containsKey(key))
+				lists.put(key, List.<MunchRule<N, R>>empty());
+		}
+		//Going through the rules in order keeps each entry in priority order.
+		for (MunchRule<N, R> rule : rules) {
+			Object key = rule.rootKey();
+			if (key==null) {
+				any.add(rule);
+				for (List<MunchRule<N, R>> entry : lists.values())
+					entry.add(rule);
+			}
+			else
+				lists.get(key).add(rule);
+		}
+		index.clear();
+		for (Map.Entry<Object, List<MunchRule<N, R>>> entry : lists.entrySet())
+			index.put(entry.getKey(), toArray(entry.getValue()));
+		anyRules = toArray(any);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private MunchRule<N, R>[] toArray(List<MunchRule<N, R>> list) {
+		MunchRule<N, R>[] result = new MunchRule[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+
 	@Override
 	public void dump(IndentingWriter out) {
 		out.print("MuncherRules");
@@ -29,13 +29,17 @@ public class BINOPPat extends Pat<IRExp> {
 	}
 
 	@Override
-	public void match(IRExp toMatch, Matched matched)
-			throws minijava.codegen.patterns.Pat.Failed, ClassCastException {
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof BINOP)) return false;
 		BINOP binop = (BINOP) toMatch;
-		if (op!=binop.getOp()) fail();
-		l.match(binop.getLeft(), matched);
-		r.match(binop.getRight(), matched);
-		//matched.put(this, toMatch);
+		return op==binop.getOp()
+			&& l.match(binop.getLeft(), matched)
+			&& r.match(binop.getRight(), matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return op;
 	}
 
 	@SuppressWarnings("unchecked")
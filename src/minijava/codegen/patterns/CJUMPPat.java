@@ -25,15 +25,19 @@ public class CJUMPPat extends Pat<IRStm> {
 	}
 
 	@Override
-	public void match(IRStm toMatch, Matched matched)
-			throws Failed, ClassCastException {
+	public boolean match(IRStm toMatch, Matched matched) {
+		if (!(toMatch instanceof CJUMP)) return false;
 		CJUMP cjump = (CJUMP) toMatch;
-		op.match(cjump.getOp(), matched);
-		l.match(cjump.getLeft(), matched);
-		r.match(cjump.getRight(), matched);
-		t.match(cjump.getTrueLabel(), matched);
-		f.match(cjump.getFalseLabel(), matched);
-		//matched.put(this, toMatch);
+		return op.match(cjump.getOp(), matched)
+			&& l.match(cjump.getLeft(), matched)
+			&& r.match(cjump.getRight(), matched)
+			&& t.match(cjump.getTrueLabel(), matched)
+			&& f.match(cjump.getFalseLabel(), matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return CJUMP.class;
 	}
 
 	@Override
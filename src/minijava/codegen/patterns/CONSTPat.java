@@ -14,10 +14,15 @@ public class CONSTPat extends Pat<IRExp> {
 	}
 
 	@Override
-	public void match(IRExp toMatch, Matched matched)
-			throws Failed, ClassCastException {
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof CONST)) return false;
 		CONST cnst = (CONST) toMatch;
-		value.match(cnst.getValue(), matched);
+		return value.match(cnst.getValue(), matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return CONST.class;
 	}
 
 	@Override
@@ -15,11 +15,15 @@ public class EXPPat extends Pat<IRStm> {
 	}
 
 	@Override
-	public void match(IRStm toMatch, Matched m)
-			throws minijava.codegen.patterns.Pat.Failed, ClassCastException {
+	public boolean match(IRStm toMatch, Matched m) {
+		if (!(toMatch instanceof EXP)) return false;
 		EXP e = (EXP) toMatch;
-		exp.match(e.exp, m);
-		//m.put(this, toMatch);
+		return exp.match(e.exp, m);
+	}
+
+	@Override
+	public Object rootKey() {
+		return EXP.class;
 	}
 
 	@Override
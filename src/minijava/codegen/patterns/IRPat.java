@@ -53,6 +53,8 @@ public class IRPat {
 	}
 	public static Pat<IRExp> MEM(Pat<IRExp> exp) { return new MEMPat(exp); }
 	public static Pat<IRExp> TEMP(Pat<Temp> t) { return new TEMPPat(t); }
+	public static Pat<IRExp> SPILLED(Pat<Temp> t) { return new SPILLEDPat(t); }
+	public static Pat<IRExp> REMAT(Pat<Temp> t) { return new REMATPat(t); }
 	public static Pat<IRExp> NAME(Pat<Label> l) { return new NAMEPat(l); }
 	public static Pat<IRExp> CONST(Pat<Integer> v) { return new CONSTPat(v); }
 	public static Pat<IRExp> CONST(int i) { return CONST(new IntPat(i)); }
@@ -15,11 +15,15 @@ public class JUMPPat extends Pat<IRStm> {
 	}
 
 	@Override
-	public void match(IRStm toMatch, Matched m)
-			throws Failed, ClassCastException {
+	public boolean match(IRStm toMatch, Matched m) {
+		if (!(toMatch instanceof JUMP)) return false;
 		JUMP jump = (JUMP) toMatch;
-		exp.match(jump.getExp(), m);
-		//m.put(this, toMatch);
+		return exp.match(jump.getExp(), m);
+	}
+
+	@Override
+	public Object rootKey() {
+		return JUMP.class;
 	}
 
 	@Override
@@ -15,11 +15,15 @@ public class LABELPat extends Pat<IRStm> {
 	}
 
 	@Override
-	public void match(IRStm toMatch, Matched matched)
-			throws Failed, ClassCastException {
+	public boolean match(IRStm toMatch, Matched matched) {
+		if (!(toMatch instanceof LABEL)) return false;
 		LABEL label = (LABEL) toMatch;
-		l.match(label.getLabel(), matched);
-		//matched.put(this, toMatch);
+		return l.match(label.getLabel(), matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return LABEL.class;
 	}
 
 	@Override
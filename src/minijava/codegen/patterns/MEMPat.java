@@ -14,11 +14,15 @@ public class MEMPat extends Pat<IRExp> {
 	}
 
 	@Override
-	public void match(IRExp toMatch, Matched m)
-			throws Failed, ClassCastException {
+	public boolean match(IRExp toMatch, Matched m) {
+		if (!(toMatch instanceof MEM)) return false;
 		MEM mem = (MEM) toMatch;
-		exp.match(mem.exp, m);
-		//m.put(this, toMatch);
+		return exp.match(mem.exp, m);
+	}
+
+	@Override
+	public Object rootKey() {
+		return MEM.class;
 	}
 
 	@Override
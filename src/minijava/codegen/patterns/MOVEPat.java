@@ -17,12 +17,16 @@ public class MOVEPat extends Pat<IRStm> {
 	}
 
 	@Override
-	public void match(IRStm toMatch, Matched m)
-			throws minijava.codegen.patterns.Pat.Failed, ClassCastException {
+	public boolean match(IRStm toMatch, Matched m) {
+		if (!(toMatch instanceof MOVE)) return false;
 		MOVE move = (MOVE) toMatch;
-		dst.match(move.dst, m);
-		src.match(move.src, m);
-		//m.put(this, toMatch);
+		return dst.match(move.dst, m)
+			&& src.match(move.src, m);
+	}
+
+	@Override
+	public Object rootKey() {
+		return MOVE.class;
 	}
 
 	@Override
@@ -1,28 +1,81 @@
 package minijava.codegen.patterns;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import junit.framework.Assert;
 
 /**
  * Whenever a wildcard pattern matches a particular node, 
- * an map entry associating the wildcard to its “value” is 
- * added to a map. This map is returned as the result of a
- * successful matching operation. 
+ * the wildcard's “value” is recorded in the slot numbered 
+ * by the wildcard's index. A Matched is returned as the 
+ * result of a successful matching operation. 
+ * <p>
+ * A Matched can be cleared and reused for another matching
+ * operation, so that trying a pattern doesn't allocate anything.
  */
 public class Matched {
 	
-	private Map<Wildcard<?>,Object> map = new HashMap<Wildcard<?>, Object>();
+	private Object[] values = new Object[16];
+	private boolean[] bound = new boolean[16];
+	
+	/**
+	 * The indexes of the bound slots, so that clear doesn't have
+	 * to go through all the slots.
+	 */
+	private int[] boundSlots = new int[8];
+	private int boundCount = 0;
 
 	public <T> void put(Wildcard<T> pat, T matched) {
-		Assert.assertFalse(map.containsKey(pat));
-		map.put(pat, matched);
+		int i = pat.index();
+		if (i>=values.length) {
+			int size = Math.max(2*values.length, i+1);
+			Object[] newValues = new Object[size];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			values = newValues;
+			boolean[] newBound = new boolean[size];
+			System.arraycopy(bound, 0, newBound, 0, bound.length);
+			bound = newBound;
+		}
+		Assert.assertFalse(bound[i]);
+		if (boundCount==boundSlots.length) {
+			int[] newSlots = new int[2*boundSlots.length];
+			System.arraycopy(boundSlots, 0, newSlots, 0, boundCount);
+			boundSlots = newSlots;
+		}
+		values[i] = matched;
+		bound[i] = true;
+		boundSlots[boundCount++] = i;
 	}
 	
 	@SuppressWarnings("unchecked")
 	public <T> T get(Pat<T> pat) {
-		return (T) map.get(pat);
+		if (!(pat instanceof Wildcard)) return null;
+		int i = ((Wildcard<T>) pat).index();
+		if (i>=values.length) return null;
+		return (T) values[i];
+	}
+
+	/**
+	 * The number of wildcards that are bound.
+	 */
+	public int size() {
+		return boundCount;
+	}
+	
+	/**
+	 * The value of the i-th bound wildcard (in the order they were bound).
+	 */
+	public Object value(int i) {
+		return values[boundSlots[i]];
+	}
+
+	/**
+	 * Remove all the bindings.
+	 */
+	public void clear() {
+		for (int j = 0; j < boundCount; j++) {
+			values[boundSlots[j]] = null;
+			bound[boundSlots[j]] = false;
+		}
+		boundCount = 0;
 	}
 
 }
@@ -15,10 +15,15 @@ public class NAMEPat extends Pat<IRExp> {
 	}
 
 	@Override
-	public void match(IRExp toMatch, Matched matched)
-	throws Failed, ClassCastException {
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof NAME)) return false;
 		NAME name = (NAME) toMatch;
-		l.match(name.getLabel(), matched);
+		return l.match(name.getLabel(), matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return NAME.class;
 	}
 
 	@Override
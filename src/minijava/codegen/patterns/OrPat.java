@@ -20,8 +20,7 @@ public class OrPat<N> extends Pat<N> {
 	}
 
 	@Override
-	public void match(N toMatch, Matched matched)
-			throws minijava.codegen.patterns.Pat.Failed, ClassCastException {
+	public boolean match(N toMatch, Matched matched) {
 		//The way we currently use these patterns, the match operation will not
 		//be called unless a pattern has a fixed size.
 		//It may be useful in the future to implement this method however.
@@ -37,11 +37,34 @@ public abstract class Pat<N> extends DefaultIndentable {
 	 */
 	public Matched tryMatch(N toMatch) {
 		Matched m = new Matched();
-		try {
-			match(toMatch, m);
+		if (tryMatch(toMatch, m))
 			return m;
-		} catch (ClassCastException e) {
-		} catch (Failed e) {}
+		return null;
+	}
+
+	/**
+	 * Like tryMatch(N), but reuses an existing Matched rather than creating
+	 * a new one. Any bindings in the Matched are cleared first.
+	 * 
+	 * @return whether the match succeeded.
+	 */
+	public boolean tryMatch(N toMatch, Matched m) {
+		m.clear();
+		return match(toMatch, m);
+	}
+	
+	/**
+	 * The kind of IR node this pattern matches at its root, or null if
+	 * the pattern may match any kind of node. 
+	 * <p>
+	 * Patterns that match a particular type of IR node should return that
+	 * node's class. The exception is BINOPPat, which returns its operator,
+	 * so that rules for different operators can be told apart.
+	 * <p>
+	 * This is used by {@link minijava.codegen.muncher.MuncherRules} to 
+	 * only try the rules which can possibly match a given node.
+	 */
+	public Object rootKey() {
 		return null;
 	}
 	
@@ -107,20 +130,20 @@ public abstract class Pat<N> extends DefaultIndentable {
 	}
 
 	/**
-	 * This method should only be called recursively by another match methods. To make the matcher
-	 * methods easier to implement, we will catch any {@link ClassCastException} and treat it as a
-	 * failure to match. 
+	 * This method should only be called recursively by another match methods. Rather
+	 * than casting and catching exceptions, implementations should check the type of
+	 * the node and return false when it doesn't match, so that failing to match
+	 * (which is by far the most common outcome) is cheap.
+	 * <p>
+	 * If the match fails, matched may still contain bindings for some of the
+	 * wildcards. These are discarded by clearing matched before it is reused.
 	 * 
 	 * @param toMatch
-	 * @param children a List which should be initially empty to accumulate the children of a matched pattern.
-	 * @throws Failed
+	 * @param matched accumulates the values matched by the wildcards in the pattern.
+	 * @return whether the pattern matched.
 	 */
-	public abstract void match(N toMatch, Matched matched) throws Failed, ClassCastException;
+	public abstract boolean match(N toMatch, Matched matched);
 	
-	public static class Failed extends Exception {
-		private static final long serialVersionUID = 1L;
-	}
-
 	//// Methods for creating patterns:
 	
 	/**
@@ -130,10 +153,6 @@ public abstract class Pat<N> extends DefaultIndentable {
 		return new Wildcard<N>();
 	}
 		
-	protected void fail() throws Failed {
-		throw new Failed();
-	}
-
 	public boolean isFixedSize() {
 		try { size(); return true; }
 		catch (UnsupportedOperationException e) {
@@ -0,0 +1,59 @@
+package minijava.codegen.patterns;
+
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.TEMP;
+import minijava.util.IndentingWriter;
+import minijava.util.List;
+
+/**
+ * A pattern that matches TEMP(...), but *only* if the Temp is to be
+ * rematerialized (i.e. it is painted with a constant Color, see
+ * {@link Color#isConstant()}). Rules for this pattern should recompute the
+ * value instead of loading it, and omit the Temp's definition.
+ */
+public class REMATPat extends Pat<IRExp> {
+
+	private Pat<Temp> t;
+
+	public REMATPat(Pat<Temp> t) {
+		this.t = t;
+	}
+
+	@Override
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof TEMP)) return false;
+		TEMP temp = (TEMP) toMatch;
+		
+		Color color = temp.getColor();
+		if (color==null || !color.isConstant())
+			return false;
+		
+		return t.match(temp.temp, matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return TEMP.class;
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		out.print("REMAT(");
+		out.print(t);
+		out.print(")");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Pat<IRExp> build(List<Pat<?>> children) {
+		return new REMATPat((Pat<Temp>) children.get(0));
+	}
+
+	@Override
+	public List<Pat<?>> children() {
+		return List.list(new Pat<?>[] {t});
+	}
+
+}
@@ -0,0 +1,60 @@
+package minijava.codegen.patterns;
+
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.TEMP;
+import minijava.util.IndentingWriter;
+import minijava.util.List;
+
+/**
+ * A pattern that matches TEMP(...), but *only* if the Temp has been spilled
+ * (i.e. it is painted with a Color that is neither a register nor a
+ * constant). This is the counterpart of {@link TEMPPat} and
+ * {@link REMATPat}: every TEMP node is matched by exactly one of the three
+ * patterns.
+ */
+public class SPILLEDPat extends Pat<IRExp> {
+
+	private Pat<Temp> t;
+
+	public SPILLEDPat(Pat<Temp> t) {
+		this.t = t;
+	}
+
+	@Override
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof TEMP)) return false;
+		TEMP temp = (TEMP) toMatch;
+		
+		Color color = temp.getColor();
+		if (color==null || color.isRegister() || color.isConstant())
+			return false;
+		
+		return t.match(temp.temp, matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return TEMP.class;
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		out.print("SPILLED(");
+		out.print(t);
+		out.print(")");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Pat<IRExp> build(List<Pat<?>> children) {
+		return new SPILLEDPat((Pat<Temp>) children.get(0));
+	}
+
+	@Override
+	public List<Pat<?>> children() {
+		return List.list(new Pat<?>[] {t});
+	}
+
+}
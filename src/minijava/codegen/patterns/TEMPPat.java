@@ -32,16 +32,20 @@ public class TEMPPat extends Pat<IRExp> {
 	}
 
 	@Override
-	public void match(IRExp toMatch, Matched matched)
-			throws Failed {
+	public boolean match(IRExp toMatch, Matched matched) {
+		if (!(toMatch instanceof TEMP)) return false;
 		TEMP temp = (TEMP) toMatch;
 		
 		Color color = temp.getColor();
 		if (color!=null && !temp.getColor().isRegister())
-			fail();
+			return false;
 		
-		t.match(temp.temp, matched);
-		//matched.put(this, toMatch);
+		return t.match(temp.temp, matched);
+	}
+
+	@Override
+	public Object rootKey() {
+		return TEMP.class;
 	}
 
 	@Override
@@ -5,8 +5,25 @@ import minijava.util.List;
 
 /**
  * A pattern that matches anything (like a "wildcard")
+ * <p>
+ * Every wildcard gets a unique index when it is created. The index is used
+ * as the slot number where a {@link Matched} stores the value the wildcard
+ * matched.
  */
 public class Wildcard<N> extends Pat<N> {
+
+	private static int wildcards = 0;
+
+	private final int index = nextIndex();
+
+	private static synchronized int nextIndex() {
+		return wildcards++;
+	}
+
+	public int index() {
+		return index;
+	}
+
 	@Override
 	public void dump(IndentingWriter out) {
 		out.print("*");
@@ -18,8 +35,9 @@ public class Wildcard<N> extends Pat<N> {
 	}
 
 	@Override
-	public void match(N toMatch, Matched matched) throws Failed {
+	public boolean match(N toMatch, Matched matched) {
 		matched.put(this, toMatch);
+		return true;
 	}
 
 	@Override
@@ -15,6 +15,7 @@ import minijava.ir.frame.Frame;
 import minijava.ir.frame.x86.X86Frame;
 import minijava.ir.temp.Label;
 import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP.Op;
 import minijava.ir.tree.CJUMP.RelOp;
 import minijava.ir.tree.CONST;
 import minijava.ir.tree.IR;
@@ -73,8 +74,36 @@ public class X86Muncher extends Muncher
       }
     });
     
+    // MOVE to a spilled temp: store into its frame slot
+    sm.add(new MunchRule<IRStm, Void>( MOVE(SPILLED(_t_), _e_) )
+    {
+      @Override
+      protected Void trigger(Muncher m, Matched c)
+      {
+        m.emit(A_SPILL_STORE(c.get(_t_), m.munch(c.get(_e_))));
+        return null;
+      }
+    });
+    
+    // MOVE to a rematerialized temp: its value is recomputed at every use,
+    // so the definition is dropped
+    sm.add(new MunchRule<IRStm, Void>( MOVE(REMAT(_t_), _e_), 0 )
+    {
+      @Override
+      protected Void trigger(Muncher m, Matched c)
+      {
+        return null;
+      }
+      
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        return 0;
+      }
+    });
+    
     // An example of an Exp muncher rule
-    em.add(new MunchRule<IRExp, Temp>(PLUS(_e_, CONST(_i_))) {
+    em.add(new MunchRule<IRExp, Temp>(PLUS(_e_, CONST(_i_)), 2) {
       @Override
       protected Temp trigger(Muncher m, Matched c) {
         Temp sum = new Temp();
@@ -96,8 +125,20 @@ public class X86Muncher extends Muncher
     });
     
     // CALL
-    em.add(new MunchRule<IRExp, Temp>(CALL(NAME(_l_), _es_))
+    em.add(new MunchRule<IRExp, Temp>(CALL(NAME(_l_), _es_), 2)
     {
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        // Each argument is moved into its slot
+        int cost = getCost();
+        for(IRExp arg : c.get(_es_))
+        {
+          cost += 1 + m.cost(arg);
+        }
+        return cost;
+      }
+      
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
@@ -115,7 +156,11 @@ public class X86Muncher extends Muncher
         
         m.emit(A_CALL(name, f));
         
-        return m.munch(f.RV());
+        // Copy the result out of the return value register right away, so
+        // it doesn't need to stay in it.
+        Temp res = new Temp();
+        m.emit(A_MOV(res, m.munch(f.RV())));
+        return res;
       }
     });
     
@@ -132,36 +177,45 @@ public class X86Muncher extends Muncher
     });
     
     // PLUS
-    em.add(new MunchRule<IRExp, Temp>(PLUS(_e_, _f_))
+    em.add(new MunchRule<IRExp, Temp>(PLUS(_e_, _f_), 2)
     {
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
-        Temp d = m.munch(c.get(_e_));
+        // Two operand instruction: compute into a fresh temp, so that the temp
+        // of the left operand isn't clobbered
+        Temp d = new Temp();
+        m.emit(A_MOV(d, m.munch(c.get(_e_))));
         m.emit(A_ADD(d, m.munch(c.get(_f_))));
         return d;
       }
     });
     
     // MINUS
-    em.add(new MunchRule<IRExp, Temp>(MINUS(_e_, _f_))
+    em.add(new MunchRule<IRExp, Temp>(MINUS(_e_, _f_), 2)
     {
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
-        Temp d = m.munch(c.get(_e_));
+        // Two operand instruction: compute into a fresh temp, so that the temp
+        // of the left operand isn't clobbered
+        Temp d = new Temp();
+        m.emit(A_MOV(d, m.munch(c.get(_e_))));
         m.emit(A_SUB(d, m.munch(c.get(_f_))));
         return d;
       }
     });
     
     // MUL
-    em.add(new MunchRule<IRExp, Temp>(MUL(_e_, _f_))
+    em.add(new MunchRule<IRExp, Temp>(MUL(_e_, _f_), 2)
     {
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
-        Temp d = m.munch(c.get(_e_));
+        // Two operand instruction: compute into a fresh temp, so that the temp
+        // of the left operand isn't clobbered
+        Temp d = new Temp();
+        m.emit(A_MOV(d, m.munch(c.get(_e_))));
         m.emit(A_MUL(d, m.munch(c.get(_f_))));
         return d;
       }
@@ -182,34 +236,36 @@ public class X86Muncher extends Muncher
     // MEM PLUS
     em.add(new MunchRule<IRExp, Temp>(MEM(PLUS(_e_, _f_)))
     {
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        return getCost() + addressCost(m, c.get(_e_), c.get(_f_));
+      }
+      
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
         // Reduce assembly instructions generated by using a memory offset read
         Temp res = new Temp();
         
-        int offset = 0;
         IRExp l = c.get(_e_),
               r = c.get(_f_);
-        Temp d;
         
         if(l instanceof CONST)
         {
-          d = m.munch(r);
-          offset = ((CONST) l).getValue();
+          m.emit(A_MEM_READ(res, m.munch(r), ((CONST) l).getValue()));
+        }
+        else if(r instanceof CONST)
+        {
+          m.emit(A_MEM_READ(res, m.munch(l), ((CONST) r).getValue()));
         }
         else
         {
-          d = m.munch(l);
-          
-          if(r instanceof CONST)
-          {
-            offset = ((CONST) r).getValue();
-          }
+          // Neither is constant: use base + index addressing
+          Temp base = m.munch(l);
+          m.emit(A_MEM_READ(res, base, m.munch(r)));
         }
         
-        m.emit(A_MEM_READ(res, d, offset));
-        
         return res;
       }
     });
@@ -217,34 +273,31 @@ public class X86Muncher extends Muncher
     // MEM MINUS
     em.add(new MunchRule<IRExp, Temp>(MEM(MINUS(_e_, _f_)))
     {
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        return getCost() + offsetCost(m, c.get(_e_), c.get(_f_));
+      }
+      
       @Override
       protected Temp trigger(Muncher m, Matched c)
       {
         // Reduce assembly instructions generated by using a memory offset read
+        // (only possible when subtracting a constant)
         Temp res = new Temp();
         
-        int offset = 0;
         IRExp l = c.get(_e_),
               r = c.get(_f_);
-        Temp d;
         
-        if(l instanceof CONST)
+        if(r instanceof CONST)
         {
-          d = m.munch(r);
-          offset = ((CONST) l).getValue();
+          m.emit(A_MEM_READ(res, m.munch(l), -((CONST) r).getValue()));
         }
         else
         {
-          d = m.munch(l);
-          
-          if(r instanceof CONST)
-          {
-            offset = ((CONST) r).getValue();
-          }
+          m.emit(A_MEM_READ(res, m.munch(IR.BINOP(Op.MINUS, l, r))));
         }
         
-        m.emit(A_MEM_READ(res, d, -offset));
-        
         return res;
       }
     });
@@ -263,32 +316,37 @@ public class X86Muncher extends Muncher
     // MEM PLUS MOVE
     sm.add(new MunchRule<IRStm, Void>(MOVE(MEM(PLUS(_e_, _f_)), _g_))
     {
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        return getCost() + addressCost(m, c.get(_e_), c.get(_f_)) + m.cost(c.get(_g_));
+      }
+      
       @Override
       protected Void trigger(Muncher m, Matched c)
       {
         // Reduce assembly instructions generated by using a memory offset write
-        int offset = 0;
         IRExp l = c.get(_e_),
               r = c.get(_f_);
-        Temp d;
         
         if(l instanceof CONST)
         {
-          d = m.munch(r);
-          offset = ((CONST) l).getValue();
+          Temp d = m.munch(r);
+          m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_)), ((CONST) l).getValue()));
+        }
+        else if(r instanceof CONST)
+        {
+          Temp d = m.munch(l);
+          m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_)), ((CONST) r).getValue()));
         }
         else
         {
-          d = m.munch(l);
-          
-          if(r instanceof CONST)
-          {
-            offset = ((CONST) r).getValue();
-          }
+          // Neither is constant: use base + index addressing
+          Temp base = m.munch(l),
+               index = m.munch(r);
+          m.emit(A_MEM_WRITE(base, index, m.munch(c.get(_g_))));
         }
         
-        m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_)), offset));
-        
         return null;
       }
     });
@@ -296,38 +354,75 @@ public class X86Muncher extends Muncher
     // MEM MINUS MOVE
     sm.add(new MunchRule<IRStm, Void>(MOVE(MEM(MINUS(_e_, _f_)), _g_))
     {
+      @Override
+      protected int cost(Muncher m, Matched c)
+      {
+        return getCost() + offsetCost(m, c.get(_e_), c.get(_f_)) + m.cost(c.get(_g_));
+      }
+      
       @Override
       protected Void trigger(Muncher m, Matched c)
       {
         // Reduce assembly instructions generated by using a memory offset write
-        int offset = 0;
+        // (only possible when subtracting a constant)
         IRExp l = c.get(_e_),
               r = c.get(_f_);
-        Temp d;
         
-        if(l instanceof CONST)
+        if(r instanceof CONST)
         {
-          d = m.munch(r);
-          offset = ((CONST) l).getValue();
+          Temp d = m.munch(l);
+          m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_)), -((CONST) r).getValue()));
         }
         else
         {
-          d = m.munch(l);
-          
-          if(r instanceof CONST)
-          {
-            offset = ((CONST) r).getValue();
-          }
+          Temp d = m.munch(IR.BINOP(Op.MINUS, l, r));
+          m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_))));
         }
         
-        m.emit(A_MEM_WRITE(d, m.munch(c.get(_g_)), -offset));
-        
+        return null;
+      }
+    });
+    
+    // MUL by a constant: three operand form of imul
+    em.add(new MunchRule<IRExp, Temp>(MUL(_e_, CONST(_i_)))
+    {
+      @Override
+      protected Temp trigger(Muncher m, Matched c)
+      {
+        Temp d = new Temp();
+        m.emit(A_MUL(d, m.munch(c.get(_e_)), c.get(_i_)));
+        return d;
+      }
+    });
+    
+    // MEM PLUS MUL: array element read, with a scaled index
+    em.add(new MunchRule<IRExp, Temp>(MEM(PLUS(_e_, MUL(_f_, CONST(X86Frame.WORD_SIZE)))))
+    {
+      @Override
+      protected Temp trigger(Muncher m, Matched c)
+      {
+        Temp res = new Temp(),
+             base = m.munch(c.get(_e_));
+        m.emit(A_MEM_READ_SCALED(res, base, m.munch(c.get(_f_))));
+        return res;
+      }
+    });
+    
+    // MEM PLUS MUL MOVE: array element write, with a scaled index
+    sm.add(new MunchRule<IRStm, Void>(MOVE(MEM(PLUS(_e_, MUL(_f_, CONST(X86Frame.WORD_SIZE)))), _g_))
+    {
+      @Override
+      protected Void trigger(Muncher m, Matched c)
+      {
+        Temp base = m.munch(c.get(_e_)),
+             index = m.munch(c.get(_f_));
+        m.emit(A_MEM_WRITE_SCALED(base, index, m.munch(c.get(_g_))));
         return null;
       }
     });
     
     // TEMP
-    em.add(new MunchRule<IRExp, Temp>(TEMP(_t_))
+    em.add(new MunchRule<IRExp, Temp>(TEMP(_t_), 0)
     {
       @Override
       protected Temp trigger(Muncher m, Matched c)
@@ -336,8 +431,32 @@ public class X86Muncher extends Muncher
       }
     });
     
+    // Spilled TEMP: load from its frame slot
+    em.add(new MunchRule<IRExp, Temp>(SPILLED(_t_))
+    {
+      @Override
+      protected Temp trigger(Muncher m, Matched c)
+      {
+        Temp res = new Temp();
+        m.emit(A_SPILL_LOAD(res, c.get(_t_)));
+        return res;
+      }
+    });
+    
+    // Rematerialized TEMP: recompute the constant
+    em.add(new MunchRule<IRExp, Temp>(REMAT(_t_))
+    {
+      @Override
+      protected Temp trigger(Muncher m, Matched c)
+      {
+        Temp res = new Temp();
+        m.emit(A_REMAT(res, c.get(_t_)));
+        return res;
+      }
+    });
+    
     // EXP
-    sm.add(new MunchRule<IRStm, Void>(EXP(_e_))
+    sm.add(new MunchRule<IRStm, Void>(EXP(_e_), 0)
     {
       @Override
       protected Void trigger(Muncher m, Matched c)
@@ -359,7 +478,7 @@ public class X86Muncher extends Muncher
     });
 
     // CJUMP
-    sm.add(new MunchRule<IRStm, Void>(CJUMP(_op_, _e_, _f_, _l_, _m_))
+    sm.add(new MunchRule<IRStm, Void>(CJUMP(_op_, _e_, _f_, _l_, _m_), 2)
     {
       @Override
       protected Void trigger(Muncher m, Matched c)
@@ -374,19 +493,23 @@ public class X86Muncher extends Muncher
         {
           case EQ:
           {
-            j = "je ";
+            j = "je  ";
+            break;
           }
           case GE:
           {
             j = "jge ";
+            break;
           }
           case GT:
           {
-            j = "jg ";
+            j = "jg  ";
+            break;
           }
           case LE:
           {
             j = "jle ";
+            break;
           }
           case LT:
           {
@@ -398,16 +521,54 @@ public class X86Muncher extends Muncher
             j = "jne ";
             break;
           }
+          default:
+          {
+            throw new Error("Unsupported CJUMP operator: " + c.get(_op_));
+          }
         }
         
-        // Include jump instruction for when the condition is true
-        m.emit(new A_OPER(j + "    `j0", noTemps, noTemps, list(l)));
+        // Include jump instruction for when the condition is true. The false
+        // label is listed too: it is where the jump falls through to.
+        m.emit(new A_OPER(j + "    `j0", noTemps, noTemps, list(l, c.get(_m_))));
         
         return null;
       }
     });
   }
   
+  ///////// Helper methods for the costs of rules /////////////////////////////////////////////////
+  
+  /**
+   * Cost of the operands of a MEM(PLUS(l, r)) address, as munched by the MEM
+   * PLUS rules: a constant operand becomes the offset.
+   */
+  private static int addressCost(Muncher m, IRExp l, IRExp r)
+  {
+    if(l instanceof CONST)
+    {
+      return m.cost(r);
+    }
+    else if(r instanceof CONST)
+    {
+      return m.cost(l);
+    }
+    return m.cost(l) + m.cost(r);
+  }
+  
+  /**
+   * Cost of the operands of a MEM(MINUS(l, r)) address, as munched by the MEM
+   * MINUS rules: a constant r becomes the offset, otherwise the subtraction
+   * is munched separately.
+   */
+  private static int offsetCost(Muncher m, IRExp l, IRExp r)
+  {
+    if(r instanceof CONST)
+    {
+      return m.cost(l);
+    }
+    return m.cost(IR.BINOP(Op.MINUS, l, r));
+  }
+  
   ///////// Helper methods to generate X86 assembly instructions //////////////////////////////////////
   
   private static Instr A_ADD(Temp reg, int i)
@@ -417,22 +578,30 @@ public class X86Muncher extends Muncher
                       new A_OPER("incl    `d0", list(reg), list(reg));
   }
   
+  // Note: two operand instructions read their destination too, so it is
+  // in the use list as well.
+  
   private static Instr A_ADD(Temp d, Temp s) {
     return new A_OPER("addl    `s0, `d0", 
         list(d),
-        list(s));
+        list(s, d));
   }
   
   private static Instr A_SUB(Temp d, Temp s) {
     return new A_OPER("subl    `s0, `d0", 
         list(d),
-        list(s));
+        list(s, d));
   }
   
   private static Instr A_MUL(Temp d, Temp s) {
     return new A_OPER("imul    `s0, `d0", 
         list(d),
-        list(s));
+        list(s, d));
+  }
+  
+  private static Instr A_MUL(Temp d, Temp s, int i)
+  {
+    return new A_OPER("imul    $" + i + ", `s0, `d0", list(d), list(s));
   }
   
   private static Instr A_CMP(Temp t1, Temp t2)
@@ -456,8 +625,18 @@ public class X86Muncher extends Muncher
   
   private static Instr A_MEM_WRITE(Temp d, Temp s, int offset)
   {
-    return (offset > 0) ? new A_OPER("movl    `s0, " + offset + "(`s1)", noTemps, list(s, d)) :
-                          A_MEM_WRITE(d, s);
+    return (offset != 0) ? new A_OPER("movl    `s0, " + offset + "(`s1)", noTemps, list(s, d)) :
+                           A_MEM_WRITE(d, s);
+  }
+  
+  private static Instr A_MEM_WRITE(Temp base, Temp index, Temp s)
+  {
+    return new A_OPER("movl    `s0, (`s1,`s2)", noTemps, list(s, base, index));
+  }
+  
+  private static Instr A_MEM_WRITE_SCALED(Temp base, Temp index, Temp s)
+  {
+    return new A_OPER("movl    `s0, (`s1,`s2," + X86Frame.WORD_SIZE + ")", noTemps, list(s, base, index));
   }
   
   private static Instr A_MEM_READ(Temp d, Temp s)
@@ -467,8 +646,39 @@ public class X86Muncher extends Muncher
   
   private static Instr A_MEM_READ(Temp d, Temp s, int offset)
   {
-    return (offset > 0) ? new A_OPER("movl    " + offset + "(`s0), `d0", list(d), list(s)) :
-                          A_MEM_READ(d, s);
+    return (offset != 0) ? new A_OPER("movl    " + offset + "(`s0), `d0", list(d), list(s)) :
+                           A_MEM_READ(d, s);
+  }
+  
+  private static Instr A_MEM_READ(Temp d, Temp base, Temp index)
+  {
+    return new A_OPER("movl    (`s0,`s1), `d0", list(d), list(base, index));
+  }
+  
+  private static Instr A_MEM_READ_SCALED(Temp d, Temp base, Temp index)
+  {
+    return new A_OPER("movl    (`s0,`s1," + X86Frame.WORD_SIZE + "), `d0", list(d), list(base, index));
+  }
+  
+  // A spilled temp is painted with a Color that prints as its frame slot,
+  // so it can appear as an operand directly.
+  
+  private static Instr A_SPILL_LOAD(Temp d, Temp spilled)
+  {
+    return new A_OPER("movl    `s0, `d0", list(d), list(spilled));
+  }
+  
+  private static Instr A_SPILL_STORE(Temp spilled, Temp s)
+  {
+    return new A_OPER("movl    `s0, `d0", list(spilled), list(s));
+  }
+  
+  // A rematerialized temp is painted with a Color that prints as its
+  // (immediate) value. The temp itself doesn't occur in the code anymore.
+  
+  private static Instr A_REMAT(Temp d, Temp remat)
+  {
+    return new A_OPER("movl    " + remat.getColor() + ", `d0", list(d), noTemps);
   }
   
   private static Instr A_LABEL(Label l)
@@ -478,7 +688,7 @@ public class X86Muncher extends Muncher
   
   private static Instr A_CALL(Label l, X86Frame f)
   {
-    return new A_OPER("call    " + l.toString(), f.callerSaves(), f.calleeSaves());
+    return new A_OPER("call    " + l.toString(), f.callerSaves(), f.specialRegisters());
   }
   
   private static Instr A_JUMP(Label l)
@@ -3,8 +3,10 @@ package minijava.ir.frame;
 import minijava.codegen.assem.Instr;
 import minijava.codegen.muncher.Muncher;
 import minijava.ir.interp.Interp;
+import minijava.ir.interp.SimProc;
 import minijava.ir.interp.Word;
 import minijava.ir.interp.X86SimFrame;
+import minijava.ir.temp.Color;
 import minijava.ir.temp.Label;
 import minijava.ir.temp.Temp;
 import minijava.ir.tree.IRExp;
@@ -74,7 +76,7 @@ public abstract class Frame extends DefaultIndentable {
 	 * Create an object to simulate the contents of this Frame, used by the
 	 * IR interpreter to simulate the execution of IR code for testing purposes.
 	 */
-	public abstract X86SimFrame newSimFrame(Interp interp, List<Word> args);
+	public abstract X86SimFrame newSimFrame(Interp interp, SimProc proc, List<Word> args);
 
 	//////////////////////////////////////////////////////////////////////
 	/// Chapter 9 additions: (for codegeneration phase)
@@ -107,6 +109,42 @@ public abstract class Frame extends DefaultIndentable {
 	 */
 	public abstract List<Temp> registers();
 
+	//////////////////////////////////////////////////////////////////////
+	/// Chapter 11 additions: (for register allocation phase)
+
+	/**
+	 * Returns the registers that the register allocator may assign to
+	 * Temps. This is a subset of registers(), it excludes registers
+	 * with a special purpose (such as the stack and frame pointer).
+	 */
+	public abstract List<Temp> allocatableRegisters();
+
+	/**
+	 * Allocate a location in this frame to hold a spilled Temp. The
+	 * result is a (non-register) Color to paint the Temp with. It
+	 * prints as an operand that refers to the location.
+	 */
+	public abstract Color allocSpill();
+
+	/**
+	 * After register allocation, several spilled Temps may have been made to
+	 * share one location (i.e. they are painted with the same Color). Only
+	 * the spill Colors in the given list are still in use, the frame may
+	 * reuse the locations of all the others and move the remaining ones to
+	 * make itself smaller.
+	 * 
+	 * @return by how many bytes the frame shrank.
+	 */
+	public abstract int releaseSpills(List<Color> inUse);
+
+	/**
+	 * Instead of spilling a Temp whose only definition moves a CONST or
+	 * NAME into it, the register allocator can paint it with the Color
+	 * returned by this method. The muncher then recomputes the value
+	 * wherever the Temp is used, and drops its definition.
+	 */
+	public abstract Color constantColor(IRExp value);
+
 	/**
 	 * Prints architecture and frame dependent code for the entry
 	 * sequence that implements the "view shift" and allocates space
@@ -0,0 +1,51 @@
+package minijava.ir.frame.x86;
+
+import minijava.ir.temp.Color;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.NAME;
+
+/**
+ * The Color used to paint a rematerialized Temp: a Temp whose only
+ * definition is a CONST or NAME. It prints as an immediate operand.
+ */
+public class X86ConstantColor extends Color
+{
+  private IRExp value;
+  
+  protected X86ConstantColor(IRExp value)
+  {
+    if(!(value instanceof CONST || value instanceof NAME))
+    {
+      throw new Error("Only CONST and NAME can be rematerialized: " + value);
+    }
+    this.value = value;
+  }
+  
+  public IRExp getValue()
+  {
+    return this.value;
+  }
+  
+  @Override
+  public String toString()
+  {
+    if(this.value instanceof CONST)
+    {
+      return "$" + ((CONST) this.value).getValue();
+    }
+    return "$" + ((NAME) this.value).getLabel();
+  }
+  
+  @Override
+  public boolean isRegister()
+  {
+    return false;
+  }
+  
+  @Override
+  public boolean isConstant()
+  {
+    return true;
+  }
+}
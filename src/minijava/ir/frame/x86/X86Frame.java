@@ -1,5 +1,8 @@
 package minijava.ir.frame.x86;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
 import minijava.codegen.assem.A_OPER;
 import minijava.codegen.assem.Instr;
 import minijava.codegen.muncher.Muncher;
@@ -7,8 +10,10 @@ import minijava.codegen.x86.X86Muncher;
 import minijava.ir.frame.Access;
 import minijava.ir.frame.Frame;
 import minijava.ir.interp.Interp;
+import minijava.ir.interp.SimProc;
 import minijava.ir.interp.Word;
 import minijava.ir.interp.X86SimFrame;
+import minijava.ir.temp.Color;
 import minijava.ir.temp.Label;
 import minijava.ir.temp.Temp;
 import minijava.ir.tree.IR;
@@ -20,6 +25,7 @@ import minijava.util.List;
 public class X86Frame extends Frame {
   public static final int FIRST_FORMAL_OFFSET = 8;
   public static final int FORMAL_INCREMENT = 4;
+  public static final int WORD_SIZE = 4;
   
   public static X86Frame factory = new X86Frame(null, null);
   
@@ -37,6 +43,17 @@ public class X86Frame extends Frame {
   
   private int localCount = 0;
   
+  /**
+   * The spill Colors of this frame that are still in use
+   */
+  private List<X86SpillColor> spills = List.empty();
+  
+  /**
+   * The largest number of outgoing arguments of any call in this frame
+   * (space for them is reserved at the top of the frame)
+   */
+  private int maxOutArgs = 0;
+  
   private X86Frame(Label label, List<Access> formals)
   {
     super(label, formals);
@@ -93,10 +110,73 @@ public class X86Frame extends Frame {
   @Override
   public Access allocLocal(boolean escapes)
   {
-    return (escapes) ?  new X86InFrame(-(this.wordSize() * this.localCount++)) :
+    return (escapes) ?  new X86InFrame(-(this.wordSize() * ++this.localCount)) :
                         new X86InReg(new Temp());
   }
   
+  @Override
+  public Color allocSpill()
+  {
+    X86SpillColor color = new X86SpillColor(this.localCount++);
+    this.spills.add(color);
+    return color;
+  }
+  
+  @Override
+  public Color constantColor(IRExp value)
+  {
+    return new X86ConstantColor(value);
+  }
+  
+  @Override
+  public int releaseSpills(List<Color> inUse)
+  {
+    int oldSize = this.frameSize();
+    HashSet<Color> used = new HashSet<Color>();
+    for(Color c : inUse)
+    {
+      used.add(c);
+    }
+    
+    // Slots that don't hold a spill (escaping locals) stay where they are,
+    // the spills that are still in use are packed into the lowest free
+    // slots.
+    boolean[] taken = new boolean[this.localCount];
+    Arrays.fill(taken, true);
+    for(X86SpillColor c : this.spills)
+    {
+      taken[c.getLocal()] = false;
+    }
+    int top = 0;
+    for(int i = 0; i < this.localCount; i++)
+    {
+      if(taken[i])
+      {
+        top = i + 1;
+      }
+    }
+    
+    List<X86SpillColor> kept = List.empty();
+    int next = 0;
+    for(X86SpillColor c : this.spills)
+    {
+      if(used.contains(c))
+      {
+        while(taken[next])
+        {
+          next++;
+        }
+        taken[next] = true;
+        c.setLocal(next);
+        top = Math.max(top, next + 1);
+        kept.add(c);
+      }
+    }
+    this.spills = kept;
+    this.localCount = top;
+    return oldSize - this.frameSize();
+  }
+  
   @Override
   public IRExp FP()
   {
@@ -118,19 +198,33 @@ public class X86Frame extends Frame {
   public int wordSize()
   {
     // x86 supports 32-bit addressing (4 bytes)
-    return FORMAL_INCREMENT;
+    return WORD_SIZE;
   }
   
   @Override
   public IRStm procEntryExit1(IRStm body)
   {
-    return IR.SEQ(IR.LABEL(this.getLabel()), body);
+    // Move the callee save registers into fresh temps for the duration of
+    // the body, and back at the end. The register allocator will coalesce
+    // these moves away, or spill the temps (saving the registers in the frame)
+    // if it needs the registers.
+    // Note: no LABEL for the procedure itself, its label is printed along
+    // with the entry sequence.
+    IRStm save = IR.NOP,
+          restore = IR.NOP;
+    for(Temp reg : this.calleeSaves())
+    {
+      Temp t = new Temp();
+      save = IR.SEQ(save, IR.MOVE(t, IR.TEMP(reg)));
+      restore = IR.SEQ(restore, IR.MOVE(reg, IR.TEMP(t)));
+    }
+    return IR.SEQ(save, body, restore);
   }
   
   @Override
-  public X86SimFrame newSimFrame(Interp interp, List<Word> args)
+  public X86SimFrame newSimFrame(Interp interp, SimProc proc, List<Word> args)
   {
-    return new X86SimFrame(interp, factory, args);
+    return new X86SimFrame(interp, factory, proc, args);
   }
   
   public Access alloc(int offset)
@@ -155,6 +249,7 @@ public class X86Frame extends Frame {
   public Access getOutArg(int i)
   {
     // Calculate offset relative to the top of the frame
+    this.maxOutArgs = Math.max(this.maxOutArgs, i + 1);
     return this.alloc(i * this.wordSize());
   }
 
@@ -163,13 +258,27 @@ public class X86Frame extends Frame {
   {
     return List.list(eax, ebp, ebx, ecx, edi, edx, eip, esi, esp);
   }
+  
+  @Override
+  public List<Temp> allocatableRegisters()
+  {
+    return List.list(eax, ebx, ecx, edx, esi, edi);
+  }
+  
+  /**
+   * Registers with a special purpose, these are never allocated to Temps.
+   */
+  public List<Temp> specialRegisters()
+  {
+    return List.list(ebp, esp);
+  }
 
   /**
    * A list of registers that the callee must preserve.
    */
   public List<Temp> calleeSaves()
   {
-    return List.list(ebp, esp);
+    return List.list(ebx, esi, edi);
   }
 
   /**
@@ -183,12 +292,27 @@ public class X86Frame extends Frame {
   @Override
   public void entrySequence(IndentingWriter out)
   {
-    // Do nothing
+    out.println("pushl   %ebp");
+    out.println("movl    %esp, %ebp");
+    if(this.frameSize() > 0)
+    {
+      out.println("subl    $" + this.frameSize() + ", %esp");
+    }
   }
 
   @Override
   public void exitSequence(IndentingWriter out)
   {
-    // Do nothing
+    out.println("leave");
+    out.println("ret");
+  }
+  
+  /**
+   * Size in bytes of the frame below the saved %ebp: locals (including
+   * spilled temps) and the outgoing argument area.
+   */
+  public int frameSize()
+  {
+    return this.wordSize() * (this.localCount + this.maxOutArgs);
   }
 }
@@ -0,0 +1,47 @@
+package minijava.ir.frame.x86;
+
+import minijava.ir.temp.Color;
+
+/**
+ * The Color used to paint a spilled Temp. It stands for a word in the
+ * locals area of an X86Frame and prints as an %ebp relative memory operand,
+ * so instructions that refer to a spilled Temp directly access its slot.
+ */
+public class X86SpillColor extends Color
+{
+  /**
+   * Index of the local variable slot (slot i is at offset -4*(i+1) from %ebp)
+   */
+  private int local;
+  
+  protected X86SpillColor(int local)
+  {
+    this.local = local;
+  }
+  
+  public int getLocal()
+  {
+    return this.local;
+  }
+  
+  /**
+   * Move the slot (the frame does this when it compacts its spill slots,
+   * instructions that refer to this color pick up the new location).
+   */
+  void setLocal(int local)
+  {
+    this.local = local;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return -(X86Frame.FORMAL_INCREMENT * (this.local + 1)) + "(%ebp)";
+  }
+  
+  @Override
+  public boolean isRegister()
+  {
+    return false;
+  }
+}
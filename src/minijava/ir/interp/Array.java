@@ -8,7 +8,12 @@ import junit.framework.Assert;
  */
 public class Array extends Ptr {
 
+	/**
+	 * The words in the array. A word that is an int is stored unboxed, in
+	 * ints, and marked with Int.UNBOXED here.
+	 */
 	private Word[] words;
+	private int[] ints;
 	private int wordSize;
 
 	private class DisplacedPtr extends Ptr {
@@ -19,20 +24,41 @@ public class Array extends Ptr {
 			this.wordsOffset = wordsOffset;
 		}
 
+		private Array array() {
+			return Array.this;
+		}
+
 		@Override
 		public Ptr add(int bytesOffset) {
 			Assert.assertTrue(bytesOffset%wordSize==0);
 			return new DisplacedPtr(this.wordsOffset + bytesOffset/wordSize);
 		}
 
+		@Override
+		public boolean isLT(Word other) {
+			return wordsOffset < offsetOf(other);
+		}
+
 		@Override
 		public Word get() {
-			return words[wordsOffset];
+			return getWord(wordsOffset);
 		}
 
 		@Override
 		public void set(Word newValue) {
-			words[wordsOffset] = newValue;
+			setWord(wordsOffset, newValue);
+		}
+		
+		@Override
+		Word load(int bytesOffset, X86SimFrame frame) {
+			Assert.assertTrue(bytesOffset%wordSize==0);
+			return loadWord(wordsOffset + bytesOffset/wordSize, frame);
+		}
+		
+		@Override
+		void store(int bytesOffset, Word value, int intValue) {
+			Assert.assertTrue(bytesOffset%wordSize==0);
+			storeWord(wordsOffset + bytesOffset/wordSize, value, intValue);
 		}
 		
 		@Override
@@ -41,7 +67,7 @@ public class Array extends Ptr {
 			for (int i = 0; i < words.length; i++) {
 				if (i>0) result.append(", ");
 				if (i == wordsOffset) result.append("-->");
-				result.append(words[i].toString());
+				result.append(getWord(i).toString());
 			}
 			result.append("]");
 			return result.toString();
@@ -52,17 +78,38 @@ public class Array extends Ptr {
 	public Array(int numWords, int wordSize) {
 		this.wordSize = wordSize;
 		words = new Word[numWords];
+		ints = new int[numWords];
 		fill(UninitializedWord.the);
 	}
 
+	/**
+	 * Pointers into the same array can be compared (the optimizer may
+	 * replace a test of an index with a test of the element's address).
+	 */
+	@Override
+	public boolean isLT(Word other) {
+		return 0 < offsetOf(other);
+	}
+
+	/**
+	 * The offset, in words, of a pointer into this array from its start.
+	 */
+	private int offsetOf(Word ptr) {
+		if (ptr==this)
+			return 0;
+		if (ptr instanceof DisplacedPtr && ((DisplacedPtr) ptr).array()==this)
+			return ((DisplacedPtr) ptr).wordsOffset;
+		throw new Error("lessThan -- not supported for "+this+" "+ptr);
+	}
+
 	@Override
 	public Word get() {
-		return words[0];
+		return getWord(0);
 	}
 
 	@Override
 	public void set(Word newValue) {
-		words[0] = newValue;
+		setWord(0, newValue);
 	}
 
 	@Override
@@ -70,13 +117,52 @@ public class Array extends Ptr {
 		Assert.assertTrue(bytesOffset%wordSize==0);
 		return new DisplacedPtr(bytesOffset/wordSize);
 	}
+	
+	@Override
+	Word load(int bytesOffset, X86SimFrame frame) {
+		Assert.assertTrue(bytesOffset%wordSize==0);
+		return loadWord(bytesOffset/wordSize, frame);
+	}
+	
+	@Override
+	void store(int bytesOffset, Word value, int intValue) {
+		Assert.assertTrue(bytesOffset%wordSize==0);
+		storeWord(bytesOffset/wordSize, value, intValue);
+	}
+
+	private Word getWord(int i) {
+		Word word = words[i];
+		return word==Int.UNBOXED ? Int.valueOf(ints[i]) : word;
+	}
+	
+	private void setWord(int i, Word word) {
+		if (word instanceof Int) {
+			words[i] = Int.UNBOXED;
+			ints[i] = ((Int) word).value;
+		}
+		else
+			words[i] = word;
+	}
+	
+	private Word loadWord(int i, X86SimFrame frame) {
+		Word word = words[i];
+		if (word==Int.UNBOXED)
+			frame.acc = ints[i];
+		return word;
+	}
+	
+	private void storeWord(int i, Word value, int intValue) {
+		words[i] = value;
+		if (value==Int.UNBOXED)
+			ints[i] = intValue;
+	}
 
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder("#[");
 		for (int i = 0; i < words.length; i++) {
 			if (i>0) result.append(", ");
-			result.append(""+words[i]);
+			result.append(""+getWord(i));
 		}
 		result.append("]");
 		return result.toString();
@@ -84,7 +170,17 @@ public class Array extends Ptr {
 
 	public void fill(Word with) {
 		for (int i = 0; i < words.length; i++) {
-			words[i] = with;
+			setWord(i, with);
+		}
+	}
+	
+	/**
+	 * Fill the array with an int (without creating an Int for it).
+	 */
+	public void fill(int with) {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = Int.UNBOXED;
+			ints[i] = with;
 		}
 	}
 }
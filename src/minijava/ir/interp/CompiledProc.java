@@ -0,0 +1,713 @@
+package minijava.ir.interp;
+
+import java.util.HashMap;
+
+import junit.framework.Assert;
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.CALL;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.EXP;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+/**
+ * A procedure for the {@link InterpMode#COMPILED} mode of the interpreter.
+ * <p>
+ * Rather than walking the IR trees every time a statement is executed (as
+ * SimProc does), the trace scheduled body is compiled once into a tree of
+ * "closure" objects, before the program first runs. Everything
+ * that doesn't depend on the values computed by the program is decided
+ * during compilation: the kind of each node and its operator, the frame
+ * slot of each Temp, the procedure a NAME refers to, and the position in
+ * the code that each jump goes to. Executing the code is then a loop that
+ * runs statement closures, each of which returns the position of the
+ * next statement to run.
+ * <p>
+ * Ints are kept unboxed while the code runs: expressions return them in the
+ * frame's accumulator, and frames and arrays store them in int slots. Int
+ * objects are only created where an int has to be passed as a Word (the
+ * arguments and result of a call, and SimProc code that reads the frame).
+ * <p>
+ * In the {@link InterpMode#EXPLICIT_STACK} mode, a statement that calls
+ * another CompiledProc doesn't call it, but asks for its frame to be
+ * pushed, and the loop goes on with the callee's code. When that code is
+ * done, the frame is popped and the call statement is resumed with the
+ * result. So the depth of the recursion in the program doesn't use any
+ * Java stack, only heap for the frames.
+ * <p>
+ * When the interpreter has a {@link Profile}, the compiled code also counts
+ * the executions of basic blocks, branches and calls.
+ * <p>
+ * The result should be exactly the same as simulating the trace scheduled
+ * IR with a SimProc (which remains available as a reference).
+ */
+public class CompiledProc extends SimProc {
+
+	/**
+	 * A compiled statement. Returns the index of the next statement to execute.
+	 */
+	static abstract class Stm {
+		abstract int exec(X86SimFrame frame);
+	}
+
+	/**
+	 * Returned by a statement that wants the callee frame it put in the frame
+	 * to be pushed (in the EXPLICIT_STACK mode).
+	 */
+	static final int PUSH = -1;
+
+	/**
+	 * A compiled statement that calls a procedure. In the EXPLICIT_STACK
+	 * mode it is resumed with the result when the callee returns.
+	 */
+	static abstract class Call extends Stm {
+		abstract int resume(X86SimFrame frame, Word result);
+	}
+
+	/**
+	 * A compiled expression. Ints are not boxed: the value of an int
+	 * expression is left in the frame's acc, and Int.UNBOXED is returned.
+	 * (So eval never returns an Int.)
+	 */
+	static abstract class Exp {
+		abstract Word eval(X86SimFrame frame);
+	}
+
+	/**
+	 * A compiled MEM address. When it is a pointer plus or minus an int, the
+	 * word is accessed without creating a pointer for the address.
+	 */
+	static abstract class Loc {
+		abstract Word load(X86SimFrame frame);
+		abstract void store(X86SimFrame frame, Word value, int intValue);
+	}
+
+	private Stm[] code = null;
+
+	/**
+	 * The position in the code of each label (the index of the first statement
+	 * after it).
+	 */
+	private HashMap<Label, Integer> positions;
+
+	/**
+	 * The program that the compiled code refers to (NAMEs of procedures
+	 * are resolved with it).
+	 */
+	private SimProgram program;
+
+	/**
+	 * Push frames on an explicit stack for calls, rather than recursing?
+	 */
+	private final boolean explicitStack;
+
+	/**
+	 * The counters of this procedure, if the interpreter is profiling (see
+	 * {@link Interp#setProfile(Profile)}), otherwise null.
+	 */
+	private Profile.Proc profile;
+
+	/**
+	 * If profiling: the index of this procedure's counters in the counters
+	 * of a run (see {@link Interp#counts(CompiledProc)}).
+	 */
+	private int countsIndex = -1;
+
+	/**
+	 * While compiling with a profile: the id of the basic block the
+	 * statement being compiled is in.
+	 */
+	private int block = -1;
+
+	public CompiledProc(ProcFragment methodFrag, InterpMode mode) {
+		super(methodFrag, mode);
+		Assert.assertTrue(mode==InterpMode.COMPILED || mode==InterpMode.EXPLICIT_STACK);
+		explicitStack = mode==InterpMode.EXPLICIT_STACK;
+	}
+
+	@Override
+	public Word call(Interp interp, List<Word> args) {
+		X86SimFrame frame = newFrame(interp, args);
+		if (explicitStack)
+			return run(interp, frame);
+		Stm[] code = this.code;
+		int pc = 0;
+		while (pc < code.length)
+			pc = code[pc].exec(frame);
+		return frame.getReturnValue();
+	}
+
+	private X86SimFrame newFrame(Interp interp, List<Word> args) {
+		X86SimFrame frame = frag.getFrame().newSimFrame(interp, this, args);
+		if (profile!=null) {
+			frame.counts = interp.counts(this);
+			frame.counts.invocations++;
+		}
+		return frame;
+	}
+
+	Profile.Proc getProfile() {
+		return profile;
+	}
+
+	int getCountsIndex() {
+		return countsIndex;
+	}
+
+	/**
+	 * The dispatch loop of the EXPLICIT_STACK mode: runs the code of a frame
+	 * and of all the frames pushed on top of it, until it returns.
+	 */
+	private static Word run(Interp interp, X86SimFrame entry) {
+		X86SimFrame frame = entry;
+		Stm[] code = ((CompiledProc) frame.getProc()).code;
+		int pc = 0;
+		while (true) {
+			if (pc < code.length) {
+				int next = code[pc].exec(frame);
+				if (next!=PUSH)
+					pc = next;
+				else {
+					X86SimFrame callee = frame.callee;
+					frame.callee = null;
+					frame.pc = pc;
+					callee.caller = frame;
+					frame = callee;
+					code = ((CompiledProc) frame.getProc()).code;
+					pc = 0;
+				}
+			}
+			else {
+				Word result = frame.getReturnValue();
+				if (frame==entry)
+					return result;
+				X86SimFrame caller = frame.caller;
+				frame.caller = null;
+				frame = caller;
+				code = ((CompiledProc) frame.getProc()).code;
+				pc = ((Call) code[frame.pc]).resume(frame, result);
+			}
+		}
+	}
+
+	/**
+	 * Compile the body, if this wasn't done yet. This is done by the program
+	 * before it first runs (rather than when the procedure is created), so
+	 * that all the procedures of the program are known by then. After that
+	 * the code doesn't change, so any number of runs can share it.
+	 */
+	Stm[] compile(SimProgram program, int index) {
+		if (code==null) {
+			this.program = program;
+			if (program.getProfile()!=null) {
+				profile = program.getProfile().instrument(frag);
+				countsIndex = index;
+			}
+			List<IRStm> body = frag.getTraceScheduledBody();
+			positions = new HashMap<Label, Integer>();
+			int count = 0;
+			for (IRStm stm : body) {
+				if (stm instanceof LABEL) {
+					positions.put(((LABEL) stm).getLabel(), count);
+					// When profiling, the start of a basic block gets a counter
+					if (profile!=null && profile.blockId(((LABEL) stm).getLabel())>=0)
+						count++;
+				}
+				else
+					count++;
+			}
+			Stm[] compiled = new Stm[count];
+			int pc = 0;
+			for (IRStm stm : body) {
+				if (!(stm instanceof LABEL)) {
+					compiled[pc] = compile(stm, pc+1);
+					pc++;
+				}
+				else if (profile!=null && profile.blockId(((LABEL) stm).getLabel())>=0) {
+					block = profile.blockId(((LABEL) stm).getLabel());
+					compiled[pc] = counter(block, pc+1);
+					pc++;
+				}
+			}
+			code = compiled;
+		}
+		return code;
+	}
+
+	private Stm compile(IRStm stm, final int next) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			if (explicitStack && move.dst instanceof TEMP && move.src instanceof CALL) {
+				Temp temp = ((TEMP) move.dst).temp;
+				return compile((CALL) move.src, slotOf(temp), isSpilled(temp), next);
+			}
+			final Exp src = compile(move.src);
+			if (move.dst instanceof TEMP) {
+				final Temp temp = ((TEMP) move.dst).temp;
+				final int slot = slotOf(temp);
+				if (isSpilled(temp)) {
+					return new Stm() {
+						@Override
+						int exec(X86SimFrame frame) {
+							frame.writeSlot(slot, src.eval(frame));
+							frame.getInterp().countSpillStore();
+							return next;
+						}
+					};
+				}
+				return new Stm() {
+					@Override
+					int exec(X86SimFrame frame) {
+						frame.writeSlot(slot, src.eval(frame));
+						return next;
+					}
+				};
+			}
+			else if (move.dst instanceof MEM) {
+				final Loc loc = compileLoc(((MEM) move.dst).exp);
+				return new Stm() {
+					@Override
+					int exec(X86SimFrame frame) {
+						// Same order as MOVE.interp: the value first, then the address.
+						Word value = src.eval(frame);
+						loc.store(frame, value, frame.acc);
+						return next;
+					}
+				};
+			}
+			else
+				throw new Error("This IR "+move.dst+" is not legal as the LHS of a MOVE.");
+		}
+		else if (stm instanceof EXP) {
+			if (explicitStack && ((EXP) stm).exp instanceof CALL)
+				return compile((CALL) ((EXP) stm).exp, -1, false, next);
+			final Exp exp = compile(((EXP) stm).exp);
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					exp.eval(frame);
+					return next;
+				}
+			};
+		}
+		else if (stm instanceof JUMP) {
+			JUMP jump = (JUMP) stm;
+			if (jump.getExp() instanceof NAME) {
+				final int target = position(((NAME) jump.getExp()).getLabel());
+				return new Stm() {
+					@Override
+					int exec(X86SimFrame frame) {
+						return target;
+					}
+				};
+			}
+			final Exp exp = compile(jump.getExp());
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					return position(((LabelPtr) exp.eval(frame)).getLabel());
+				}
+			};
+		}
+		else if (stm instanceof CJUMP) {
+			return compile((CJUMP) stm);
+		}
+		else
+			throw new Error("Can only compile atomic statements (the trace scheduled IR should not have "+stm+")");
+	}
+
+	/**
+	 * A statement that counts how many times a block is executed.
+	 */
+	private static Stm counter(final int id, final int next) {
+		return new Stm() {
+			@Override
+			int exec(X86SimFrame frame) {
+				frame.counts.blockCounts[id]++;
+				return next;
+			}
+		};
+	}
+
+	private Stm compile(CJUMP cjump) {
+		final Stm test = compileTest(cjump);
+		if (profile==null || block<0 || profile.trueLabels[block]==null)
+			return test;
+		// Count the branches of the CJUMP as it was in the basic block (the
+		// trace schedule may have flipped it).
+		final int iftrue = position(cjump.getTrueLabel());
+		final boolean flipped = !cjump.getTrueLabel().toString().equals(profile.trueLabels[block]);
+		final int id = block;
+		return new Stm() {
+			@Override
+			int exec(X86SimFrame frame) {
+				int next = test.exec(frame);
+				if ((next==iftrue)!=flipped)
+					frame.counts.trueCounts[id]++;
+				else
+					frame.counts.falseCounts[id]++;
+				return next;
+			}
+		};
+	}
+
+	private Stm compileTest(final CJUMP cjump) {
+		final Exp l = compile(cjump.getLeft());
+		final Exp r = compile(cjump.getRight());
+		final int iftrue = position(cjump.getTrueLabel());
+		final int iffalse = position(cjump.getFalseLabel());
+		switch (cjump.getOp()) {
+		case LT:
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					Word lv = l.eval(frame);
+					int li = frame.acc;
+					Word rv = r.eval(frame);
+					if (lv==Int.UNBOXED && rv==Int.UNBOXED)
+						return li < frame.acc ? iftrue : iffalse;
+					return box(lv, li).isLT(frame.box(rv)) ? iftrue : iffalse;
+				}
+			};
+		case NE:
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					return equal(l, r, frame) ? iffalse : iftrue;
+				}
+			};
+		case EQ:
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					return equal(l, r, frame) ? iftrue : iffalse;
+				}
+			};
+		case GE:
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					Word lv = l.eval(frame);
+					int li = frame.acc;
+					Word rv = r.eval(frame);
+					if (lv==Int.UNBOXED && rv==Int.UNBOXED)
+						return li < frame.acc ? iffalse : iftrue;
+					return box(lv, li).isLT(frame.box(rv)) ? iffalse : iftrue;
+				}
+			};
+		default:
+			// Like CJUMP.interp, only complain if it is actually executed.
+			return new Stm() {
+				@Override
+				int exec(X86SimFrame frame) {
+					throw new Error("Missing case? "+cjump.getOp());
+				}
+			};
+		}
+	}
+
+	private static boolean equal(Exp l, Exp r, X86SimFrame frame) {
+		Word lv = l.eval(frame);
+		int li = frame.acc;
+		Word rv = r.eval(frame);
+		if (lv==Int.UNBOXED && rv==Int.UNBOXED)
+			return li == frame.acc;
+		return box(lv, li).isEQ(frame.box(rv));
+	}
+
+	/**
+	 * Box a value that was saved, with its acc, before evaluating another
+	 * expression.
+	 */
+	private static Word box(Word value, int intValue) {
+		return value==Int.UNBOXED ? Int.valueOf(intValue) : value;
+	}
+
+	private Exp compile(IRExp exp) {
+		if (exp instanceof CONST) {
+			final int value = ((CONST) exp).getValue();
+			return new Exp() {
+				@Override
+				Word eval(X86SimFrame frame) {
+					frame.acc = value;
+					return Int.UNBOXED;
+				}
+			};
+		}
+		else if (exp instanceof TEMP) {
+			final Temp temp = ((TEMP) exp).temp;
+			final int slot = slotOf(temp);
+			if (isSpilled(temp)) {
+				return new Exp() {
+					@Override
+					Word eval(X86SimFrame frame) {
+						frame.getInterp().countSpillLoad();
+						return frame.readSlot(slot);
+					}
+				};
+			}
+			return new Exp() {
+				@Override
+				Word eval(X86SimFrame frame) {
+					return frame.readSlot(slot);
+				}
+			};
+		}
+		else if (exp instanceof BINOP) {
+			final BINOP binop = (BINOP) exp;
+			final Exp l = compile(binop.getLeft());
+			final Exp r = compile(binop.getRight());
+			switch (binop.getOp()) {
+			case PLUS:
+				return new Exp() {
+					@Override
+					Word eval(X86SimFrame frame) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (lv==Int.UNBOXED) {
+							if (rv==Int.UNBOXED) {
+								frame.acc = li + frame.acc;
+								return Int.UNBOXED;
+							}
+							return rv.add(li);
+						}
+						if (rv==Int.UNBOXED)
+							return lv.add(frame.acc);
+						return lv.add(rv);
+					}
+				};
+			case MINUS:
+				return new Exp() {
+					@Override
+					Word eval(X86SimFrame frame) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (rv==Int.UNBOXED) {
+							if (lv==Int.UNBOXED) {
+								frame.acc = li - frame.acc;
+								return Int.UNBOXED;
+							}
+							return lv.add(-frame.acc);
+						}
+						return box(lv, li).minus(rv);
+					}
+				};
+			case MUL:
+				return new Exp() {
+					@Override
+					Word eval(X86SimFrame frame) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (lv==Int.UNBOXED && rv==Int.UNBOXED) {
+							frame.acc = li * frame.acc;
+							return Int.UNBOXED;
+						}
+						return box(lv, li).mul(frame.box(rv));
+					}
+				};
+			default:
+				return new Exp() {
+					@Override
+					Word eval(X86SimFrame frame) {
+						throw new Error("Binop case missing? "+binop.getOp());
+					}
+				};
+			}
+		}
+		else if (exp instanceof MEM) {
+			final Loc loc = compileLoc(((MEM) exp).exp);
+			return new Exp() {
+				@Override
+				Word eval(X86SimFrame frame) {
+					return loc.load(frame);
+				}
+			};
+		}
+		else if (exp instanceof NAME) {
+			Label label = ((NAME) exp).getLabel();
+			Callable proc = program.getProcLabel(label);
+			final Word value = proc!=null ? proc : new LabelPtr(label);
+			return new Exp() {
+				@Override
+				Word eval(X86SimFrame frame) {
+					return value;
+				}
+			};
+		}
+		else if (exp instanceof CALL) {
+			return compile((CALL) exp);
+		}
+		else
+			throw new Error("Can only compile atomic expressions (the trace scheduled IR should not have "+exp+")");
+	}
+
+	/**
+	 * Compile the address of a MEM. The pointer arithmetic of the common
+	 * MEM(ptr + offset) and MEM(ptr - offset) forms is folded into the
+	 * access, the other forms compute the pointer first.
+	 */
+	private Loc compileLoc(IRExp address) {
+		if (address instanceof BINOP) {
+			BINOP binop = (BINOP) address;
+			final Exp l = compile(binop.getLeft());
+			final Exp r = compile(binop.getRight());
+			switch (binop.getOp()) {
+			case PLUS:
+				return new Loc() {
+					@Override
+					Word load(X86SimFrame frame) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (rv==Int.UNBOXED && lv!=Int.UNBOXED)
+							return ((Ptr) lv).load(frame.acc, frame);
+						if (lv==Int.UNBOXED && rv!=Int.UNBOXED)
+							return ((Ptr) rv).load(li, frame);
+						return ((Ptr) box(lv, li).add(frame.box(rv))).load(0, frame);
+					}
+					@Override
+					void store(X86SimFrame frame, Word value, int intValue) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (rv==Int.UNBOXED && lv!=Int.UNBOXED)
+							((Ptr) lv).store(frame.acc, value, intValue);
+						else if (lv==Int.UNBOXED && rv!=Int.UNBOXED)
+							((Ptr) rv).store(li, value, intValue);
+						else
+							((Ptr) box(lv, li).add(frame.box(rv))).store(0, value, intValue);
+					}
+				};
+			case MINUS:
+				return new Loc() {
+					@Override
+					Word load(X86SimFrame frame) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (rv==Int.UNBOXED && lv!=Int.UNBOXED)
+							return ((Ptr) lv).load(-frame.acc, frame);
+						return ((Ptr) box(lv, li).minus(frame.box(rv))).load(0, frame);
+					}
+					@Override
+					void store(X86SimFrame frame, Word value, int intValue) {
+						Word lv = l.eval(frame);
+						int li = frame.acc;
+						Word rv = r.eval(frame);
+						if (rv==Int.UNBOXED && lv!=Int.UNBOXED)
+							((Ptr) lv).store(-frame.acc, value, intValue);
+						else
+							((Ptr) box(lv, li).minus(frame.box(rv))).store(0, value, intValue);
+					}
+				};
+			default:
+				break;
+			}
+		}
+		final Exp exp = compile(address);
+		return new Loc() {
+			@Override
+			Word load(X86SimFrame frame) {
+				return ((Ptr) frame.box(exp.eval(frame))).load(0, frame);
+			}
+			@Override
+			void store(X86SimFrame frame, Word value, int intValue) {
+				((Ptr) frame.box(exp.eval(frame))).store(0, value, intValue);
+			}
+		};
+	}
+
+	private Exp compile(CALL call) {
+		final Exp func = compile(call.getFunc());
+		final Exp[] args = new Exp[call.getArgs().size()];
+		int i = 0;
+		for (IRExp arg : call.getArgs())
+			args[i++] = compile(arg);
+		final int site = profile==null ? -1 : profile.siteId(call);
+		return new Exp() {
+			@Override
+			Word eval(X86SimFrame frame) {
+				Callable proc = (Callable) func.eval(frame);
+				List<Word> argVals = List.list();
+				for (Exp arg : args)
+					argVals.add(frame.box(arg.eval(frame)));
+				if (site>=0)
+					frame.counts.countCall(site, argVals);
+				return frame.unbox(proc.call(frame.getInterp(), argVals));
+			}
+		};
+	}
+
+	/**
+	 * Compile a statement that calls a procedure and puts the result in a
+	 * slot (or drops it, if slot is -1), for the EXPLICIT_STACK mode. (Other
+	 * calls, which canonical IR doesn't have, recurse as in the COMPILED
+	 * mode.)
+	 */
+	private Stm compile(CALL call, final int slot, final boolean spilled, final int next) {
+		final Exp func = compile(call.getFunc());
+		final Exp[] args = new Exp[call.getArgs().size()];
+		int i = 0;
+		for (IRExp arg : call.getArgs())
+			args[i++] = compile(arg);
+		final int site = profile==null ? -1 : profile.siteId(call);
+		return new Call() {
+			@Override
+			int exec(X86SimFrame frame) {
+				Callable proc = (Callable) func.eval(frame);
+				List<Word> argVals = List.list();
+				for (Exp arg : args)
+					argVals.add(frame.box(arg.eval(frame)));
+				if (site>=0)
+					frame.counts.countCall(site, argVals);
+				if (proc instanceof CompiledProc) {
+					frame.callee = ((CompiledProc) proc).newFrame(frame.getInterp(), argVals);
+					return PUSH;
+				}
+				return resume(frame, proc.call(frame.getInterp(), argVals));
+			}
+			@Override
+			int resume(X86SimFrame frame, Word result) {
+				if (slot>=0) {
+					frame.writeSlot(slot, frame.unbox(result));
+					if (spilled)
+						frame.getInterp().countSpillStore();
+				}
+				return next;
+			}
+		};
+	}
+
+	private int position(Label label) {
+		Integer position = positions.get(label);
+		if (position==null)
+			throw new Error("Jump to a label that isn't in the procedure: "+label);
+		return position;
+	}
+
+	private static boolean isSpilled(Temp temp) {
+		Color color = temp.getColor();
+		return color!=null && !color.isRegister() && !color.isConstant();
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledProc("+frag.getLabel()+")";
+	}
+
+}
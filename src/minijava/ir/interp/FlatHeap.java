@@ -0,0 +1,225 @@
+package minijava.ir.interp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.Assert;
+
+/**
+ * An alternative to allocating an {@link Array} for every object and array
+ * the program creates: all of them are allocated, with a bump allocator,
+ * in one big int[], and a pointer into it is just the index of a word
+ * (which is all that is stored in memory when a pointer is written to the
+ * heap).
+ * <p>
+ * A byte per word tags what the word holds: an int, a pointer into the
+ * heap, or some other Word (e.g. a pointer to a frame), which is kept in a
+ * side table. The program only ever stores ints and heap pointers in the
+ * heap, so a word costs 5 bytes, rather than an object reference plus an
+ * int.
+ * <p>
+ * Out of bounds accesses are still detected: the start and end of every
+ * allocated block is recorded, and every {@link HeapPtr} knows the block it
+ * was derived from. A pointer that is read back from memory is given the
+ * block that contains its address (there is a one word gap between blocks,
+ * so that a pointer just past the end of a block is not mistaken for a
+ * pointer to the next block).
+ */
+class FlatHeap {
+
+	private static final byte INT = 0;
+	private static final byte PTR = 1;
+	private static final byte OTHER = 2;
+
+	private final int wordSize;
+
+	private int[] words = new int[1024];
+	private byte[] tags = new byte[1024];
+	private HashMap<Integer, Word> others = null;
+
+	/**
+	 * Address of the first free word.
+	 */
+	private int top = 0;
+
+	/**
+	 * The start and end (exclusive) address of each block, in order of
+	 * allocation (and thus of address).
+	 */
+	private int[] blockStart = new int[64];
+	private int[] blockEnd = new int[64];
+	private int blocks = 0;
+
+	FlatHeap(int wordSize) {
+		this.wordSize = wordSize;
+	}
+
+	/**
+	 * Allocate a block of numWords words. All of them are initialized to 0.
+	 */
+	HeapPtr allocate(int numWords) {
+		Assert.assertTrue(numWords>=0);
+		int start = top;
+		int end = start + numWords;
+		if (end+1 > words.length) {
+			int size = Math.max(words.length*2, end+1);
+			words = Arrays.copyOf(words, size);
+			tags = Arrays.copyOf(tags, size);
+		}
+		// The words above top are still zero, and tagged as ints.
+		top = end+1;
+		if (blocks==blockStart.length) {
+			blockStart = Arrays.copyOf(blockStart, blocks*2);
+			blockEnd = Arrays.copyOf(blockEnd, blocks*2);
+		}
+		blockStart[blocks] = start;
+		blockEnd[blocks] = end;
+		return new HeapPtr(start, blocks++);
+	}
+
+	/**
+	 * The block that a pointer with a given address belongs to (-1 if there
+	 * is none).
+	 */
+	private int blockOf(int address) {
+		int lo = 0;
+		int hi = blocks-1;
+		while (lo<=hi) {
+			int mid = (lo+hi) >>> 1;
+			if (blockStart[mid] <= address)
+				lo = mid+1;
+			else
+				hi = mid-1;
+		}
+		return hi;
+	}
+
+	private Word read(int address) {
+		switch (tags[address]) {
+		case INT:
+			return Int.valueOf(words[address]);
+		case PTR:
+			return new HeapPtr(words[address], blockOf(words[address]));
+		default:
+			return others.get(address);
+		}
+	}
+
+	private void writeInt(int address, int value) {
+		if (tags[address]==OTHER)
+			others.remove(address);
+		tags[address] = INT;
+		words[address] = value;
+	}
+
+	private void write(int address, Word value) {
+		if (tags[address]==OTHER)
+			others.remove(address);
+		if (value instanceof Int) {
+			tags[address] = INT;
+			words[address] = ((Int) value).value;
+		}
+		else if (value instanceof HeapPtr && ((HeapPtr) value).heap()==this) {
+			tags[address] = PTR;
+			words[address] = ((HeapPtr) value).address;
+		}
+		else {
+			if (others==null)
+				others = new HashMap<Integer, Word>();
+			tags[address] = OTHER;
+			others.put(address, value);
+		}
+	}
+
+	/**
+	 * A pointer into the heap.
+	 */
+	class HeapPtr extends Ptr {
+
+		private final int address;
+		private final int block;
+
+		HeapPtr(int address, int block) {
+			this.address = address;
+			this.block = block;
+		}
+
+		private FlatHeap heap() {
+			return FlatHeap.this;
+		}
+
+		/**
+		 * The address of the word at a given offset, after checking that it
+		 * is inside the block.
+		 */
+		private int check(int bytesOffset) {
+			Assert.assertTrue(bytesOffset%wordSize==0);
+			int a = address + bytesOffset/wordSize;
+			if (block<0 || a<blockStart[block] || a>=blockEnd[block])
+				throw new Error("Out of bounds memory access: "+this+" + "+bytesOffset);
+			return a;
+		}
+
+		@Override
+		public Ptr add(int bytesOffset) {
+			Assert.assertTrue(bytesOffset%wordSize==0);
+			return new HeapPtr(address + bytesOffset/wordSize, block);
+		}
+
+		/**
+		 * Pointers into the heap can be compared (the optimizer may replace a
+		 * test of an index with a test of the element's address).
+		 */
+		@Override
+		public boolean isLT(Word other) {
+			if (other instanceof HeapPtr && ((HeapPtr) other).heap()==heap())
+				return address < ((HeapPtr) other).address;
+			return super.isLT(other);
+		}
+
+		@Override
+		public Word get() {
+			return read(check(0));
+		}
+
+		@Override
+		public void set(Word newValue) {
+			write(check(0), newValue);
+		}
+
+		@Override
+		Word load(int bytesOffset, X86SimFrame frame) {
+			int a = check(bytesOffset);
+			if (tags[a]==INT) {
+				frame.acc = words[a];
+				return Int.UNBOXED;
+			}
+			return read(a);
+		}
+
+		@Override
+		void store(int bytesOffset, Word value, int intValue) {
+			int a = check(bytesOffset);
+			if (value==Int.UNBOXED)
+				writeInt(a, intValue);
+			else
+				write(a, value);
+		}
+
+		@Override
+		public String toString() {
+			if (block<0)
+				return "#heap@"+address;
+			StringBuilder result = new StringBuilder("#heap@"+address+"[");
+			for (int a = blockStart[block]; a < blockEnd[block]; a++) {
+				if (a>blockStart[block]) result.append(", ");
+				if (a==address) result.append("-->");
+				result.append(tags[a]==PTR ? "#heap@"+words[a] : ""+read(a));
+			}
+			result.append("]");
+			return result.toString();
+		}
+
+	}
+
+}
@@ -6,6 +6,41 @@ public class Int extends Word {
 
 	public Int(int v) { value = v; }
 	
+	/**
+	 * Small values are used so often that we keep one Int for each of them,
+	 * rather than allocating new ones all the time.
+	 */
+	private static final int CACHE_LOW = -128;
+	private static final Int[] cache = new Int[1024-CACHE_LOW];
+	static {
+		for (int i = 0; i < cache.length; i++)
+			cache[i] = new Int(i+CACHE_LOW);
+	}
+	
+	public static Int valueOf(int v) {
+		if (v>=CACHE_LOW && v<CACHE_LOW+cache.length)
+			return cache[v-CACHE_LOW];
+		return new Int(v);
+	}
+	
+	/**
+	 * Stands in for an int that is stored unboxed, e.g. in the int slots of an 
+	 * X86SimFrame or an Array, or in the accumulator of an X86SimFrame when it is 
+	 * the result of an expression in compiled code (see {@link CompiledProc}).
+	 * It is never visible outside of this package: wherever an int has to be 
+	 * passed around as a Word, an Int is used.
+	 */
+	static final Word UNBOXED = new Word() {
+		@Override
+		public Word add(int value) {
+			throw new Error("An unboxed int should never be used as a Word");
+		}
+		@Override
+		public String toString() {
+			return "UNBOXED";
+		}
+	};
+	
 	@Override
 	public String toString() {
 		return ""+value;
@@ -35,12 +70,12 @@ public class Int extends Word {
 
 	@Override
 	public Word add(int x) {
-		return new Int(value+x);
+		return valueOf(value+x);
 	}
 	
 	@Override
 	public Word mul(Word r) {
-		return new Int(value * r.asInt());
+		return valueOf(value * r.asInt());
 	}
 	
 	@Override
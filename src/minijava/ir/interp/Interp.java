@@ -1,16 +1,17 @@
 package minijava.ir.interp;
 
+import java.io.OutputStream;
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import junit.framework.Assert;
 import minijava.ir.temp.Label;
-import minijava.translate.Fragment;
 import minijava.translate.Fragments;
-import minijava.translate.ProcFragment;
-import minijava.translate.Translator;
-import minijava.util.List;
 
 /**
  * For testing purposes we implement an IR interpreter that can directly
@@ -41,7 +42,10 @@ import minijava.util.List;
  * the Java stack implicitly (the interpreter recurses when interpreting CALL
  * instructions). Thus some things that would be possible on a "real machine can
  * not be simulated (e.g. code that manipulates the return address on the
- * stack).
+ * stack). The exception is the {@link InterpMode#EXPLICIT_STACK} mode, which
+ * links the frames into a stack of its own, so that the recursion depth of
+ * the program is not limited by the size of the Java stack (the return
+ * address still can't be manipulated though).
  * <p>
  * 2) The simulated frame (X86SimFrame class) has no provision for storing local
  * variables other than the formal parameters "in frame". It is assumed that all
@@ -53,117 +57,245 @@ import minijava.util.List;
  * detect "out of bounds errors" that may be the result of bugs in your IR code
  * generator (assuming that you are compiling well behaved code, any
  * out-of-bounds errors must be the result of a compiler bug).
+ * <p>
+ * An Interp is one run of a program. The program itself (the simulated or
+ * compiled procedures) is a {@link SimProgram}, which can be shared by many
+ * Interps, also ones that run at the same time in different threads. (The
+ * Interp(Fragments, InterpMode) constructor loads a program of its own.)
  * 
  * @author kdvolder
  */
 public class Interp {
 	
 	/**
-	 * The program may produce output in here.
+	 * The program that is run.
 	 */
-	private StringWriter out = null;
+	private final SimProgram program;
 	
 	/**
-	 * A map of all the method fragments in the program. (To find the
-	 * code for CALLed procedures).
+	 * The program may produce output in here (see {@link #run(OutputStream)}).
 	 */
-	private Map<Label, Callable> methods = new HashMap<Label, Callable>();
-	
+	private OutputBuffer out = null;
+
 	/**
-	 * The "main" method fragment.
+	 * Number of reads / writes of spilled Temps executed so far. When the
+	 * IR is interpreted after register allocation, each of these corresponds
+	 * to one load / store instruction executed by the generated code.
 	 */
-	private Callable main = null;
-
+	private int spillLoads = 0;
+	private int spillStores = 0;
+	
 	/**
-	 * 
-	 * We'll need to know the wordsize to run the simulation (for
-	 * simulating pointer arithmetic).
+	 * If not null, objects and arrays are allocated in here rather than each
+	 * in an Array of their own (see {@link #setFlatHeap(boolean)}).
 	 */
-	private int wordSize;
+	private FlatHeap heap = null;
 
 	/**
-	 * Which kind of IR code for methods are we using?
+	 * When profiling, the counters of this run, by procedure (see
+	 * {@link #counts(CompiledProc)}). They are added to the profile when the
+	 * run ends.
 	 */
-	private InterpMode simulationMode;
+	private Profile.Counts[] counts = null;
 	
 	/**
 	 * Setup the interpreter for running a given program.
 	 */
 	public Interp(Fragments program, InterpMode simMode) {
-		this.simulationMode = simMode;
-		for (Fragment fragment : program) {
-			if (fragment instanceof ProcFragment) {
-				ProcFragment methodFrag = (ProcFragment)fragment;
-				SimProc callable = new SimProc(methodFrag, simulationMode);
-				if (main==null) {
-					wordSize = methodFrag.wordSize();
-					main = callable;
+		this(new SimProgram(program, simMode));
+	}
+	
+	/**
+	 * Setup the interpreter for a run of a program that is already loaded.
+	 */
+	public Interp(SimProgram program) {
+		this.program = program;
+	}
+	
+	public SimProgram getProgram() {
+		return program;
+	}
+
+	/**
+	 * Allocate the program's objects and arrays in one flat int[] heap (see
+	 * {@link FlatHeap}), rather than in an Array each. This takes a lot less 
+	 * memory for programs with large arrays. Must be called before run.
+	 */
+	public Interp setFlatHeap(boolean flat) {
+		Assert.assertNull("The program is already running", out);
+		heap = flat ? new FlatHeap(program.getWordSize()) : null;
+		return this;
+	}
+
+	public boolean isFlatHeap() {
+		return heap!=null;
+	}
+
+	/**
+	 * Collect an execution profile of the program in a given Profile (see
+	 * {@link SimProgram#setProfile(Profile)}). Must be called before run. The
+	 * run counts in counters of its own, and adds them to the profile when it
+	 * ends.
+	 */
+	public Interp setProfile(Profile profile) {
+		Assert.assertNull("The program is already running", out);
+		program.setProfile(profile);
+		return this;
+	}
+
+	public Profile getProfile() {
+		return program.getProfile();
+	}
+
+	/**
+	 * Run the program, and return its output.
+	 */
+	public String run() {
+		StringWriter output = new StringWriter();
+		run(output);
+		return output.toString();
+	}
+
+	/**
+	 * Run the program, writing its output to a stream as it goes (in ASCII,
+	 * through a buffer of {@link OutputBuffer#SIZE} bytes). The stream is
+	 * flushed, but not closed, when the program is done.
+	 */
+	public void run(OutputStream output) {
+		run(new OutputBuffer(output));
+	}
+
+	/**
+	 * Run the program, writing its output to a Writer as it goes.
+	 */
+	public void run(Writer output) {
+		run(new OutputBuffer(output));
+	}
+
+	private void run(OutputBuffer output) {
+		Assert.assertNull("You aren't supposed to run the program more than once with the same interpreter", out);
+		out = output;
+		try {
+			program.run(this);
+		}
+		finally {
+			out.flush();
+			if (counts!=null) {
+				for (Profile.Counts procCounts : counts) {
+					if (procCounts!=null)
+						program.getProfile().add(procCounts);
 				}
-				else 
-					methods.put(methodFrag.getLabel(), callable);
-			}
-			else {
-				throw new Error("IR Simulator doesn't know about fragments of this type: "+ fragment.getClass());
 			}
 		}
-		defineSystemFunctions();
 	}
 
-	private void defineSystemFunctions() {
-		methods.put(Translator.L_PRINT, new Callable() {
-			@Override
-			public Word call(Interp interp, List<Word> list) {
-				Int arg = (Int) list.get(0);
-				out.append(arg.toString());
-				out.append("\n");
-				return UninitializedWord.the;
-			}
-			@Override
-			public String toString() {
-				return Translator.L_PRINT.toString();
-			}
-		});
-		methods.put(Translator.L_NEW_OBJECT, new Callable() {
-			@Override
-			public Word call(Interp interp, List<Word> list) {
-				int numBytes = ((Int) list.get(0)).value;
-				Assert.assertTrue(numBytes%wordSize==0);
-				Array arr = new Array(numBytes/wordSize, wordSize);
-				arr.fill(new Int(0));
-				return arr;
-			}
-			public String toString() {
-				return Translator.L_NEW_OBJECT.toString();
-			}
-		});
-		methods.put(Translator.L_NEW_ARRAY, new Callable() {
-			@Override
-			public Word call(Interp interp, List<Word> list) {
-				// Array layout: the returned pointer points to
-				// the 0 element of the array. The element just before
-				// it should be the length of the array.
-				int numElements = ((Int) list.get(0)).value;
-				Array arr = new Array(numElements+1, wordSize);
-				arr.fill(new Int(0));
-				arr.set(new Int(numElements));
-				return arr.add(wordSize);
+	/**
+	 * The counters of a profiled procedure in this run.
+	 */
+	Profile.Counts counts(CompiledProc proc) {
+		if (counts==null)
+			counts = new Profile.Counts[program.getProfiledProcs()];
+		Profile.Counts result = counts[proc.getCountsIndex()];
+		if (result==null) {
+			result = new Profile.Counts(proc.getProfile());
+			counts[proc.getCountsIndex()] = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * Run a number of Interps (usually of the same SimProgram) at the same
+	 * time, on a fork-join pool with a given number of threads. Returns the
+	 * output of each run. If runs fail, the error of the first one that
+	 * failed (in the order of the runs) is thrown, once all the runs are
+	 * done. If the thread is interrupted while it waits, the runs that
+	 * haven't finished are cancelled, and an Error is thrown (with the
+	 * thread's interrupt flag set).
+	 */
+	public static String[] runAll(Interp[] runs, int threads) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final Interp run : runs) {
+				results.add(pool.submit(new java.util.concurrent.Callable<String>() {
+					public String call() {
+						return run.run();
+					}
+				}));
 			}
-			public String toString() {
-				return Translator.L_NEW_ARRAY.toString();
+			String[] outputs = new String[runs.length];
+			Throwable failure = null;
+			for (int i = 0; i < runs.length; i++) {
+				try {
+					outputs[i] = results.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (Future<String> result : results)
+						result.cancel(true);
+					throw new Error("Interrupted while waiting for the runs", e);
+				} catch (ExecutionException e) {
+					if (failure==null)
+						failure = e.getCause();
+				}
 			}
-		});
+			if (failure instanceof Error)
+				throw (Error) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure!=null)
+				throw new Error(failure);
+			return outputs;
+		}
+		finally {
+			pool.shutdown();
+		}
 	}
 
-	public String run() {
-		Assert.assertNull("You aren't supposed to run the program more than once with the same interpreter", out);
-		out = new StringWriter();
-		main.call(this, List.list(new Word[0]));
-		return out.toString();
+	/**
+	 * Run a number of Interps on as many threads as there are processors.
+	 */
+	public static String[] runAll(Interp[] runs) {
+		return runAll(runs, Runtime.getRuntime().availableProcessors());
+	}
+
+	void println(int value) {
+		out.println(value);
+	}
+
+	/**
+	 * Allocate a block of words for mj_new_object or mj_new_array, in the
+	 * flat heap if there is one. The words are 0.
+	 */
+	Ptr allocate(int numWords) {
+		if (heap!=null)
+			return heap.allocate(numWords);
+		Array arr = new Array(numWords, program.getWordSize());
+		arr.fill(0);
+		return arr;
+	}
+
+	void countSpillLoad() {
+		spillLoads++;
+	}
+
+	void countSpillStore() {
+		spillStores++;
+	}
+
+	/**
+	 * The number of spill loads executed by the program (see
+	 * {@link minijava.analysis.SpillCostModel}).
+	 */
+	public int getSpillLoads() {
+		return spillLoads;
+	}
+
+	public int getSpillStores() {
+		return spillStores;
 	}
 
 	public Callable getProcLabel(Label label) {
-		Callable result = methods.get(label);
-		return result;
+		return program.getProcLabel(label);
 	}
 
 }
@@ -1,13 +1,20 @@
 package minijava.ir.interp;
 
 /**
- * There is a choice of three different methods for setting up the IR simulation
- * of methods/procedures.
+ * There is a choice of five different methods for setting up the IR simulation
+ * of methods/procedures. The first three walk the IR trees of a stage of the
+ * back end. COMPILED runs the trace scheduled code too, but compiles each
+ * procedure into closures once, so the trees aren't walked on every step.
+ * EXPLICIT_STACK runs the same compiled code, but keeps the frames of the
+ * called procedures on a stack of its own, so deep recursion in the program
+ * doesn't overflow the Java stack.
  */
 public enum InterpMode {
 
 	LINEARIZED_IR,	// Simulate execution with linearized IR
 	BASIC_BLOCKS,	// Simulate execution with basic blocks
-	TRACE_SCHEDULE	// Simulate execution with the code produced by Trace Scheduling
+	TRACE_SCHEDULE,	// Simulate execution with the code produced by Trace Scheduling
+	COMPILED,	// Like TRACE_SCHEDULE, but the code is compiled into closures first (see CompiledProc)
+	EXPLICIT_STACK	// Like COMPILED, but CALLs push frames on an explicit stack rather than recursing
 	
 }
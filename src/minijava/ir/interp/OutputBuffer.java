@@ -0,0 +1,98 @@
+package minijava.ir.interp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Where a run of the interpreter sends the output of the program. The
+ * program only prints ints, one per line, so they are formatted straight
+ * into a fixed size buffer of ASCII bytes, which is written to an
+ * OutputStream or a Writer whenever it is full (and when the run is done).
+ * So the output doesn't have to fit in memory, and can be read while the
+ * program is still running.
+ */
+class OutputBuffer {
+
+	static final int SIZE = 8192;
+
+	/**
+	 * The longest line: "-2147483648\n".
+	 */
+	private static final int MAX_LINE = 12;
+
+	private final byte[] bytes = new byte[SIZE];
+	private int count = 0;
+
+	/**
+	 * The sink, one of these is null.
+	 */
+	private final OutputStream stream;
+	private final Writer writer;
+	private char[] chars = null;
+
+	OutputBuffer(OutputStream out) {
+		this.stream = out;
+		this.writer = null;
+	}
+
+	OutputBuffer(Writer out) {
+		this.stream = null;
+		this.writer = out;
+	}
+
+	void println(int value) {
+		if (count + MAX_LINE > SIZE)
+			flush();
+		// Digits are produced from the right, using a negative number so
+		// that Integer.MIN_VALUE needs no special case.
+		int end = count + digits(value);
+		int pos = end;
+		int v = value < 0 ? value : -value;
+		do {
+			bytes[--pos] = (byte) ('0' - v % 10);
+			v /= 10;
+		} while (v != 0);
+		if (value < 0)
+			bytes[--pos] = '-';
+		bytes[end] = '\n';
+		count = end + 1;
+	}
+
+	/**
+	 * The number of characters of an int (including the sign).
+	 */
+	private static int digits(int value) {
+		int n = value < 0 ? 2 : 1;
+		int v = value < 0 ? value : -value;
+		while (v <= -10) {
+			v /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Write the buffered output to the sink, and flush the sink.
+	 */
+	void flush() {
+		try {
+			if (stream!=null) {
+				stream.write(bytes, 0, count);
+				stream.flush();
+			}
+			else {
+				if (chars==null)
+					chars = new char[SIZE];
+				for (int i = 0; i < count; i++)
+					chars[i] = (char) bytes[i];
+				writer.write(chars, 0, count);
+				writer.flush();
+			}
+		} catch (IOException e) {
+			throw new Error("Couldn't write the output of the program", e);
+		}
+		count = 0;
+	}
+
+}
@@ -0,0 +1,565 @@
+package minijava.ir.interp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+
+import minijava.ir.canon.BasicBlocks;
+import minijava.ir.temp.Label;
+import minijava.ir.tree.CALL;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.NAME;
+import minijava.translate.ProcFragment;
+import minijava.translate.Translator;
+import minijava.util.DefaultIndentable;
+import minijava.util.IndentingWriter;
+import minijava.util.List;
+
+/**
+ * An execution profile of a program, collected by the interpreter (see
+ * {@link Interp#setProfile(Profile)}). For every procedure it counts how
+ * many times each basic block (of {@link ProcFragment#getBasicBlocks()}) was
+ * executed, how many times the CJUMP at the end of a block went to its true
+ * and to its false label, and how many times each CALL site was executed
+ * (and for allocation sites, how many words they allocated).
+ * <p>
+ * Before a procedure runs, every block and call site is given an id, and
+ * the counts are kept in int arrays indexed by them, which the compiled
+ * code (see {@link CompiledProc}) increments directly. Each run has arrays
+ * of its own, which are added to the profile when the run ends.
+ * <p>
+ * Everything is identified by the names of procedures and labels, so later
+ * compiler phases (e.g. trace scheduling, inlining, or a spill cost model)
+ * can look up the counts for their code. A profile can be written to a file
+ * in a simple tab separated format, and read back ({@link #write(Writer)}
+ * and {@link #read(Reader)}). Printing a profile gives a report of the hot
+ * procedures, loops and allocation sites.
+ */
+public class Profile extends DefaultIndentable {
+
+	/**
+	 * The counters of one procedure.
+	 */
+	static class Proc {
+
+		final String name;
+		final int wordSize;
+		int invocations;
+
+		// Per block (in the order of the basic blocks algorithm)
+		final String[] blocks;
+		final int[] blockSizes;     // number of statements, including the label
+		final String[][] successors;
+		final String[] trueLabels;  // null if the block doesn't end with a CJUMP
+		final String[] falseLabels;
+		final int[] blockCounts;
+		final int[] trueCounts;
+		final int[] falseCounts;
+
+		// Per call site (in the order of the blocks)
+		final int[] siteBlocks;
+		final String[] callees;
+		final int[] callCounts;
+		final long[] allocatedWords;
+
+		/**
+		 * The ids of the blocks and call sites of the instrumented code.
+		 */
+		private final HashMap<String, Integer> blockIds = new HashMap<String, Integer>();
+		private final IdentityHashMap<CALL, Integer> siteIds = new IdentityHashMap<CALL, Integer>();
+
+		Proc(String name, int wordSize, int numBlocks, int numSites) {
+			this.name = name;
+			this.wordSize = wordSize;
+			blocks = new String[numBlocks];
+			blockSizes = new int[numBlocks];
+			successors = new String[numBlocks][];
+			trueLabels = new String[numBlocks];
+			falseLabels = new String[numBlocks];
+			blockCounts = new int[numBlocks];
+			trueCounts = new int[numBlocks];
+			falseCounts = new int[numBlocks];
+			siteBlocks = new int[numSites];
+			callees = new String[numSites];
+			callCounts = new int[numSites];
+			allocatedWords = new long[numSites];
+		}
+
+		/**
+		 * The id of a block, by its label (-1 if the label doesn't start a
+		 * basic block).
+		 */
+		int blockId(Label label) {
+			Integer id = blockIds.get(label.toString());
+			return id==null ? -1 : id;
+		}
+
+		/**
+		 * The id of a call site (-1 if it isn't in the instrumented code).
+		 */
+		int siteId(CALL call) {
+			Integer id = siteIds.get(call);
+			return id==null ? -1 : id;
+		}
+
+		/**
+		 * The number of IR statements executed by the procedure.
+		 */
+		long statements() {
+			long result = 0;
+			for (int b = 0; b < blocks.length; b++)
+				result += (long) blockCounts[b] * blockSizes[b];
+			return result;
+		}
+
+		private int indexOf(String block) {
+			for (int b = 0; b < blocks.length; b++) {
+				if (blocks[b].equals(block))
+					return b;
+			}
+			return -1;
+		}
+
+		/**
+		 * Is the block a loop header? That is: is it the target of a jump from
+		 * itself or a block after it? (The translator puts the test of a loop
+		 * before its body.)
+		 */
+		boolean isLoopHeader(int b) {
+			for (int from = b; from < blocks.length; from++) {
+				for (String succ : successors[from]) {
+					if (succ.equals(blocks[b]))
+						return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The counts of the instrumented code of one procedure in one run of the
+	 * program. Every {@link Interp} counts in counters of its own, and adds
+	 * them to the profile when the run ends (see {@link Profile#add(Counts)}),
+	 * so runs at the same time don't lose counts.
+	 */
+	static class Counts {
+
+		final Proc proc;
+		int invocations;
+		final int[] blockCounts;
+		final int[] trueCounts;
+		final int[] falseCounts;
+		final int[] callCounts;
+		final long[] allocatedWords;
+
+		Counts(Proc proc) {
+			this.proc = proc;
+			blockCounts = new int[proc.blocks.length];
+			trueCounts = new int[proc.blocks.length];
+			falseCounts = new int[proc.blocks.length];
+			callCounts = new int[proc.callees.length];
+			allocatedWords = new long[proc.callees.length];
+		}
+
+		/**
+		 * Count the execution of a call site.
+		 */
+		void countCall(int site, List<Word> args) {
+			callCounts[site]++;
+			if (Translator.L_NEW_OBJECT.toString().equals(proc.callees[site]))
+				allocatedWords[site] += args.get(0).asInt() / proc.wordSize;
+			else if (Translator.L_NEW_ARRAY.toString().equals(proc.callees[site]))
+				allocatedWords[site] += args.get(0).asInt() + 1;
+		}
+	}
+
+	private final LinkedHashMap<String, Proc> procs = new LinkedHashMap<String, Proc>();
+
+	/**
+	 * Give the blocks and call sites of a procedure their ids. This is done
+	 * before its code is compiled (so, once per procedure per Interp). If the
+	 * profile already has counts for the procedure, the new ones are added to
+	 * them.
+	 */
+	synchronized Proc instrument(ProcFragment frag) {
+		BasicBlocks bb = frag.getBasicBlocks();
+		ArrayList<CALL> sites = new ArrayList<CALL>();
+		ArrayList<Integer> siteBlocks = new ArrayList<Integer>();
+		int b = 0;
+		for (List<IRStm> block : bb.blocks) {
+			for (IRStm stm : block)
+				findCalls(stm.kids(), sites, siteBlocks, b);
+			b++;
+		}
+
+		String name = frag.getLabel().toString();
+		Proc old = procs.get(name);
+		Proc proc = new Proc(name, frag.wordSize(), bb.blocks.size(), sites.size());
+		b = 0;
+		for (List<IRStm> block : bb.blocks) {
+			proc.blocks[b] = ((LABEL) block.head()).getLabel().toString();
+			proc.blockIds.put(proc.blocks[b], b);
+			proc.blockSizes[b] = block.size();
+			IRStm last = block.getLast();
+			List<Label> targets = last.getJumpTargets();
+			proc.successors[b] = new String[targets.size()];
+			int i = 0;
+			for (Label target : targets)
+				proc.successors[b][i++] = target.toString();
+			if (last instanceof CJUMP) {
+				proc.trueLabels[b] = ((CJUMP) last).getTrueLabel().toString();
+				proc.falseLabels[b] = ((CJUMP) last).getFalseLabel().toString();
+			}
+			b++;
+		}
+		for (int s = 0; s < sites.size(); s++) {
+			CALL call = sites.get(s);
+			proc.siteIds.put(call, s);
+			proc.siteBlocks[s] = siteBlocks.get(s);
+			proc.callees[s] = call.getFunc() instanceof NAME
+					? ((NAME) call.getFunc()).getLabel().toString()
+					: "?";
+		}
+		if (old!=null && sameShape(old, proc))
+			addCounts(proc, old);
+		procs.put(name, proc);
+		return proc;
+	}
+
+	private static void findCalls(List<IRExp> exps, ArrayList<CALL> sites, ArrayList<Integer> siteBlocks, int block) {
+		for (IRExp exp : exps) {
+			if (exp instanceof CALL) {
+				sites.add((CALL) exp);
+				siteBlocks.add(block);
+			}
+			findCalls(exp.kids(), sites, siteBlocks, block);
+		}
+	}
+
+	/**
+	 * Add the counts of a run to the profile. (If the procedure was
+	 * instrumented again since, the counts go to the new instrumentation.)
+	 */
+	synchronized void add(Counts counts) {
+		Proc to = procs.get(counts.proc.name);
+		if (to==null || !sameShape(to, counts.proc))
+			to = counts.proc;
+		to.invocations += counts.invocations;
+		for (int b = 0; b < to.blocks.length; b++) {
+			to.blockCounts[b] += counts.blockCounts[b];
+			to.trueCounts[b] += counts.trueCounts[b];
+			to.falseCounts[b] += counts.falseCounts[b];
+		}
+		for (int s = 0; s < to.callees.length; s++) {
+			to.callCounts[s] += counts.callCounts[s];
+			to.allocatedWords[s] += counts.allocatedWords[s];
+		}
+	}
+
+	private static boolean sameShape(Proc a, Proc b) {
+		return java.util.Arrays.equals(a.blocks, b.blocks)
+				&& java.util.Arrays.equals(a.callees, b.callees);
+	}
+
+	private static void addCounts(Proc to, Proc from) {
+		to.invocations += from.invocations;
+		for (int b = 0; b < to.blocks.length; b++) {
+			to.blockCounts[b] += from.blockCounts[b];
+			to.trueCounts[b] += from.trueCounts[b];
+			to.falseCounts[b] += from.falseCounts[b];
+		}
+		for (int s = 0; s < to.callees.length; s++) {
+			to.callCounts[s] += from.callCounts[s];
+			to.allocatedWords[s] += from.allocatedWords[s];
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Queries (all counts are 0 for unknown procedures or labels)
+
+	private Proc proc(Label proc) {
+		return procs.get(proc.toString());
+	}
+
+	/**
+	 * The number of times a procedure was called.
+	 */
+	public int getInvocations(Label proc) {
+		Proc p = proc(proc);
+		return p==null ? 0 : p.invocations;
+	}
+
+	/**
+	 * The number of times the basic block starting with a given label was
+	 * executed.
+	 */
+	public int getBlockCount(Label proc, Label block) {
+		Proc p = proc(proc);
+		int b = p==null ? -1 : p.indexOf(block.toString());
+		return b<0 ? 0 : p.blockCounts[b];
+	}
+
+	/**
+	 * The number of times the CJUMP at the end of a block went to a given
+	 * target (its true or its false label).
+	 */
+	public int getBranchCount(Label proc, Label block, Label target) {
+		Proc p = proc(proc);
+		int b = p==null ? -1 : p.indexOf(block.toString());
+		if (b<0 || p.trueLabels[b]==null)
+			return 0;
+		if (p.trueLabels[b].equals(target.toString()))
+			return p.trueCounts[b];
+		if (p.falseLabels[b].equals(target.toString()))
+			return p.falseCounts[b];
+		return 0;
+	}
+
+	/**
+	 * The number of calls from one procedure to another (over all call sites).
+	 */
+	public int getCallCount(Label caller, Label callee) {
+		Proc p = proc(caller);
+		int result = 0;
+		if (p!=null) {
+			for (int s = 0; s < p.callees.length; s++) {
+				if (p.callees[s].equals(callee.toString()))
+					result += p.callCounts[s];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The number of times the i-th CALL in a block was executed.
+	 */
+	public int getCallSiteCount(Label proc, Label block, int i) {
+		Proc p = proc(proc);
+		int b = p==null ? -1 : p.indexOf(block.toString());
+		if (b>=0) {
+			for (int s = 0; s < p.siteBlocks.length; s++) {
+				if (p.siteBlocks[s]==b && i--==0)
+					return p.callCounts[s];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * The number of words allocated by a procedure's calls of mj_new_object
+	 * and mj_new_array (array lengths included).
+	 */
+	public long getAllocatedWords(Label proc) {
+		Proc p = proc(proc);
+		long result = 0;
+		if (p!=null) {
+			for (long words : p.allocatedWords)
+				result += words;
+		}
+		return result;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// The machine readable format
+
+	/**
+	 * Write the profile, one record per line, with tab separated fields:
+	 * <pre>
+	 * proc   name wordSize invocations
+	 * block  proc label size count successor,...
+	 * branch proc block trueLabel falseLabel trueCount falseCount
+	 * call   proc block callee count allocatedWords
+	 * </pre>
+	 * The blocks of a procedure are in the order of the basic blocks
+	 * algorithm, and the calls in the order they occur in the blocks.
+	 */
+	public synchronized void write(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		for (Proc p : procs.values()) {
+			out.println("proc\t"+p.name+"\t"+p.wordSize+"\t"+p.invocations);
+			for (int b = 0; b < p.blocks.length; b++) {
+				StringBuilder succ = new StringBuilder();
+				for (String s : p.successors[b]) {
+					if (succ.length()>0) succ.append(',');
+					succ.append(s);
+				}
+				out.println("block\t"+p.name+"\t"+p.blocks[b]+"\t"+p.blockSizes[b]+"\t"+p.blockCounts[b]+"\t"+succ);
+				if (p.trueLabels[b]!=null)
+					out.println("branch\t"+p.name+"\t"+p.blocks[b]+"\t"+p.trueLabels[b]+"\t"+p.falseLabels[b]
+							+"\t"+p.trueCounts[b]+"\t"+p.falseCounts[b]);
+			}
+			for (int s = 0; s < p.callees.length; s++)
+				out.println("call\t"+p.name+"\t"+p.blocks[p.siteBlocks[s]]+"\t"+p.callees[s]
+						+"\t"+p.callCounts[s]+"\t"+p.allocatedWords[s]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a profile in the format produced by {@link #write(Writer)}.
+	 */
+	public static Profile read(Reader reader) throws IOException {
+		// First collect the records of each procedure, so we know how big to
+		// make the arrays.
+		LinkedHashMap<String, ArrayList<String[]>> records = new LinkedHashMap<String, ArrayList<String[]>>();
+		BufferedReader in = new BufferedReader(reader);
+		for (String line = in.readLine(); line!=null; line = in.readLine()) {
+			if (line.length()==0)
+				continue;
+			String[] fields = line.split("\t", -1);
+			if (fields[0].equals("proc"))
+				records.put(fields[1], new ArrayList<String[]>());
+			ArrayList<String[]> procRecords = records.get(fields[1]);
+			if (procRecords==null)
+				throw new Error("Bad profile: "+fields[0]+" record before its proc record: "+line);
+			procRecords.add(fields);
+		}
+
+		Profile profile = new Profile();
+		for (ArrayList<String[]> procRecords : records.values()) {
+			int numBlocks = 0;
+			int numSites = 0;
+			for (String[] fields : procRecords) {
+				if (fields[0].equals("block")) numBlocks++;
+				else if (fields[0].equals("call")) numSites++;
+			}
+			String[] header = procRecords.get(0);
+			Proc p = new Proc(header[1], Integer.parseInt(header[2]), numBlocks, numSites);
+			p.invocations = Integer.parseInt(header[3]);
+			int b = 0;
+			int s = 0;
+			for (String[] fields : procRecords) {
+				if (fields[0].equals("block")) {
+					p.blocks[b] = fields[2];
+					p.blockIds.put(fields[2], b);
+					p.blockSizes[b] = Integer.parseInt(fields[3]);
+					p.blockCounts[b] = Integer.parseInt(fields[4]);
+					p.successors[b] = fields[5].length()==0 ? new String[0] : fields[5].split(",");
+					b++;
+				}
+				else if (fields[0].equals("branch")) {
+					int block = p.blockIds.get(fields[2]);
+					p.trueLabels[block] = fields[3];
+					p.falseLabels[block] = fields[4];
+					p.trueCounts[block] = Integer.parseInt(fields[5]);
+					p.falseCounts[block] = Integer.parseInt(fields[6]);
+				}
+				else if (fields[0].equals("call")) {
+					p.siteBlocks[s] = p.blockIds.get(fields[2]);
+					p.callees[s] = fields[3];
+					p.callCounts[s] = Integer.parseInt(fields[4]);
+					p.allocatedWords[s] = Long.parseLong(fields[5]);
+					s++;
+				}
+				else if (!fields[0].equals("proc"))
+					throw new Error("Bad profile record: "+fields[0]);
+			}
+			profile.procs.put(p.name, p);
+		}
+		return profile;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// The report
+
+	private static final int REPORT_LINES = 10;
+
+	@Override
+	public synchronized void dump(IndentingWriter out) {
+		long total = 0;
+		for (Proc p : procs.values())
+			total += p.statements();
+
+		ArrayList<Proc> hot = new ArrayList<Proc>(procs.values());
+		Collections.sort(hot, new Comparator<Proc>() {
+			public int compare(Proc a, Proc b) {
+				return Long.signum(b.statements() - a.statements());
+			}
+		});
+		out.println("Hot procedures (IR statements executed, calls):");
+		out.indent();
+		for (int i = 0; i < hot.size() && i < REPORT_LINES; i++) {
+			Proc p = hot.get(i);
+			if (p.statements()==0) break;
+			out.println(pad(p.statements())+"  "+percent(p.statements(), total)+"  "
+					+p.name+"  ("+p.invocations+" calls)");
+		}
+		out.outdent();
+
+		// Loops: one entry per loop header
+		final ArrayList<String> loops = new ArrayList<String>();
+		final ArrayList<Integer> loopCounts = new ArrayList<Integer>();
+		for (Proc p : procs.values()) {
+			for (int b = 0; b < p.blocks.length; b++) {
+				if (p.isLoopHeader(b) && p.blockCounts[b]>0) {
+					loops.add(p.name+" loop at "+p.blocks[b]);
+					loopCounts.add(p.blockCounts[b]);
+				}
+			}
+		}
+		ArrayList<Integer> order = sortedIndices(loopCounts);
+		out.println("Hot loops (executions of the loop header):");
+		out.indent();
+		for (int i = 0; i < order.size() && i < REPORT_LINES; i++)
+			out.println(pad(loopCounts.get(order.get(i)))+"  "+loops.get(order.get(i)));
+		out.outdent();
+
+		final ArrayList<String> sites = new ArrayList<String>();
+		final ArrayList<Integer> siteCounts = new ArrayList<Integer>();
+		for (Proc p : procs.values()) {
+			for (int s = 0; s < p.callees.length; s++) {
+				if (p.callCounts[s]>0) {
+					String site = p.name+" (block "+p.blocks[p.siteBlocks[s]]+") -> "+p.callees[s];
+					if (p.allocatedWords[s]>0)
+						site += ", "+p.allocatedWords[s]+" words allocated";
+					sites.add(site);
+					siteCounts.add(p.callCounts[s]);
+				}
+			}
+		}
+		order = sortedIndices(siteCounts);
+		out.println("Hot call sites (calls):");
+		out.indent();
+		for (int i = 0; i < order.size() && i < REPORT_LINES; i++)
+			out.println(pad(siteCounts.get(order.get(i)))+"  "+sites.get(order.get(i)));
+		out.outdent();
+	}
+
+	private static ArrayList<Integer> sortedIndices(final ArrayList<Integer> counts) {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < counts.size(); i++)
+			order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return counts.get(b).compareTo(counts.get(a));
+			}
+		});
+		return order;
+	}
+
+	private static String pad(long count) {
+		String s = ""+count;
+		while (s.length()<12)
+			s = " "+s;
+		return s;
+	}
+
+	private static String percent(long count, long total) {
+		String s = total==0 ? "0.0" : String.format("%.1f", 100.0*count/total);
+		while (s.length()<5)
+			s = " "+s;
+		return s+"%";
+	}
+
+}
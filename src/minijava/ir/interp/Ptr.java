@@ -10,5 +10,37 @@ public abstract class Ptr extends Word {
 	
 	@Override
 	public abstract Ptr add(int bytesOffset);
+
+	/**
+	 * A pointer is never null, so it isn't equal to the int 0 (that is how
+	 * code checks whether a pointer is null). Other comparisons with
+	 * pointers are not supported.
+	 */
+	@Override
+	public boolean isEQ(Word r) {
+		if (r instanceof Int && r.asInt()==0)
+			return false;
+		return super.isEQ(r);
+	}
+	
+	/**
+	 * Read the word at a given offset from this pointer, for compiled code 
+	 * (see {@link CompiledProc}): an int is returned as Int.UNBOXED, with
+	 * its value in the frame's accumulator. 
+	 * <p>
+	 * Subclasses should override this and store to avoid creating pointers 
+	 * and Ints.
+	 */
+	Word load(int bytesOffset, X86SimFrame frame) {
+		return frame.unbox(add(bytesOffset).get());
+	}
+	
+	/**
+	 * Write a word at a given offset from this pointer, for compiled code. If
+	 * value is Int.UNBOXED, intValue is the int to write.
+	 */
+	void store(int bytesOffset, Word value, int intValue) {
+		add(bytesOffset).set(value==Int.UNBOXED ? Int.valueOf(intValue) : value);
+	}
 	
 }
@@ -1,27 +1,86 @@
 package minijava.ir.interp;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import junit.framework.Assert;
 import minijava.ir.canon.BasicBlocks;
 import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.IRExp;
 import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
 import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
 import minijava.translate.ProcFragment;
 import minijava.util.List;
 
 public class SimProc extends Callable {
 
-	private ProcFragment frag;
-	private HashMap<Label, List<IRStm>> labels = new HashMap<Label, List<IRStm>>();
-	private List<IRStm> start;
+	protected ProcFragment frag;
+	
+	/**
+	 * The statements of the procedure, without the LABELs. Execution starts
+	 * at position (pc) 0.
+	 */
+	private IRStm[] code;
+	
+	/**
+	 * The position of each label (the index of the first statement after it).
+	 */
+	private HashMap<Label, Integer> positions = new HashMap<Label, Integer>();
+	
+	/**
+	 * The jump targets of each statement, resolved when the procedure is
+	 * loaded: a JUMP to a NAME has its label and position in target / 
+	 * targetPc, a CJUMP its true label there and its false label in 
+	 * falseTarget / falseTargetPc. So taking a jump is comparing the label
+	 * returned by interp with these, and an array access. (The positions
+	 * can't be kept in the IR nodes themselves, because every InterpMode
+	 * lays out the same statements differently.)
+	 */
+	private Label[] target;
+	private int[] targetPc;
+	private Label[] falseTarget;
+	private int[] falseTargetPc;
 	
 	//When using the basic blocks setup, the code should finish by executing a JUMP to
 	//this special label:
 	private Label doneLabel;
 	
+	/**
+	 * The position of the doneLabel.
+	 */
+	private static final int DONE = -1;
+	
+	/**
+	 * Every Temp used by the procedure gets a slot, a position in the array
+	 * of temp values of the procedure's X86SimFrame. The slots are assigned 
+	 * when the procedure is loaded and recorded in the TEMP nodes, so that
+	 * reading or writing a Temp is just an array access.
+	 */
+	private HashMap<Temp, Integer> slots = new HashMap<Temp, Integer>();
+	private ArrayList<Temp> slotTemps = new ArrayList<Temp>();
+	
+	/**
+	 * The value of each slot before it is written to.
+	 */
+	private UninitializedWord[] uninitialized;
+	
 	public SimProc(ProcFragment methodFrag, InterpMode setup) {
 		this.frag = methodFrag;
+		// The registers come first, so they get the same slots in every
+		// procedure (TEMP nodes for registers may be shared by procedures).
+		// The rest are numbered in the order of the linearized body, so that
+		// every SimProc for this fragment assigns the same slots, whatever
+		// the InterpMode.
+		for (Temp reg : frag.getFrame().registers())
+			slot(reg);
+		for (IRStm stm : frag.getLinearizedBody())
+			assignSlots(stm);
 		switch (setup) {
 		case LINEARIZED_IR:
 			init(frag.getLinearizedBody());
@@ -30,52 +89,141 @@ public class SimProc extends Callable {
 			init(frag.getBasicBlocks());
 			break;
 		case TRACE_SCHEDULE:
+		case COMPILED:
+		case EXPLICIT_STACK:
 			init(frag.getTraceScheduledBody());
 			break;
 		default:
 			throw new Error("Missing case?");
 		}
+		uninitialized = new UninitializedWord[slotTemps.size()];
+		for (int i = 0; i < uninitialized.length; i++)
+			uninitialized[i] = new UninitializedWord("?"+slotTemps.get(i));
+	}
+	
+	private void assignSlots(IRStm stm) {
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+			assignSlots(((MOVE) stm).dst);
+		for (IRExp kid : stm.kids())
+			assignSlots(kid);
+	}
+
+	private void assignSlots(IRExp exp) {
+		if (exp instanceof TEMP) {
+			TEMP temp = (TEMP) exp;
+			temp.setSlot(slot(temp.temp));
+		}
+		for (IRExp kid : exp.kids())
+			assignSlots(kid);
+	}
+
+	/**
+	 * The slot of a Temp, assigning it a new one if it doesn't have one yet.
+	 */
+	private int slot(Temp temp) {
+		Integer slot = slots.get(temp);
+		if (slot==null) {
+			slot = slotTemps.size();
+			slots.put(temp, slot);
+			slotTemps.add(temp);
+		}
+		return slot;
+	}
+	
+	/**
+	 * The slot of a Temp, or -1 if the Temp isn't used by this procedure.
+	 */
+	int slotOf(Temp temp) {
+		Integer slot = slots.get(temp);
+		return slot==null ? -1 : slot;
+	}
+	
+	int slotCount() {
+		return slotTemps.size();
+	}
+	
+	Temp slotTemp(int slot) {
+		return slotTemps.get(slot);
+	}
+	
+	UninitializedWord uninitialized(int slot) {
+		return uninitialized[slot];
 	}
 
 	private void init(BasicBlocks bb) {
-		List<List<IRStm>> basicBlocks = bb.blocks;
 		doneLabel = bb.doneLabel;
-		this.start = basicBlocks.head(); 
-		for (List<IRStm> basicBlock : basicBlocks) {
+		// The blocks are laid out one after the other. Every block ends with
+		// a jump, so execution never falls through from one to the next.
+		List<IRStm> program = List.empty();
+		for (List<IRStm> basicBlock : bb.blocks) {
 			//First statement in the basic block should be a label
-			Label l = ((LABEL) basicBlock.head()).getLabel();
-			putLabel(l, basicBlock.tail());
+			Assert.assertTrue(basicBlock.head() instanceof LABEL);
+			for (IRStm stm : basicBlock)
+				program.add(stm);
 		}
+		init(program);
 	}
 
 	private void init(List<IRStm> program) {
-		this.start = program;
-		for (List<IRStm> stms = start; !stms.isEmpty(); stms = stms.tail()) {
-			IRStm currentStm = stms.head();
-			if (currentStm instanceof LABEL) {
-				putLabel(((LABEL)currentStm).getLabel(), stms.tail());
+		ArrayList<IRStm> stms = new ArrayList<IRStm>();
+		for (IRStm stm : program) {
+			assignSlots(stm);
+			if (stm instanceof LABEL) {
+				Label label = ((LABEL) stm).getLabel();
+				Assert.assertNull("Duplicate label in IR code", positions.get(label));
+				positions.put(label, stms.size());
+			}
+			else
+				stms.add(stm);
+		}
+		code = stms.toArray(new IRStm[stms.size()]);
+		target = new Label[code.length];
+		targetPc = new int[code.length];
+		falseTarget = new Label[code.length];
+		falseTargetPc = new int[code.length];
+		for (int pc = 0; pc < code.length; pc++) {
+			if (code[pc] instanceof JUMP && ((JUMP) code[pc]).getExp() instanceof NAME) {
+				target[pc] = ((NAME) ((JUMP) code[pc]).getExp()).getLabel();
+				targetPc[pc] = position(target[pc]);
+			}
+			else if (code[pc] instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) code[pc];
+				target[pc] = cjump.getTrueLabel();
+				targetPc[pc] = position(target[pc]);
+				falseTarget[pc] = cjump.getFalseLabel();
+				falseTargetPc[pc] = position(falseTarget[pc]);
 			}
 		}
 	}
 
-	private void putLabel(Label label, List<IRStm> tail) {
-		List<IRStm> existing = labels.get(label); 
-		Assert.assertNull("Duplicate label in IR code", existing);
-		labels.put(label, tail);
+	private int position(Label label) {
+		if (label==doneLabel)
+			return DONE;
+		Integer position = positions.get(label);
+		if (position==null)
+			throw new Error("Jump to a label that isn't in the procedure: "+label);
+		return position;
 	}
 
 	@Override
 	public Word call(Interp interp, List<Word> args) {
-		List<IRStm> instructionPtr = start;
-		X86SimFrame frame = frag.getFrame().newSimFrame(interp, args);
-		while (!instructionPtr.isEmpty()) {
-			 Label jumpTo = instructionPtr.head().interp(frame);
+		IRStm[] code = this.code;
+		int pc = 0;
+		X86SimFrame frame = frag.getFrame().newSimFrame(interp, this, args);
+		while (pc < code.length) {
+			 Label jumpTo = code[pc].interp(frame);
 			 if (jumpTo==null)
-				 instructionPtr = instructionPtr.tail();
-			 else if (jumpTo==doneLabel)
-				 return frame.getReturnValue();
-			 else 
-				 instructionPtr = labels.get(jumpTo);
+				 pc++;
+			 else {
+				 if (jumpTo==target[pc])
+					 pc = targetPc[pc];
+				 else if (jumpTo==falseTarget[pc])
+					 pc = falseTargetPc[pc];
+				 else
+					 pc = position(jumpTo);
+				 if (pc==DONE)
+					 return frame.getReturnValue();
+			 }
 		}
 		if (doneLabel==null) {
 			// Not using basic blocks, normal termination is by "getting to the end"
@@ -0,0 +1,193 @@
+package minijava.ir.interp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import minijava.ir.temp.Label;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.translate.Translator;
+import minijava.util.List;
+
+/**
+ * A program loaded for the interpreter: the procedures of the program
+ * (SimProcs or CompiledProcs, depending on the {@link InterpMode}), and the
+ * system functions.
+ * <p>
+ * A SimProgram doesn't change once the program has started running (the
+ * CompiledProcs are compiled when the first run starts). Everything that a run of the program
+ * changes (its output, its heap, the spill counters) is in an
+ * {@link Interp}. So a program can be loaded once, and run by any number
+ * of Interps, one after the other or at the same time in different threads
+ * (see {@link Interp#runAll(Interp[], int)}).
+ */
+public class SimProgram {
+
+	/**
+	 * A map of all the method fragments in the program. (To find the
+	 * code for CALLed procedures).
+	 */
+	private final Map<Label, Callable> methods = new HashMap<Label, Callable>();
+
+	/**
+	 * The "main" method fragment.
+	 */
+	private Callable main = null;
+
+	/**
+	 * We'll need to know the wordsize to run the simulation (for
+	 * simulating pointer arithmetic).
+	 */
+	private int wordSize;
+
+	/**
+	 * Which kind of IR code for methods are we using?
+	 */
+	private final InterpMode simulationMode;
+
+	/**
+	 * If not null, the compiled code counts its executions in here (see
+	 * {@link #setProfile(Profile)}).
+	 */
+	private Profile profile = null;
+
+	/**
+	 * The number of procedures that count their executions in the counters of
+	 * a run, when profiling (see {@link Interp#counts(CompiledProc)}).
+	 */
+	private int profiledProcs = 0;
+
+	/**
+	 * Has a run of the program started?
+	 */
+	private volatile boolean started = false;
+
+	public SimProgram(Fragments program, InterpMode simMode) {
+		this.simulationMode = simMode;
+		for (Fragment fragment : program) {
+			if (fragment instanceof ProcFragment) {
+				ProcFragment methodFrag = (ProcFragment)fragment;
+				SimProc callable = simulationMode==InterpMode.COMPILED || simulationMode==InterpMode.EXPLICIT_STACK
+						? new CompiledProc(methodFrag, simulationMode)
+						: new SimProc(methodFrag, simulationMode);
+				if (main==null) {
+					wordSize = methodFrag.wordSize();
+					main = callable;
+				}
+				else
+					methods.put(methodFrag.getLabel(), callable);
+			}
+			else {
+				throw new Error("IR Simulator doesn't know about fragments of this type: "+ fragment.getClass());
+			}
+		}
+		defineSystemFunctions();
+	}
+
+	/**
+	 * The system functions do their work in the Interp of the run that
+	 * calls them.
+	 */
+	private void defineSystemFunctions() {
+		methods.put(Translator.L_PRINT, new Callable() {
+			@Override
+			public Word call(Interp interp, List<Word> list) {
+				Int arg = (Int) list.get(0);
+				interp.println(arg.value);
+				return UninitializedWord.the;
+			}
+			@Override
+			public String toString() {
+				return Translator.L_PRINT.toString();
+			}
+		});
+		methods.put(Translator.L_NEW_OBJECT, new Callable() {
+			@Override
+			public Word call(Interp interp, List<Word> list) {
+				int numBytes = ((Int) list.get(0)).value;
+				Assert.assertTrue(numBytes%wordSize==0);
+				return interp.allocate(numBytes/wordSize);
+			}
+			public String toString() {
+				return Translator.L_NEW_OBJECT.toString();
+			}
+		});
+		methods.put(Translator.L_NEW_ARRAY, new Callable() {
+			@Override
+			public Word call(Interp interp, List<Word> list) {
+				// Array layout: the returned pointer points to
+				// the 0 element of the array. The element just before
+				// it should be the length of the array.
+				int numElements = ((Int) list.get(0)).value;
+				Ptr block = interp.allocate(numElements+1);
+				block.set(Int.valueOf(numElements));
+				return block.add(wordSize);
+			}
+			public String toString() {
+				return Translator.L_NEW_ARRAY.toString();
+			}
+		});
+	}
+
+	/**
+	 * Collect an execution profile of the program in a given Profile (or
+	 * stop profiling, if it is null). Only the COMPILED and EXPLICIT_STACK
+	 * modes can profile. Must be called before the program is run. Each run
+	 * counts in counters of its own, which are added to the profile when the
+	 * run ends, so the profile has the counts of all the runs of the program
+	 * (also of runs at the same time).
+	 */
+	public void setProfile(Profile profile) {
+		Assert.assertFalse("The program is already running", started);
+		Assert.assertTrue("Only compiled code can be profiled", profile==null
+				|| simulationMode==InterpMode.COMPILED || simulationMode==InterpMode.EXPLICIT_STACK);
+		this.profile = profile;
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	int getProfiledProcs() {
+		return profiledProcs;
+	}
+
+	public InterpMode getSimulationMode() {
+		return simulationMode;
+	}
+
+	public int getWordSize() {
+		return wordSize;
+	}
+
+	public Callable getProcLabel(Label label) {
+		return methods.get(label);
+	}
+
+	/**
+	 * Run the program's main procedure, in a given Interp.
+	 */
+	void run(Interp interp) {
+		start();
+		main.call(interp, List.list(new Word[0]));
+	}
+
+	/**
+	 * Compile the CompiledProcs, if this is the first run of the program.
+	 * (Other runs that start at the same time wait for this.)
+	 */
+	private synchronized void start() {
+		if (!started) {
+			if (main instanceof CompiledProc)
+				((CompiledProc) main).compile(this, profiledProcs++);
+			for (Callable proc : methods.values()) {
+				if (proc instanceof CompiledProc)
+					((CompiledProc) proc).compile(this, profiledProcs++);
+			}
+			started = true;
+		}
+	}
+
+}
@@ -9,6 +9,7 @@ import minijava.ir.frame.x86.X86Frame;
 import minijava.ir.temp.Label;
 import minijava.ir.temp.Temp;
 import minijava.ir.tree.IRExp;
+import minijava.ir.tree.TEMP;
 import minijava.util.DefaultIndentable;
 import minijava.util.IndentingWriter;
 import minijava.util.List;
@@ -31,7 +32,42 @@ import minijava.util.List;
  */
 public class X86SimFrame extends DefaultIndentable {
 	
-	private Map<Temp, Word> temps = new HashMap<Temp, Word>();
+	/**
+	 * The values of the Temps, indexed by the slots assigned to them by the 
+	 * SimProc (null for Temps that have not been written to). Ints are
+	 * stored unboxed in intTemps, and marked with Int.UNBOXED in temps.
+	 */
+	private final Word[] temps;
+	private final int[] intTemps;
+	
+	/**
+	 * Compiled code returns the value of an int expression in here (see 
+	 * {@link CompiledProc}).
+	 */
+	int acc;
+	
+	/**
+	 * The values of Temps that the SimProc didn't assign a slot to. (These
+	 * can only be Temps that don't occur in the procedure's code.)
+	 */
+	private Map<Temp, Word> otherTemps = null;
+
+	private final SimProc proc;
+	
+	/**
+	 * The explicit stack of the EXPLICIT_STACK mode (see {@link CompiledProc}):
+	 * the frame that called this one, the position of the call statement it
+	 * is executing, and the frame that this call statement wants to push.
+	 */
+	X86SimFrame caller;
+	int pc;
+	X86SimFrame callee;
+
+	/**
+	 * When profiling, the counters of the procedure in the run this frame is
+	 * part of (see {@link CompiledProc}).
+	 */
+	Profile.Counts counts;
 
 	/**
 	 * Compile time counterpart of this frame (has some crucial information such
@@ -51,9 +87,12 @@ public class X86SimFrame extends DefaultIndentable {
 	 */
 	private Interp interp;
 	
-	public X86SimFrame(Interp interp, X86Frame frame, List<Word> args) {
+	public X86SimFrame(Interp interp, X86Frame frame, SimProc proc, List<Word> args) {
 		this.interp = interp;
 		this.ct_frame = frame;
+		this.proc = proc;
+		this.temps = new Word[proc.slotCount()];
+		this.intTemps = new int[proc.slotCount()];
 		this.frameBytes = new Array(args.size()+2+frame.numLocals(), frame.wordSize());
 
 		Ptr currentFormal = framePtr().add(X86Frame.FIRST_FORMAL_OFFSET);
@@ -75,20 +114,128 @@ public class X86SimFrame extends DefaultIndentable {
 	 * @return
 	 */
 	public Word getTemp(Temp name) {
-		Word result = temps.get(name);
+		return getTemp(proc.slotOf(name), name);
+	}
+	
+	/**
+	 * Like getTemp(Temp), but uses the slot recorded in the TEMP node.
+	 */
+	public Word getTemp(TEMP temp) {
+		int slot = temp.getSlot();
+		if (slot<0)
+			slot = proc.slotOf(temp.temp);
+		return getTemp(slot, temp.temp);
+	}
+	
+	private Word getTemp(int slot, Temp name) {
+		if (isSpilled(name))
+			interp.countSpillLoad();
+		if (slot<0) {
+			Word result = otherTemps==null ? null : otherTemps.get(name);
+			return result==null ? new UninitializedWord("?"+name) : result;
+		}
+		Word result = temps[slot];
+		if (result==null) {
+			return proc.uninitialized(slot);
+		}
+		if (result==Int.UNBOXED) {
+			return Int.valueOf(intTemps[slot]);
+		}
+		return result;
+	}
+	
+	/**
+	 * The value in a slot, for compiled code (see {@link CompiledProc}), 
+	 * which does the spill counting itself. An int is returned as
+	 * Int.UNBOXED, with its value in acc.
+	 */
+	Word readSlot(int slot) {
+		Word result = temps[slot];
 		if (result==null) {
-			return new UninitializedWord("?"+name);
+			return proc.uninitialized(slot);
+		}
+		if (result==Int.UNBOXED) {
+			acc = intTemps[slot];
 		}
 		return result;
 	}
 	
+	/**
+	 * Write a slot, for compiled code. If value is Int.UNBOXED, the int to 
+	 * write is in acc.
+	 */
+	void writeSlot(int slot, Word value) {
+		temps[slot] = value;
+		if (value==Int.UNBOXED) {
+			intTemps[slot] = acc;
+		}
+	}
+	
+	/**
+	 * Convert a Word to the representation used by compiled code: an Int
+	 * becomes Int.UNBOXED, with its value in acc.
+	 */
+	Word unbox(Word value) {
+		if (value instanceof Int) {
+			acc = ((Int) value).value;
+			return Int.UNBOXED;
+		}
+		return value;
+	}
+	
+	SimProc getProc() {
+		return proc;
+	}
+	
+	/**
+	 * The opposite of unbox.
+	 */
+	Word box(Word value) {
+		return value==Int.UNBOXED ? Int.valueOf(acc) : value;
+	}
+	
 	/**
 	 * Write a value into a given Temp. The value must be a real
 	 * value (i.e. not a Java null pointer or the UninitializedWord
 	 */
 	public void setTemp(Temp name, Word value) {
+		setTemp(proc.slotOf(name), name, value);
+	}
+	
+	/**
+	 * Like setTemp(Temp, Word), but uses the slot recorded in the TEMP node.
+	 */
+	public void setTemp(TEMP temp, Word value) {
+		int slot = temp.getSlot();
+		if (slot<0)
+			slot = proc.slotOf(temp.temp);
+		setTemp(slot, temp.temp, value);
+	}
+	
+	private void setTemp(int slot, Temp name, Word value) {
 		Assert.assertFalse(value==null);
-		temps.put(name, value);
+		if (isSpilled(name))
+			interp.countSpillStore();
+		if (slot<0) {
+			if (otherTemps==null)
+				otherTemps = new HashMap<Temp, Word>();
+			otherTemps.put(name, value);
+		}
+		else if (value instanceof Int) {
+			temps[slot] = Int.UNBOXED;
+			intTemps[slot] = ((Int) value).value;
+		}
+		else
+			temps[slot] = value;
+	}
+
+	/**
+	 * A Temp that the register allocator has put in memory (rematerialized
+	 * Temps don't count, they are recomputed rather than loaded).
+	 */
+	private static boolean isSpilled(Temp name) {
+		return name.getColor()!=null && !name.getColor().isRegister()
+				&& !name.getColor().isConstant();
 	}
 
 	/**
@@ -131,9 +278,17 @@ public class X86SimFrame extends DefaultIndentable {
 		
 		out.println("temps : ");
 		out.indent();
-		for (Entry<Temp, Word> entry : temps.entrySet()) {
-			out.print(entry.getKey() + " = ");
-			out.println(entry.getValue());
+		for (int slot = 0; slot < temps.length; slot++) {
+			if (temps[slot]!=null) {
+				out.print(proc.slotTemp(slot) + " = ");
+				out.println(temps[slot]==Int.UNBOXED ? ""+intTemps[slot] : temps[slot]);
+			}
+		}
+		if (otherTemps!=null) {
+			for (Entry<Temp, Word> entry : otherTemps.entrySet()) {
+				out.print(entry.getKey() + " = ");
+				out.println(entry.getValue());
+			}
 		}
 		out.outdent();
 		
@@ -0,0 +1,167 @@
+package minijava.ir.optimize;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CALL;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.translate.Translator;
+
+/**
+ * What the optimizer knows about which stores and calls may change the
+ * memory that an expression reads, in the linearized IR of a procedure.
+ * <p>
+ * The address of an array element is base + index * wordSize (or a temp
+ * that only holds such addresses). Any other address is taken to be a
+ * pointer, or a pointer plus or minus a constant: a field of an object or a
+ * slot of the frame, or the length of an array (the word before its first
+ * element). The translator checks the bounds of every array access, so a
+ * store to an array element never changes a field or a length, and a store
+ * at a constant offset from a pointer only changes what is read at that
+ * offset.
+ * <p>
+ * An element read at a constant index looks like a field, so the passes
+ * must only use this for the MEMs they know to be fields and lengths.
+ * <p>
+ * The runtime functions don't change any memory the program can see, other
+ * calls may change anything but the frame of the procedure that calls them.
+ */
+class Aliasing {
+
+	/**
+	 * The temps that are only assigned addresses of array elements (the
+	 * canonicalizer puts the address of a store into a temp when the value
+	 * has side effects).
+	 */
+	private final HashSet<Temp> elementTemps = new HashSet<Temp>();
+
+	/**
+	 * For each temp that is assigned, the offset of the addresses it holds
+	 * (see offsetOf), or null if that isn't known. E.g. the canonicalizer may
+	 * put the address of a parameter, FP + 12, into a temp to store to it.
+	 */
+	private final HashMap<Temp, Integer> tempOffsets = new HashMap<Temp, Integer>();
+
+	Aliasing(IRStm[] stms) {
+		for (IRStm stm : stms) {
+			if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP))
+				continue;
+			Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+			IRExp src = ((MOVE) stm).src;
+			if (isElement(src))
+				elementTemps.add(t);
+			Integer offset = src instanceof TEMP ? null : offsetOf(src);
+			if (!tempOffsets.containsKey(t))
+				tempOffsets.put(t, offset);
+			else if (offset==null || !offset.equals(tempOffsets.get(t)))
+				tempOffsets.put(t, null);
+		}
+		for (IRStm stm : stms) {
+			if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP && !isElement(((MOVE) stm).src))
+				elementTemps.remove(((TEMP) ((MOVE) stm).dst).temp);
+		}
+	}
+
+	/**
+	 * May a store to the address change a MEM that reads at one of the
+	 * offsets (any MEM if the address is null, for a call)?
+	 */
+	boolean clobbers(IRExp address, Set<Integer> offsets) {
+		if (offsets.isEmpty())
+			return false;
+		if (address==null)
+			return true;
+		if (isElement(address))
+			return false;
+		Integer offset = offsetOf(address);
+		if (address instanceof TEMP && tempOffsets.containsKey(((TEMP) address).temp))
+			offset = tempOffsets.get(((TEMP) address).temp);
+		return offset==null || offsets.contains(offset);
+	}
+
+	/**
+	 * Is it the address of an array element: base + index * wordSize, or a
+	 * temp that only holds such addresses?
+	 */
+	boolean isElement(IRExp address) {
+		if (address instanceof TEMP)
+			return elementTemps.contains(((TEMP) address).temp);
+		if (!(address instanceof BINOP) || ((BINOP) address).getOp()!=Op.PLUS)
+			return false;
+		BINOP sum = (BINOP) address;
+		return isMul(sum.getLeft()) || isMul(sum.getRight());
+	}
+
+	private static boolean isMul(IRExp exp) {
+		return exp instanceof BINOP && ((BINOP) exp).getOp()==Op.MUL;
+	}
+
+	/**
+	 * The offset of an address that is a pointer, or a pointer plus or minus
+	 * a constant, or null if the address isn't one.
+	 */
+	static Integer offsetOf(IRExp address) {
+		if (!(address instanceof BINOP))
+			return 0;
+		BINOP sum = (BINOP) address;
+		if (sum.getRight() instanceof CONST) {
+			int offset = ((CONST) sum.getRight()).getValue();
+			if (sum.getOp()==Op.PLUS)
+				return offset;
+			if (sum.getOp()==Op.MINUS)
+				return -offset;
+		}
+		if (sum.getOp()==Op.PLUS && sum.getLeft() instanceof CONST)
+			return ((CONST) sum.getLeft()).getValue();
+		return null;
+	}
+
+	/**
+	 * The pointer of an address for which offsetOf isn't null.
+	 */
+	static IRExp pointerOf(IRExp address) {
+		if (!(address instanceof BINOP))
+			return address;
+		BINOP sum = (BINOP) address;
+		return sum.getRight() instanceof CONST ? sum.getLeft() : sum.getRight();
+	}
+
+	/**
+	 * Does the expression call something that may change memory (anything
+	 * but the runtime functions)?
+	 */
+	static boolean writesMemory(IRExp exp) {
+		if (exp instanceof CALL) {
+			IRExp func = ((CALL) exp).getFunc();
+			if (!(func instanceof NAME))
+				return true;
+			Label label = ((NAME) func).getLabel();
+			if (label!=Translator.L_PRINT && label!=Translator.L_NEW_ARRAY && label!=Translator.L_NEW_OBJECT)
+				return true;
+		}
+		for (IRExp kid : exp.kids()) {
+			if (writesMemory(kid))
+				return true;
+		}
+		return false;
+	}
+
+	static boolean writesMemory(IRStm stm) {
+		for (IRExp kid : stm.kids()) {
+			if (writesMemory(kid))
+				return true;
+		}
+		return false;
+	}
+
+}
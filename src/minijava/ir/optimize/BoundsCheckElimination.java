@@ -0,0 +1,891 @@
+package minijava.ir.optimize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CJUMP.RelOp;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.EXP;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.TEMP;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+/**
+ * Removal of the array bounds checks of the linearized IR of a procedure.
+ * <p>
+ * The translator checks every array access i with two CJUMPs:
+ * CJUMP(LT, CONST(-1), i, ...) and CJUMP(LT, i, MEM(MINUS(a, wordSize)), ...)
+ * (the length of an array is the word before its first element). A forward
+ * data flow analysis finds out what is known about the value of each temp
+ * at each point of the procedure:
+ * <ul>
+ *   <li>a lower bound (from constants, sums with constants and the
+ *       conditions of CJUMPs, e.g. of a while loop),
+ *   <li>the bounds it is less than: array lengths, and expressions without
+ *       side effects (e.g. the n of a "while (i &lt; n)"),
+ *   <li>whether it holds the length of an array.
+ * </ul>
+ * A check that is known to succeed is replaced by a JUMP.
+ * <p>
+ * An upper check that can't be proven, but whose index is known to be less
+ * than some bound E that doesn't change in an innermost loop, is done once
+ * before the loop: the loop is versioned, with a guard that goes to a copy
+ * of the loop without the check if the array's length is at least E, and
+ * to the original loop otherwise.
+ * <p>
+ * Stores and calls may change the bounds that read memory (see
+ * {@link Aliasing}). The bounds only read fields and lengths (the translator
+ * always loads array elements into a temp).
+ */
+class BoundsCheckElimination {
+
+	/**
+	 * What the pass did to a procedure.
+	 */
+	static class Result {
+		int checks;
+		int proven;
+		int loops;
+		int guarded;
+	}
+
+	/**
+	 * The lower bound of a value about which nothing is known.
+	 */
+	private static final int NO_LO = Integer.MIN_VALUE;
+
+	private static final TreeSet<Bound> NONE = new TreeSet<Bound>();
+
+	/**
+	 * Something an int can be known to be less than: the length of an array,
+	 * or the value of an expression without side effects.
+	 */
+	private static class Bound implements Comparable<Bound> {
+		final String key;
+		final boolean isLength;
+		/**
+		 * The array, for a length, or else the expression.
+		 */
+		final IRExp exp;
+		/**
+		 * The temps the bound depends on, and the offsets of the MEMs it reads.
+		 */
+		final Set<Temp> temps = new HashSet<Temp>();
+		final Set<Integer> offsets = new HashSet<Integer>();
+
+		Bound(String key, boolean isLength, IRExp exp) {
+			this.key = key;
+			this.isLength = isLength;
+			this.exp = exp;
+		}
+
+		public int compareTo(Bound other) {
+			return key.compareTo(other.key);
+		}
+
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+
+	/**
+	 * What is known about the value of a temp.
+	 */
+	private static class Fact {
+		static final Fact UNKNOWN = new Fact(NO_LO, NONE, null);
+
+		/**
+		 * The value is at least lo.
+		 */
+		final int lo;
+		/**
+		 * The value is less than each of these.
+		 */
+		final TreeSet<Bound> below;
+		/**
+		 * If not null, the value is this length.
+		 */
+		final Bound length;
+
+		Fact(int lo, TreeSet<Bound> below, Bound length) {
+			this.lo = lo;
+			this.below = below;
+			this.length = length;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Fact))
+				return false;
+			Fact other = (Fact) obj;
+			return lo==other.lo && length==other.length && below.equals(other.below);
+		}
+
+		@Override
+		public int hashCode() {
+			return lo + below.hashCode();
+		}
+	}
+
+	private final int wordSize;
+	private final ControlFlow cfg;
+	private final Result result;
+
+	private final HashMap<String, Bound> bounds = new HashMap<String, Bound>();
+
+	private final Aliasing aliasing;
+
+	/**
+	 * The frame pointer, and the temps that only hold addresses in the frame
+	 * (the canonicalizer may put e.g. FP + 12 into a temp). These are never
+	 * null, so the loop guards don't check them.
+	 */
+	private final Temp fp;
+	private final HashSet<Temp> frameTemps = new HashSet<Temp>();
+
+	private final IdentityHashMap<Temp, Integer> tempIds = new IdentityHashMap<Temp, Integer>();
+
+	/**
+	 * The facts at the start of each block, null if it isn't reached (yet).
+	 * Every temp that has a value at that point has an entry, even if nothing
+	 * is known about it.
+	 */
+	private final ArrayList<HashMap<Temp, Fact>> in = new ArrayList<HashMap<Temp, Fact>>();
+	private boolean changed;
+
+	/**
+	 * The statements with the proven checks replaced, and for each upper check
+	 * that isn't proven, the length it checks against and the bounds of its
+	 * index.
+	 */
+	private final IRStm[] rewritten;
+	private final Bound[] checkLength;
+	private final ArrayList<TreeSet<Bound>> checkBelow = new ArrayList<TreeSet<Bound>>();
+
+	private BoundsCheckElimination(ProcFragment proc, List<IRStm> body, Result result) {
+		this.wordSize = proc.wordSize();
+		this.cfg = new ControlFlow(body);
+		this.result = result;
+		this.aliasing = new Aliasing(cfg.stms);
+		this.fp = ((TEMP) proc.getFrame().FP()).temp;
+		findFrameTemps();
+		this.rewritten = cfg.stms.clone();
+		this.checkLength = new Bound[cfg.stms.length];
+		for (int i = 0; i < cfg.stms.length; i++)
+			checkBelow.add(null);
+		for (int b = 0; b < cfg.size(); b++)
+			in.add(null);
+	}
+
+	/**
+	 * A temp is a frame temp if all its assignments are FP plus a constant.
+	 */
+	private void findFrameTemps() {
+		HashSet<Temp> others = new HashSet<Temp>();
+		for (IRStm stm : cfg.stms) {
+			if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP))
+				continue;
+			Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+			IRExp src = ((MOVE) stm).src;
+			if (Aliasing.offsetOf(src)!=null && Aliasing.pointerOf(src) instanceof TEMP
+					&& ((TEMP) Aliasing.pointerOf(src)).temp==fp)
+				frameTemps.add(t);
+			else
+				others.add(t);
+		}
+		frameTemps.removeAll(others);
+	}
+
+	/**
+	 * Is it the frame pointer, or a temp that only holds addresses in the
+	 * frame?
+	 */
+	private boolean isFrameAddress(IRExp pointer) {
+		if (!(pointer instanceof TEMP))
+			return false;
+		Temp t = ((TEMP) pointer).temp;
+		return t==fp || frameTemps.contains(t);
+	}
+
+	static List<IRStm> eliminate(ProcFragment proc, List<IRStm> body, Result result) {
+		return new BoundsCheckElimination(proc, body, result).run();
+	}
+
+	private List<IRStm> run() {
+		if (cfg.size()==0)
+			return List.empty();
+		// Temps that aren't assigned in the body (e.g. the frame pointer) have
+		// a value from the start.
+		HashSet<Temp> assigned = new HashSet<Temp>();
+		HashSet<Temp> used = new HashSet<Temp>();
+		for (IRStm stm : cfg.stms) {
+			if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+				assigned.add(((TEMP) ((MOVE) stm).dst).temp);
+			for (IRExp kid : stm.kids())
+				findTemps(kid, used);
+		}
+		HashMap<Temp, Fact> entry = new HashMap<Temp, Fact>();
+		for (Temp t : used) {
+			if (!assigned.contains(t))
+				entry.put(t, Fact.UNKNOWN);
+		}
+		in.set(0, entry);
+
+		do {
+			changed = false;
+			for (int b = 0; b < cfg.size(); b++) {
+				if (in.get(b)!=null)
+					flow(b, false);
+			}
+		} while (changed);
+
+		for (int b = 0; b < cfg.size(); b++) {
+			if (in.get(b)!=null)
+				flow(b, true);
+		}
+		return version();
+	}
+
+	private static void findTemps(IRExp exp, Set<Temp> temps) {
+		if (exp instanceof TEMP)
+			temps.add(((TEMP) exp).temp);
+		else {
+			for (IRExp kid : exp.kids())
+				findTemps(kid, temps);
+		}
+	}
+
+	/**
+	 * Compute the facts through block b. Unless rewriting, pass them on to
+	 * the blocks it goes to. When rewriting, the facts are final, and the
+	 * checks of the block are looked at.
+	 */
+	private void flow(int b, boolean rewrite) {
+		HashMap<Temp, Fact> facts = new HashMap<Temp, Fact>(in.get(b));
+		for (int i = cfg.start[b]; i < cfg.end[b]; i++) {
+			IRStm stm = cfg.stms[i];
+			if (stm instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) stm;
+				if (rewrite) {
+					check(i, cjump, facts);
+					return;
+				}
+				HashMap<Temp, Fact> taken = new HashMap<Temp, Fact>(facts);
+				assume(taken, cjump.getOp(), cjump.getLeft(), cjump.getRight());
+				propagate(cjump.getTrueLabel(), taken);
+				HashMap<Temp, Fact> notTaken = new HashMap<Temp, Fact>(facts);
+				assume(notTaken, cjump.getOp().not(), cjump.getLeft(), cjump.getRight());
+				propagate(cjump.getFalseLabel(), notTaken);
+				return;
+			}
+			transfer(stm, facts);
+		}
+		if (!rewrite) {
+			for (int s : cfg.succs[b])
+				propagate(s, facts);
+		}
+	}
+
+	private void propagate(Label target, HashMap<Temp, Fact> facts) {
+		Integer position = cfg.position(target);
+		if (position!=null)
+			propagate(cfg.blockOf(position), facts);
+	}
+
+	/**
+	 * Merge the facts on an edge into the facts at the start of block s.
+	 */
+	private void propagate(int s, HashMap<Temp, Fact> facts) {
+		HashMap<Temp, Fact> old = in.get(s);
+		if (old==null) {
+			in.set(s, new HashMap<Temp, Fact>(facts));
+			changed = true;
+			return;
+		}
+		// A lower bound that goes down at the start of a loop is dropped, so
+		// that the analysis doesn't count down around the loop.
+		boolean loop = false;
+		for (int p : cfg.preds[s])
+			loop |= p >= s;
+		HashMap<Temp, Fact> merged = new HashMap<Temp, Fact>();
+		for (Map.Entry<Temp, Fact> entry : old.entrySet()) {
+			Fact a = entry.getValue();
+			Fact b = facts.get(entry.getKey());
+			if (b==null)
+				continue;
+			int lo = b.lo >= a.lo ? a.lo : loop ? NO_LO : b.lo;
+			TreeSet<Bound> below = a.below;
+			if (!b.below.containsAll(a.below)) {
+				below = new TreeSet<Bound>(a.below);
+				below.retainAll(b.below);
+			}
+			merged.put(entry.getKey(), new Fact(lo, below, a.length==b.length ? a.length : null));
+		}
+		if (!merged.equals(old)) {
+			in.set(s, merged);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Add what is known on an edge where "l op r" holds.
+	 */
+	private void assume(HashMap<Temp, Fact> facts, RelOp op, IRExp l, IRExp r) {
+		switch (op) {
+		case LT: less(facts, l, r); break;
+		case GT: less(facts, r, l); break;
+		case LE: lessOrEqual(facts, l, r); break;
+		case GE: lessOrEqual(facts, r, l); break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * x < y
+	 */
+	private void less(HashMap<Temp, Fact> facts, IRExp x, IRExp y) {
+		if (x instanceof TEMP) {
+			Temp t = ((TEMP) x).temp;
+			Fact fact = facts.get(t);
+			if (fact!=null) {
+				TreeSet<Bound> below = new TreeSet<Bound>(fact.below);
+				Bound bound = boundOf(y);
+				if (bound!=null)
+					below.add(bound);
+				// x < y and y < B, or y is the length B
+				Fact other = y instanceof TEMP ? facts.get(((TEMP) y).temp) : null;
+				if (other!=null) {
+					below.addAll(other.below);
+					if (other.length!=null)
+						below.add(other.length);
+				}
+				facts.put(t, new Fact(fact.lo, without(below, t), fact.length));
+			}
+		}
+		if (y instanceof TEMP) {
+			Temp t = ((TEMP) y).temp;
+			Fact fact = facts.get(t);
+			int lo = eval(x, facts).lo;
+			if (fact!=null && lo!=NO_LO && lo!=Integer.MAX_VALUE && lo+1 > fact.lo)
+				facts.put(t, new Fact(lo+1, fact.below, fact.length));
+		}
+	}
+
+	/**
+	 * x <= y
+	 */
+	private void lessOrEqual(HashMap<Temp, Fact> facts, IRExp x, IRExp y) {
+		if (y instanceof TEMP) {
+			Temp t = ((TEMP) y).temp;
+			Fact fact = facts.get(t);
+			int lo = eval(x, facts).lo;
+			if (fact!=null && lo > fact.lo)
+				facts.put(t, new Fact(lo, fact.below, fact.length));
+		}
+	}
+
+	private void transfer(IRStm stm, HashMap<Temp, Fact> facts) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			if (Aliasing.writesMemory(move.src))
+				killMemory(facts, null);
+			if (move.dst instanceof TEMP) {
+				Temp t = ((TEMP) move.dst).temp;
+				Fact fact = eval(move.src, facts);
+				kill(facts, t);
+				Bound length = fact.length!=null && fact.length.temps.contains(t) ? null : fact.length;
+				facts.put(t, new Fact(fact.lo, without(fact.below, t), length));
+			}
+			else
+				killMemory(facts, ((MEM) move.dst).exp);
+		}
+		else if (stm instanceof EXP) {
+			if (Aliasing.writesMemory(((EXP) stm).exp))
+				killMemory(facts, null);
+		}
+	}
+
+	/**
+	 * Forget the bounds that depend on the value of t.
+	 */
+	private static void kill(HashMap<Temp, Fact> facts, Temp t) {
+		for (Map.Entry<Temp, Fact> entry : facts.entrySet()) {
+			Fact fact = entry.getValue();
+			boolean length = fact.length!=null && fact.length.temps.contains(t);
+			TreeSet<Bound> below = without(fact.below, t);
+			if (length || below!=fact.below)
+				entry.setValue(new Fact(fact.lo, below, length ? null : fact.length));
+		}
+	}
+
+	private static TreeSet<Bound> without(TreeSet<Bound> bounds, Temp t) {
+		TreeSet<Bound> result = bounds;
+		for (Bound bound : bounds) {
+			if (bound.temps.contains(t)) {
+				if (result==bounds)
+					result = new TreeSet<Bound>(bounds);
+				result.remove(bound);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the bounds that a store to an address may change (any bound that
+	 * reads memory if the address is null, for a call).
+	 */
+	private void killMemory(HashMap<Temp, Fact> facts, IRExp address) {
+		for (Map.Entry<Temp, Fact> entry : facts.entrySet()) {
+			Fact fact = entry.getValue();
+			boolean length = fact.length!=null && clobbers(address, fact.length);
+			TreeSet<Bound> below = fact.below;
+			for (Bound bound : fact.below) {
+				if (clobbers(address, bound)) {
+					if (below==fact.below)
+						below = new TreeSet<Bound>(fact.below);
+					below.remove(bound);
+				}
+			}
+			if (length || below!=fact.below)
+				entry.setValue(new Fact(fact.lo, below, length ? null : fact.length));
+		}
+	}
+
+	private boolean clobbers(IRExp address, Bound bound) {
+		return aliasing.clobbers(address, bound.offsets);
+	}
+
+	private Fact eval(IRExp exp, HashMap<Temp, Fact> facts) {
+		if (exp instanceof CONST)
+			return new Fact(((CONST) exp).getValue(), NONE, null);
+		if (exp instanceof TEMP) {
+			Fact fact = facts.get(((TEMP) exp).temp);
+			return fact==null ? Fact.UNKNOWN : fact;
+		}
+		if (isLength(exp)) {
+			Bound length = bound(arrayOf(exp), true);
+			return new Fact(0, NONE, length);
+		}
+		if (exp instanceof BINOP) {
+			BINOP binop = (BINOP) exp;
+			IRExp l = binop.getLeft();
+			IRExp r = binop.getRight();
+			if (binop.getOp()==Op.PLUS && r instanceof CONST)
+				return add(l, ((CONST) r).getValue(), facts);
+			if (binop.getOp()==Op.PLUS && l instanceof CONST)
+				return add(r, ((CONST) l).getValue(), facts);
+			if (binop.getOp()==Op.MINUS && r instanceof CONST && !r.isCONST(Integer.MIN_VALUE))
+				return add(l, -((CONST) r).getValue(), facts);
+		}
+		return Fact.UNKNOWN;
+	}
+
+	/**
+	 * What is known about x + c.
+	 */
+	private Fact add(IRExp x, int c, HashMap<Temp, Fact> facts) {
+		Fact fact = eval(x, facts);
+		if (c <= 0) {
+			// Without a lower bound, x + c may wrap around
+			if (fact.lo==NO_LO || (long) fact.lo + c <= NO_LO)
+				return Fact.UNKNOWN;
+			if (c==0)
+				return fact;
+			// x + c < x
+			TreeSet<Bound> below = new TreeSet<Bound>(fact.below);
+			Bound bound = boundOf(x);
+			if (bound!=null)
+				below.add(bound);
+			if (fact.length!=null)
+				below.add(fact.length);
+			return new Fact(fact.lo + c, below, null);
+		}
+		// x < B, so x + 1 can't wrap around
+		if (c==1 && !fact.below.isEmpty())
+			return new Fact(fact.lo==NO_LO ? NO_LO : fact.lo + 1, NONE, null);
+		return Fact.UNKNOWN;
+	}
+
+	/**
+	 * Is it MEM(MINUS(a, wordSize)), the length of an array?
+	 */
+	private boolean isLength(IRExp exp) {
+		if (!(exp instanceof MEM) || !(((MEM) exp).exp instanceof BINOP))
+			return false;
+		BINOP address = (BINOP) ((MEM) exp).exp;
+		return address.getOp()==Op.MINUS && address.getRight().isCONST(wordSize);
+	}
+
+	private static IRExp arrayOf(IRExp length) {
+		return ((BINOP) ((MEM) length).exp).getLeft();
+	}
+
+	private Bound boundOf(IRExp exp) {
+		if (isLength(exp))
+			return bound(arrayOf(exp), true);
+		return bound(exp, false);
+	}
+
+	/**
+	 * The bound for the length of an array, or the value of an expression, or
+	 * null if the expression isn't one we can reason about.
+	 */
+	private Bound bound(IRExp exp, boolean isLength) {
+		HashSet<Temp> temps = new HashSet<Temp>();
+		HashSet<Integer> offsets = new HashSet<Integer>();
+		String key = key(exp, temps, offsets);
+		if (key==null)
+			return null;
+		if (isLength) {
+			key = "length(" + key + ")";
+			offsets.add(-wordSize);
+		}
+		Bound bound = bounds.get(key);
+		if (bound==null) {
+			bound = new Bound(key, isLength, exp);
+			bound.temps.addAll(temps);
+			bound.offsets.addAll(offsets);
+			bounds.put(key, bound);
+		}
+		return bound;
+	}
+
+	/**
+	 * A string that is the same for expressions that have the same value (as
+	 * long as the temps and memory they read don't change), or null for
+	 * expressions with side effects, or that are not sums and products of
+	 * temps, constants and fields.
+	 */
+	private String key(IRExp exp, Set<Temp> temps, Set<Integer> offsets) {
+		if (exp instanceof CONST)
+			return Integer.toString(((CONST) exp).getValue());
+		if (exp instanceof TEMP) {
+			Temp t = ((TEMP) exp).temp;
+			temps.add(t);
+			Integer id = tempIds.get(t);
+			if (id==null) {
+				id = tempIds.size();
+				tempIds.put(t, id);
+			}
+			return "t" + id;
+		}
+		if (exp instanceof BINOP) {
+			BINOP binop = (BINOP) exp;
+			if (binop.getOp()!=Op.PLUS && binop.getOp()!=Op.MINUS && binop.getOp()!=Op.MUL)
+				return null;
+			String l = key(binop.getLeft(), temps, offsets);
+			String r = key(binop.getRight(), temps, offsets);
+			if (l==null || r==null)
+				return null;
+			return "(" + l + " " + binop.getOp() + " " + r + ")";
+		}
+		if (exp instanceof MEM) {
+			IRExp address = ((MEM) exp).exp;
+			Integer offset = Aliasing.offsetOf(address);
+			if (offset==null)
+				return null;
+			String pointer = key(Aliasing.pointerOf(address), temps, offsets);
+			if (pointer==null)
+				return null;
+			offsets.add(offset);
+			return "MEM(" + pointer + " + " + offset + ")";
+		}
+		return null;
+	}
+
+	/**
+	 * Is it a bounds check, as the translator makes them? A check goes to a
+	 * block that sets the result of the array access to 0 when it fails
+	 * (unlike e.g. the condition of a while loop with a.length in it).
+	 */
+	private boolean isCheck(CJUMP cjump) {
+		if (cjump.getOp()!=RelOp.LT
+				|| !(cjump.getLeft().isCONST(-1) || isLength(cjump.getRight())))
+			return false;
+		return cfg.isCheckFailure(cjump.getFalseLabel());
+	}
+
+	/**
+	 * Replace a check that is known to succeed by a JUMP, or else remember
+	 * what is known about its index for the loop versioning.
+	 */
+	private void check(int i, CJUMP cjump, HashMap<Temp, Fact> facts) {
+		if (!isCheck(cjump))
+			return;
+		result.checks++;
+		IRExp l = cjump.getLeft();
+		IRExp r = cjump.getRight();
+		boolean proven;
+		if (l instanceof CONST) {
+			int lo = eval(r, facts).lo;
+			proven = lo!=NO_LO && lo > ((CONST) l).getValue();
+		}
+		else {
+			Bound length = bound(arrayOf(r), true);
+			TreeSet<Bound> below = eval(l, facts).below;
+			proven = length!=null && isBelow(below, length, facts);
+			if (!proven && length!=null) {
+				checkLength[i] = length;
+				checkBelow.set(i, below);
+			}
+		}
+		if (proven) {
+			rewritten[i] = IR.JUMP(cjump.getTrueLabel());
+			result.proven++;
+		}
+	}
+
+	/**
+	 * Is a value that is below these bounds less than the length?
+	 */
+	private static boolean isBelow(TreeSet<Bound> below, Bound length, HashMap<Temp, Fact> facts) {
+		if (below.contains(length))
+			return true;
+		for (Bound bound : below) {
+			if (bound.exp instanceof TEMP && !bound.isLength) {
+				Fact fact = facts.get(((TEMP) bound.exp).temp);
+				if (fact!=null && fact.length==length)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	////////////////////////////////////////////////////////////////////////
+	// Loop versioning
+
+	/**
+	 * Version the innermost loops with upper checks that can be done before
+	 * the loop, and return the new body.
+	 */
+	private List<IRStm> version() {
+		List<IRStm> body = List.empty();
+		int next = 0;
+		for (int j = 0; j < rewritten.length; j++) {
+			Label header = ControlFlow.target(rewritten[j]);
+			if (header==null)
+				continue;
+			Integer p = cfg.position(header);
+			if (p==null || p < next || p > j || !isInnermostLoop(p, j))
+				continue;
+
+			// The guards for each length and bound, and the checks they cover
+			LinkedHashMap<String, Bound[]> guards = new LinkedHashMap<String, Bound[]>();
+			HashSet<Integer> guarded = new HashSet<Integer>();
+			for (int q = p; q <= j; q++) {
+				Bound length = checkLength[q];
+				if (length==null || !isInvariant(length, p, j))
+					continue;
+				for (Bound bound : checkBelow.get(q)) {
+					if (bound!=length && isInvariant(bound, p, j)) {
+						guards.put(length.key + " " + bound.key, new Bound[] { length, bound });
+						guarded.add(q);
+						break;
+					}
+				}
+			}
+			if (guarded.isEmpty())
+				continue;
+
+			for (int q = next; q < p; q++)
+				body.add(rewritten[q]);
+			Label slow = Label.generate("slow");
+			HashSet<String> nonNull = new HashSet<String>();
+			for (Bound[] guard : guards.values()) {
+				checkValue(guard[0], slow, nonNull, body);
+				checkValue(guard[1], slow, nonNull, body);
+				Label ok = Label.generate("fast");
+				body.add(IR.CJUMP(RelOp.LT, value(guard[0]), value(guard[1]), slow, ok));
+				body.add(IR.LABEL(ok));
+			}
+			copyLoop(p, j, guarded, body);
+			body.add(IR.LABEL(slow));
+			for (int q = p; q <= j; q++)
+				body.add(rewritten[q]);
+			next = j+1;
+			result.loops++;
+			result.guarded += guarded.size();
+		}
+		for (int q = next; q < rewritten.length; q++)
+			body.add(rewritten[q]);
+		return body;
+	}
+
+	/**
+	 * Is the code from p to the JUMP at j a loop that is only entered at p,
+	 * from the statement before it, and that contains no other loop?
+	 */
+	private boolean isInnermostLoop(int p, int j) {
+		if (in.get(cfg.blockOf(p))==null)
+			return false;
+		if (p > 0 && rewritten[p-1].isJump())
+			return false;
+		for (int q = 0; q < rewritten.length; q++) {
+			IRStm stm = rewritten[q];
+			if (!stm.isJump())
+				continue;
+			boolean inside = p <= q && q <= j;
+			if (inside && ControlFlow.target(stm)==null && !(stm instanceof CJUMP))
+				return false;
+			for (Label target : ControlFlow.targets(stm)) {
+				Integer position = cfg.position(target);
+				if (!inside && position!=null && p <= position && position <= j)
+					return false;
+			}
+		}
+		// Without the header, there must be no cycles
+		int[] state = new int[cfg.size()];
+		for (int b = cfg.blockOf(p)+1; b <= cfg.blockOf(j); b++) {
+			if (hasCycle(b, p, j, state))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Depth first search of the blocks after the header of the loop from p
+	 * to j. The state of a block is 0 before it is visited, 1 while its
+	 * successors are visited, and 2 after.
+	 */
+	private boolean hasCycle(int b, int p, int j, int[] state) {
+		if (state[b]!=0)
+			return state[b]==1;
+		state[b] = 1;
+		for (int s : cfg.succs[b]) {
+			if (s > cfg.blockOf(p) && s <= cfg.blockOf(j) && hasCycle(s, p, j, state))
+				return true;
+		}
+		state[b] = 2;
+		return false;
+	}
+
+	/**
+	 * Does the bound have the same value all through the loop from p to j,
+	 * and a value when the loop is entered?
+	 */
+	private boolean isInvariant(Bound bound, int p, int j) {
+		HashMap<Temp, Fact> entry = in.get(cfg.blockOf(p));
+		for (Temp t : bound.temps) {
+			if (!entry.containsKey(t))
+				return false;
+		}
+		for (int q = p; q <= j; q++) {
+			IRStm stm = cfg.stms[q];
+			if (stm instanceof MOVE) {
+				MOVE move = (MOVE) stm;
+				if (move.dst instanceof TEMP && bound.temps.contains(((TEMP) move.dst).temp))
+					return false;
+				if (move.dst instanceof MEM && clobbers(((MEM) move.dst).exp, bound))
+					return false;
+			}
+			if (!bound.offsets.isEmpty() && Aliasing.writesMemory(stm))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add checks that go to slow if a pointer that evaluating the bound reads
+	 * from is null (the loop may not have read from it). Only pointers loaded
+	 * from memory can be null, the frame pointer isn't checked.
+	 */
+	private void checkValue(Bound bound, Label slow, Set<String> nonNull, List<IRStm> body) {
+		checkPointers(bound.exp, slow, nonNull, body);
+		if (bound.isLength)
+			checkNotNull(bound.exp, slow, nonNull, body);
+	}
+
+	private void checkPointers(IRExp exp, Label slow, Set<String> nonNull, List<IRStm> body) {
+		if (exp instanceof MEM) {
+			IRExp pointer = Aliasing.pointerOf(((MEM) exp).exp);
+			checkPointers(pointer, slow, nonNull, body);
+			checkNotNull(pointer, slow, nonNull, body);
+		}
+		else if (exp instanceof BINOP) {
+			checkPointers(((BINOP) exp).getLeft(), slow, nonNull, body);
+			checkPointers(((BINOP) exp).getRight(), slow, nonNull, body);
+		}
+	}
+
+	private void checkNotNull(IRExp pointer, Label slow, Set<String> nonNull, List<IRStm> body) {
+		if (isFrameAddress(pointer))
+			return;
+		if (nonNull.add(key(pointer, new HashSet<Temp>(), new HashSet<Integer>()))) {
+			Label ok = Label.generate("nonnull");
+			body.add(IR.CJUMP(RelOp.EQ, copy(pointer), IR.CONST(0), slow, ok));
+			body.add(IR.LABEL(ok));
+		}
+	}
+
+	private IRExp value(Bound bound) {
+		if (bound.isLength)
+			return IR.MEM(IR.MINUS(copy(bound.exp), wordSize));
+		return copy(bound.exp);
+	}
+
+	/**
+	 * Add a copy of the loop from p to j, with new labels, and without the
+	 * guarded checks.
+	 */
+	private void copyLoop(int p, int j, Set<Integer> guarded, List<IRStm> body) {
+		HashMap<Label, Label> renamed = new HashMap<Label, Label>();
+		for (int q = p; q <= j; q++) {
+			if (rewritten[q] instanceof LABEL) {
+				Label label = ((LABEL) rewritten[q]).getLabel();
+				renamed.put(label, Label.generate(label.toString()));
+			}
+		}
+		for (int q = p; q <= j; q++) {
+			IRStm stm = rewritten[q];
+			if (guarded.contains(q))
+				body.add(IR.JUMP(rename(((CJUMP) stm).getTrueLabel(), renamed)));
+			else if (stm instanceof LABEL)
+				body.add(IR.LABEL(rename(((LABEL) stm).getLabel(), renamed)));
+			else if (stm instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) stm;
+				body.add(IR.CJUMP(cjump.getOp(), copy(cjump.getLeft()), copy(cjump.getRight()),
+						rename(cjump.getTrueLabel(), renamed), rename(cjump.getFalseLabel(), renamed)));
+			}
+			else if (ControlFlow.target(stm)!=null)
+				body.add(IR.JUMP(rename(ControlFlow.target(stm), renamed)));
+			else
+				body.add(stm.build(copy(stm.kids())));
+		}
+	}
+
+	private static Label rename(Label label, Map<Label, Label> renamed) {
+		Label result = renamed.get(label);
+		return result==null ? label : result;
+	}
+
+	private static IRExp copy(IRExp exp) {
+		return exp.build(copy(exp.kids()));
+	}
+
+	private static List<IRExp> copy(List<IRExp> exps) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(copy(exp));
+		return result;
+	}
+
+}
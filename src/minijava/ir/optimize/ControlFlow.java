@@ -0,0 +1,448 @@
+package minijava.ir.optimize;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import minijava.analysis.BlockGraph;
+import minijava.analysis.util.graph.Graph;
+import minijava.analysis.util.graph.Node;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.util.List;
+
+/**
+ * The basic blocks of a linearized procedure body, and the control flow
+ * between them. The statements are kept in an array, and a block is a range
+ * of positions in it: a block starts at the first statement, at a LABEL,
+ * and after a jump.
+ * <p>
+ * Jumps to labels that are not in the body (e.g. to the done label of the
+ * procedure) are not edges of the graph.
+ * <p>
+ * The dominators of the blocks, and the natural loops, are found with a
+ * {@link BlockGraph} of the blocks.
+ */
+class ControlFlow {
+
+	/**
+	 * A natural loop: the blocks from which a back edge to the header can be
+	 * reached without going through the header (the loops of back edges to
+	 * the same header are one loop).
+	 */
+	static class Loop {
+		final int header;
+		final BitSet blocks = new BitSet();
+		/**
+		 * The blocks with a back edge to the header.
+		 */
+		final ArrayList<Integer> latches = new ArrayList<Integer>();
+
+		Loop(int header) {
+			this.header = header;
+			blocks.set(header);
+		}
+
+		boolean contains(int block) {
+			return blocks.get(block);
+		}
+	}
+
+	final IRStm[] stms;
+
+	/**
+	 * For each block, the position of its first statement, and the position
+	 * after its last statement.
+	 */
+	final int[] start;
+	final int[] end;
+
+	final int[][] succs;
+	final int[][] preds;
+
+	private final int[] blockOf;
+	private final HashMap<Label, Integer> positions = new HashMap<Label, Integer>();
+
+	private BlockGraph<Integer> blockGraph;
+	private int[] chainOf;
+	private int[] chainPosition;
+
+	ControlFlow(List<IRStm> body) {
+		stms = new IRStm[body.size()];
+		int i = 0;
+		for (IRStm stm : body) {
+			if (stm instanceof LABEL)
+				positions.put(((LABEL) stm).getLabel(), i);
+			stms[i++] = stm;
+		}
+
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		blockOf = new int[stms.length];
+		for (i = 0; i < stms.length; i++) {
+			if (i==0 || stms[i] instanceof LABEL || stms[i-1].isJump())
+				starts.add(i);
+			blockOf[i] = starts.size()-1;
+		}
+		int blocks = starts.size();
+		start = new int[blocks];
+		end = new int[blocks];
+		for (int b = 0; b < blocks; b++) {
+			start[b] = starts.get(b);
+			end[b] = b+1 < blocks ? starts.get(b+1) : stms.length;
+		}
+
+		ArrayList<LinkedHashSet<Integer>> predSets = new ArrayList<LinkedHashSet<Integer>>();
+		for (int b = 0; b < blocks; b++)
+			predSets.add(new LinkedHashSet<Integer>());
+		succs = new int[blocks][];
+		for (int b = 0; b < blocks; b++) {
+			LinkedHashSet<Integer> succ = new LinkedHashSet<Integer>();
+			IRStm last = stms[end[b]-1];
+			if (last.isJump()) {
+				for (Label target : targets(last)) {
+					Integer position = positions.get(target);
+					if (position!=null)
+						succ.add(blockOf[position]);
+				}
+			}
+			else if (b+1 < blocks)
+				succ.add(b+1);
+			succs[b] = toArray(succ);
+			for (int s : succ)
+				predSets.get(s).add(b);
+		}
+		preds = new int[blocks][];
+		for (int b = 0; b < blocks; b++)
+			preds[b] = toArray(predSets.get(b));
+	}
+
+	private static int[] toArray(LinkedHashSet<Integer> set) {
+		int[] result = new int[set.size()];
+		int i = 0;
+		for (int x : set)
+			result[i++] = x;
+		return result;
+	}
+
+	int size() {
+		return start.length;
+	}
+
+	int blockOf(int position) {
+		return blockOf[position];
+	}
+
+	/**
+	 * The position of a LABEL in the body, or null if it is not in the body.
+	 */
+	Integer position(Label label) {
+		return positions.get(label);
+	}
+
+	/**
+	 * Does the label start a block like the one the translator makes for a
+	 * failed bounds check, that sets the result of the array access to 0 and
+	 * jumps past it?
+	 */
+	boolean isCheckFailure(Label label) {
+		Integer p = position(label);
+		return p!=null && p+2 < stms.length
+			&& stms[p+1] instanceof MOVE
+			&& ((MOVE) stms[p+1]).dst instanceof TEMP
+			&& ((MOVE) stms[p+1]).src.isCONST(0)
+			&& target(stms[p+2])!=null;
+	}
+
+	/**
+	 * The blocks as nodes of a graph, to find the dominators and the loops
+	 * with a {@link BlockGraph}. It merges straight line sequences of blocks
+	 * into one of its blocks, so for each of our blocks we keep the block of
+	 * the BlockGraph it is in, and its position in that block.
+	 */
+	private BlockGraph<Integer> blockGraph() {
+		if (blockGraph==null) {
+			Graph<Integer> graph = new Graph<Integer>();
+			ArrayList<Node<Integer>> nodes = new ArrayList<Node<Integer>>();
+			for (int b = 0; b < size(); b++)
+				nodes.add(graph.newNode(b));
+			for (int b = 0; b < size(); b++) {
+				for (int s : succs[b])
+					graph.addEdge(nodes.get(b), nodes.get(s));
+			}
+			blockGraph = new BlockGraph<Integer>(graph);
+			chainOf = new int[size()];
+			chainPosition = new int[size()];
+			for (int c = 0; c < blockGraph.size(); c++) {
+				int[] members = blockGraph.nodes(c);
+				for (int i = 0; i < members.length; i++) {
+					int b = blockGraph.node(members[i]).wrappee();
+					chainOf[b] = c;
+					chainPosition[b] = i;
+				}
+			}
+		}
+		return blockGraph;
+	}
+
+	/**
+	 * Does every path from the start to block b go through block a (a block
+	 * dominates itself)? A block that can't be reached is dominated by none.
+	 */
+	boolean dominates(int a, int b) {
+		BlockGraph<Integer> graph = blockGraph();
+		if (!graph.dominates(0, chainOf[b]))
+			return false;
+		if (chainOf[a]==chainOf[b])
+			return chainPosition[a] <= chainPosition[b];
+		return graph.dominates(chainOf[a], chainOf[b]);
+	}
+
+	/**
+	 * The natural loops of the body, the loops with fewer blocks first (so
+	 * that an inner loop comes before the loops around it).
+	 */
+	ArrayList<Loop> loops() {
+		BlockGraph<Integer> graph = blockGraph();
+		ArrayList<Loop> result = new ArrayList<Loop>();
+		for (BlockGraph.Loop chains : graph.loops()) {
+			Loop loop = new Loop(graph.leader(chains.header()).wrappee());
+			for (int c : chains.blocks()) {
+				for (int n : graph.nodes(c))
+					loop.blocks.set(graph.node(n).wrappee());
+			}
+			for (int c : chains.latches())
+				loop.latches.add(graph.last(c).wrappee());
+			result.add(loop);
+		}
+		return result;
+	}
+
+	boolean inLoop(Loop loop, int position) {
+		return loop.contains(blockOf[position]);
+	}
+
+	boolean inLoop(Loop loop, Label label) {
+		Integer position = positions.get(label);
+		return position!=null && inLoop(loop, position);
+	}
+
+	/**
+	 * Can a preheader be added to the loop? Not if it starts without a
+	 * LABEL, or if the header may be the target of a computed jump (which
+	 * can't be redirected to the preheader).
+	 */
+	boolean canAddPreheader(Loop loop) {
+		if (!(stms[start[loop.header]] instanceof LABEL))
+			return false;
+		Label header = ((LABEL) stms[start[loop.header]]).getLabel();
+		for (int q = 0; q < stms.length; q++) {
+			IRStm stm = stms[q];
+			if (stm.isJump() && target(stm)==null && !(stm instanceof CJUMP)
+					&& (inLoop(loop, q) || targets(stm).contains(header)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The statement at q with the jumps to the header of the loop redirected
+	 * to the preheader, if it is outside the loop. The statements in the
+	 * preheader go before the header, the statement before them must then
+	 * not fall into them from inside the loop (see {@link #fallsIntoHeader}).
+	 */
+	IRStm retarget(Loop loop, int q, Label preheader) {
+		IRStm stm = stms[q];
+		if (inLoop(loop, q))
+			return stm;
+		Label header = ((LABEL) stms[start[loop.header]]).getLabel();
+		if (header.equals(target(stm)))
+			return IR.JUMP(preheader);
+		if (stm instanceof CJUMP) {
+			CJUMP cjump = (CJUMP) stm;
+			if (cjump.getTrueLabel().equals(header) || cjump.getFalseLabel().equals(header))
+				return IR.CJUMP(cjump.getOp(), cjump.getLeft(), cjump.getRight(),
+						cjump.getTrueLabel().equals(header) ? preheader : cjump.getTrueLabel(),
+						cjump.getFalseLabel().equals(header) ? preheader : cjump.getFalseLabel());
+		}
+		return stm;
+	}
+
+	/**
+	 * Does the statement before the header belong to the loop, and fall
+	 * through into the header? A preheader then needs a jump to the header
+	 * before it.
+	 */
+	boolean fallsIntoHeader(Loop loop) {
+		int p = start[loop.header];
+		return p > 0 && !stms[p-1].isJump() && inLoop(loop, p-1);
+	}
+
+	/**
+	 * The temps that have a value at the start of a block: the ones that are
+	 * assigned on every path to it, and the ones that are never assigned (e.g.
+	 * the frame pointer).
+	 */
+	HashSet<Temp> valued(int block) {
+		HashSet<Temp> anywhere = new HashSet<Temp>();
+		for (IRStm stm : stms) {
+			if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+				anywhere.add(((TEMP) ((MOVE) stm).dst).temp);
+		}
+		// The temps assigned at the start of each block, null if not reached yet
+		HashMap<Integer, HashSet<Temp>> in = new HashMap<Integer, HashSet<Temp>>();
+		in.put(0, new HashSet<Temp>());
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b = 0; b < size(); b++) {
+				if (!in.containsKey(b))
+					continue;
+				HashSet<Temp> out = new HashSet<Temp>(in.get(b));
+				for (int q = start[b]; q < end[b]; q++) {
+					if (stms[q] instanceof MOVE && ((MOVE) stms[q]).dst instanceof TEMP)
+						out.add(((TEMP) ((MOVE) stms[q]).dst).temp);
+				}
+				for (int s : succs[b]) {
+					HashSet<Temp> old = in.get(s);
+					if (old==null) {
+						in.put(s, new HashSet<Temp>(out));
+						changed = true;
+					}
+					else if (old.retainAll(out))
+						changed = true;
+				}
+			}
+		}
+		HashSet<Temp> result = in.containsKey(block) ? in.get(block) : new HashSet<Temp>();
+		for (IRStm stm : stms) {
+			for (IRExp kid : stm.kids())
+				addUnassigned(kid, anywhere, result);
+		}
+		return result;
+	}
+
+	private static void addUnassigned(IRExp exp, Set<Temp> anywhere, Set<Temp> result) {
+		if (exp instanceof TEMP && !anywhere.contains(((TEMP) exp).temp))
+			result.add(((TEMP) exp).temp);
+		for (IRExp kid : exp.kids())
+			addUnassigned(kid, anywhere, result);
+	}
+
+	/**
+	 * May the value a temp has at the start of a block be used later? A temp
+	 * is dead after a jump out of the body.
+	 */
+	boolean isLive(Temp t, int block) {
+		return live(stms, t)[block];
+	}
+
+	/**
+	 * May the value of a temp after the statement at a position be used
+	 * later, in a copy of the statements that has the same jumps (and null
+	 * for the statements that are removed)?
+	 */
+	boolean isLiveAfter(IRStm[] stms, Temp t, int position) {
+		int b = blockOf[position];
+		for (int q = position+1; q < end[b]; q++) {
+			if (reads(stms[q], t))
+				return true;
+			if (assigns(stms[q], t))
+				return false;
+		}
+		boolean[] live = live(stms, t);
+		for (int s : succs[b]) {
+			if (live[s])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * For each block, is the temp live at its start?
+	 */
+	private boolean[] live(IRStm[] stms, Temp t) {
+		// For each block: does it read t before assigning it, does it assign it
+		boolean[] live = new boolean[size()];
+		boolean[] kills = new boolean[size()];
+		for (int b = 0; b < size(); b++) {
+			for (int q = start[b]; q < end[b] && !kills[b]; q++) {
+				live[b] |= reads(stms[q], t);
+				kills[b] = assigns(stms[q], t);
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int b = size()-1; b >= 0; b--) {
+				if (live[b] || kills[b])
+					continue;
+				for (int s : succs[b])
+					live[b] |= live[s];
+				changed |= live[b];
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Does the statement read the temp (null is a removed statement)?
+	 */
+	static boolean reads(IRStm stm, Temp t) {
+		if (stm==null)
+			return false;
+		for (IRExp kid : stm.kids()) {
+			if (reads(kid, t))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean assigns(IRStm stm, Temp t) {
+		return stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP && ((TEMP) ((MOVE) stm).dst).temp==t;
+	}
+
+	/**
+	 * Does the expression read the temp?
+	 */
+	private static boolean reads(IRExp exp, Temp t) {
+		if (exp instanceof TEMP)
+			return ((TEMP) exp).temp==t;
+		for (IRExp kid : exp.kids()) {
+			if (reads(kid, t))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The label a JUMP(NAME(label)) goes to, or null for any other statement.
+	 */
+	static Label target(IRStm stm) {
+		if (stm instanceof JUMP && ((JUMP) stm).getExp() instanceof NAME)
+			return ((NAME) ((JUMP) stm).getExp()).getLabel();
+		return null;
+	}
+
+	/**
+	 * The labels a jump may go to.
+	 */
+	static List<Label> targets(IRStm jump) {
+		Label target = target(jump);
+		if (target!=null)
+			return List.list(target);
+		return jump.getJumpTargets();
+	}
+
+}
@@ -0,0 +1,503 @@
+package minijava.ir.optimize;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CJUMP.RelOp;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.TEMP;
+import minijava.util.List;
+
+/**
+ * Strength reduction of induction variables on the linearized IR of a
+ * procedure.
+ * <p>
+ * The address of an array element is base + index * wordSize. In a loop
+ * where the index is a basic induction variable i (its only assignment in
+ * the loop is i = i + c, or i - c) and the base is a temp b that isn't
+ * assigned in the loop, the address goes up by c * wordSize each time i is
+ * updated. This pass keeps b + i * wordSize in a new pointer temp p, that is
+ * computed in a preheader and bumped right after the update of i, and
+ * replaces the addresses of the elements at i, at i + d, and at a temp k
+ * that was assigned i + d (with the current i) with p + d * wordSize.
+ * <p>
+ * If i is then only read by its update and by tests i < n (n an invariant
+ * temp or a constant), and not after the loop, the tests are replaced with
+ * tests of p against b + n * wordSize, and the update of i is removed
+ * (linear function test replacement). The tests compare addresses like
+ * ints, which assumes that b + n * wordSize doesn't wrap around. So this is
+ * only done if the loop has no bounds checks of i left: then i is known to
+ * stay within the array (or next to it), and so is n. The bounds checks
+ * themselves are never replaced, they read i, which may be anything.
+ * <p>
+ * This runs after the other passes: the addresses it makes don't look like
+ * the addresses of elements any more (see {@link Aliasing}).
+ */
+class InductionVariables {
+
+	/**
+	 * What the pass did to a procedure.
+	 */
+	static class Result {
+		int loops;
+		int reduced;
+		int tests;
+	}
+
+	/**
+	 * A basic induction variable: the position of its update in the loop, and
+	 * what it adds.
+	 */
+	private static class Basic {
+		final Temp temp;
+		final int update;
+		final int step;
+
+		Basic(Temp temp, int update, int step) {
+			this.temp = temp;
+			this.update = update;
+			this.step = step;
+		}
+	}
+
+	/**
+	 * A temp that is assigned i + offset, at a position in the loop.
+	 */
+	private static class Derived {
+		final Basic iv;
+		final int offset;
+		final int position;
+
+		Derived(Basic iv, int offset, int position) {
+			this.iv = iv;
+			this.offset = offset;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * The pointer temp that holds base + i * scale in the loop.
+	 */
+	private static class Family {
+		final Temp base;
+		final Basic iv;
+		final int scale;
+		final Temp pointer = new Temp();
+
+		Family(Temp base, Basic iv, int scale) {
+			this.base = base;
+			this.iv = iv;
+			this.scale = scale;
+		}
+	}
+
+	private final Result result;
+
+	// The loop being looked at
+
+	private ControlFlow cfg;
+	private ControlFlow.Loop loop;
+	private final LinkedHashMap<Temp, Integer> assignments = new LinkedHashMap<Temp, Integer>();
+	private final HashSet<Temp> valued = new HashSet<Temp>();
+	private final LinkedHashMap<Temp, Basic> basics = new LinkedHashMap<Temp, Basic>();
+	private final LinkedHashMap<Temp, Derived> derived = new LinkedHashMap<Temp, Derived>();
+	private final ArrayList<Family> families = new ArrayList<Family>();
+	private int reduced;
+
+	private InductionVariables(Result result) {
+		this.result = result;
+	}
+
+	static List<IRStm> reduce(List<IRStm> body, Result result) {
+		InductionVariables pass = new InductionVariables(result);
+		HashSet<Label> done = new HashSet<Label>();
+		while (true) {
+			ControlFlow cfg = new ControlFlow(body);
+			ControlFlow.Loop next = null;
+			for (ControlFlow.Loop loop : cfg.loops()) {
+				IRStm first = cfg.stms[cfg.start[loop.header]];
+				if (cfg.canAddPreheader(loop) && done.add(((LABEL) first).getLabel())) {
+					next = loop;
+					break;
+				}
+			}
+			if (next==null)
+				return body;
+			body = pass.reduce(cfg, next, body);
+		}
+	}
+
+	/**
+	 * Reduce the induction variables of a loop, and return the new body (or
+	 * the old one if nothing is changed).
+	 */
+	private List<IRStm> reduce(ControlFlow cfg, ControlFlow.Loop loop, List<IRStm> body) {
+		this.cfg = cfg;
+		this.loop = loop;
+		assignments.clear();
+		basics.clear();
+		derived.clear();
+		families.clear();
+		reduced = 0;
+
+		for (int q = 0; q < cfg.stms.length; q++) {
+			Temp t = assigned(q);
+			if (t!=null && inLoop(q))
+				assignments.put(t, assignments.containsKey(t) ? -1 : q);
+		}
+		valued.clear();
+		valued.addAll(cfg.valued(loop.header));
+		for (Temp t : assignments.keySet())
+			findBasic(t);
+		for (Temp t : assignments.keySet())
+			findDerived(t);
+		if (basics.isEmpty())
+			return body;
+
+		IRStm[] stms = new IRStm[cfg.stms.length];
+		for (int q = 0; q < stms.length; q++)
+			stms[q] = inLoop(q) ? reduce(cfg.stms[q], q) : cfg.stms[q];
+		if (families.isEmpty())
+			return body;
+		removeDeadAssignments(stms);
+		LinkedHashMap<Temp, IRExp> limits = new LinkedHashMap<Temp, IRExp>();
+		int tests = replaceTests(stms, limits);
+
+		int p = cfg.start[loop.header];
+		Label header = ((LABEL) cfg.stms[p]).getLabel();
+		Label preheader = Label.generate("preheader");
+		List<IRStm> result = List.empty();
+		for (int q = 0; q < stms.length; q++) {
+			if (q==p)
+				addPreheader(header, preheader, limits, result);
+			if (!inLoop(q)) {
+				result.add(cfg.retarget(loop, q, preheader));
+				continue;
+			}
+			if (stms[q]!=null)
+				result.add(stms[q]);
+			for (Family family : families) {
+				if (family.iv.update==q)
+					result.add(IR.MOVE(family.pointer, IR.PLUS(IR.TEMP(family.pointer), family.iv.step * family.scale)));
+			}
+		}
+		this.result.loops++;
+		this.result.reduced += reduced;
+		this.result.tests += tests;
+		return result;
+	}
+
+	private boolean inLoop(int position) {
+		return cfg.inLoop(loop, position);
+	}
+
+	/**
+	 * The temp assigned by the statement at q, or null.
+	 */
+	private Temp assigned(int q) {
+		IRStm stm = cfg.stms[q];
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+			return ((TEMP) ((MOVE) stm).dst).temp;
+		return null;
+	}
+
+	/**
+	 * Is the temp assigned once in the loop, to i + c (or i - c)? Then it is
+	 * a basic induction variable, if it has a value when the loop is entered.
+	 */
+	private void findBasic(Temp t) {
+		int q = assignments.get(t);
+		if (q < 0 || !valued.contains(t))
+			return;
+		Integer step = offsetFrom(((MOVE) cfg.stms[q]).src, t);
+		if (step!=null && step!=0)
+			basics.put(t, new Basic(t, q, step));
+	}
+
+	/**
+	 * Is the temp assigned once in the loop, to i + d (or i - d) for a basic
+	 * induction variable i?
+	 */
+	private void findDerived(Temp t) {
+		int q = assignments.get(t);
+		if (q < 0 || basics.containsKey(t))
+			return;
+		IRExp src = ((MOVE) cfg.stms[q]).src;
+		for (Basic iv : basics.values()) {
+			Integer offset = offsetFrom(src, iv.temp);
+			if (offset!=null) {
+				derived.put(t, new Derived(iv, offset, q));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * If the expression is t, t + d, d + t or t - d, return the d.
+	 */
+	private static Integer offsetFrom(IRExp exp, Temp t) {
+		if (isTemp(exp, t))
+			return 0;
+		if (!(exp instanceof BINOP))
+			return null;
+		BINOP binop = (BINOP) exp;
+		if (binop.getOp()==Op.PLUS && isTemp(binop.getLeft(), t) && binop.getRight() instanceof CONST)
+			return ((CONST) binop.getRight()).getValue();
+		if (binop.getOp()==Op.PLUS && isTemp(binop.getRight(), t) && binop.getLeft() instanceof CONST)
+			return ((CONST) binop.getLeft()).getValue();
+		if (binop.getOp()==Op.MINUS && isTemp(binop.getLeft(), t) && binop.getRight() instanceof CONST)
+			return -((CONST) binop.getRight()).getValue();
+		return null;
+	}
+
+	private static boolean isTemp(IRExp exp, Temp t) {
+		return exp instanceof TEMP && ((TEMP) exp).temp==t;
+	}
+
+	/**
+	 * Is it a temp that isn't assigned in the loop, and has a value when the
+	 * loop is entered?
+	 */
+	private boolean isInvariant(IRExp exp) {
+		if (!(exp instanceof TEMP))
+			return false;
+		Temp t = ((TEMP) exp).temp;
+		return !assignments.containsKey(t) && valued.contains(t);
+	}
+
+	private IRStm reduce(IRStm stm, int q) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			IRExp dst = move.dst instanceof MEM ? IR.MEM(reduce(((MEM) move.dst).exp, q)) : move.dst;
+			return IR.MOVE(dst, reduce(move.src, q));
+		}
+		if (stm instanceof LABEL)
+			return stm;
+		return stm.build(reduce(stm.kids(), q));
+	}
+
+	private IRExp reduce(IRExp exp, int q) {
+		if (exp instanceof BINOP && ((BINOP) exp).getOp()==Op.PLUS) {
+			BINOP sum = (BINOP) exp;
+			IRExp reduced = reduce(sum.getLeft(), sum.getRight(), q);
+			if (reduced==null)
+				reduced = reduce(sum.getRight(), sum.getLeft(), q);
+			if (reduced!=null)
+				return reduced;
+		}
+		if (exp instanceof MEM)
+			return IR.MEM(reduce(((MEM) exp).exp, q));
+		return exp.build(reduce(exp.kids(), q));
+	}
+
+	private List<IRExp> reduce(List<IRExp> exps, int q) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(reduce(exp, q));
+		return result;
+	}
+
+	/**
+	 * If base + scaled, at position q, is the address base + (i + d) * scale
+	 * for a basic induction variable i, return p + d * scale.
+	 */
+	private IRExp reduce(IRExp base, IRExp scaled, int q) {
+		if (!isInvariant(base) || !(scaled instanceof BINOP) || ((BINOP) scaled).getOp()!=Op.MUL)
+			return null;
+		BINOP mul = (BINOP) scaled;
+		IRExp index = mul.getLeft();
+		if (!(mul.getRight() instanceof CONST)) {
+			if (!(mul.getLeft() instanceof CONST))
+				return null;
+			index = mul.getRight();
+		}
+		int scale = ((CONST) (index==mul.getLeft() ? mul.getRight() : mul.getLeft())).getValue();
+		for (Basic iv : basics.values()) {
+			Integer offset = offsetFrom(index, iv.temp);
+			if (offset==null && index instanceof TEMP) {
+				Derived k = derived.get(((TEMP) index).temp);
+				if (k!=null && k.iv==iv && isCurrent(k, q))
+					offset = k.offset;
+			}
+			if (offset!=null && scale!=0) {
+				reduced++;
+				return IR.PLUS(IR.TEMP(family(((TEMP) base).temp, iv, scale).pointer), offset * scale);
+			}
+		}
+		return null;
+	}
+
+	private Family family(Temp base, Basic iv, int scale) {
+		for (Family family : families) {
+			if (family.base==base && family.iv==iv && family.scale==scale)
+				return family;
+		}
+		Family family = new Family(base, iv, scale);
+		families.add(family);
+		return family;
+	}
+
+	/**
+	 * Does the derived temp hold i + d at position q: is it assigned on every
+	 * path to q, and is i not updated on a path from the assignment to q?
+	 */
+	private boolean isCurrent(Derived k, int q) {
+		int def = k.position;
+		int update = k.iv.update;
+		if (cfg.blockOf(def)==cfg.blockOf(q) ? def > q : !cfg.dominates(cfg.blockOf(def), cfg.blockOf(q)))
+			return false;
+		return !(reaches(def, update, def) && reaches(update, q, def));
+	}
+
+	/**
+	 * Is there a path in the loop from the statement at position from to the
+	 * one at position to, that doesn't go through the one at avoid?
+	 */
+	private boolean reaches(int from, int to, int avoid) {
+		int b = cfg.blockOf(from);
+		for (int q = from+1; q < cfg.end[b]; q++) {
+			if (q==to)
+				return true;
+			if (q==avoid)
+				return false;
+		}
+		BitSet seen = new BitSet();
+		ArrayList<Integer> todo = new ArrayList<Integer>();
+		for (int s : cfg.succs[b])
+			todo.add(s);
+		while (!todo.isEmpty()) {
+			int x = todo.remove(todo.size()-1);
+			if (seen.get(x) || !loop.contains(x))
+				continue;
+			seen.set(x);
+			boolean through = true;
+			for (int q = cfg.start[x]; q < cfg.end[x] && through; q++) {
+				if (q==to)
+					return true;
+				through = q!=avoid;
+			}
+			if (through) {
+				for (int s : cfg.succs[x])
+					todo.add(s);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replace the tests of the induction variables that are only used to
+	 * index arrays with tests of their pointers, and remove their updates.
+	 * The limits of the pointers are computed into new temps.
+	 */
+	private int replaceTests(IRStm[] stms, LinkedHashMap<Temp, IRExp> limits) {
+		int tests = 0;
+		HashSet<Basic> done = new HashSet<Basic>();
+		for (Family family : families) {
+			Basic iv = family.iv;
+			if (!done.add(iv) || !isOnlyTested(iv, stms) || isLiveAfter(iv.temp))
+				continue;
+			for (int q = 0; q < stms.length; q++) {
+				if (!inLoop(q) || q==iv.update || !ControlFlow.reads(stms[q], iv.temp))
+					continue;
+				CJUMP test = (CJUMP) stms[q];
+				boolean left = isTemp(test.getLeft(), iv.temp);
+				IRExp bound = left ? test.getRight() : test.getLeft();
+				Temp lim = new Temp();
+				if (bound instanceof CONST)
+					limits.put(lim, IR.PLUS(IR.TEMP(family.base), ((CONST) bound).getValue() * family.scale));
+				else
+					limits.put(lim, IR.PLUS(IR.TEMP(family.base), IR.MUL(bound, family.scale)));
+				// The addresses are in the same order as the indices (the other
+				// way around if the scale is negative)
+				IRExp pointer = IR.TEMP(family.pointer);
+				boolean same = left==(family.scale > 0);
+				stms[q] = IR.CJUMP(test.getOp(), same ? pointer : IR.TEMP(lim), same ? IR.TEMP(lim) : pointer,
+						test.getTrueLabel(), test.getFalseLabel());
+				tests++;
+			}
+			stms[iv.update] = null;
+		}
+		return tests;
+	}
+
+	/**
+	 * Is the induction variable only read by its update, and by LT and GE
+	 * tests against an invariant temp or a constant that aren't bounds
+	 * checks?
+	 */
+	private boolean isOnlyTested(Basic iv, IRStm[] stms) {
+		for (int q = 0; q < stms.length; q++) {
+			if (!inLoop(q) || q==iv.update || !ControlFlow.reads(stms[q], iv.temp))
+				continue;
+			if (!(stms[q] instanceof CJUMP))
+				return false;
+			CJUMP test = (CJUMP) stms[q];
+			if (test.getOp()!=RelOp.LT && test.getOp()!=RelOp.GE)
+				return false;
+			// A bounds check must test i itself: p wraps around where i doesn't
+			if (cfg.isCheckFailure(test.getTrueLabel()) || cfg.isCheckFailure(test.getFalseLabel()))
+				return false;
+			IRExp bound;
+			if (isTemp(test.getLeft(), iv.temp))
+				bound = test.getRight();
+			else if (isTemp(test.getRight(), iv.temp))
+				bound = test.getLeft();
+			else
+				return false;
+			if (!(bound instanceof CONST) && !isInvariant(bound))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * May the value of the temp be used after the loop is left?
+	 */
+	private boolean isLiveAfter(Temp t) {
+		for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b+1)) {
+			for (int s : cfg.succs[b]) {
+				if (!loop.contains(s) && cfg.isLive(t, s))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the assignments of the derived temps that are no longer read.
+	 */
+	private void removeDeadAssignments(IRStm[] stms) {
+		for (Derived k : derived.values()) {
+			Temp t = ((TEMP) ((MOVE) cfg.stms[k.position]).dst).temp;
+			if (!cfg.isLiveAfter(stms, t, k.position))
+				stms[k.position] = null;
+		}
+	}
+
+	/**
+	 * Add the preheader of the loop with this header.
+	 */
+	private void addPreheader(Label header, Label preheader, LinkedHashMap<Temp, IRExp> limits, List<IRStm> body) {
+		if (cfg.fallsIntoHeader(loop))
+			body.add(IR.JUMP(header));
+		body.add(IR.LABEL(preheader));
+		for (Family family : families)
+			body.add(IR.MOVE(family.pointer, IR.PLUS(IR.TEMP(family.base), IR.MUL(IR.TEMP(family.iv.temp), family.scale))));
+		for (Temp lim : limits.keySet())
+			body.add(IR.MOVE(lim, limits.get(lim)));
+	}
+
+}
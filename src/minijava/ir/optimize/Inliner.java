@@ -0,0 +1,529 @@
+package minijava.ir.optimize;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import minijava.ir.frame.Access;
+import minijava.ir.frame.Frame;
+import minijava.ir.interp.Profile;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.CALL;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.ESEQ;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.SEQ;
+import minijava.ir.tree.TEMP;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+/**
+ * Inlining of the calls of the procedures of the program, in the IR tree of
+ * a procedure (before it is linearized).
+ * <p>
+ * A call CALL(NAME f, args) becomes ESEQ(SEQ(MOVE(a0, arg0), ..., body),
+ * TEMP r): the arguments are evaluated into fresh temps, in order, and the
+ * body of f (as produced by the translator) is copied, with its temps and
+ * the labels it defines renamed, its formals replaced with the argument
+ * temps, and the value it moves into the return value register moved into r
+ * instead. The moves that save and restore the callee save registers are
+ * left out, the caller already does that. A body that uses the frame
+ * pointer for anything but its formals, or any other register, isn't
+ * inlined.
+ * <p>
+ * What is inlined is limited by a budget: only bodies of at most maxSize IR
+ * nodes are copied, the calls in the copies are inlined up to maxDepth
+ * levels deep, and a procedure grows by at most maxGrowth nodes. With a
+ * profile of the program, the calls that never ran are left alone, and the
+ * calls that ran most often get the budget first.
+ * <p>
+ * A call of a procedure that is already being inlined (or the procedure
+ * itself) closes a recursive cycle, and is never inlined, so copying
+ * always ends.
+ */
+class Inliner {
+
+	/**
+	 * What the pass did to a procedure.
+	 */
+	static class Result {
+		/**
+		 * The calls of procedures of the program that were looked at (also the
+		 * ones in the copied bodies).
+		 */
+		int calls;
+		/**
+		 * The calls that were replaced with a copy of the body.
+		 */
+		int inlined;
+		/**
+		 * The calls that weren't inlined because they are recursive.
+		 */
+		int recursive;
+		/**
+		 * The number of IR nodes that were copied.
+		 */
+		int growth;
+	}
+
+	/**
+	 * The body of a procedure, ready to be copied.
+	 */
+	private static class Body {
+		final Label label;
+		final Frame frame;
+		/**
+		 * The statements, without the saves and restores of the callee save
+		 * registers.
+		 */
+		final ArrayList<IRStm> stms = new ArrayList<IRStm>();
+		/**
+		 * For each formal in memory, its address (null for one in a temp).
+		 */
+		final ArrayList<IRExp> formalAddresses = new ArrayList<IRExp>();
+		/**
+		 * The formals in temps, and their positions.
+		 */
+		final HashMap<Temp, Integer> formalTemps = new HashMap<Temp, Integer>();
+		/**
+		 * The labels the body defines.
+		 */
+		final HashSet<Label> labels = new HashSet<Label>();
+		int size;
+
+		Body(ProcFragment proc) {
+			this.label = proc.getLabel();
+			this.frame = proc.getFrame();
+		}
+
+		int formals() {
+			return formalAddresses.size();
+		}
+	}
+
+	private final Map<Label, ProcFragment> procs;
+	private final int maxSize;
+	private final int maxDepth;
+	private final int maxGrowth;
+	private final Profile profile;
+	private final Result result;
+
+	/**
+	 * The bodies that were looked at (null for the ones that can't be
+	 * inlined).
+	 */
+	private final HashMap<Label, Body> bodies = new HashMap<Label, Body>();
+
+	/**
+	 * The procedure and the procedures that are being inlined into it, the
+	 * outermost first.
+	 */
+	private final ArrayList<Label> stack = new ArrayList<Label>();
+
+	Inliner(Map<Label, ProcFragment> procs, int maxSize, int maxDepth, int maxGrowth,
+			Profile profile, Result result) {
+		this.procs = procs;
+		this.maxSize = maxSize;
+		this.maxDepth = maxDepth;
+		this.maxGrowth = maxGrowth;
+		this.profile = profile;
+		this.result = result;
+	}
+
+	IRStm inline(ProcFragment proc, IRStm body) {
+		stack.add(proc.getLabel());
+		return inline(body, proc.getLabel(), 1);
+	}
+
+	/**
+	 * A call that may be inlined.
+	 */
+	private static class Site {
+		final CALL call;
+		final Body body;
+		final int count;
+
+		Site(CALL call, Body body, int count) {
+			this.call = call;
+			this.body = body;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Inline the calls in a tree of a procedure (or of a copy of its body),
+	 * that are depth levels deep.
+	 */
+	private IRStm inline(IRStm stm, Label caller, int depth) {
+		if (depth > maxDepth)
+			return stm;
+		ArrayList<Site> sites = new ArrayList<Site>();
+		findSites(stm, caller, sites);
+		if (profile!=null) {
+			Collections.sort(sites, new Comparator<Site>() {
+				@Override
+				public int compare(Site a, Site b) {
+					return b.count - a.count;
+				}
+			});
+		}
+		IdentityHashMap<CALL, Body> chosen = new IdentityHashMap<CALL, Body>();
+		for (Site site : sites) {
+			if (result.growth + site.body.size <= maxGrowth) {
+				chosen.put(site.call, site.body);
+				result.growth += site.body.size;
+			}
+		}
+		if (chosen.isEmpty())
+			return stm;
+		return rewrite(stm, chosen, depth);
+	}
+
+	private void findSites(IRStm stm, Label caller, ArrayList<Site> sites) {
+		if (stm instanceof SEQ) {
+			findSites(((SEQ) stm).left, caller, sites);
+			findSites(((SEQ) stm).right, caller, sites);
+		}
+		else {
+			for (IRExp kid : stm.kids())
+				findSites(kid, caller, sites);
+		}
+	}
+
+	private void findSites(IRExp exp, Label caller, ArrayList<Site> sites) {
+		if (exp instanceof ESEQ) {
+			findSites(((ESEQ) exp).stm, caller, sites);
+			findSites(((ESEQ) exp).exp, caller, sites);
+			return;
+		}
+		for (IRExp kid : exp.kids())
+			findSites(kid, caller, sites);
+		if (!(exp instanceof CALL) || !(((CALL) exp).getFunc() instanceof NAME))
+			return;
+		CALL call = (CALL) exp;
+		Label callee = ((NAME) call.getFunc()).getLabel();
+		if (!procs.containsKey(callee))
+			return;
+		result.calls++;
+		if (stack.contains(callee)) {
+			result.recursive++;
+			return;
+		}
+		Body body = body(callee);
+		if (body==null || body.size > maxSize || body.formals()!=call.getArgs().size())
+			return;
+		int count = profile==null ? 0 : profile.getCallCount(caller, callee);
+		if (profile!=null && count==0)
+			return;
+		sites.add(new Site(call, body, count));
+	}
+
+	private IRStm rewrite(IRStm stm, IdentityHashMap<CALL, Body> chosen, int depth) {
+		if (stm instanceof SEQ) {
+			SEQ seq = (SEQ) stm;
+			return new SEQ(rewrite(seq.left, chosen, depth), rewrite(seq.right, chosen, depth));
+		}
+		if (stm instanceof LABEL)
+			return stm;
+		return stm.build(rewrite(stm.kids(), chosen, depth));
+	}
+
+	private List<IRExp> rewrite(List<IRExp> exps, IdentityHashMap<CALL, Body> chosen, int depth) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(rewrite(exp, chosen, depth));
+		return result;
+	}
+
+	private IRExp rewrite(IRExp exp, IdentityHashMap<CALL, Body> chosen, int depth) {
+		if (exp instanceof ESEQ) {
+			ESEQ eseq = (ESEQ) exp;
+			return new ESEQ(rewrite(eseq.stm, chosen, depth), rewrite(eseq.exp, chosen, depth));
+		}
+		Body body = chosen.get(exp);
+		if (body==null)
+			return exp.build(rewrite(exp.kids(), chosen, depth));
+		List<IRExp> args = rewrite(((CALL) exp).getArgs(), chosen, depth);
+		Temp[] temps = new Temp[args.size()];
+		IRStm bind = IR.NOP;
+		for (int i = 0; i < temps.length; i++) {
+			temps[i] = new Temp();
+			bind = IR.SEQ(bind, IR.MOVE(temps[i], args.get(i)));
+		}
+		Temp value = new Temp();
+		IRStm copy = new Copy(body, temps, value).copy();
+		stack.add(body.label);
+		copy = inline(copy, body.label, depth + 1);
+		stack.remove(stack.size() - 1);
+		this.result.inlined++;
+		return IR.ESEQ(IR.SEQ(bind, copy), IR.TEMP(value));
+	}
+
+	/**
+	 * The body of a procedure, or null if it can't be inlined.
+	 */
+	private Body body(Label label) {
+		if (bodies.containsKey(label))
+			return bodies.get(label);
+		Body body = prepare(procs.get(label));
+		bodies.put(label, body);
+		return body;
+	}
+
+	private static Body prepare(ProcFragment proc) {
+		Body body = new Body(proc);
+		Frame frame = proc.getFrame();
+		HashSet<Temp> registers = new HashSet<Temp>();
+		for (Temp reg : frame.registers())
+			registers.add(reg);
+		Temp rv = ((TEMP) frame.RV()).temp;
+
+		ArrayList<IRStm> stms = new ArrayList<IRStm>();
+		flatten(proc.getBody(), stms);
+		HashSet<Temp> saves = new HashSet<Temp>();
+		for (IRStm stm : stms) {
+			if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP && ((MOVE) stm).src instanceof TEMP) {
+				Temp dst = ((TEMP) ((MOVE) stm).dst).temp;
+				Temp src = ((TEMP) ((MOVE) stm).src).temp;
+				if (registers.contains(src) && src!=rv && !registers.contains(dst)) {
+					saves.add(dst);
+					continue;
+				}
+				if (registers.contains(dst) && saves.contains(src))
+					continue;
+			}
+			body.stms.add(stm);
+			labels(stm, body.labels);
+		}
+
+		for (Access formal : frame.getFormals()) {
+			IRExp exp = formal.exp(frame.FP());
+			if (exp instanceof MEM)
+				body.formalAddresses.add(((MEM) exp).exp);
+			else if (exp instanceof TEMP) {
+				body.formalTemps.put(((TEMP) exp).temp, body.formalAddresses.size());
+				body.formalAddresses.add(null);
+			}
+			else
+				return null;
+		}
+
+		// A trial copy, which fails if a register is used
+		Temp[] args = new Temp[body.formals()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = new Temp();
+		IRStm copy = new Copy(body, args, new Temp()).copy();
+		if (copy==null)
+			return null;
+		body.size = size(copy);
+		return body;
+	}
+
+	private static void flatten(IRStm stm, ArrayList<IRStm> stms) {
+		if (stm instanceof SEQ) {
+			flatten(((SEQ) stm).left, stms);
+			flatten(((SEQ) stm).right, stms);
+		}
+		else if (stm!=IR.NOP)
+			stms.add(stm);
+	}
+
+	private static void labels(IRStm stm, HashSet<Label> labels) {
+		if (stm instanceof SEQ) {
+			labels(((SEQ) stm).left, labels);
+			labels(((SEQ) stm).right, labels);
+		}
+		else if (stm instanceof LABEL)
+			labels.add(((LABEL) stm).getLabel());
+		else {
+			for (IRExp kid : stm.kids())
+				labels(kid, labels);
+		}
+	}
+
+	private static void labels(IRExp exp, HashSet<Label> labels) {
+		if (exp instanceof ESEQ) {
+			labels(((ESEQ) exp).stm, labels);
+			labels(((ESEQ) exp).exp, labels);
+		}
+		else {
+			for (IRExp kid : exp.kids())
+				labels(kid, labels);
+		}
+	}
+
+	/**
+	 * The number of nodes of an IR tree.
+	 */
+	static int size(IRStm stm) {
+		if (stm instanceof SEQ)
+			return size(((SEQ) stm).left) + size(((SEQ) stm).right);
+		int result = 1;
+		for (IRExp kid : stm.kids())
+			result += size(kid);
+		return result;
+	}
+
+	static int size(IRExp exp) {
+		if (exp instanceof ESEQ)
+			return size(((ESEQ) exp).stm) + size(((ESEQ) exp).exp);
+		int result = 1;
+		for (IRExp kid : exp.kids())
+			result += size(kid);
+		return result;
+	}
+
+	/**
+	 * A copy of a body, for a call with the arguments in the given temps.
+	 */
+	private static class Copy {
+		private final Body body;
+		private final Temp[] args;
+		private final Temp value;
+		private final Temp rv;
+		private final HashSet<Temp> registers = new HashSet<Temp>();
+		private final HashMap<Temp, Temp> temps = new HashMap<Temp, Temp>();
+		private final HashMap<Label, Label> labels = new HashMap<Label, Label>();
+		private boolean failed = false;
+
+		Copy(Body body, Temp[] args, Temp value) {
+			this.body = body;
+			this.args = args;
+			this.value = value;
+			this.rv = ((TEMP) body.frame.RV()).temp;
+			for (Temp reg : body.frame.registers())
+				registers.add(reg);
+		}
+
+		/**
+		 * The copy, or null if the body uses a register.
+		 */
+		IRStm copy() {
+			IRStm result = IR.NOP;
+			for (IRStm stm : body.stms)
+				result = IR.SEQ(result, copy(stm));
+			return failed ? null : result;
+		}
+
+		private IRStm copy(IRStm stm) {
+			if (stm instanceof SEQ)
+				return new SEQ(copy(((SEQ) stm).left), copy(((SEQ) stm).right));
+			if (stm instanceof LABEL)
+				return IR.LABEL(label(((LABEL) stm).getLabel()));
+			if (stm instanceof JUMP) {
+				List<Label> targets = List.empty();
+				for (Label target : stm.getJumpTargets())
+					targets.add(label(target));
+				return new JUMP(copy(((JUMP) stm).getExp()), targets);
+			}
+			if (stm instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) stm;
+				return new CJUMP(cjump.getOp(), copy(cjump.getLeft()), copy(cjump.getRight()),
+						label(cjump.getTrueLabel()), label(cjump.getFalseLabel()));
+			}
+			if (stm instanceof MOVE) {
+				MOVE move = (MOVE) stm;
+				if (move.dst instanceof TEMP && ((TEMP) move.dst).temp==rv)
+					return IR.MOVE(value, copy(move.src));
+				return new MOVE(copy(move.dst), copy(move.src));
+			}
+			return stm.build(copy(stm.kids()));
+		}
+
+		private List<IRExp> copy(List<IRExp> exps) {
+			List<IRExp> result = List.empty();
+			for (IRExp exp : exps)
+				result.add(copy(exp));
+			return result;
+		}
+
+		private IRExp copy(IRExp exp) {
+			if (exp instanceof ESEQ)
+				return new ESEQ(copy(((ESEQ) exp).stm), copy(((ESEQ) exp).exp));
+			if (exp instanceof CONST)
+				return exp;
+			if (exp instanceof NAME)
+				return new NAME(label(((NAME) exp).getLabel()));
+			if (exp instanceof TEMP)
+				return IR.TEMP(temp(((TEMP) exp).temp));
+			if (exp instanceof MEM) {
+				int formal = formal(((MEM) exp).exp);
+				if (formal>=0)
+					return IR.TEMP(args[formal]);
+				return new MEM(copy(((MEM) exp).exp));
+			}
+			if (exp instanceof BINOP) {
+				BINOP binop = (BINOP) exp;
+				return new BINOP(binop.getOp(), copy(binop.getLeft()), copy(binop.getRight()));
+			}
+			return exp.build(copy(exp.kids()));
+		}
+
+		private Temp temp(Temp t) {
+			Integer formal = body.formalTemps.get(t);
+			if (formal!=null)
+				return args[formal];
+			if (registers.contains(t)) {
+				failed = true;
+				return t;
+			}
+			Temp result = temps.get(t);
+			if (result==null) {
+				result = new Temp();
+				temps.put(t, result);
+			}
+			return result;
+		}
+
+		private Label label(Label l) {
+			if (!body.labels.contains(l))
+				return l;
+			Label result = labels.get(l);
+			if (result==null) {
+				result = Label.generate(l.toString());
+				labels.put(l, result);
+			}
+			return result;
+		}
+
+		/**
+		 * The position of the formal in memory at an address, or -1.
+		 */
+		private int formal(IRExp address) {
+			for (int i = 0; i < body.formals(); i++) {
+				IRExp formal = body.formalAddresses.get(i);
+				if (formal!=null && same(formal, address))
+					return i;
+			}
+			return -1;
+		}
+
+		private static boolean same(IRExp a, IRExp b) {
+			if (a instanceof TEMP && b instanceof TEMP)
+				return ((TEMP) a).temp==((TEMP) b).temp;
+			if (a instanceof CONST && b instanceof CONST)
+				return ((CONST) a).getValue()==((CONST) b).getValue();
+			if (a instanceof BINOP && b instanceof BINOP) {
+				BINOP x = (BINOP) a;
+				BINOP y = (BINOP) b;
+				return x.getOp()==y.getOp() && same(x.getLeft(), y.getLeft()) && same(x.getRight(), y.getRight());
+			}
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,546 @@
+package minijava.ir.optimize;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+
+import minijava.ir.frame.Frame;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.ir.tree.MOVE;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.TEMP;
+import minijava.translate.ProcFragment;
+import minijava.translate.Translator;
+import minijava.util.List;
+
+/**
+ * Loop invariant code motion on the linearized IR of a procedure.
+ * <p>
+ * The translator evaluates everything in the condition and the body of a
+ * while loop on each iteration, e.g. the loads of this and of its fields,
+ * and the array lengths of the bounds checks. This pass looks at the
+ * natural loops, inner loops first, and moves the expressions that have the
+ * same value on each iteration to a preheader: code that is run once when
+ * the loop is entered, and computes them into new temps.
+ * <p>
+ * An expression is invariant if the temps it reads are not assigned in the
+ * loop (and have a value when it is entered), and no store or call in the
+ * loop may change the memory it reads (see {@link Aliasing}).
+ * <p>
+ * A load must not be done where the loop may not have done it (the pointer
+ * may be null), so only these loads are moved:
+ * <ul>
+ *   <li>loads from the frame (e.g. of this), which are always safe,
+ *   <li>fields of this and array lengths, in the header of the loop, which
+ *       is run whenever the loop is entered,
+ *   <li>fields of this and array lengths in the blocks that are run on each
+ *       iteration, when the header is just the test of a while loop. These
+ *       are computed in a second part of the preheader, after a copy of the
+ *       test.
+ * </ul>
+ * Other loads are never moved (e.g. an array element at a constant index
+ * looks like a field).
+ */
+class LoopInvariantCodeMotion {
+
+	/**
+	 * What the pass did to a procedure.
+	 */
+	static class Result {
+		int loops;
+		int hoisted;
+	}
+
+	/**
+	 * An expression that is computed in the preheader, and the temp it is
+	 * computed into. A guarded one is computed after the copy of the test.
+	 */
+	private static class Invariant {
+		final IRExp exp;
+		final Temp temp;
+		boolean guarded;
+
+		Invariant(IRExp exp, Temp temp, boolean guarded) {
+			this.exp = exp;
+			this.temp = temp;
+			this.guarded = guarded;
+		}
+	}
+
+	/**
+	 * The kinds of invariant expressions: the ones that can be computed before
+	 * the loop in any case, and the ones with loads that are only safe where
+	 * the loop would do them.
+	 */
+	private static final int PURE = 0;
+	private static final int LOAD = 1;
+
+	private final Result result;
+	private final int wordSize;
+	private final Temp fp;
+	private final IRExp thisExp;
+
+	private final IdentityHashMap<Temp, Integer> tempIds = new IdentityHashMap<Temp, Integer>();
+
+	/**
+	 * The temps made by the pass, and the expressions they hold. Each is
+	 * assigned once, in a preheader, so the assignment can be moved out of
+	 * the loops around it as a whole.
+	 */
+	private final HashMap<Temp, IRExp> made = new HashMap<Temp, IRExp>();
+
+	// The loop being looked at
+
+	private ControlFlow cfg;
+	private ControlFlow.Loop loop;
+	private Aliasing aliasing;
+	private final HashSet<Temp> assigned = new HashSet<Temp>();
+	private final HashSet<Temp> valued = new HashSet<Temp>();
+	private final ArrayList<IRExp> stores = new ArrayList<IRExp>();
+	private boolean calls;
+	private BitSet mustRun;
+	private final LinkedHashMap<String, Invariant> invariants = new LinkedHashMap<String, Invariant>();
+	private final HashSet<Integer> moved = new HashSet<Integer>();
+
+	private LoopInvariantCodeMotion(ProcFragment proc, Result result) {
+		this.result = result;
+		Frame frame = proc.getFrame();
+		this.wordSize = proc.wordSize();
+		this.fp = ((TEMP) frame.FP()).temp;
+		// The translator passes the object as the first argument of a method
+		this.thisExp = proc.getLabel()==Translator.L_MAIN || frame.getFormals().size()==0
+				? null : frame.getFormal(0).exp(frame.FP());
+	}
+
+	static List<IRStm> hoist(ProcFragment proc, List<IRStm> body, Result result) {
+		LoopInvariantCodeMotion pass = new LoopInvariantCodeMotion(proc, result);
+		HashSet<Label> done = new HashSet<Label>();
+		while (true) {
+			ControlFlow cfg = new ControlFlow(body);
+			ControlFlow.Loop next = null;
+			for (ControlFlow.Loop loop : cfg.loops()) {
+				IRStm first = cfg.stms[cfg.start[loop.header]];
+				if (cfg.canAddPreheader(loop) && done.add(((LABEL) first).getLabel())) {
+					next = loop;
+					break;
+				}
+			}
+			if (next==null)
+				return body;
+			body = pass.hoist(cfg, next, body);
+		}
+	}
+
+	/**
+	 * Move the invariant expressions out of a loop, and return the new body
+	 * (or the old one if nothing is moved).
+	 */
+	private List<IRStm> hoist(ControlFlow cfg, ControlFlow.Loop loop, List<IRStm> body) {
+		this.cfg = cfg;
+		this.loop = loop;
+		this.aliasing = new Aliasing(cfg.stms);
+		assigned.clear();
+		stores.clear();
+		calls = false;
+		invariants.clear();
+		moved.clear();
+
+		int p = cfg.start[loop.header];
+		Label header = ((LABEL) cfg.stms[p]).getLabel();
+		for (int q = 0; q < cfg.stms.length; q++) {
+			IRStm stm = cfg.stms[q];
+			if (!inLoop(q))
+				continue;
+			if (stm instanceof MOVE) {
+				MOVE move = (MOVE) stm;
+				if (move.dst instanceof TEMP)
+					assigned.add(((TEMP) move.dst).temp);
+				else
+					stores.add(((MEM) move.dst).exp);
+			}
+			calls |= Aliasing.writesMemory(stm);
+		}
+		valued.clear();
+		valued.addAll(cfg.valued(loop.header));
+		mustRun = mustRun();
+
+		// The assignments of inner preheaders first, so that their temps are
+		// used for the same expressions elsewhere in the loop
+		for (int q = 0; q < cfg.stms.length; q++) {
+			if (inLoop(q))
+				findMoved(q);
+		}
+		for (int q = 0; q < cfg.stms.length; q++) {
+			if (inLoop(q) && !moved.contains(q))
+				find(q);
+		}
+		if (invariants.isEmpty())
+			return body;
+
+		Label preheader = Label.generate("preheader");
+		List<IRStm> result = List.empty();
+		for (int q = 0; q < cfg.stms.length; q++) {
+			IRStm stm = cfg.stms[q];
+			if (q==p)
+				addPreheader(header, preheader, result);
+			// The jumps from outside the loop to the header go to the preheader
+			if (!inLoop(q))
+				result.add(cfg.retarget(loop, q, preheader));
+			else if (!moved.contains(q))
+				result.add(replace(stm));
+		}
+		this.result.loops++;
+		this.result.hoisted += invariants.size();
+		return result;
+	}
+
+	private boolean inLoop(int position) {
+		return cfg.inLoop(loop, position);
+	}
+
+	private boolean inLoop(Label label) {
+		return cfg.inLoop(loop, label);
+	}
+
+	/**
+	 * The blocks of the loop that are run on each iteration once the test of
+	 * the header has passed: they dominate every back edge, and every other
+	 * way out of the loop. Empty unless the header is just a CJUMP that goes
+	 * into the loop or out of it.
+	 */
+	private BitSet mustRun() {
+		BitSet result = new BitSet();
+		int h = loop.header;
+		if (cfg.end[h] - cfg.start[h] != 2 || !(cfg.stms[cfg.start[h]+1] instanceof CJUMP))
+			return result;
+		CJUMP test = (CJUMP) cfg.stms[cfg.start[h]+1];
+		if (inLoop(test.getTrueLabel())==inLoop(test.getFalseLabel()))
+			return result;
+
+		List<Integer> exits = List.empty();
+		for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b+1)) {
+			if (b==h)
+				continue;
+			IRStm last = cfg.stms[cfg.end[b]-1];
+			boolean exit = !last.isJump() && !loop.contains(b+1);
+			if (last.isJump()) {
+				for (Label target : ControlFlow.targets(last))
+					exit |= !inLoop(target);
+			}
+			if (exit)
+				exits.add(b);
+		}
+		for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b+1)) {
+			boolean always = b!=h;
+			for (int latch : loop.latches)
+				always &= cfg.dominates(b, latch);
+			for (int exit : exits)
+				always &= cfg.dominates(b, exit);
+			if (always)
+				result.set(b);
+		}
+		return result;
+	}
+
+	/**
+	 * Is the expression invariant in the loop? Returns null if it isn't, or
+	 * else its kind (PURE or LOAD).
+	 */
+	private Integer kindOf(IRExp exp) {
+		if (exp instanceof CONST || exp instanceof NAME)
+			return PURE;
+		if (exp instanceof TEMP) {
+			Temp t = ((TEMP) exp).temp;
+			return assigned.contains(t) || !valued.contains(t) ? null : PURE;
+		}
+		if (exp instanceof BINOP) {
+			BINOP binop = (BINOP) exp;
+			// A division may trap
+			if (binop.getOp()==Op.DIV)
+				return null;
+			Integer l = kindOf(binop.getLeft());
+			Integer r = kindOf(binop.getRight());
+			if (l==null || r==null)
+				return null;
+			return Math.max(l, r);
+		}
+		if (exp instanceof MEM) {
+			IRExp address = ((MEM) exp).exp;
+			Integer offset = Aliasing.offsetOf(address);
+			Integer p = offset==null ? null : kindOf(address);
+			if (p==null)
+				return null;
+			IRExp pointer = Aliasing.pointerOf(address);
+			int kind;
+			// A call can't change the frame of this procedure
+			if (pointer instanceof TEMP && ((TEMP) pointer).temp==fp)
+				kind = PURE;
+			else if (calls)
+				return null;
+			else if (isLength(address) || isThis(pointer))
+				kind = LOAD;
+			else
+				return null;
+			for (IRExp store : stores) {
+				if (aliasing.clobbers(store, Collections.singleton(offset)))
+					return null;
+			}
+			return Math.max(kind, p);
+		}
+		// CALL, ESEQ
+		return null;
+	}
+
+	/**
+	 * Is it this, or a temp of an inner preheader that holds this?
+	 */
+	private boolean isThis(IRExp exp) {
+		if (exp instanceof TEMP && made.containsKey(((TEMP) exp).temp))
+			exp = made.get(((TEMP) exp).temp);
+		return thisExp!=null && key(thisExp).equals(key(exp));
+	}
+
+	/**
+	 * Is it MINUS(a, wordSize), the address of the length of an array?
+	 */
+	private boolean isLength(IRExp address) {
+		return address instanceof BINOP && ((BINOP) address).getOp()==Op.MINUS
+			&& ((BINOP) address).getRight().isCONST(wordSize);
+	}
+
+	/**
+	 * A string that is the same for expressions that compute the same thing.
+	 */
+	private String key(IRExp exp) {
+		if (exp instanceof CONST)
+			return Integer.toString(((CONST) exp).getValue());
+		if (exp instanceof NAME)
+			return ((NAME) exp).getLabel().toString();
+		if (exp instanceof TEMP) {
+			Temp t = ((TEMP) exp).temp;
+			Integer id = tempIds.get(t);
+			if (id==null) {
+				id = tempIds.size();
+				tempIds.put(t, id);
+			}
+			return "t" + id;
+		}
+		if (exp instanceof BINOP) {
+			BINOP binop = (BINOP) exp;
+			return "(" + key(binop.getLeft()) + " " + binop.getOp() + " " + key(binop.getRight()) + ")";
+		}
+		if (exp instanceof MEM)
+			return "MEM(" + key(((MEM) exp).exp) + ")";
+		throw new Error("Not an invariant expression: "+exp);
+	}
+
+	/**
+	 * If the statement at q is the assignment of an inner preheader that can
+	 * be computed in the preheader, move it there.
+	 */
+	private void findMoved(int q) {
+		if (!(cfg.stms[q] instanceof MOVE))
+			return;
+		MOVE move = (MOVE) cfg.stms[q];
+		int b = cfg.blockOf(q);
+		if (move.dst instanceof TEMP && made.containsKey(((TEMP) move.dst).temp) && isHoistable(move.src, b)) {
+			String key = key(move.src);
+			if (!invariants.containsKey(key)) {
+				invariants.put(key, new Invariant(move.src, ((TEMP) move.dst).temp, isGuarded(move.src, b)));
+				moved.add(q);
+			}
+		}
+	}
+
+	/**
+	 * Find the largest invariant expressions of the statement at q that can be
+	 * computed in the preheader.
+	 */
+	private void find(int q) {
+		IRStm stm = cfg.stms[q];
+		int b = cfg.blockOf(q);
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			if (move.dst instanceof MEM)
+				findInAddress(((MEM) move.dst).exp, b);
+			find(move.src, b);
+		}
+		else {
+			for (IRExp kid : stm.kids())
+				find(kid, b);
+		}
+	}
+
+	private void find(IRExp exp, int b) {
+		// An address in the frame costs nothing to compute, and the JVM backend
+		// can't keep one in a temp
+		if (isFrameAddress(exp))
+			return;
+		if ((exp instanceof BINOP || exp instanceof MEM) && isHoistable(exp, b)) {
+			String key = key(exp);
+			Invariant invariant = invariants.get(key);
+			if (invariant==null) {
+				Temp t = new Temp();
+				made.put(t, exp);
+				invariants.put(key, new Invariant(exp, t, isGuarded(exp, b)));
+			}
+			else
+				invariant.guarded &= isGuarded(exp, b);
+		}
+		else if (exp instanceof MEM)
+			findInAddress(((MEM) exp).exp, b);
+		else {
+			for (IRExp kid : exp.kids())
+				find(kid, b);
+		}
+	}
+
+	/**
+	 * Is it FP plus a constant?
+	 */
+	private boolean isFrameAddress(IRExp exp) {
+		if (!isOffset(exp))
+			return false;
+		IRExp pointer = Aliasing.pointerOf(exp);
+		return pointer instanceof TEMP && ((TEMP) pointer).temp==fp;
+	}
+
+	/**
+	 * The sum of a pointer and an offset is left in the MEM (it is an
+	 * addressing mode of the x86), only the pointer is looked at.
+	 */
+	private void findInAddress(IRExp address, int b) {
+		if (isOffset(address)) {
+			for (IRExp kid : address.kids())
+				find(kid, b);
+		}
+		else
+			find(address, b);
+	}
+
+	private static boolean isOffset(IRExp address) {
+		return address instanceof BINOP && Aliasing.offsetOf(address)!=null;
+	}
+
+	/**
+	 * Can an expression in block b be computed in the preheader?
+	 */
+	private boolean isHoistable(IRExp exp, int b) {
+		Integer kind = kindOf(exp);
+		return kind!=null && (kind==PURE || b==loop.header || mustRun.get(b));
+	}
+
+	/**
+	 * Must an expression in block b be computed after the copy of the test?
+	 */
+	private boolean isGuarded(IRExp exp, int b) {
+		return b!=loop.header && kindOf(exp)==LOAD;
+	}
+
+	/**
+	 * Add the preheader of the loop with this header.
+	 */
+	private void addPreheader(Label header, Label preheader, List<IRStm> body) {
+		int p = cfg.start[loop.header];
+		// The statement before the loop may be the end of the loop
+		if (cfg.fallsIntoHeader(loop))
+			body.add(IR.JUMP(header));
+		body.add(IR.LABEL(preheader));
+		boolean guarded = false;
+		for (Invariant invariant : invariants.values()) {
+			if (!invariant.guarded)
+				body.add(IR.MOVE(invariant.temp, invariant.exp));
+			guarded |= invariant.guarded;
+		}
+		if (guarded) {
+			CJUMP test = (CJUMP) replace(cfg.stms[p+1]);
+			Label passed = Label.generate("invariants");
+			boolean into = inLoop(test.getTrueLabel());
+			body.add(IR.CJUMP(test.getOp(), copy(test.getLeft()), copy(test.getRight()),
+					into ? passed : test.getTrueLabel(), into ? test.getFalseLabel() : passed));
+			body.add(IR.LABEL(passed));
+			for (Invariant invariant : invariants.values()) {
+				if (invariant.guarded)
+					body.add(IR.MOVE(invariant.temp, invariant.exp));
+			}
+			body.add(IR.JUMP(into ? test.getTrueLabel() : test.getFalseLabel()));
+		}
+	}
+
+	private IRStm replace(IRStm stm) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			IRExp dst = move.dst instanceof MEM ? IR.MEM(replaceInAddress(((MEM) move.dst).exp)) : move.dst;
+			return IR.MOVE(dst, replace(move.src));
+		}
+		if (stm instanceof LABEL)
+			return stm;
+		return stm.build(replace(stm.kids()));
+	}
+
+	private IRExp replace(IRExp exp) {
+		if (exp instanceof BINOP || exp instanceof MEM) {
+			Invariant invariant = isKeyed(exp) ? invariants.get(key(exp)) : null;
+			if (invariant!=null)
+				return IR.TEMP(invariant.temp);
+		}
+		if (exp instanceof MEM)
+			return IR.MEM(replaceInAddress(((MEM) exp).exp));
+		return exp.build(replace(exp.kids()));
+	}
+
+	private IRExp replaceInAddress(IRExp address) {
+		if (isOffset(address))
+			return address.build(replace(address.kids()));
+		return replace(address);
+	}
+
+	private List<IRExp> replace(List<IRExp> exps) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(replace(exp));
+		return result;
+	}
+
+	/**
+	 * Does the expression have a key (only temps, constants, names, BINOPs
+	 * and MEMs)?
+	 */
+	private static boolean isKeyed(IRExp exp) {
+		if (exp instanceof CONST || exp instanceof NAME || exp instanceof TEMP)
+			return true;
+		if (!(exp instanceof BINOP || exp instanceof MEM))
+			return false;
+		for (IRExp kid : exp.kids()) {
+			if (!isKeyed(kid))
+				return false;
+		}
+		return true;
+	}
+
+	private static IRExp copy(IRExp exp) {
+		return exp.build(copy(exp.kids()));
+	}
+
+	private static List<IRExp> copy(List<IRExp> exps) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(copy(exp));
+		return result;
+	}
+
+}
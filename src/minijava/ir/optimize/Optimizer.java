@@ -0,0 +1,390 @@
+package minijava.ir.optimize;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import minijava.ir.interp.Profile;
+import minijava.ir.temp.Label;
+import minijava.ir.tree.IRStm;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.util.DefaultIndentable;
+import minijava.util.IndentingWriter;
+import minijava.util.List;
+
+/**
+ * The optimization passes that a ProcFragment applies to its IR, between
+ * the translator and the later phases (see
+ * {@link ProcFragment#setOptimizer(Optimizer)}). Some passes rewrite the IR
+ * tree before it is linearized, the others the linearized IR. Each pass can
+ * be switched on and off, and the ProcFragment keeps the IR before and
+ * after the passes, so their effect can be inspected.
+ * <p>
+ * The dump of an Optimizer reports what the passes did to each procedure.
+ */
+public class Optimizer extends DefaultIndentable {
+
+	/**
+	 * The procedures of the program (see {@link #setProgram(Fragments)}).
+	 */
+	private final Map<Label, ProcFragment> procs = new HashMap<Label, ProcFragment>();
+
+	/**
+	 * Tell the passes which procedures make up the program (the procedures
+	 * that calls may go to). {@link Fragments#setOptimizer(Optimizer)} does
+	 * this.
+	 */
+	public Optimizer setProgram(Fragments program) {
+		procs.clear();
+		for (Fragment fragment : program) {
+			if (fragment instanceof ProcFragment)
+				procs.put(((ProcFragment) fragment).getLabel(), (ProcFragment) fragment);
+		}
+		return this;
+	}
+
+	/**
+	 * Inlining of the calls of small procedures of the program (see
+	 * {@link Inliner}), within a budget: the largest body (in IR nodes) that
+	 * is copied, how many levels deep calls in the copies are inlined, and how
+	 * many nodes a procedure may grow by. Given a profile, calls that never
+	 * ran aren't inlined, and the most frequent calls are inlined first. This
+	 * is off by default.
+	 */
+	private boolean inlining = false;
+	private int inlineSize = 40;
+	private int inlineDepth = 2;
+	private int inlineGrowth = 400;
+	private Profile inliningProfile = null;
+
+	private final Map<Label, Inliner.Result> inliningResults =
+		new LinkedHashMap<Label, Inliner.Result>();
+
+	public Optimizer setInlining(boolean inlining) {
+		this.inlining = inlining;
+		return this;
+	}
+
+	public boolean isInlining() {
+		return inlining;
+	}
+
+	public Optimizer setInliningBudget(int size, int depth, int growth) {
+		this.inlineSize = size;
+		this.inlineDepth = depth;
+		this.inlineGrowth = growth;
+		return this;
+	}
+
+	/**
+	 * Use the call counts of a profile of the program to choose the calls to
+	 * inline (or not, if profile is null).
+	 */
+	public Optimizer setInliningProfile(Profile profile) {
+		this.inliningProfile = profile;
+		return this;
+	}
+
+	/**
+	 * Constant folding, algebraic simplification and removal of unreachable
+	 * code (see {@link Simplifier}).
+	 */
+	private boolean simplify = true;
+
+	public Optimizer setSimplify(boolean simplify) {
+		this.simplify = simplify;
+		return this;
+	}
+
+	public boolean isSimplify() {
+		return simplify;
+	}
+
+	/**
+	 * Removal of the array bounds checks that are known to succeed, and
+	 * versioning of loops with checks that can be done before the loop (see
+	 * {@link BoundsCheckElimination}).
+	 */
+	private boolean boundsChecks = true;
+
+	private final Map<Label, BoundsCheckElimination.Result> boundsCheckResults =
+		new LinkedHashMap<Label, BoundsCheckElimination.Result>();
+
+	public Optimizer setBoundsChecks(boolean boundsChecks) {
+		this.boundsChecks = boundsChecks;
+		return this;
+	}
+
+	public boolean isBoundsChecks() {
+		return boundsChecks;
+	}
+
+	/**
+	 * Moving the expressions that have the same value on each iteration of a
+	 * loop out of it (see {@link LoopInvariantCodeMotion}).
+	 */
+	private boolean loopInvariants = true;
+
+	private final Map<Label, LoopInvariantCodeMotion.Result> loopInvariantResults =
+		new LinkedHashMap<Label, LoopInvariantCodeMotion.Result>();
+
+	public Optimizer setLoopInvariants(boolean loopInvariants) {
+		this.loopInvariants = loopInvariants;
+		return this;
+	}
+
+	public boolean isLoopInvariants() {
+		return loopInvariants;
+	}
+
+	/**
+	 * Strength reduction of the induction variables that index arrays in
+	 * loops, and replacement of their tests (see {@link InductionVariables}).
+	 */
+	private boolean inductionVariables = true;
+
+	private final Map<Label, InductionVariables.Result> inductionVariableResults =
+		new LinkedHashMap<Label, InductionVariables.Result>();
+
+	public Optimizer setInductionVariables(boolean inductionVariables) {
+		this.inductionVariables = inductionVariables;
+		return this;
+	}
+
+	public boolean isInductionVariables() {
+		return inductionVariables;
+	}
+
+	/**
+	 * Apply the passes that work on the IR tree of a procedure, as produced by
+	 * the translator.
+	 */
+	public IRStm optimizeTree(ProcFragment proc, IRStm body) {
+		if (inlining) {
+			Inliner.Result result = new Inliner.Result();
+			body = new Inliner(procs, inlineSize, inlineDepth, inlineGrowth, inliningProfile, result)
+					.inline(proc, body);
+			synchronized (inliningResults) {
+				inliningResults.put(proc.getLabel(), result);
+			}
+		}
+		if (simplify)
+			body = Simplifier.simplify(body);
+		return body;
+	}
+
+	/**
+	 * Apply the passes that work on the linearized IR of a procedure.
+	 */
+	public List<IRStm> optimizeLinearized(ProcFragment proc, List<IRStm> body) {
+		if (simplify)
+			body = Simplifier.removeUnreachable(body);
+		if (boundsChecks) {
+			BoundsCheckElimination.Result result = new BoundsCheckElimination.Result();
+			body = BoundsCheckElimination.eliminate(proc, body, result);
+			body = Simplifier.removeUnreachable(body);
+			synchronized (boundsCheckResults) {
+				boundsCheckResults.put(proc.getLabel(), result);
+			}
+		}
+		if (loopInvariants) {
+			LoopInvariantCodeMotion.Result result = new LoopInvariantCodeMotion.Result();
+			body = LoopInvariantCodeMotion.hoist(proc, body, result);
+			synchronized (loopInvariantResults) {
+				loopInvariantResults.put(proc.getLabel(), result);
+			}
+		}
+		if (inductionVariables) {
+			InductionVariables.Result result = new InductionVariables.Result();
+			body = InductionVariables.reduce(body, result);
+			synchronized (inductionVariableResults) {
+				inductionVariableResults.put(proc.getLabel(), result);
+			}
+		}
+		return body;
+	}
+
+	private Inliner.Result inliningResult(Label proc) {
+		synchronized (inliningResults) {
+			Inliner.Result result = inliningResults.get(proc);
+			if (result==null)
+				throw new Error("The calls of "+proc+" were not looked at");
+			return result;
+		}
+	}
+
+	/**
+	 * The number of calls that were replaced with a copy of the body of the
+	 * procedure they call (also the calls in the copies).
+	 */
+	public int getCallsInlined(Label proc) {
+		return inliningResult(proc).inlined;
+	}
+
+	/**
+	 * The number of calls that weren't inlined because they would copy a
+	 * procedure into itself.
+	 */
+	public int getRecursiveCalls(Label proc) {
+		return inliningResult(proc).recursive;
+	}
+
+	/**
+	 * The number of IR nodes that inlining added to a procedure.
+	 */
+	public int getInliningGrowth(Label proc) {
+		return inliningResult(proc).growth;
+	}
+
+	private BoundsCheckElimination.Result boundsCheckResult(Label proc) {
+		synchronized (boundsCheckResults) {
+			BoundsCheckElimination.Result result = boundsCheckResults.get(proc);
+			if (result==null)
+				throw new Error("The bounds checks of "+proc+" were not looked at");
+			return result;
+		}
+	}
+
+	/**
+	 * The number of array bounds checks in a procedure (before any were
+	 * removed).
+	 */
+	public int getBoundsChecks(Label proc) {
+		return boundsCheckResult(proc).checks;
+	}
+
+	/**
+	 * The number of array bounds checks that were removed because they are
+	 * known to succeed.
+	 */
+	public int getBoundsChecksRemoved(Label proc) {
+		return boundsCheckResult(proc).proven;
+	}
+
+	/**
+	 * The number of array bounds checks that were removed from the fast copy
+	 * of a versioned loop (they are done before the loop instead).
+	 */
+	public int getBoundsChecksHoisted(Label proc) {
+		return boundsCheckResult(proc).guarded;
+	}
+
+	public int getLoopsVersioned(Label proc) {
+		return boundsCheckResult(proc).loops;
+	}
+
+	private LoopInvariantCodeMotion.Result loopInvariantResult(Label proc) {
+		synchronized (loopInvariantResults) {
+			LoopInvariantCodeMotion.Result result = loopInvariantResults.get(proc);
+			if (result==null)
+				throw new Error("The loops of "+proc+" were not looked at");
+			return result;
+		}
+	}
+
+	/**
+	 * The number of expressions that were moved out of the loops of a
+	 * procedure (an expression that is moved out of two nested loops counts
+	 * twice).
+	 */
+	public int getInvariantsHoisted(Label proc) {
+		return loopInvariantResult(proc).hoisted;
+	}
+
+	/**
+	 * The number of loops of a procedure that got a preheader.
+	 */
+	public int getLoopsWithInvariants(Label proc) {
+		return loopInvariantResult(proc).loops;
+	}
+
+	private InductionVariables.Result inductionVariableResult(Label proc) {
+		synchronized (inductionVariableResults) {
+			InductionVariables.Result result = inductionVariableResults.get(proc);
+			if (result==null)
+				throw new Error("The induction variables of "+proc+" were not looked at");
+			return result;
+		}
+	}
+
+	/**
+	 * The number of array element addresses that were replaced with a
+	 * pointer that is bumped along with the index.
+	 */
+	public int getAddressesReduced(Label proc) {
+		return inductionVariableResult(proc).reduced;
+	}
+
+	/**
+	 * The number of loop tests of an index that were replaced with a test of
+	 * a pointer.
+	 */
+	public int getTestsReplaced(Label proc) {
+		return inductionVariableResult(proc).tests;
+	}
+
+	/**
+	 * The number of loops of a procedure that got pointers for their indices.
+	 */
+	public int getLoopsReduced(Label proc) {
+		return inductionVariableResult(proc).loops;
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		synchronized (inliningResults) {
+			if (!inliningResults.isEmpty()) {
+				out.println("Inlining:");
+				out.indent();
+				for (Map.Entry<Label, Inliner.Result> entry : inliningResults.entrySet()) {
+					Inliner.Result result = entry.getValue();
+					out.println(entry.getKey()+": "+result.inlined+" of "+result.calls+" calls inlined (+"+result.growth+" nodes), "
+							+result.recursive+" recursive");
+				}
+				out.outdent();
+			}
+		}
+		synchronized (boundsCheckResults) {
+			if (!boundsCheckResults.isEmpty())
+				dumpBoundsChecks(out);
+		}
+		synchronized (loopInvariantResults) {
+			if (!loopInvariantResults.isEmpty()) {
+				out.println("Loop invariants:");
+				out.indent();
+				for (Map.Entry<Label, LoopInvariantCodeMotion.Result> entry : loopInvariantResults.entrySet()) {
+					LoopInvariantCodeMotion.Result result = entry.getValue();
+					out.println(entry.getKey()+": "+result.hoisted+" hoisted out of "+result.loops+" loop(s)");
+				}
+				out.outdent();
+			}
+		}
+		synchronized (inductionVariableResults) {
+			if (!inductionVariableResults.isEmpty()) {
+				out.println("Induction variables:");
+				out.indent();
+				for (Map.Entry<Label, InductionVariables.Result> entry : inductionVariableResults.entrySet()) {
+					InductionVariables.Result result = entry.getValue();
+					out.println(entry.getKey()+": "+result.reduced+" addresses reduced, "+result.tests+" tests replaced in "+result.loops+" loop(s)");
+				}
+				out.outdent();
+			}
+		}
+	}
+
+	private void dumpBoundsChecks(IndentingWriter out) {
+		out.println("Array bounds checks:");
+		out.indent();
+		for (Map.Entry<Label, BoundsCheckElimination.Result> entry : boundsCheckResults.entrySet()) {
+			BoundsCheckElimination.Result result = entry.getValue();
+			out.print(entry.getKey()+": "+result.checks+" checks, "+result.proven+" removed");
+			if (result.loops > 0)
+				out.print(", "+result.guarded+" hoisted out of "+result.loops+" versioned loop(s)");
+			out.println();
+		}
+		out.outdent();
+	}
+
+}
@@ -0,0 +1,244 @@
+package minijava.ir.optimize;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import minijava.ir.temp.Label;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.ESEQ;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.NAME;
+import minijava.ir.tree.SEQ;
+import minijava.ir.tree.TEMP;
+import minijava.util.List;
+
+/**
+ * Constant folding and algebraic simplification of IR trees, and removal of
+ * the code that becomes unreachable.
+ * <p>
+ * {@link #simplify(IRStm)} rewrites a (not yet canonical) IR tree bottom
+ * up:
+ * <ul>
+ *   <li>BINOPs with two CONST operands are computed.
+ *   <li>x+0, 0+x, x-0, x*1 and 1*x become x, and x*0 and 0*x become 0
+ *       when x has no side effects (no CALL, ESEQ, or MEM, which may be out
+ *       of bounds).
+ *   <li>Constants added to a sum are added together: (x+c1)+c2 becomes
+ *       x+(c1+c2) (and likewise with MINUS).
+ *   <li>CJUMPs with two CONST operands become JUMPs.
+ * </ul>
+ * Multiplications by a power of two are left alone: the x86 muncher turns
+ * MUL(i, CONST wordSize) into a scaled index address, which a shift would
+ * prevent, and the interpreter only knows PLUS, MINUS and MUL.
+ * <p>
+ * {@link #removeUnreachable(List)} then deletes the statements of the
+ * linearized body that no path from its start reaches (e.g. the other
+ * branch of a folded CJUMP).
+ */
+public class Simplifier {
+
+	public static IRStm simplify(IRStm stm) {
+		if (stm instanceof SEQ) {
+			SEQ seq = (SEQ) stm;
+			return new SEQ(simplify(seq.left), simplify(seq.right));
+		}
+		if (stm instanceof LABEL)
+			return stm;
+		IRStm result = stm.build(simplify(stm.kids()));
+		if (result instanceof CJUMP) {
+			CJUMP cjump = (CJUMP) result;
+			if (cjump.getLeft() instanceof CONST && cjump.getRight() instanceof CONST) {
+				boolean taken = compare(cjump.getOp(),
+						((CONST) cjump.getLeft()).getValue(),
+						((CONST) cjump.getRight()).getValue());
+				return IR.JUMP(taken ? cjump.getTrueLabel() : cjump.getFalseLabel());
+			}
+		}
+		return result;
+	}
+
+	private static List<IRExp> simplify(List<IRExp> exps) {
+		List<IRExp> result = List.empty();
+		for (IRExp exp : exps)
+			result.add(simplify(exp));
+		return result;
+	}
+
+	public static IRExp simplify(IRExp exp) {
+		if (exp instanceof ESEQ) {
+			ESEQ eseq = (ESEQ) exp;
+			return new ESEQ(simplify(eseq.stm), simplify(eseq.exp));
+		}
+		if (!(exp instanceof BINOP))
+			return exp.build(simplify(exp.kids()));
+		BINOP binop = (BINOP) exp;
+		return simplify(binop.getOp(), simplify(binop.getLeft()), simplify(binop.getRight()));
+	}
+
+	/**
+	 * Simplify a BINOP whose operands are already simplified.
+	 */
+	private static IRExp simplify(Op op, IRExp l, IRExp r) {
+		if (l instanceof CONST && r instanceof CONST) {
+			Integer value = compute(op, ((CONST) l).getValue(), ((CONST) r).getValue());
+			if (value!=null)
+				return IR.CONST(value);
+		}
+		switch (op) {
+		case PLUS:
+			if (l.isCONST(0))
+				return r;
+			if (r.isCONST(0))
+				return l;
+			if (l instanceof CONST)
+				return simplify(op, r, l);
+			if (r instanceof CONST && isSum(l))
+				return simplify(op, ((BINOP) l).getLeft(),
+						IR.CONST(constantOf((BINOP) l) + ((CONST) r).getValue()));
+			break;
+		case MINUS:
+			if (r.isCONST(0))
+				return l;
+			if (r instanceof CONST && isSum(l))
+				return simplify(Op.PLUS, ((BINOP) l).getLeft(),
+						IR.CONST(constantOf((BINOP) l) - ((CONST) r).getValue()));
+			break;
+		case MUL:
+			if (l.isCONST(1))
+				return r;
+			if (r.isCONST(1))
+				return l;
+			if ((l.isCONST(0) && isPure(r)) || (r.isCONST(0) && isPure(l)))
+				return IR.CONST(0);
+			break;
+		default:
+			break;
+		}
+		return new BINOP(op, l, r);
+	}
+
+	/**
+	 * Is exp a PLUS or MINUS of something and a constant?
+	 */
+	private static boolean isSum(IRExp exp) {
+		if (!(exp instanceof BINOP))
+			return false;
+		BINOP binop = (BINOP) exp;
+		return (binop.getOp()==Op.PLUS || binop.getOp()==Op.MINUS)
+				&& binop.getRight() instanceof CONST;
+	}
+
+	/**
+	 * The constant added by a sum (see isSum).
+	 */
+	private static int constantOf(BINOP sum) {
+		int value = ((CONST) sum.getRight()).getValue();
+		return sum.getOp()==Op.PLUS ? value : -value;
+	}
+
+	/**
+	 * The value of a BINOP of two ints, or null if it can't be computed at
+	 * compile time (division by zero).
+	 */
+	private static Integer compute(Op op, int l, int r) {
+		switch (op) {
+		case PLUS:    return l + r;
+		case MINUS:   return l - r;
+		case MUL:     return l * r;
+		case DIV:     return r==0 ? null : Integer.valueOf(l / r);
+		case AND:     return l & r;
+		case OR:      return l | r;
+		case XOR:     return l ^ r;
+		case LSHIFT:  return l << r;
+		case RSHIFT:  return l >>> r;
+		case ARSHIFT: return l >> r;
+		default:
+			throw new Error("Missing case? "+op);
+		}
+	}
+
+	private static boolean compare(CJUMP.RelOp op, int l, int r) {
+		switch (op) {
+		case EQ:  return l == r;
+		case NE:  return l != r;
+		case LT:  return l < r;
+		case GT:  return l > r;
+		case LE:  return l <= r;
+		case GE:  return l >= r;
+		// Flipping the sign bit maps unsigned order onto signed order
+		case ULT: return (l ^ Integer.MIN_VALUE) < (r ^ Integer.MIN_VALUE);
+		case ULE: return (l ^ Integer.MIN_VALUE) <= (r ^ Integer.MIN_VALUE);
+		case UGT: return (l ^ Integer.MIN_VALUE) > (r ^ Integer.MIN_VALUE);
+		case UGE: return (l ^ Integer.MIN_VALUE) >= (r ^ Integer.MIN_VALUE);
+		default:
+			throw new Error("Missing case? "+op);
+		}
+	}
+
+	/**
+	 * Can the expression be dropped without changing what the program does?
+	 */
+	static boolean isPure(IRExp exp) {
+		if (exp instanceof CONST || exp instanceof TEMP || exp instanceof NAME)
+			return true;
+		if (exp instanceof BINOP)
+			return isPure(((BINOP) exp).getLeft()) && isPure(((BINOP) exp).getRight());
+		// CALL, ESEQ, MEM
+		return false;
+	}
+
+	/**
+	 * Remove the statements of a linearized body that can't be reached from
+	 * its start: a statement is reachable if the statement before it is
+	 * reachable and not a jump, or it is a LABEL that a reachable jump goes
+	 * to.
+	 */
+	public static List<IRStm> removeUnreachable(List<IRStm> body) {
+		IRStm[] stms = new IRStm[body.size()];
+		HashMap<Label, Integer> positions = new HashMap<Label, Integer>();
+		int i = 0;
+		for (IRStm stm : body) {
+			if (stm instanceof LABEL)
+				positions.put(((LABEL) stm).getLabel(), i);
+			stms[i++] = stm;
+		}
+
+		boolean[] reachable = new boolean[stms.length];
+		HashSet<Integer> todo = new HashSet<Integer>();
+		if (stms.length>0)
+			todo.add(0);
+		while (!todo.isEmpty()) {
+			int pc = todo.iterator().next();
+			todo.remove(pc);
+			// Follow the straight line code from pc
+			while (pc<stms.length && !reachable[pc]) {
+				reachable[pc] = true;
+				IRStm stm = stms[pc];
+				if (stm.isJump()) {
+					for (Label target : ControlFlow.targets(stm)) {
+						Integer position = positions.get(target);
+						// Jumps out of the body (e.g. to a done label) have no position
+						if (position!=null && !reachable[position])
+							todo.add(position);
+					}
+					break;
+				}
+				pc++;
+			}
+		}
+
+		List<IRStm> result = List.empty();
+		for (i = 0; i < stms.length; i++) {
+			if (reachable[i])
+				result.add(stms[i]);
+		}
+		return result;
+	}
+
+}
@@ -26,4 +26,17 @@ public abstract class Color {
 	 */
 	public abstract boolean isRegister();
 	
+	/**
+	 * If this returns true, a Temp with this color isn't stored anywhere: its
+	 * value is a constant that is recomputed wherever it is used
+	 * (rematerialization), and toString() prints that constant as an
+	 * operand.
+	 * <p>
+	 * Such Temps are matched by the IRPat.REMAT(t) pattern, not by
+	 * IRPat.SPILLED(t).
+	 */
+	public boolean isConstant() {
+		return false;
+	}
+	
 }
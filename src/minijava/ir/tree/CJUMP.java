@@ -76,10 +76,9 @@ public class CJUMP extends IRStm {
 	
 	@Override
 	public List<Label> getJumpTargets() {
-		// Note: we can get away with not implementing this, because
-		// we don't actually use this. This is because CJUMP is
-		// treated as a special case in the trace scheduler algo.
-		throw new Error("Not implemented");
+		// Note: CJUMP is treated as a special case in the trace scheduler
+		// algo, so it doesn't use this (but the interpreter's profiler does).
+		return List.list(iftrue, iffalse);
 	}
 
 	public RelOp getOp() {
@@ -102,7 +101,7 @@ public class CJUMP extends IRStm {
 		case EQ:
 			return l.isEQ(r)?iftrue:iffalse;
 		case GE:
-		  return r.isLT(l)?iftrue:iffalse;
+		  return l.isLT(r)?iffalse:iftrue;
 		default:
 			throw new Error("Missing case? "+relop);
 		}
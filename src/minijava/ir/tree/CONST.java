@@ -25,7 +25,7 @@ public class CONST extends IRExp {
 	}
 	@Override
 	public Word interp(X86SimFrame env) {
-		return new Int(value);
+		return Int.valueOf(value);
 	}
 	public int getValue() {
 		return value;
@@ -11,6 +11,11 @@ import minijava.util.List;
 
 public class TEMP extends IRExp {
 	public final Temp temp;
+	/**
+	 * Where the IR interpreter keeps the value of the temp (see 
+	 * {@link minijava.ir.interp.SimProc}), or -1 if no slot was assigned.
+	 */
+	private int slot = -1;
 	public TEMP(Temp t) {
 		Assert.assertNotNull(t);
 		temp=t;
@@ -36,15 +41,21 @@ public class TEMP extends IRExp {
 	public Word interp(X86SimFrame env) {
 		//We only get here if we are reading the TEMP.
 		//A TMP in the dst of a MOVE is treated explicitly by MOVE
-		return env.getTemp(temp);
+		return env.getTemp(this);
 	}
 	public Color getColor() {
 		return temp.getColor();
 	}
+	public int getSlot() {
+		return slot;
+	}
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
 	
 	@Override
 	public void set(Word value, X86SimFrame env) {
-		env.setTemp(temp, value);
+		env.setTemp(this, value);
 	}
 }
 
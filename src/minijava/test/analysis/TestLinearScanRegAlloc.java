@@ -0,0 +1,16 @@
+package minijava.test.analysis;
+
+import minijava.analysis.RegAlloc;
+import minijava.analysis.RegAlloc.Mode;
+
+/**
+ * Same as TestRegAlloc, but with the linear scan allocator.
+ */
+public class TestLinearScanRegAlloc extends TestRegAlloc {
+
+	@Override
+	protected RegAlloc allocator() {
+		return RegAlloc.create(Mode.LINEAR_SCAN);
+	}
+
+}
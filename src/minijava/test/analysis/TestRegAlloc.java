@@ -0,0 +1,56 @@
+package minijava.test.analysis;
+
+import junit.framework.Assert;
+import minijava.analysis.FlowGraph;
+import minijava.analysis.RegAlloc;
+import minijava.analysis.util.graph.Graph;
+import minijava.analysis.util.graph.Node;
+import minijava.codegen.AssemProc;
+import minijava.codegen.assem.Instr;
+import minijava.ir.temp.Color;
+import minijava.ir.temp.Temp;
+
+/**
+ * Runs the register allocator on all the TestTranslate programs and prints
+ * the resulting code.
+ * <p>
+ * After allocation (and sharing of spill slots) we check that every temp in
+ * the body has been given a color, and that no two temps which interfere in
+ * the allocated code ended up in the same register or frame location.
+ */
+public class TestRegAlloc extends TestFlowGraphs {
+
+	protected RegAlloc allocator() {
+		return RegAlloc.create();
+	}
+
+	@Override
+	protected void test(AssemProc proc) {
+		RegAlloc allocator = allocator();
+		allocator.allocate(proc);
+		int saved = allocator.shareSpillSlots(proc);
+		System.out.println("Sharing spill slots made the frame of "+proc.getLabel()
+				+" "+saved+" bytes smaller");
+
+		for (Instr instr : proc.getBody()) {
+			for (Temp t : instr.def())
+				Assert.assertNotNull("Uncolored temp "+t+" in "+instr, t.getColor());
+			for (Temp t : instr.use())
+				Assert.assertNotNull("Uncolored temp "+t+" in "+instr, t.getColor());
+		}
+
+		Graph<Temp> interf = FlowGraph.build(proc.getBody()).getInterferenceGraph();
+		for (Node<Temp> node : interf.nodes()) {
+			Color c = node.wrappee().getColor();
+			for (Node<Temp> other : node.succ())
+				Assert.assertFalse(node+" and "+other+" interfere but share "+c,
+						c.equals(other.wrappee().getColor()));
+		}
+
+		// The interference check has to be done before this, since deleting
+		// coalesced moves leaves their destinations without a definition.
+		proc.removeRedundantMoves();
+		System.out.println(proc);
+	}
+
+}
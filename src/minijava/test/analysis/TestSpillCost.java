@@ -0,0 +1,156 @@
+package minijava.test.analysis;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import minijava.analysis.RegAlloc;
+import minijava.analysis.SpillCostModel;
+import minijava.codegen.Assembly;
+import minijava.codegen.CodeGenerator;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.test.translate.TestTranslate;
+import minijava.translate.Fragments;
+import minijava.translate.Translator;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Compares spill cost models by the number of spill loads executed.
+ * <p>
+ * Every TestTranslate program is compiled and register allocated once with
+ * each of the spill cost models. Then the IR code is simulated: after
+ * register allocation the spilled Temps are painted with their frame
+ * location, and the interpreter counts the reads and writes of such
+ * Temps, which are exactly the spill loads and stores the generated
+ * code would execute. The totals are printed at the end: the default model
+ * must spill fewer loads than the constant one, and no more than the others.
+ * <p>
+ * Most of the TestTranslate programs are too small to spill anything, so
+ * this class adds a test with lots of live variables.
+ */
+public class TestSpillCost extends TestTranslate {
+
+	private static final SpillCostModel[] models = {
+		SpillCostModel.CONSTANT,
+		SpillCostModel.USE_COUNT,
+		SpillCostModel.LOOP_WEIGHTED
+	};
+
+	private static Map<SpillCostModel, Integer> totalLoads = new LinkedHashMap<SpillCostModel, Integer>();
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return null; // We simulate ourselves, after register allocation.
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		super.test(expected, program);
+		for (SpillCostModel model : models)
+			simulate(expected, Translator.translate(architecture, program), model);
+		return null;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		super.test(expected, program);
+		for (SpillCostModel model : models)
+			simulate(expected, Translator.translate(architecture, program), model);
+		return null;
+	}
+
+	private void simulate(String expected, Fragments translated, SpillCostModel model) {
+		Assembly assembly = new CodeGenerator().apply(translated);
+		RegAlloc.create().setSpillCostModel(model).apply(assembly);
+		Interp interp = new Interp(translated, InterpMode.TRACE_SCHEDULE);
+		Assert.assertEquals(expected, interp.run());
+		System.out.println(model+": "+interp.getSpillLoads()+" spill loads, "
+				+interp.getSpillStores()+" spill stores");
+		Integer total = totalLoads.get(model);
+		totalLoads.put(model, (total==null ? 0 : total) + interp.getSpillLoads());
+	}
+
+	/**
+	 * More live variables than there are registers: some of them are only
+	 * used outside the loop, the others inside it.
+	 */
+	@Test public void registerPressure() throws Exception {
+		test(	"4399\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Foo().doit(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Foo {\n" +
+				"   public int id(int x) { return x; }\n" +
+				"   public int doit(int n) { \n" +
+				"      int c1; int c2; int c3; int c4; int c5; int c6;\n" +
+				"      int h1; int h2; int h3; int h4; int i;\n" +
+				"      c1 = this.id(1); c2 = this.id(2); c3 = this.id(3);\n" +
+				"      c4 = this.id(4); c5 = this.id(5); c6 = this.id(6);\n" +
+				"      h1 = 1; h2 = 2; h3 = 3; h4 = 4; i = 0;\n" +
+				"      while (i < n) {\n" +
+				"         h1 = h1 + h2;\n" +
+				"         h2 = h3 + i;\n" +
+				"         h3 = h4 + h1;\n" +
+				"         h4 = h2 + 1;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return c1 + c2 + c3 + c4 + c5 + c6 + h1 + h2 + h3 + h4;\n" +
+				"   }\n" +
+				"}\n"
+		);
+	}
+
+	/**
+	 * Like registerPressure, but several of the variables are constants (they
+	 * are assigned once, so they can be rematerialized rather than spilled).
+	 */
+	@Test public void constantPressure() throws Exception {
+		test(	"166216204\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Foo().doit(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Foo {\n" +
+				"   public int doit(int n) { \n" +
+				"      int k1; int k2; int k3; int k4; int k5; int k6;\n" +
+				"      int a; int b; int c; int d; int i;\n" +
+				"      k1 = 3; k2 = 5; k3 = 7; k4 = 11; k5 = 13; k6 = 17;\n" +
+				"      a = 0; b = 1; c = 2; d = 3; i = 0;\n" +
+				"      while (i < n) {\n" +
+				"         a = a + k1 * b + k2;\n" +
+				"         b = b + k3 - c;\n" +
+				"         c = c + a * k4 - d;\n" +
+				"         d = d + k5 + b * k6;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return a + b + c + d;\n" +
+				"   }\n" +
+				"}\n"
+		);
+	}
+
+	@AfterClass public static void report() {
+		System.out.println("Total spill loads:");
+		for (Map.Entry<SpillCostModel, Integer> entry : totalLoads.entrySet())
+			System.out.println("   "+entry.getKey()+": "+entry.getValue());
+		// Counting the references must pay off on these programs
+		Integer constant = totalLoads.get(SpillCostModel.CONSTANT);
+		if (constant!=null && constant > 0)
+			Assert.assertTrue(totalLoads.get(SpillCostModel.DEFAULT) < constant);
+		for (Integer loads : totalLoads.values())
+			Assert.assertTrue(totalLoads.get(SpillCostModel.DEFAULT) <= loads);
+	}
+
+}
@@ -0,0 +1,84 @@
+package minijava.test.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import junit.framework.Assert;
+import minijava.codegen.jvm.JVMBackend;
+import minijava.ir.interp.InterpMode;
+import minijava.test.translate.TestTranslate;
+import minijava.translate.Fragments;
+import minijava.translate.Translator;
+
+import org.junit.Test;
+
+/**
+ * Runs all the TestTranslate programs with the JVM backend: the output must
+ * be the same as the output of the IR interpreter (and the expected output).
+ * <p>
+ * There is also a test that writes a jar and runs it, in a class loader
+ * that only sees the jar.
+ */
+public class TestJVMBackend extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		Assert.assertEquals(expected, new JVMBackend(translated).run());
+		return translated;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		Assert.assertEquals(expected, new JVMBackend(translated).run());
+		return translated;
+	}
+
+	@Test public void runnableJar() throws Exception {
+		Fragments program = Translator.translate(architecture,
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Fac().fac(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Fac {\n" +
+				"   public int fac(int n) { \n" +
+				"      int r;\n" +
+				"      if (n < 1) r = 1;\n" +
+				"      else r = n * this.fac(n - 1);\n" +
+				"      return r;\n" +
+				"   }\n" +
+				"}\n");
+		File jar = File.createTempFile("minijava", ".jar");
+		try {
+			new JVMBackend(program).writeJar(jar);
+			URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+			Class<?> main = loader.loadClass(JVMBackend.MAIN_CLASS.replace('/', '.'));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PrintStream stdout = System.out;
+			System.setOut(new PrintStream(out, true));
+			try {
+				main.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+			} finally {
+				System.setOut(stdout);
+			}
+			Assert.assertEquals("3628800\n", out.toString());
+		} finally {
+			jar.delete();
+		}
+	}
+}
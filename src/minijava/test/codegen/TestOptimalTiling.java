@@ -0,0 +1,56 @@
+package minijava.test.codegen;
+
+import junit.framework.Assert;
+import minijava.codegen.AssemFragment;
+import minijava.codegen.AssemProc;
+import minijava.codegen.Assembly;
+import minijava.codegen.CodeGenerator;
+import minijava.codegen.assem.A_LABEL;
+import minijava.codegen.assem.Instr;
+import minijava.translate.Fragments;
+
+import org.junit.AfterClass;
+
+/**
+ * Generates code for all the TestTranslate programs twice: once with maximal
+ * munch and once with optimal tiling (picking munch rules by cost). The
+ * optimal tiling must never need more instructions than maximal munch.
+ * The totals are printed at the end.
+ */
+public class TestOptimalTiling extends TestCodegen {
+
+	private static int totalMaximalMunch = 0;
+	private static int totalOptimal = 0;
+
+	@Override
+	protected void test(Fragments ir_fragments) {
+		Assembly maximalMunch = new CodeGenerator().apply(ir_fragments);
+		Assembly optimal = new CodeGenerator().setOptimalTiling(true).apply(ir_fragments);
+		int maximalMunchCount = instructionCount(maximalMunch);
+		int optimalCount = instructionCount(optimal);
+		System.out.println(optimal);
+		System.out.println("Maximal munch: "+maximalMunchCount+" instructions, optimal tiling: "
+				+optimalCount+" instructions");
+		Assert.assertTrue(optimalCount<=maximalMunchCount);
+		totalMaximalMunch += maximalMunchCount;
+		totalOptimal += optimalCount;
+	}
+
+	private int instructionCount(Assembly assembly) {
+		int count = 0;
+		for (AssemFragment fragment : assembly) {
+			for (Instr instr : ((AssemProc) fragment).getBody()) {
+				if (!(instr instanceof A_LABEL))
+					count++;
+			}
+		}
+		return count;
+	}
+
+	@AfterClass public static void report() {
+		System.out.println("Total instructions:");
+		System.out.println("   maximal munch: "+totalMaximalMunch);
+		System.out.println("   optimal tiling: "+totalOptimal);
+	}
+
+}
@@ -0,0 +1,20 @@
+package minijava.test.codegen;
+
+import minijava.ir.interp.Interp;
+import minijava.ir.optimize.Optimizer;
+import minijava.translate.Fragments;
+
+/**
+ * Runs all the TestJVMBackend tests with the IR of every procedure optimized
+ * by the default {@link Optimizer}: the JVM backend must accept everything
+ * the optimizer produces (e.g. it can't take the address of the frame).
+ */
+public class TestOptimizedJVMBackend extends TestJVMBackend {
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		translated.setOptimizer(new Optimizer());
+		return super.interpreter(translated);
+	}
+
+}
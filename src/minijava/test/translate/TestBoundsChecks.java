@@ -0,0 +1,130 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.temp.Label;
+import minijava.test.SampleCode;
+import minijava.translate.Fragments;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, with
+ * only the array bounds check pass of the {@link Optimizer}, and prints what
+ * it did to each procedure.
+ * <p>
+ * There are also some tests of which checks are removed, and of versioned
+ * loops that have to take the slow path.
+ */
+public class TestBoundsChecks extends TestTranslate {
+
+	private Optimizer optimizer;
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		optimizer = new Optimizer().setSimplify(false);
+		translated.setOptimizer(optimizer);
+		Interp interp = super.interpreter(translated);
+		System.out.print(optimizer);
+		return interp;
+	}
+
+	@Test public void countingLoops() throws Exception {
+		test(	"45\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Arr().run(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Arr {\n" +
+				"   public int run(int n) { \n" +
+				"      int[] a;\n" +
+				"      int i;\n" +
+				"      int sum;\n" +
+				"      a = new int[n];\n" +
+				"      i = 0;\n" +
+				"      while (i < a.length) {\n" +
+				"         a[i] = i;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      sum = 0;\n" +
+				"      i = a.length - 1;\n" +
+				"      while (0 - 1 < i) {\n" +
+				"         sum = sum + a[i];\n" +
+				"         i = i - 1;\n" +
+				"      }\n" +
+				"      return sum;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		Label run = Label.get("Arr_run");
+		Assert.assertEquals(4, optimizer.getBoundsChecks(run));
+		Assert.assertEquals(4, optimizer.getBoundsChecksRemoved(run));
+		Assert.assertEquals(0, optimizer.getLoopsVersioned(run));
+	}
+
+	@Test public void versionedLoops() throws Exception {
+		test(	"15\n6\n0\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    {\n" +
+				"      System.out.println(new Sum().run(5, 5));\n" +
+				"      System.out.println(new Sum().run(3, 5));\n" +
+				"      System.out.println(new Sum().run(0, 0));\n" +
+				"    }\n" +
+				"  }\n" +
+				"}\n" +
+				"class Sum {\n" +
+				"   int[] a;\n" +
+				"   public int run(int size, int n) { \n" +
+				"      int i;\n" +
+				"      int s;\n" +
+				"      if (0 < size) a = new int[size];\n" +
+				"      else s = 0;\n" +
+				"      i = 0;\n" +
+				"      while (i < n) {\n" +
+				"         a[i] = i + 1;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      i = 0;\n" +
+				"      s = 0;\n" +
+				"      while (i < n) {\n" +
+				"         s = s + a[i];\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return s;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		// The lower bound checks are proven, the upper bound checks are done
+		// before each loop (and the array is too short, or null, in the last
+		// two runs).
+		Label run = Label.get("Sum_run");
+		Assert.assertEquals(4, optimizer.getBoundsChecks(run));
+		Assert.assertEquals(2, optimizer.getBoundsChecksRemoved(run));
+		Assert.assertEquals(2, optimizer.getBoundsChecksHoisted(run));
+		Assert.assertEquals(2, optimizer.getLoopsVersioned(run));
+	}
+
+	@Test public void bubbleSort() throws Exception {
+		test(new File(SampleCode.sample_dir, "BubbleSort.java"));
+		Label sort = Label.get("BBS_Sort");
+		Assert.assertTrue(optimizer.getBoundsChecksRemoved(sort) > 0);
+		Assert.assertEquals(1, optimizer.getLoopsVersioned(sort));
+		Assert.assertEquals(2, optimizer.getLoopsVersioned(Label.get("BBS_Print")) + optimizer.getBoundsChecksRemoved(Label.get("BBS_Print")));
+	}
+}
@@ -0,0 +1,22 @@
+package minijava.test.translate;
+
+import minijava.ir.interp.InterpMode;
+
+/**
+ * This runs all the same tests as the TestTraceSchedule test suite.
+ * <p>
+ * The difference is that the trace scheduled IR is compiled into closures
+ * (see {@link minijava.ir.interp.CompiledProc}) before it is executed,
+ * rather than being interpreted directly.
+ * <p>
+ * Presumably, if your IR code works correctly in TestTraceSchedule but
+ * there are problems in this test, then it probably means the IR compiler
+ * in the interpreter has a bug.
+ */
+public class TestCompiledInterp extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+}
@@ -0,0 +1,44 @@
+package minijava.test.translate;
+
+import minijava.ir.interp.InterpMode;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, but
+ * CALLs are simulated by pushing frames on the interpreter's own stack
+ * rather than by recursing in Java (see {@link InterpMode#EXPLICIT_STACK}).
+ * <p>
+ * There is also a test that recurses far deeper than the Java stack 
+ * would allow.
+ */
+public class TestExplicitStack extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.EXPLICIT_STACK;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Test public void deepRecursion() throws Exception {
+		test(	"705082704\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Rec().sum(100000));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Rec {\n" +
+				"   public int sum(int n) { \n" +
+				"      int r;\n" +
+				"      if (n < 1) r = 0;\n" +
+				"      else r = n + this.sum(n - 1);\n" +
+				"      return r;\n" +
+				"   }\n" +
+				"}\n"
+		);
+	}
+}
@@ -0,0 +1,149 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.frame.Frame;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.IR;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.translate.Translator;
+import minijava.util.List;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, but
+ * with the objects and arrays of the program allocated in the interpreter's
+ * flat heap (see {@link Interp#setFlatHeap(boolean)}).
+ * <p>
+ * The compiled code accesses the heap through its own fast paths, so every
+ * program is also run in TRACE_SCHEDULE mode, which only uses the ordinary
+ * Ptr operations.
+ * <p>
+ * MiniJava programs check the bounds of their arrays, so they never access
+ * memory out of bounds. To check that the flat heap still detects such
+ * accesses, there are also some tests of hand written IR code.
+ */
+public class TestFlatHeap extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		return super.interpreter(translated).setFlatHeap(true);
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		simulate(expected, translated);
+		return translated;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		simulate(expected, translated);
+		return translated;
+	}
+
+	private void simulate(String expected, Fragments translated) {
+		Interp interp = new Interp(translated, InterpMode.TRACE_SCHEDULE).setFlatHeap(true);
+		Assert.assertEquals(expected, interp.run());
+	}
+
+	/**
+	 * A program that allocates three blocks of two words each, in t[0], t[1]
+	 * and t[2], and then runs the given statements.
+	 */
+	private Fragments program(Temp[] t, IRStm stms) {
+		Frame frame = architecture.newFrame(Translator.L_MAIN, List.<Boolean>empty());
+		IRStm body = IR.NOP;
+		for (int i = 0; i < t.length; i++)
+			body = IR.SEQ(body, IR.MOVE(t[i], IR.CALL(Translator.L_NEW_OBJECT, IR.CONST(2 * frame.wordSize()))));
+		Fragments fragments = new Fragments(architecture);
+		fragments.add(new ProcFragment(frame, frame.procEntryExit1(IR.SEQ(body, stms))));
+		return fragments;
+	}
+
+	private static Temp[] temps() {
+		return new Temp[] { new Temp(), new Temp(), new Temp() };
+	}
+
+	private static IRStm print(IRExp exp) {
+		return IR.EXP(IR.CALL(Translator.L_PRINT, exp));
+	}
+
+	/**
+	 * Check that the program prints what is expected when it stays in bounds,
+	 * and that it fails when it goes out of bounds, in all the modes that use
+	 * the flat heap.
+	 */
+	private void outOfBounds(Fragments inBounds, Fragments outOfBounds) {
+		for (InterpMode mode : new InterpMode[] { InterpMode.COMPILED, InterpMode.TRACE_SCHEDULE }) {
+			Assert.assertEquals("0\n", new Interp(inBounds, mode).setFlatHeap(true).run());
+			try {
+				new Interp(outOfBounds, mode).setFlatHeap(true).run();
+				Assert.fail("No out of bounds access detected in "+mode);
+			}
+			catch (Error e) {
+				if (e.getMessage()==null || !e.getMessage().contains("Out of bounds memory access"))
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reading past the end of the first block lands on the first word of the
+	 * second one (after the gap).
+	 */
+	@Test public void pastTheEnd() throws Exception {
+		int wordSize = architecture.wordSize();
+		Temp[] t = temps();
+		outOfBounds(
+				program(t, print(IR.MEM(IR.PLUS(IR.TEMP(t[0]), wordSize)))),
+				program(t, print(IR.MEM(IR.PLUS(IR.TEMP(t[0]), 3 * wordSize)))));
+	}
+
+	/**
+	 * Reading just past the end of a block reads the gap before the next one.
+	 */
+	@Test public void intoTheGap() throws Exception {
+		int wordSize = architecture.wordSize();
+		Temp[] t = temps();
+		outOfBounds(
+				program(t, print(IR.MEM(IR.TEMP(t[1])))),
+				program(t, print(IR.MEM(IR.PLUS(IR.TEMP(t[0]), 2 * wordSize)))));
+	}
+
+	/**
+	 * A pointer that is stored in the heap and read back still only gives
+	 * access to its own block.
+	 */
+	@Test public void pointerFromMemory() throws Exception {
+		int wordSize = architecture.wordSize();
+		Temp[] t = temps();
+		Temp p = new Temp();
+		IRStm store = IR.SEQ(
+				IR.MOVE(IR.MEM(IR.TEMP(t[0])), IR.TEMP(t[1])),
+				IR.MOVE(p, IR.MEM(IR.TEMP(t[0]))));
+		outOfBounds(
+				program(t, IR.SEQ(store, print(IR.MEM(IR.PLUS(IR.TEMP(p), wordSize))))),
+				program(t, IR.SEQ(store, print(IR.MEM(IR.PLUS(IR.TEMP(p), 3 * wordSize))))));
+	}
+
+}
@@ -0,0 +1,173 @@
+package minijava.test.translate;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.Profile;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.temp.Label;
+import minijava.translate.Fragments;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, with
+ * all the passes of the {@link Optimizer}, and prints what the strength
+ * reduction of induction variables did to each procedure.
+ * <p>
+ * There are also some tests of which addresses and tests are replaced, and
+ * of how many operations the loops of the sample programs execute with and
+ * without it.
+ */
+public class TestInductionVariables extends TestOptimizerPass {
+
+	private Optimizer optimizer;
+	private Profile profile;
+	private boolean inductionVariables = true;
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		optimizer = new Optimizer().setInductionVariables(inductionVariables);
+		translated.setOptimizer(optimizer);
+		profile = new Profile();
+		Interp interp = super.interpreter(translated).setProfile(profile);
+		if (inductionVariables)
+			System.out.print(optimizer);
+		return interp;
+	}
+
+	@Override
+	protected void setOptimizing(boolean on) {
+		inductionVariables = on;
+	}
+
+	@Override
+	protected Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Also check that the pass reduced an address in the procedure.
+	 */
+	@Override
+	protected void fewerOperations(String sample, String proc) throws Exception {
+		super.fewerOperations(sample, proc);
+		Assert.assertTrue(optimizer.getAddressesReduced(Label.get(proc)) > 0);
+	}
+
+	@Test public void bubbleSortKernel() throws Exception {
+		fewerOperations("BubbleSort.java", "BBS_Sort");
+	}
+
+	@Test public void linearSearchPrint() throws Exception {
+		fewerOperations("LinearSearch.java", "LS_Print");
+	}
+
+	@Test public void binarySearchPrint() throws Exception {
+		fewerOperations("BinarySearch.java", "BS_Print");
+	}
+
+	@Test public void countingLoops() throws Exception {
+		test(	"45\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Arr().run(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Arr {\n" +
+				"   public int run(int n) { \n" +
+				"      int[] a;\n" +
+				"      int i;\n" +
+				"      int sum;\n" +
+				"      a = new int[n];\n" +
+				"      i = 0;\n" +
+				"      while (i < a.length) {\n" +
+				"         a[i] = i;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      sum = 0;\n" +
+				"      i = a.length - 1;\n" +
+				"      while (0 - 1 < i) {\n" +
+				"         sum = sum + a[i];\n" +
+				"         i = i - 1;\n" +
+				"      }\n" +
+				"      return sum;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		// The first loop stores i, so only the second one's test is replaced
+		Label run = Label.get("Arr_run");
+		Assert.assertEquals(2, optimizer.getLoopsReduced(run));
+		Assert.assertEquals(2, optimizer.getAddressesReduced(run));
+		Assert.assertEquals(1, optimizer.getTestsReplaced(run));
+	}
+
+	@Test public void neighbours() throws Exception {
+		test(	"3\n5\n7\n9\n11\n10\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Pairs().run(6));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Pairs {\n" +
+				"   public int run(int n) { \n" +
+				"      int[] a;\n" +
+				"      int[] b;\n" +
+				"      int i;\n" +
+				"      int j;\n" +
+				"      a = new int[n];\n" +
+				"      b = new int[n];\n" +
+				"      i = 0;\n" +
+				"      while (i < n) {\n" +
+				"         a[i] = i + 1;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      i = 0;\n" +
+				"      while (i < n - 1) {\n" +
+				"         j = i + 1;\n" +
+				"         b[i] = a[i] + a[j];\n" +
+				"         i = i + 1;\n" +
+				"         System.out.println(b[i - 1]);\n" +
+				"      }\n" +
+				"      return i + a[i - 1];\n" +
+				"   }\n" +
+				"}\n"
+		);
+		// Both loops are versioned, and all the element addresses of the four
+		// copies are reduced (a[j] and b[i - 1] are next to the element at i).
+		// The loops read i for other things, so their tests are kept.
+		Label run = Label.get("Pairs_run");
+		Assert.assertEquals(4, optimizer.getLoopsReduced(run));
+		Assert.assertEquals(10, optimizer.getAddressesReduced(run));
+		Assert.assertEquals(0, optimizer.getTestsReplaced(run));
+	}
+
+	@Test public void wrappingIndex() throws Exception {
+		// i * 4 wraps around to 4 and 8: the checks must fail on i, not on the
+		// address of a[i], which is that of a[1] and a[2]
+		test(	"0\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Wrap().run());\n" +
+				"  }\n" +
+				"}\n" +
+				"class Wrap {\n" +
+				"   public int run() { \n" +
+				"      int[] a;\n" +
+				"      int i;\n" +
+				"      int s;\n" +
+				"      a = new int[3];\n" +
+				"      a[1] = 7;\n" +
+				"      a[2] = 9;\n" +
+				"      s = 0;\n" +
+				"      i = 0 - 1073741823;\n" +
+				"      while (i < (0 - 1073741821)) {\n" +
+				"         s = s + a[i];\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return s;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		Assert.assertEquals(0, optimizer.getTestsReplaced(Label.get("Wrap_run")));
+	}
+}
@@ -0,0 +1,216 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.interp.Profile;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.temp.Label;
+import minijava.test.SampleCode;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, with
+ * the inlining of the {@link Optimizer} switched on, and prints what it did
+ * to each procedure.
+ * <p>
+ * There are also some tests of how many calls the sample programs make with
+ * and without it, of recursive calls, of the budget, and of inlining
+ * guided by a profile.
+ */
+public class TestInlining extends TestTranslate {
+
+	private Optimizer optimizer;
+	private Profile profile;
+	private boolean inlining = true;
+	private int size = 40;
+	private int depth = 2;
+	private Profile inliningProfile = null;
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		optimizer = new Optimizer()
+				.setInlining(inlining)
+				.setInliningBudget(size, depth, 400)
+				.setInliningProfile(inliningProfile);
+		translated.setOptimizer(optimizer);
+		profile = new Profile();
+		Interp interp = super.interpreter(translated).setProfile(profile);
+		if (inlining)
+			System.out.print(optimizer);
+		return interp;
+	}
+
+	/**
+	 * The number of procedure calls the program made (from the profile).
+	 */
+	private int calls(Fragments translated) {
+		int result = 0;
+		for (Fragment fragment : translated)
+			result += profile.getInvocations(((ProcFragment) fragment).getLabel());
+		return result;
+	}
+
+	/**
+	 * Run a sample with and without inlining, and check that it makes fewer
+	 * calls with it.
+	 */
+	private void fewerCalls(String sample) throws Exception {
+		File program = new File(SampleCode.sample_dir, sample);
+		inlining = false;
+		int before = calls(test(program));
+		inlining = true;
+		int after = calls(test(program));
+		System.out.println(sample+": "+before+" calls before, "+after+" after");
+		Assert.assertTrue(after < before);
+	}
+
+	@Test public void linkedListAccessors() throws Exception {
+		fewerCalls("LinkedList.java");
+		// GetAge, GetSalary and GetMarried of the other element
+		Assert.assertTrue(optimizer.getCallsInlined(Label.get("Element_Equal")) >= 3);
+	}
+
+	@Test public void binaryTreeAccessors() throws Exception {
+		fewerCalls("BinaryTree.java");
+		Assert.assertTrue(optimizer.getCallsInlined(Label.get("Tree_Search")) > 0);
+		// RecPrint calls itself
+		Assert.assertEquals(2, optimizer.getRecursiveCalls(Label.get("Tree_RecPrint")));
+	}
+
+	private static final String RECURSION =
+			"class Main {\n" +
+			"  public static void main(String[] args) {\n" +
+			"    {\n" +
+			"      System.out.println(new Rec().even(10));\n" +
+			"      System.out.println(new Rec().fac(5));\n" +
+			"    }\n" +
+			"  }\n" +
+			"}\n" +
+			"class Rec {\n" +
+			"   public int even(int n) { \n" +
+			"      int r;\n" +
+			"      if (n < 1) r = 1; else r = this.odd(n - 1);\n" +
+			"      return r;\n" +
+			"   }\n" +
+			"   public int odd(int n) { \n" +
+			"      int r;\n" +
+			"      if (n < 1) r = 0; else r = this.even(n - 1);\n" +
+			"      return r;\n" +
+			"   }\n" +
+			"   public int fac(int n) { \n" +
+			"      int r;\n" +
+			"      if (n < 1) r = 1; else r = n * (this.fac(n - 1));\n" +
+			"      return r;\n" +
+			"   }\n" +
+			"}\n";
+
+	@Test public void recursion() throws Exception {
+		depth = 5;
+		test("1\n120\n", RECURSION);
+		// odd is copied into even, and the call of even in the copy is left
+		Assert.assertEquals(1, optimizer.getCallsInlined(Label.get("Rec_even")));
+		Assert.assertEquals(1, optimizer.getRecursiveCalls(Label.get("Rec_even")));
+		Assert.assertEquals(0, optimizer.getCallsInlined(Label.get("Rec_fac")));
+		Assert.assertEquals(1, optimizer.getRecursiveCalls(Label.get("Rec_fac")));
+	}
+
+	private static final String NESTED =
+			"class Main {\n" +
+			"  public static void main(String[] args) {\n" +
+			"    {\n" +
+			"      System.out.println(new Nest().a(1));\n" +
+			"      System.out.println(new Nest().a(2));\n" +
+			"    }\n" +
+			"  }\n" +
+			"}\n" +
+			"class Nest {\n" +
+			"   public int a(int x) { \n" +
+			"      return (this.b(x)) + 1;\n" +
+			"   }\n" +
+			"   public int b(int x) { \n" +
+			"      return (this.c(x)) * 2;\n" +
+			"   }\n" +
+			"   public int c(int x) { \n" +
+			"      while (x < 10) x = x + x;\n" +
+			"      return x;\n" +
+			"   }\n" +
+			"}\n";
+
+	@Test public void budget() throws Exception {
+		// b, and c in the copy of b (in main: a twice, and b in each copy)
+		test("33\n33\n", NESTED);
+		Assert.assertEquals(2, optimizer.getCallsInlined(Label.get("Nest_a")));
+		Assert.assertEquals(4, optimizer.getCallsInlined(Label.get("mj_main")));
+		// Only b
+		depth = 1;
+		test("33\n33\n", NESTED);
+		Assert.assertEquals(1, optimizer.getCallsInlined(Label.get("Nest_a")));
+		// Nothing is that small
+		size = 3;
+		test("33\n33\n", NESTED);
+		Assert.assertEquals(0, optimizer.getCallsInlined(Label.get("Nest_a")));
+		Assert.assertEquals(0, optimizer.getInliningGrowth(Label.get("Nest_a")));
+	}
+
+	@Test public void profiled() throws Exception {
+		String program =
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    {\n" +
+				"      System.out.println(new Hot().run(5));\n" +
+				"    }\n" +
+				"  }\n" +
+				"}\n" +
+				"class Hot {\n" +
+				"   public int run(int k) { \n" +
+				"      int i;\n" +
+				"      int s;\n" +
+				"      i = 0;\n" +
+				"      s = 0;\n" +
+				"      while (i < k) {\n" +
+				"         s = s + (this.inc(i));\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      if (k < 0) s = this.dec(s); else {}\n" +
+				"      return s;\n" +
+				"   }\n" +
+				"   public int inc(int x) { \n" +
+				"      return x + 1;\n" +
+				"   }\n" +
+				"   public int dec(int x) { \n" +
+				"      return x - 1;\n" +
+				"   }\n" +
+				"}\n";
+		Label run = Label.get("Hot_run");
+		test("15\n", program);
+		Assert.assertEquals(2, optimizer.getCallsInlined(run));
+
+		// The call of dec never runs
+		inlining = false;
+		test("15\n", program);
+		Assert.assertEquals(5, profile.getCallCount(run, Label.get("Hot_inc")));
+		inlining = true;
+		inliningProfile = profile;
+		test("15\n", program);
+		Assert.assertEquals(1, optimizer.getCallsInlined(run));
+		Assert.assertEquals(0, profile.getInvocations(Label.get("Hot_inc")));
+	}
+
+}
@@ -0,0 +1,136 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.Profile;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.temp.Label;
+import minijava.test.SampleCode;
+import minijava.translate.Fragments;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, with
+ * the loop invariant code motion of the {@link Optimizer} (and without its
+ * bounds check removal, so the loops still have their checks), and prints
+ * what it did to each procedure.
+ * <p>
+ * There are also some tests of what is moved out of the loops, and of how
+ * many operations the sort and search kernels of the sample programs
+ * execute with and without it.
+ */
+public class TestLoopInvariants extends TestOptimizerPass {
+
+	private Optimizer optimizer;
+	private Profile profile;
+	private boolean loopInvariants = true;
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		optimizer = new Optimizer().setBoundsChecks(false).setLoopInvariants(loopInvariants);
+		translated.setOptimizer(optimizer);
+		profile = new Profile();
+		Interp interp = super.interpreter(translated).setProfile(profile);
+		if (loopInvariants)
+			System.out.print(optimizer);
+		return interp;
+	}
+
+	@Override
+	protected void setOptimizing(boolean on) {
+		loopInvariants = on;
+	}
+
+	@Override
+	protected Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Also check that the pass hoisted something in the procedure.
+	 */
+	@Override
+	protected void fewerOperations(String sample, String proc) throws Exception {
+		super.fewerOperations(sample, proc);
+		Assert.assertTrue(optimizer.getInvariantsHoisted(Label.get(proc)) > 0);
+	}
+
+	@Test public void bubbleSortKernel() throws Exception {
+		fewerOperations("BubbleSort.java", "BBS_Sort");
+	}
+
+	@Test public void quickSortKernel() throws Exception {
+		fewerOperations("QuickSort.java", "QS_Sort");
+	}
+
+	@Test public void linearSearchKernel() throws Exception {
+		fewerOperations("LinearSearch.java", "LS_Search");
+	}
+
+	@Test public void binarySearchKernel() throws Exception {
+		fewerOperations("BinarySearch.java", "BS_Search");
+	}
+
+	@Test public void fieldsAndLengths() throws Exception {
+		test(	"0\n6\n3\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    {\n" +
+				"      System.out.println(new Len().run(0));\n" +
+				"      System.out.println(new Len().init().run(2));\n" +
+				"      System.out.println(new Len().calls(3));\n" +
+				"    }\n" +
+				"  }\n" +
+				"}\n" +
+				"class Len {\n" +
+				"   int[] a;\n" +
+				"   int n;\n" +
+				"   public Len init() { \n" +
+				"      a = new int[3];\n" +
+				"      return this;\n" +
+				"   }\n" +
+				"   public int run(int k) { \n" +
+				"      int i;\n" +
+				"      int s;\n" +
+				"      i = 0;\n" +
+				"      s = 0;\n" +
+				"      while (i < k) {\n" +
+				"         s = s + a.length;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return s;\n" +
+				"   }\n" +
+				"   public int grow() { \n" +
+				"      n = n + 1;\n" +
+				"      return n;\n" +
+				"   }\n" +
+				"   public int calls(int k) { \n" +
+				"      int i;\n" +
+				"      int s;\n" +
+				"      i = 0;\n" +
+				"      s = 0;\n" +
+				"      while (i < k) {\n" +
+				"         s = s + n;\n" +
+				"         i = this.grow();\n" +
+				"      }\n" +
+				"      return s;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		// k, and the length of a (after the test: a is null if the loop isn't
+		// run). With the call in the loop, n isn't moved, only k and this.
+		Assert.assertEquals(1, optimizer.getLoopsWithInvariants(Label.get("Len_run")));
+		Assert.assertEquals(2, optimizer.getInvariantsHoisted(Label.get("Len_run")));
+		Assert.assertEquals(2, optimizer.getInvariantsHoisted(Label.get("Len_calls")));
+	}
+
+	@Test public void frameAddresses() throws Exception {
+		test(new File(SampleCode.sample_dir, "BinaryTree.java"));
+		// The loop stores through FP + 16, that address isn't worth a register
+		Assert.assertEquals(0, optimizer.getInvariantsHoisted(Label.get("Tree_RemoveRight")));
+		Assert.assertEquals(0, optimizer.getInvariantsHoisted(Label.get("Tree_RemoveLeft")));
+	}
+}
@@ -0,0 +1,131 @@
+package minijava.test.translate;
+
+import static minijava.ir.tree.IR.*;
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.optimize.Simplifier;
+import minijava.ir.temp.Label;
+import minijava.ir.temp.Temp;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.BINOP.Op;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.CONST;
+import minijava.ir.tree.CJUMP.RelOp;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.JUMP;
+import minijava.ir.tree.NAME;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, but
+ * with the IR of every procedure optimized (see {@link Optimizer}).
+ * <p>
+ * There are also some tests of what the {@link Simplifier} does to
+ * particular trees.
+ */
+public class TestOptimizedIR extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		translated.setOptimizer(new Optimizer());
+		return super.interpreter(translated);
+	}
+
+	@Test public void foldConstants() throws Exception {
+		IRExp t = TEMP(new Temp());
+		Assert.assertTrue(Simplifier.simplify(new BINOP(Op.MUL, CONST(6), CONST(7))).isCONST(42));
+		Assert.assertTrue(Simplifier.simplify(new BINOP(Op.MINUS, CONST(1), new BINOP(Op.MINUS, CONST(1), CONST(0)))).isCONST(0));
+		Assert.assertSame(t, Simplifier.simplify(new BINOP(Op.PLUS, CONST(0), t)));
+		Assert.assertSame(t, Simplifier.simplify(new BINOP(Op.MINUS, t, CONST(0))));
+		Assert.assertSame(t, Simplifier.simplify(new BINOP(Op.MUL, CONST(1), t)));
+		Assert.assertTrue(Simplifier.simplify(new BINOP(Op.MUL, t, CONST(0))).isCONST(0));
+		// A MEM may be out of bounds, so it isn't dropped
+		Assert.assertTrue(Simplifier.simplify(new BINOP(Op.MUL, MEM(t), CONST(0))) instanceof BINOP);
+
+		// (t + 4) + 8  ==>  t + 12
+		BINOP sum = (BINOP) Simplifier.simplify(new BINOP(Op.PLUS, new BINOP(Op.PLUS, t, CONST(4)), CONST(8)));
+		Assert.assertSame(t, sum.getLeft());
+		Assert.assertTrue(sum.getRight().isCONST(12));
+		// (t + 4) - 4  ==>  t
+		Assert.assertSame(t, Simplifier.simplify(new BINOP(Op.MINUS, new BINOP(Op.PLUS, t, CONST(4)), CONST(4))));
+	}
+
+	@Test public void foldCJUMP() throws Exception {
+		Label t = Label.gen();
+		Label f = Label.gen();
+		IRStm folded = Simplifier.simplify(CJUMP(RelOp.LT, CONST(-1), new BINOP(Op.PLUS, CONST(2), CONST(3)), t, f));
+		Assert.assertEquals(t, ((NAME) ((JUMP) folded).getExp()).getLabel());
+		folded = Simplifier.simplify(CJUMP(RelOp.ULT, CONST(-1), CONST(5), t, f));
+		Assert.assertEquals(f, ((NAME) ((JUMP) folded).getExp()).getLabel());
+		Assert.assertTrue(Simplifier.simplify(CJUMP(RelOp.LT, TEMP(new Temp()), CONST(5), t, f)) instanceof CJUMP);
+	}
+
+	@Test public void removeUnreachable() throws Exception {
+		Label l = Label.gen();
+		Label dead = Label.gen();
+		Temp t = new Temp();
+		List<IRStm> body = List.list(
+				MOVE(t, CONST(1)),
+				JUMP(l),
+				MOVE(t, CONST(2)),   // unreachable
+				LABEL(dead),         // nothing jumps here
+				MOVE(t, CONST(3)),
+				LABEL(l),
+				MOVE(t, CONST(4)));
+		List<IRStm> result = Simplifier.removeUnreachable(body);
+		Assert.assertEquals(4, result.size());
+		Assert.assertSame(body.get(1), result.get(1));
+		Assert.assertSame(body.get(5), result.get(2));
+	}
+
+	@Test public void constantIndexAndCondition() throws Exception {
+		Fragments translated = test(	"5\n3\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Arr().run());\n" +
+				"  }\n" +
+				"}\n" +
+				"class Arr {\n" +
+				"   public int run() { \n" +
+				"      int[] a;\n" +
+				"      a = new int[2 + 3];\n" +
+				"      a[0] = 3;\n" +
+				"      if (true && !false) System.out.println(a.length);\n" +
+				"      else System.out.println(0);\n" +
+				"      return a[0];\n" +
+				"   }\n" +
+				"}\n"
+		);
+		// The lower bound checks of a[0] and the if are folded away.
+		int cjumps = 0;
+		for (Fragment fragment : translated) {
+			for (IRStm stm : ((ProcFragment) fragment).getLinearizedBody()) {
+				if (stm instanceof CJUMP) {
+					cjumps++;
+					Assert.assertFalse(((CJUMP) stm).getLeft() instanceof CONST
+							&& ((CJUMP) stm).getRight() instanceof CONST);
+				}
+			}
+		}
+		// Only the two upper bound checks are left
+		Assert.assertEquals(2, cjumps);
+	}
+}
@@ -0,0 +1,94 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.interp.Profile;
+import minijava.ir.optimize.Optimizer;
+import minijava.ir.temp.Label;
+import minijava.ir.tree.BINOP;
+import minijava.ir.tree.IRExp;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.ir.tree.MEM;
+import minijava.test.SampleCode;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+/**
+ * Runs all the same tests as the TestCompiledInterp test suite, for a
+ * subclass that tests one of the passes of the {@link Optimizer}, and counts
+ * the operations that a procedure executes with and without the pass (from
+ * the profile of the runs).
+ */
+public abstract class TestOptimizerPass extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	/**
+	 * Switch the pass on or off for the next runs.
+	 */
+	protected abstract void setOptimizing(boolean on);
+
+	/**
+	 * The profile of the last run.
+	 */
+	protected abstract Profile getProfile();
+
+	/**
+	 * Run a sample with and without the pass, and check that the procedure
+	 * executes fewer operations with it.
+	 */
+	protected void fewerOperations(String sample, String proc) throws Exception {
+		File program = new File(SampleCode.sample_dir, sample);
+		Label label = Label.get(proc);
+		setOptimizing(false);
+		long before = operations(test(program), label);
+		setOptimizing(true);
+		long after = operations(test(program), label);
+		System.out.println(proc+": "+before+" operations before, "+after+" after");
+		Assert.assertTrue(after < before);
+	}
+
+	/**
+	 * The number of BINOPs and MEM reads a procedure executed (from the
+	 * profile of its basic blocks).
+	 */
+	protected long operations(Fragments translated, Label proc) {
+		for (Fragment fragment : translated) {
+			ProcFragment procFragment = (ProcFragment) fragment;
+			if (!procFragment.getLabel().equals(proc))
+				continue;
+			long result = 0;
+			for (List<IRStm> block : procFragment.getBasicBlocks().blocks) {
+				int count = getProfile().getBlockCount(proc, ((LABEL) block.head()).getLabel());
+				for (IRStm stm : block) {
+					// The kids of a store are its address and value
+					for (IRExp kid : stm.kids())
+						result += count * operations(kid);
+				}
+			}
+			return result;
+		}
+		throw new Error("No procedure "+proc);
+	}
+
+	protected static int operations(IRExp exp) {
+		int result = exp instanceof BINOP || exp instanceof MEM ? 1 : 0;
+		for (IRExp kid : exp.kids())
+			result += operations(kid);
+		return result;
+	}
+
+}
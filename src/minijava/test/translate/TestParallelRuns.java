@@ -0,0 +1,92 @@
+package minijava.test.translate;
+
+import java.io.File;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.interp.Profile;
+import minijava.ir.interp.SimProgram;
+import minijava.ir.temp.Label;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, and
+ * then loads each program once more and runs it a number of times at the
+ * same time (see {@link Interp#runAll(Interp[], int)}), in the COMPILED and
+ * in the TRACE_SCHEDULE mode. Every run should produce the same output.
+ * <p>
+ * The runs in COMPILED mode are profiled: each run counts on its own, so
+ * the profile must have exactly RUNS times the counts of a single run.
+ */
+public class TestParallelRuns extends TestTranslate {
+
+	private static final int RUNS = 8;
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		runParallel(expected, translated, InterpMode.COMPILED);
+		runParallel(expected, translated, InterpMode.TRACE_SCHEDULE);
+		return translated;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		runParallel(expected, translated, InterpMode.COMPILED);
+		runParallel(expected, translated, InterpMode.TRACE_SCHEDULE);
+		return translated;
+	}
+
+	private void runParallel(String expected, Fragments translated, InterpMode mode) {
+		SimProgram program = new SimProgram(translated, mode);
+		Profile profile = null;
+		if (mode==InterpMode.COMPILED) {
+			profile = new Profile();
+			program.setProfile(profile);
+		}
+		Interp[] runs = new Interp[RUNS];
+		for (int i = 0; i < RUNS; i++)
+			runs[i] = new Interp(program).setFlatHeap(i%2==1);
+		String[] outputs = Interp.runAll(runs, 4);
+		for (String output : outputs)
+			Assert.assertEquals(expected, output);
+		if (profile!=null) {
+			Profile single = new Profile();
+			new Interp(new SimProgram(translated, mode)).setProfile(single).run();
+			checkCounts(translated, single, profile);
+		}
+	}
+
+	/**
+	 * Check that the counts of a profile of RUNS runs are RUNS times those
+	 * of a single run.
+	 */
+	private void checkCounts(Fragments translated, Profile single, Profile parallel) {
+		for (Fragment fragment : translated) {
+			ProcFragment proc = (ProcFragment) fragment;
+			Label name = proc.getLabel();
+			Assert.assertEquals(RUNS * single.getInvocations(name), parallel.getInvocations(name));
+			for (List<IRStm> block : proc.getBasicBlocks().blocks) {
+				Label label = ((LABEL) block.head()).getLabel();
+				Assert.assertEquals(RUNS * single.getBlockCount(name, label), parallel.getBlockCount(name, label));
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package minijava.test.translate;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.Assert;
+import minijava.ir.canon.BasicBlocks;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.ir.interp.Profile;
+import minijava.ir.temp.Label;
+import minijava.ir.tree.CJUMP;
+import minijava.ir.tree.IRStm;
+import minijava.ir.tree.LABEL;
+import minijava.translate.Fragment;
+import minijava.translate.Fragments;
+import minijava.translate.ProcFragment;
+import minijava.util.List;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, with
+ * the interpreter collecting a {@link Profile} of each program. The counts
+ * in the profile are checked for consistency, and the profile is written
+ * and read back.
+ * <p>
+ * There is also a test that checks the actual counts for a small program.
+ */
+public class TestProfile extends TestTranslate {
+
+	private Profile profile;
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Interp interpreter(Fragments translated) {
+		profile = new Profile();
+		return super.interpreter(translated).setProfile(profile);
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		checkProfile(translated);
+		return translated;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		checkProfile(translated);
+		return translated;
+	}
+
+	private void checkProfile(Fragments translated) throws Exception {
+		boolean first = true;
+		for (Fragment fragment : translated) {
+			ProcFragment proc = (ProcFragment) fragment;
+			Label name = proc.getLabel();
+			if (first)
+				Assert.assertEquals(1, profile.getInvocations(name));
+			first = false;
+			BasicBlocks blocks = proc.getBasicBlocks();
+			for (List<IRStm> block : blocks.blocks) {
+				Label label = ((LABEL) block.head()).getLabel();
+				int count = profile.getBlockCount(name, label);
+				if (block.getLast() instanceof CJUMP) {
+					CJUMP cjump = (CJUMP) block.getLast();
+					Assert.assertEquals(count,
+							profile.getBranchCount(name, label, cjump.getTrueLabel())
+							+ profile.getBranchCount(name, label, cjump.getFalseLabel()));
+				}
+			}
+			Label entry = ((LABEL) blocks.blocks.head().head()).getLabel();
+			Assert.assertTrue(profile.getBlockCount(name, entry) >= profile.getInvocations(name));
+		}
+		String written = write(profile);
+		Assert.assertEquals(written, write(Profile.read(new StringReader(written))));
+		Assert.assertTrue(profile.toString().startsWith("Hot procedures"));
+	}
+
+	private static String write(Profile profile) {
+		StringWriter out = new StringWriter();
+		profile.write(out);
+		return out.toString();
+	}
+
+	@Test public void loopCounts() throws Exception {
+		test(	"10\n",
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Loop().run(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Loop {\n" +
+				"   public int run(int n) { \n" +
+				"      int i;\n" +
+				"      int[] a;\n" +
+				"      a = new int[n];\n" +
+				"      i = 0;\n" +
+				"      while (i < n) {\n" +
+				"         a[i] = i;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return i;\n" +
+				"   }\n" +
+				"}\n"
+		);
+		Label run = Label.get("Loop_run");
+		Assert.assertEquals(1, profile.getInvocations(run));
+		Assert.assertEquals(1, profile.getCallCount(Label.get("mj_main"), run));
+		// The array and its length (the Loop object is allocated by main, and
+		// has no fields)
+		Assert.assertEquals(11, profile.getAllocatedWords(run));
+		Assert.assertEquals(0, profile.getAllocatedWords(Label.get("mj_main")));
+
+		// The loop test runs 11 times: 10 times into the body, once out. (The
+		// labels are generated, so look for it in the written profile.)
+		int loopTests = 0;
+		for (String line : write(profile).split("\n")) {
+			String[] fields = line.split("\t");
+			if (fields[0].equals("branch") && fields[1].equals("Loop_run")
+					&& fields[5].equals("10") && fields[6].equals("1")) {
+				loopTests++;
+				Label test = Label.get(fields[2]);
+				Assert.assertEquals(11, profile.getBlockCount(run, test));
+				Assert.assertEquals(10, profile.getBranchCount(run, test, Label.get(fields[3])));
+				Assert.assertEquals(1, profile.getBranchCount(run, test, Label.get(fields[4])));
+			}
+		}
+		Assert.assertEquals(1, loopTests);
+	}
+}
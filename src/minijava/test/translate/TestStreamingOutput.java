@@ -0,0 +1,93 @@
+package minijava.test.translate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+
+import junit.framework.Assert;
+import minijava.ir.interp.Interp;
+import minijava.ir.interp.InterpMode;
+import minijava.translate.Fragments;
+
+import org.junit.Test;
+
+/**
+ * This runs all the same tests as the TestCompiledInterp test suite, and
+ * then runs each program once more, with its output going to an
+ * OutputStream (see {@link Interp#run(OutputStream)}).
+ * <p>
+ * There is also a test with more output than fits in the buffer, and
+ * numbers of every length and sign.
+ */
+public class TestStreamingOutput extends TestTranslate {
+
+	@Override
+	protected InterpMode getSimulationMode() {
+		return InterpMode.COMPILED;
+	}
+
+	@Override
+	protected boolean dumpIR() {
+		return false;
+	}
+
+	@Override
+	protected Fragments test(String expected, File program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		runStreaming(expected, translated);
+		return translated;
+	}
+
+	@Override
+	protected Fragments test(String expected, String program) throws Exception {
+		Fragments translated = super.test(expected, program);
+		runStreaming(expected, translated);
+		return translated;
+	}
+
+	private void runStreaming(String expected, Fragments translated) throws Exception {
+		final int[] flushes = new int[1];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+			@Override
+			public void flush() {
+				flushes[0]++;
+			}
+		};
+		new Interp(translated, InterpMode.COMPILED).run((OutputStream) bytes);
+		Assert.assertEquals(expected, bytes.toString("US-ASCII"));
+		Assert.assertTrue(flushes[0] >= 1);
+	}
+
+	@Test public void manyNumbers() throws Exception {
+		StringBuilder expected = new StringBuilder();
+		int n = 1;
+		for (int i = 0; i < 2000; i++) {
+			expected.append(n).append('\n');
+			expected.append(-n).append('\n');
+			n = n * 7 + 3;
+		}
+		expected.append(Integer.MIN_VALUE).append('\n');
+		test(	expected.toString(),
+				"class Main {\n" +
+				"  public static void main(String[] args) {\n" +
+				"    System.out.println(new Printer().run(2000));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Printer {\n" +
+				"   public int run(int count) { \n" +
+				"      int i;\n" +
+				"      int n;\n" +
+				"      i = 0;\n" +
+				"      n = 1;\n" +
+				"      while (i < count) {\n" +
+				"         System.out.println(n);\n" +
+				"         System.out.println(0 - n);\n" +
+				"         n = n * 7 + 3;\n" +
+				"         i = i + 1;\n" +
+				"      }\n" +
+				"      return 0 - 2147483647 - 1;\n" +
+				"   }\n" +
+				"}\n"
+		);
+	}
+}
@@ -44,6 +44,14 @@ public class TestTranslate {
 		return InterpMode.LINEARIZED_IR;
 	}
 
+	/**
+	 * Create the interpreter that runs the translated program (subclasses
+	 * can override this to configure it).
+	 */
+	protected Interp interpreter(Fragments translated) {
+		return new Interp(translated, getSimulationMode());
+	}
+
 	/**
 	 * Print out all the generated IR?
 	 * <p>
@@ -493,7 +501,7 @@ public class TestTranslate {
 			
 		if (getSimulationMode()!=null) {
 			System.out.println("Simulating IR code:");
-			Interp interp = new Interp(translated, getSimulationMode());
+			Interp interp = interpreter(translated);
 			String result = interp.run();
 			System.out.println(result);
 			Assert.assertEquals(expected, result);
@@ -517,7 +525,7 @@ public class TestTranslate {
 		}
 		if (getSimulationMode()!=null) {
 			System.out.println("Simulating IR code:");
-			Interp interp = new Interp(translated, getSimulationMode());
+			Interp interp = interpreter(translated);
 			String result = interp.run();
 			System.out.print(result);
 			Assert.assertEquals(expected, result);
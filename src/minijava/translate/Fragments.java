@@ -3,6 +3,7 @@ package minijava.translate;
 import java.util.Iterator;
 
 import minijava.ir.frame.Frame;
+import minijava.ir.optimize.Optimizer;
 import minijava.util.DefaultIndentable;
 import minijava.util.IndentingWriter;
 import minijava.util.List;
@@ -62,6 +63,21 @@ public class Fragments extends DefaultIndentable implements Iterable<Fragment> {
 		return frags.iterator();
 	}
 
+	/**
+	 * Optimize the IR of all the procedures with the given passes (see
+	 * {@link ProcFragment#setOptimizer(Optimizer)}). The optimizer is told
+	 * about all the procedures, so that it can inline calls.
+	 */
+	public Fragments setOptimizer(Optimizer optimizer) {
+		if (optimizer!=null)
+			optimizer.setProgram(this);
+		for (Fragment frag : frags) {
+			if (frag instanceof ProcFragment)
+				((ProcFragment) frag).setOptimizer(optimizer);
+		}
+		return this;
+	}
+
 	/**
 	 * Fetch the (target architecture specific) frame factory that was used to 
 	 * produce this IR. 
@@ -4,6 +4,7 @@ import minijava.ir.canon.BasicBlocks;
 import minijava.ir.canon.Canon;
 import minijava.ir.canon.TraceSchedule;
 import minijava.ir.frame.Frame;
+import minijava.ir.optimize.Optimizer;
 import minijava.ir.temp.Label;
 import minijava.ir.tree.IRStm;
 import minijava.util.IndentingWriter;
@@ -31,7 +32,18 @@ public class ProcFragment extends Fragment {
 	private IRStm body;
 	
 	/**
-	 * The result of linearising body.
+	 * The optimization passes to apply, or null to not optimize.
+	 */
+	private Optimizer optimizer = null;
+	
+	/**
+	 * The result of the optimizer's passes over the body tree.
+	 */
+	private IRStm optimizedBody;
+	
+	/**
+	 * The result of linearising the (optimized) body, and applying the
+	 * optimizer's passes over the linearized IR.
 	 */
 	private List<IRStm> linearizedBody;
 	
@@ -52,9 +64,48 @@ public class ProcFragment extends Fragment {
 		this.body = body;
 	}
 	
+	/**
+	 * Optimize the IR of this procedure with the given passes (or not at all,
+	 * if optimizer is null). This throws away the IR that was already
+	 * produced from the body.
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		this.optimizer = optimizer;
+		optimizedBody = null;
+		linearizedBody = null;
+		blocks = null;
+		traceScheduled = null;
+	}
+	
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+	
+	/**
+	 * The body as produced by the translator.
+	 */
+	public IRStm getBody() {
+		return body;
+	}
+	
+	/**
+	 * The body after the optimizer's passes over the IR tree (the same as
+	 * the body, if there is no optimizer).
+	 */
+	public IRStm getOptimizedBody() {
+		if (optimizer==null)
+			return body;
+		if (optimizedBody==null) {
+			optimizedBody = optimizer.optimizeTree(this, body);
+		}
+		return optimizedBody;
+	}
+	
 	public List<IRStm> getLinearizedBody() {
 		if (linearizedBody==null) {
-			linearizedBody = Canon.linearize(body);
+			linearizedBody = Canon.linearize(getOptimizedBody());
+			if (optimizer!=null)
+				linearizedBody = optimizer.optimizeLinearized(this, linearizedBody);
 		}
 		return linearizedBody;
 	}